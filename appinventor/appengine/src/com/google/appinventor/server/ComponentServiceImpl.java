@@ -7,6 +7,7 @@ package com.google.appinventor.server;
 
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+import com.google.appinventor.server.util.UrlConnections;
 import com.google.appinventor.shared.rpc.component.ComponentImportResponse;
 import com.google.appinventor.shared.rpc.component.ComponentImportResponse.Status;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidComponentNode;
@@ -92,7 +93,7 @@ public class ComponentServiceImpl extends OdeRemoteServiceServlet
         contents = extractContents(storageIo.openTempFile(fileOrUrl));
       } else {
         URL compUrl = new URL(fileOrUrl);
-        contents = extractContents(compUrl.openStream());
+        contents = extractContents(UrlConnections.open(compUrl).getInputStream());
       }
       importToProject(contents, projectId, folderPath, response);
       return response;
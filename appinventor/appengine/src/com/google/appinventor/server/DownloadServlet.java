@@ -20,6 +20,7 @@ import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.NoSuchElementException;
 import java.util.logging.Logger;
 
@@ -126,6 +127,26 @@ public class DownloadServlet extends OdeServlet {
         // project in the export
         boolean includeYail = userInfoProvider.getIsAdmin();
         boolean includeScreenShots = includeYail;
+        if (zipName != null) {
+          // The name of the zip is known up front, so the zip is streamed to
+          // the client as the project files are read. The exporter checks the
+          // project and reads its first file before it writes anything, and the
+          // download headers are only set then, so those failures still get an
+          // error status.
+          OutputStream out = new DownloadOutputStream(resp, zipName);
+          try {
+            fileExporter.exportProjectSourceZip(userId, projectId, includeProjectHistory, false,
+                zipName, includeYail, includeScreenShots, false, false, out);
+          } catch (IOException e) {
+            abortDownload(resp);
+            throw e;
+          } catch (RuntimeException e) {
+            abortDownload(resp);
+            throw e;
+          }
+          out.close();
+          return;
+        }
         ProjectSourceZip zipFile = fileExporter.exportProjectSourceZip(userId,
           projectId, includeProjectHistory, false, zipName, includeYail,
           includeScreenShots, false, false);
@@ -221,9 +242,7 @@ public class DownloadServlet extends OdeServlet {
     byte[] content = downloadableFile.getContent();
 
     // Set http response information
-    resp.setStatus(HttpServletResponse.SC_OK);
-    resp.setHeader("content-disposition", "attachment; filename=\"" + fileName + "\"");
-    resp.setContentType(StorageUtil.getContentTypeForFilePath(fileName));
+    setDownloadHeaders(resp, fileName);
     resp.setContentLength(content.length);
 
     // Attach download data
@@ -231,4 +250,69 @@ public class DownloadServlet extends OdeServlet {
     out.write(content);
     out.close();
   }
+
+  private static void setDownloadHeaders(HttpServletResponse resp, String fileName) {
+    resp.setStatus(HttpServletResponse.SC_OK);
+    resp.setHeader("content-disposition", "attachment; filename=\"" + fileName + "\"");
+    resp.setContentType(StorageUtil.getContentTypeForFilePath(fileName));
+  }
+
+  /**
+   * Clears a streamed download that failed, so that the error reaches the
+   * client as an error status rather than as a truncated file. If part of the
+   * file has already been sent, the exception thrown by the caller makes the
+   * container abort the response, so the download still fails.
+   */
+  private static void abortDownload(HttpServletResponse resp) {
+    if (!resp.isCommitted()) {
+      resp.reset();
+      CACHE_HEADERS.setNotCacheable(resp);
+      resp.setContentType(CONTENT_TYPE);
+    }
+  }
+
+  /**
+   * An output stream to a response that sets the download headers just before
+   * the first byte is written.
+   */
+  private static class DownloadOutputStream extends OutputStream {
+    private final HttpServletResponse resp;
+    private final String fileName;
+    private OutputStream out = null;
+
+    DownloadOutputStream(HttpServletResponse resp, String fileName) {
+      this.resp = resp;
+      this.fileName = fileName;
+    }
+
+    private OutputStream getOut() throws IOException {
+      if (out == null) {
+        setDownloadHeaders(resp, fileName);
+        out = resp.getOutputStream();
+      }
+      return out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      getOut().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      getOut().write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (out != null) {
+        out.flush();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      getOut().close();
+    }
+  }
 }
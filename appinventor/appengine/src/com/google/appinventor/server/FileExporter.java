@@ -10,6 +10,7 @@ import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 
 import java.io.IOException;
+import java.io.OutputStream;
 
 import javax.annotation.Nullable;
 
@@ -57,6 +58,27 @@ public interface FileExporter {
     boolean includeScreenShots,
     boolean fatalError, boolean forGallery) throws IOException;
 
+  /**
+   * Exports the project's source files as a zip, which is written to
+   * {@code zipStream} as the files are read instead of being kept in memory.
+   * The returned ProjectSourceZip has the name, file count and metadata of the
+   * zip but no content. The stream is not closed.
+   *
+   * @param zipStream the stream to write the zip to
+   * @throws IllegalArgumentException if download request cannot be fulfilled
+   *         (no source files), in which case nothing has been written
+   * @throws IOException if files cannot be written
+   * @see #exportProjectSourceZip(String, long, boolean, boolean, String, boolean, boolean,
+   *      boolean, boolean)
+   */
+  ProjectSourceZip exportProjectSourceZip(String userId, long projectId,
+    boolean includeProjectHistory,
+    boolean includeAndroidKeystore, @Nullable String zipName,
+    boolean includeYail,
+    boolean includeScreenShots,
+    boolean fatalError, boolean forGallery,
+    OutputStream zipStream) throws IOException;
+
   /**
    * Exports all of the user's projects' source files as a zip of zips.
    *
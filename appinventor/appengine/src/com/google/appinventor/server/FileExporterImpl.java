@@ -17,6 +17,7 @@ import com.google.appinventor.shared.storage.StorageUtil;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.ZipEntry;
@@ -76,6 +77,25 @@ public final class FileExporterImpl implements FileExporter {
     }
   }
 
+  @Override
+  public ProjectSourceZip exportProjectSourceZip(String userId, long projectId,
+    boolean includeProjectHistory,
+    boolean includeAndroidKeystore,
+    @Nullable String zipName,
+    boolean includeYail,
+    boolean includeScreenShots,
+    boolean fatalError,
+    boolean forGallery,
+    OutputStream zipStream) throws IOException {
+    if (storageIo instanceof ObjectifyStorageIo) {
+      return ((ObjectifyStorageIo)storageIo).exportProjectSourceZip(userId, projectId,
+        includeProjectHistory, includeAndroidKeystore, zipName, includeYail, includeScreenShots,
+        forGallery, fatalError, zipStream);
+    } else {
+      throw new IllegalArgumentException("Objectify only");
+    }
+  }
+
   @Override
   public ProjectSourceZip exportAllProjectsSourceZip(String userId,
       String zipName) throws IOException {
@@ -16,6 +16,7 @@ import com.google.appinventor.server.storage.StoredData.PWData;
 
 import com.google.appinventor.server.util.PasswordHash;
 import com.google.appinventor.server.util.UriBuilder;
+import com.google.appinventor.server.util.UrlConnections;
 
 import com.google.appinventor.shared.rpc.user.User;
 
@@ -438,7 +439,7 @@ public class LoginServlet extends HttpServlet {
         return;
       }
       URL mailServerUrl = new URL(tmailServer);
-      HttpURLConnection connection = (HttpURLConnection) mailServerUrl.openConnection();
+      HttpURLConnection connection = (HttpURLConnection) UrlConnections.open(mailServerUrl);
       connection.setDoOutput(true);
       connection.setRequestMethod("POST");
       PrintWriter stream = new PrintWriter(connection.getOutputStream());
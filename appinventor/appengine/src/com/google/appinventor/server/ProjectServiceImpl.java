@@ -42,7 +42,9 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.channels.Channels;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -486,11 +488,22 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
       BlocksTruncatedException {
     validateSessionId(sessionId);
     final String userId = userInfoProvider.getUserId();
-    long date = 0;
+    // Group the files by project, so that each project is written in one go.
+    // A later content for the same file replaces an earlier one.
+    Map<Long, Map<String, String>> projects = new LinkedHashMap<Long, Map<String, String>>();
     for (FileDescriptorWithContent fileAndContent : filesAndContent) {
-     long projectId = fileAndContent.getProjectId();
-     date = getProjectRpcImpl(userId, projectId).
-         save(userId, projectId, fileAndContent.getFileId(), fileAndContent.getContent());
+      Map<String, String> contents = projects.get(fileAndContent.getProjectId());
+      if (contents == null) {
+        contents = new LinkedHashMap<String, String>();
+        projects.put(fileAndContent.getProjectId(), contents);
+      }
+      contents.remove(fileAndContent.getFileId());
+      contents.put(fileAndContent.getFileId(), fileAndContent.getContent());
+    }
+    long date = 0;
+    for (Map.Entry<Long, Map<String, String>> project : projects.entrySet()) {
+      long projectId = project.getKey();
+      date = getProjectRpcImpl(userId, projectId).save(userId, projectId, project.getValue());
     }
     return date;
   }
@@ -0,0 +1,31 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+import com.google.appinventor.server.storage.StorageStats;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Shows the project cache and datastore retry counts of this instance to
+ * administrators. See {@link StorageStats}.
+ */
+public class StorageStatsServlet extends OdeServlet {
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    resp.setContentType("text/plain; charset=utf-8");
+    resp.setHeader("Cache-Control", "no-cache");
+    PrintWriter out = resp.getWriter();
+    StorageStats.write(StorageIoInstanceHolder.INSTANCE, out);
+    out.flush();
+  }
+}
@@ -7,6 +7,7 @@
 package com.google.appinventor.server.project;
 
 import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.server.util.UrlConnections;
 import com.google.appinventor.shared.rpc.BlocksTruncatedException;
 import com.google.appinventor.shared.rpc.RpcResult;
 import com.google.appinventor.shared.rpc.project.ChecksumedLoadFile;
@@ -24,6 +25,7 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.List;
+import java.util.Map;
 
 /**
  * The base class for classes that provide project services for a specific
@@ -270,6 +272,26 @@ public abstract class CommonProjectService {
     }
   }
 
+  /**
+   * Saves the contents of several files of a project. Like
+   * {@link #save(String, long, String, String)}, this always sets force to
+   * true. The project modification date is updated only once.
+   *
+   * @param userId the user id
+   * @param projectId  project root node ID
+   * @param contents  content to be saved by file ID
+   * @return modification date for project
+   */
+  public long save(String userId, long projectId, Map<String, String> contents) {
+    try {
+      return storageIo.uploadFiles(projectId, userId, true, contents,
+          StorageUtil.DEFAULT_CHARSET);
+    } catch (BlocksTruncatedException e) {
+      // Won't happen because it isn't thrown when the force argument is true
+      return 0;
+    }
+  }
+
   /**
    * Saves the content of the file associated with a node in the project tree.
    * if force is false, an error is thrown if an attempt is made to save a
@@ -349,7 +371,7 @@ public abstract class CommonProjectService {
       byte[] buffer = new byte[BUFSIZE];
       int read = 0;
       ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      is = url.openStream();
+      is = UrlConnections.open(url).getInputStream();
       while ( ( read = is.read(buffer) ) > 0 ) {
         baos.write(buffer, 0, read);
       }
@@ -21,6 +21,8 @@ import com.google.appinventor.server.project.CommonProjectService;
 import com.google.appinventor.server.project.utils.Security;
 import com.google.appinventor.server.properties.json.ServerJsonParser;
 import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.server.util.SizeLimitedOutputStream;
+import com.google.appinventor.server.util.UrlConnections;
 import com.google.appinventor.shared.properties.json.JSONParser;
 import com.google.appinventor.shared.rpc.RpcResult;
 import com.google.appinventor.shared.rpc.ServerLayout;
@@ -28,7 +30,6 @@ import com.google.appinventor.shared.rpc.project.NewProjectParameters;
 import com.google.appinventor.shared.rpc.project.Project;
 import com.google.appinventor.shared.rpc.project.ProjectNode;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
-import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.rpc.project.TextFile;
 import com.google.appinventor.shared.rpc.project.youngandroid.NewYoungAndroidProjectParameters;
@@ -111,6 +112,12 @@ public final class YoungAndroidProjectService extends CommonProjectService {
   // Build folder path
   private static final String BUILD_FOLDER = "build";
 
+  // Size limit of the project zip sent to the build server
+  private static final long MAX_BUILD_REQUEST_SIZE = 10 * 1024 * 1024;
+
+  // Size of the chunks the project zip is sent to the build server in
+  private static final int BUILD_REQUEST_CHUNK_SIZE = 64 * 1024;
+
   public static final String PROJECT_KEYSTORE_LOCATION = "android.keystore";
 
   // host[:port] to use for connecting to the build server
@@ -660,7 +667,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       storageIo.deleteFile(userId, projectId, buildOutputFile);
     }
     URL buildServerUrl = null;
-    ProjectSourceZip zipFile = null;
+    SizeLimitedOutputStream projectStream = null;
     try {
       buildServerUrl = new URL(getBuildServerUrlStr(
           user.getUserEmail(),
@@ -668,37 +675,49 @@ public final class YoungAndroidProjectService extends CommonProjectService {
           projectId,
           secondBuildserver,
           outputFileDir));
-      HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
+      HttpURLConnection connection = (HttpURLConnection) UrlConnections.open(buildServerUrl);
       connection.setDoOutput(true);
       connection.setRequestMethod("POST");
-
-      BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
-      FileExporter fileExporter = new FileExporterImpl();
-      zipFile = fileExporter.exportProjectSourceZip(userId, projectId, false,
-          /* includeAndroidKeystore */ true,
-        projectName + ".aia", true, false, true, false);
-      // The code below tests the size of the compressed project before
-      // we send it off to the buildserver. When using URLFetch we know that
+      // The project zip is written to the connection as it is produced, so
+      // neither its size nor its content has to be known up front. This
+      // relies on the native url-stream-handler (see appengine-web.xml):
+      // URLFetch ignores streaming mode and buffers the whole request.
+      connection.setChunkedStreamingMode(BUILD_REQUEST_CHUNK_SIZE);
+
+      // The stream below limits the size of the compressed project we send
+      // off to the buildserver. When using URLFetch we know that
       // this size is limited to 10MB based on Google's documentation.
       // It isn't clear if this is also enforced in the Java 8 environment
       // when not using URLFetch. However we are being conservative for now.
       // Keep in mind that large projects can lead to large APK files which
       // may not be loadable into many memory restricted devices, so we
       // may not want to encourage large projects...
-      if (zipFile.getContent().length > 10*1024*1024) { // 10 Megabyte size limit...
-        int zipFileLength = zipFile.getContent().length;
-        String lengthMbs = format((zipFileLength * 1.0)/(1024*1024));
-        RuntimeException exception = new RuntimeException(
-            "Sorry, can't package projects larger than 10Mb."
-            + " Yours is " + lengthMbs + "MB.");
-        CrashReport.createAndLogError(LOG, null,
-            buildErrorMsg("RuntimeException", buildServerUrl, userId, projectId),
-            exception);
-        return new RpcResult(false, "", exception.getMessage());
+      projectStream = new SizeLimitedOutputStream(
+          new BufferedOutputStream(connection.getOutputStream()), MAX_BUILD_REQUEST_SIZE);
+      FileExporter fileExporter = new FileExporterImpl();
+      try {
+        fileExporter.exportProjectSourceZip(userId, projectId, false,
+            /* includeAndroidKeystore */ true,
+          projectName + ".aia", true, false, true, false, projectStream);
+      } catch (IOException e) {
+        if (!projectStream.isLimitExceeded()) {
+          throw e;
+        }
+      } catch (RuntimeException e) {
+        if (!projectStream.isLimitExceeded()) {
+          throw e;
+        }
+      }
+      if (projectStream.isLimitExceeded()) {
+        // Drop the connection without finishing the request, so the build
+        // server gets an incomplete project and doesn't build it. A project
+        // that is too large is the user's to fix, not a server error.
+        connection.disconnect();
+        LOG.info("Project too large to build, user=" + userId + ", project=" + projectId);
+        return new RpcResult(false, "", "Sorry, can't package projects larger than 10Mb.");
       }
-      bufferedOutputStream.write(zipFile.getContent());
-      bufferedOutputStream.flush();
-      bufferedOutputStream.close();
+      projectStream.flush();
+      projectStream.close();
 
       int responseCode = 0;
       responseCode = connection.getResponseCode();
@@ -752,7 +771,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     } catch (IOException e) {
       // As of App Engine 1.9.0 we get these when UrlFetch is asked to send too much data
       Throwable wrappedException = e;
-      int zipFileLength = zipFile == null ? -1 : zipFile.getContent().length;
+      long zipFileLength = projectStream == null ? -1 : projectStream.getCount();
       if (zipFileLength >= (5 * 1024 * 1024) /* 5 MB */) {
         String lengthMbs = format((zipFileLength * 1.0)/(1024*1024));
         wrappedException = new IllegalArgumentException(
@@ -770,8 +789,8 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       // In particular, we often see RequestTooLargeException (if the zip is too
       // big) and ApiProxyException. There may be others.
       Throwable wrappedException = e;
-      if (e instanceof ApiProxy.RequestTooLargeException && zipFile != null) {
-        int zipFileLength = zipFile.getContent().length;
+      if (e instanceof ApiProxy.RequestTooLargeException && projectStream != null) {
+        long zipFileLength = projectStream.getCount();
         if (zipFileLength >= (5 * 1024 * 1024) /* 5 MB */) {
           String lengthMbs = format((zipFileLength * 1.0)/(1024*1024));
           wrappedException = new IllegalArgumentException(
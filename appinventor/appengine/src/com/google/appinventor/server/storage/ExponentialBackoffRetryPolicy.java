@@ -0,0 +1,55 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import java.util.Random;
+
+/**
+ * A retry policy that doubles the delay with every retry, up to a maximum.
+ * Half of each delay is random, so that jobs that failed together on the
+ * same entity group don't all retry at the same moment.
+ */
+class ExponentialBackoffRetryPolicy implements RetryPolicy {
+  private final int maxRetries;
+  private final long initialDelayMillis;
+  private final long maxDelayMillis;
+  private final long budgetMillis;
+  private final Random random = new Random();
+
+  /**
+   * Creates a policy.
+   *
+   * @param maxRetries  the most times a job is retried
+   * @param initialDelayMillis  the delay before the first retry, before jitter
+   * @param maxDelayMillis  the longest delay before a retry, before jitter
+   * @param budgetMillis  the longest time a job may spend from its first run
+   *     to the start of its last retry
+   */
+  ExponentialBackoffRetryPolicy(int maxRetries, long initialDelayMillis, long maxDelayMillis,
+      long budgetMillis) {
+    this.maxRetries = maxRetries;
+    this.initialDelayMillis = initialDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+    this.budgetMillis = budgetMillis;
+  }
+
+  @Override
+  public long getRetryDelayMillis(int retry, long elapsedMillis) {
+    if (retry > maxRetries) {
+      return -1;
+    }
+    long delay = initialDelayMillis;
+    for (int i = 1; i < retry && delay < maxDelayMillis; i++) {
+      delay *= 2;
+    }
+    delay = Math.min(delay, maxDelayMillis);
+    delay = delay / 2 + (long) (random.nextDouble() * (delay - delay / 2 + 1));
+    if (elapsedMillis + delay > budgetMillis) {
+      return -1;
+    }
+    return delay;
+  }
+}
@@ -0,0 +1,288 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.appinventor.server.flags.Flag;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides when the runJobWithRetries loops retry a failed datastore job and
+ * waits before each retry, as told by a {@link RetryPolicy}. The time one
+ * request spends waiting is also limited, and never runs into the last few
+ * seconds before the request's deadline.
+ *
+ * Retries are counted by operation, which is the method that created the
+ * job, e.g. "ObjectifyStorageIo.uploadFile". Jobs created by a shared helper
+ * are counted under the helper, e.g. "ObjectifyStorageIo.getProjectData" for
+ * every project metadata read and "ObjectifyStorageIo.uploadRawFiles" for
+ * uploadFiles. Every job that needed retries logs its own counts and the
+ * totals of its operation, so the logs show which operations contend for the
+ * same entity groups. The totals of all trackers are also listed by
+ * {@link StorageStats}.
+ */
+class JobRetryTracker {
+  private static final Logger LOG = Logger.getLogger(JobRetryTracker.class.getName());
+
+  private static final Flag<Integer> maxRetries = Flag.createFlag("storage.retry.max", 10);
+  private static final Flag<Integer> initialDelayMillis =
+      Flag.createFlag("storage.retry.initial.delay.ms", 20);
+  private static final Flag<Integer> maxDelayMillis =
+      Flag.createFlag("storage.retry.max.delay.ms", 1000);
+  private static final Flag<Integer> jobBudgetMillis =
+      Flag.createFlag("storage.retry.job.budget.ms", 10000);
+  private static final Flag<Integer> requestBudgetMillisFlag =
+      Flag.createFlag("storage.retry.request.budget.ms", 20000);
+
+  // The environment attribute holding the time the current request has spent waiting to retry
+  private static final String BACKOFF_ATTRIBUTE = JobRetryTracker.class.getName() + ".backoff";
+
+  // Waiting to retry never leaves a request with less time than this before its deadline
+  private static final long DEADLINE_MARGIN_MILLIS = 5000;
+
+  /**
+   * The retry counts of one operation.
+   */
+  static class OperationStats {
+    private final AtomicLong retriedJobs = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong contentions = new AtomicLong();
+    private final AtomicLong failedJobs = new AtomicLong();
+    private final AtomicLong backoffMillis = new AtomicLong();
+
+    /** Returns the number of jobs that failed at least once. */
+    long getRetriedJobs() {
+      return retriedJobs.get();
+    }
+
+    /** Returns the number of times jobs were retried. */
+    long getRetries() {
+      return retries.get();
+    }
+
+    /** Returns the number of times jobs failed on a concurrent modification. */
+    long getContentions() {
+      return contentions.get();
+    }
+
+    /** Returns the number of jobs that were given up on. */
+    long getFailedJobs() {
+      return failedJobs.get();
+    }
+
+    /** Returns the total time spent waiting to retry jobs. */
+    long getBackoffMillis() {
+      return backoffMillis.get();
+    }
+
+    @Override
+    public String toString() {
+      return "retriedJobs=" + retriedJobs + ", retries=" + retries
+          + ", contentions=" + contentions + ", failedJobs=" + failedJobs
+          + ", backoffMillis=" + backoffMillis;
+    }
+  }
+
+  // The trackers made by create, by name
+  private static final ConcurrentMap<String, JobRetryTracker> trackers =
+      new ConcurrentHashMap<String, JobRetryTracker>();
+
+  private final ConcurrentMap<String, OperationStats> stats =
+      new ConcurrentHashMap<String, OperationStats>();
+  private final long requestBudgetMillis;
+  private volatile RetryPolicy policy;
+
+  /**
+   * Creates a tracker.
+   *
+   * @param policy  the policy deciding whether and when to retry a job
+   * @param requestBudgetMillis  the longest time one request may spend
+   *     waiting to retry jobs
+   */
+  JobRetryTracker(RetryPolicy policy, long requestBudgetMillis) {
+    this.policy = policy;
+    this.requestBudgetMillis = requestBudgetMillis;
+  }
+
+  /**
+   * Creates a tracker with exponential backoff, configured by the
+   * storage.retry flags. Its counts are included in {@link #getAllStats},
+   * until another tracker is created with the same name.
+   *
+   * @param name  the name of the tracker, e.g. the class using it
+   */
+  static JobRetryTracker create(String name) {
+    JobRetryTracker tracker = new JobRetryTracker(
+        new ExponentialBackoffRetryPolicy(maxRetries.get(), initialDelayMillis.get(),
+            maxDelayMillis.get(), jobBudgetMillis.get()),
+        requestBudgetMillisFlag.get());
+    trackers.put(name, tracker);
+    return tracker;
+  }
+
+  void setRetryPolicy(RetryPolicy policy) {
+    this.policy = policy;
+  }
+
+  /**
+   * Returns the retry counts of the operations that have retried jobs,
+   * sorted by operation.
+   */
+  Map<String, OperationStats> getStats() {
+    return new TreeMap<String, OperationStats>(stats);
+  }
+
+  /**
+   * Returns the retry counts of the operations that have retried jobs in
+   * any of the trackers made by {@link #create}, sorted by operation.
+   */
+  static Map<String, OperationStats> getAllStats() {
+    Map<String, OperationStats> allStats = new TreeMap<String, OperationStats>();
+    for (JobRetryTracker tracker : trackers.values()) {
+      allStats.putAll(tracker.stats);
+    }
+    return allStats;
+  }
+
+  /**
+   * Starts tracking a run of the given job.
+   */
+  Run start(Object job) {
+    return new Run(operationName(job.getClass()));
+  }
+
+  /**
+   * One run of a job, including its retries. Runs are used by the thread
+   * running the job only.
+   */
+  class Run {
+    private final String operation;
+    private final long startMillis = System.currentTimeMillis();
+    private int retries = 0;
+    private int contentions = 0;
+    private long backoffMillis = 0;
+
+    private Run(String operation) {
+      this.operation = operation;
+    }
+
+    /**
+     * Records that the job failed and, if it should be retried, waits before
+     * the retry.
+     *
+     * @param contention  whether the job failed on a concurrent modification
+     * @return whether to retry the job
+     */
+    boolean retry(boolean contention) {
+      OperationStats operationStats = getOperationStats(operation);
+      if (retries == 0) {
+        operationStats.retriedJobs.incrementAndGet();
+      }
+      if (contention) {
+        contentions++;
+        operationStats.contentions.incrementAndGet();
+      }
+      long delay = policy.getRetryDelayMillis(retries + 1,
+          System.currentTimeMillis() - startMillis);
+      if (delay > 0 && !reserveRequestBackoff(delay)) {
+        delay = -1;
+      }
+      if (delay < 0) {
+        operationStats.failedJobs.incrementAndGet();
+        log(Level.WARNING, "gave up after", operationStats);
+        return false;
+      }
+      if (delay > 0) {
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          operationStats.failedJobs.incrementAndGet();
+          log(Level.WARNING, "was interrupted after", operationStats);
+          return false;
+        }
+      }
+      retries++;
+      backoffMillis += delay;
+      operationStats.retries.incrementAndGet();
+      operationStats.backoffMillis.addAndGet(delay);
+      return true;
+    }
+
+    /**
+     * Records that the job completed.
+     */
+    void succeeded() {
+      if (retries > 0) {
+        log(Level.INFO, "completed after", getOperationStats(operation));
+      }
+    }
+
+    private void log(Level level, String outcome, OperationStats operationStats) {
+      LOG.log(level, "Datastore job " + operation + " " + outcome + " " + retries
+          + " retries (" + contentions + " contentions, " + backoffMillis + " ms backoff); "
+          + "operation totals: " + operationStats);
+    }
+  }
+
+  private OperationStats getOperationStats(String operation) {
+    OperationStats operationStats = stats.get(operation);
+    if (operationStats == null) {
+      operationStats = new OperationStats();
+      OperationStats existing = stats.putIfAbsent(operation, operationStats);
+      if (existing != null) {
+        operationStats = existing;
+      }
+    }
+    return operationStats;
+  }
+
+  /**
+   * Charges a wait to the current request, if it fits in the request's
+   * budget and deadline. Waits outside of a request are not limited.
+   */
+  private boolean reserveRequestBackoff(long delay) {
+    ApiProxy.Environment env = ApiProxy.getCurrentEnvironment();
+    if (env == null) {
+      return true;
+    }
+    if (env.getRemainingMillis() - delay < DEADLINE_MARGIN_MILLIS) {
+      return false;
+    }
+    // The threads of a request share its attributes map, so it is locked, as
+    // in ObjectifyStorageIo.getRequestProjectCache.
+    Map<String, Object> attributes = env.getAttributes();
+    synchronized (attributes) {
+      Long spent = (Long) attributes.get(BACKOFF_ATTRIBUTE);
+      long total = (spent == null ? 0 : spent) + delay;
+      if (total > requestBudgetMillis) {
+        return false;
+      }
+      attributes.put(BACKOFF_ATTRIBUTE, total);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the name of the method that declares the given job class, or
+   * the name of the class if it isn't declared in a method.
+   */
+  static String operationName(Class<?> jobClass) {
+    Method method = jobClass.getEnclosingMethod();
+    if (method == null) {
+      return jobClass.getName();
+    }
+    return method.getDeclaringClass().getSimpleName() + "." + method.getName();
+  }
+}
@@ -49,8 +49,6 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
 
   private static final String DEFAULT_ENCODING = "UTF-8";
 
-  // TODO(user): need a way to modify this. Also, what is really a good value?
-  private static final int MAX_JOB_RETRIES = 10;
   private static final long TWENTYFOURHOURS = 24*3600*1000; // 24 hours in milliseconds
 
   // Use this class to define the work of a job that can be retried. The
@@ -93,6 +91,9 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
   private final transient StorageIo storageIo =
       StorageIoInstanceHolder.INSTANCE;
 
+  private final transient JobRetryTracker retryTracker =
+      JobRetryTracker.create(ObjectifyGalleryStorageIo.class.getSimpleName());
+
   /**
    * creates a new gallery app
    * @param title title of new app
@@ -1421,27 +1422,32 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
    * Call job.run() in a transaction and commit the transaction if no exceptions
    * occur. If we get a {@link java.util.ConcurrentModificationException}
    * or {@link com.google.appinventor.server.storage.ObjectifyException}
-   * we will retry the job (at most {@code MAX_JOB_RETRIES times}).
+   * we will retry the job, as long as the retry policy allows, waiting longer
+   * before every retry.
    * Any other exception will cause the job to fail immediately.
    * @param job
    * @throws ObjectifyException
    */
   @VisibleForTesting
   void runJobWithRetries(JobRetryHelper job) throws ObjectifyException {
-    int tries = 0;
-    while (tries <= MAX_JOB_RETRIES) {
+    JobRetryTracker.Run run = retryTracker.start(job);
+    while (true) {
       Objectify datastore = ObjectifyService.beginTransaction();
+      boolean contention;
       try {
         job.run(datastore);
         datastore.getTxn().commit();
+        run.succeeded();
         break;
       } catch (ConcurrentModificationException ex) {
         job.onNonFatalError();
         LOG.log(Level.WARNING, "Optimistic concurrency failure", ex);
+        contention = true;
       } catch (ObjectifyException oe) {
         // maybe this should be a fatal error? I think the only thing
         // that creates this exception (other than this method) is uploadToBlobstore
         job.onNonFatalError();
+        contention = false;
       } finally {
         if (datastore.getTxn().isActive()) {
           try {
@@ -1451,13 +1457,21 @@ public class ObjectifyGalleryStorageIo implements  GalleryStorageIo {
           }
         }
       }
-      tries++;
-    }
-    if (tries > MAX_JOB_RETRIES) {
-      throw new ObjectifyException("Couldn't commit job after max retries.");
+      // Wait outside of the transaction, so that it doesn't hold up others
+      if (!run.retry(contention)) {
+        throw new ObjectifyException("Couldn't commit job after max retries.");
+      }
     }
   }
 
+  /**
+   * Sets the policy deciding whether and when failed jobs are retried.
+   */
+  @VisibleForTesting
+  void setRetryPolicy(RetryPolicy policy) {
+    retryTracker.setRetryPolicy(policy);
+  }
+
   /**
    * Check if need to send out email about number of downloads and likes
    * @param userId the id of User
@@ -6,6 +6,7 @@
 
 package com.google.appinventor.server.storage;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.appidentity.AppIdentityService;
 import com.google.appengine.api.appidentity.AppIdentityServiceFactory;
 import com.google.appengine.api.appidentity.AppIdentityServiceFailureException;
@@ -84,18 +85,32 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.channels.Channels;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 import java.util.Date;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 
@@ -118,11 +133,42 @@ public class ObjectifyStorageIo implements  StorageIo {
   private static final long MOTD_ID = 1;
   private static final long SPLASHDATA_ID = 1;
 
-  // TODO(user): need a way to modify this. Also, what is really a good value?
-  private static final int MAX_JOB_RETRIES = 10;
+  // Limits on the files uploadFiles writes in one transaction, well within the datastore's
+  // limits on the size of a commit. Larger saves are split into several transactions.
+  private static final int MAX_FILES_PER_UPLOAD = 100;
+  private static final int MAX_BYTES_PER_UPLOAD = 4 * 1024 * 1024;
+
+  // The most Blobstore and GCS reads exportProjectSourceZip has in flight at once.
+  private static final int MAX_OUTSTANDING_READS = 8;
+
+  // The environment attribute holding the ProjectData read during a request
+  private static final String PROJECT_CACHE_ATTRIBUTE =
+      ObjectifyStorageIo.class.getName() + ".projectCache";
 
   private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
 
+  // Prefix of the memcache keys of ProjectData entities
+  private static final String PROJECT_MEMCACHE_PREFIX =
+      ObjectifyStorageIo.class.getName() + ".projectData.";
+
+  // How long a ProjectData stays in memcache
+  private static final int PROJECT_MEMCACHE_SECONDS = 60 * 60;
+
+  // After a ProjectData is dropped from memcache, lookups that read the old
+  // entity before the change committed can't put it back for this long.
+  private static final long PROJECT_MEMCACHE_NO_READD_MILLIS = 10 * 1000;
+
+  // The hit rate of the project caches is logged every this many lookups
+  private static final long PROJECT_CACHE_LOG_INTERVAL = 1000;
+
+  private final AtomicLong projectCacheLookups = new AtomicLong();
+  private final AtomicLong projectCacheHits = new AtomicLong();
+  private final AtomicLong projectMemcacheHits = new AtomicLong();
+  private final AtomicLong projectCacheMisses = new AtomicLong();
+
+  private final JobRetryTracker retryTracker =
+      JobRetryTracker.create(ObjectifyStorageIo.class.getSimpleName());
+
   private final GcsService gcsService;
 
   private static final String GCS_BUCKET_NAME;
@@ -783,6 +829,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           datastore.delete(projectKey);
         }
       }, true);
+      forgetProjectData(projectId);
       // have to delete the blobs outside of the user and project jobs
       for (String blobKeyString: blobKeys) {
         deleteBlobstoreFile(blobKeyString);
@@ -815,6 +862,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           }
         }
       }, true);
+      forgetProjectData(projectId);
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
@@ -832,6 +880,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           }
         }
       }, true);
+      forgetProjectData(projectId);
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null,"error in setProjectAttributionId",  e);
     }
@@ -859,24 +908,13 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   @Override
   public String loadProjectSettings(final String userId, final long projectId) {
-    final Result<String> settings = new Result<String>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
-        @Override
-        public void run(Objectify datastore) {
-          ProjectData pd = datastore.find(projectKey(projectId));
-          if (pd != null) {
-            settings.t = pd.settings;
-          } else {
-            settings.t = "";
-          }
-        }
-      }, false);
+      ProjectData pd = getProjectData(projectId);
+      return pd != null ? pd.settings : "";
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId), e);
     }
-    return settings.t;
   }
 
   @Override
@@ -893,6 +931,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           }
         }
       }, false);
+      forgetProjectData(projectId);
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId), e);
@@ -924,30 +963,20 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   @Override
   public UserProject getUserProject(final String userId, final long projectId) {
-    final Result<ProjectData> projectData = new Result<ProjectData>();
+    ProjectData projectData;
     try {
-      runJobWithRetries(new JobRetryHelper() {
-        @Override
-        public void run(Objectify datastore) {
-          ProjectData pd = datastore.find(projectKey(projectId));
-          if (pd != null) {
-            projectData.t = pd;
-          } else {
-            projectData.t = null;
-          }
-        }
-      }, false);
+      projectData = getProjectData(projectId);
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId), e);
     }
-    if (projectData.t == null) {
+    if (projectData == null) {
       return null;
     } else {
-      return new UserProject(projectId, projectData.t.name,
-          projectData.t.type, projectData.t.dateCreated,
-          projectData.t.dateModified, projectData.t.galleryId,
-          projectData.t.attributionId);
+      return new UserProject(projectId, projectData.name,
+          projectData.type, projectData.dateCreated,
+          projectData.dateModified, projectData.galleryId,
+          projectData.attributionId);
     }
   }
 
@@ -988,136 +1017,69 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   @Override
   public String getProjectName(final String userId, final long projectId) {
-    final Result<String> projectName = new Result<String>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
-        @Override
-        public void run(Objectify datastore) {
-          ProjectData pd = datastore.find(projectKey(projectId));
-          if (pd != null) {
-            projectName.t = pd.name;
-          } else {
-            projectName.t = "";
-          }
-        }
-      }, false);
+      ProjectData pd = getProjectData(projectId);
+      return pd != null ? pd.name : "";
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId), e);
     }
-    return projectName.t;
   }
 
   @Override
   public long getProjectDateModified(final String userId, final long projectId) {
-    final Result<Long> modDate = new Result<Long>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
-        @Override
-        public void run(Objectify datastore) {
-          ProjectData pd = datastore.find(projectKey(projectId));
-          if (pd != null) {
-            modDate.t = pd.dateModified;
-          } else {
-            modDate.t = UserProject.NOTPUBLISHED;
-          }
-        }
-      }, false); // Transaction not needed, and we want the caching we get if we don't
-                 // use them.
+      ProjectData pd = getProjectData(projectId);
+      return pd != null ? pd.dateModified : UserProject.NOTPUBLISHED;
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId), e);
     }
-    return modDate.t;
   }
 
   @Override
   public String getProjectHistory(final String userId, final long projectId) {
-    final Result<String> projectHistory = new Result<String>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
-        @Override
-        public void run(Objectify datastore) {
-          ProjectData pd = datastore.find(projectKey(projectId));
-          if (pd != null) {
-            projectHistory.t = pd.history;
-          } else {
-            projectHistory.t = "";
-          }
-        }
-      }, true);
+      ProjectData pd = getProjectData(projectId);
+      return pd != null ? pd.history : "";
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId), e);
     }
-    return projectHistory.t;
   }
 
   // JIS XXX
 
   @Override
   public long getProjectDateCreated(final String userId, final long projectId) {
-    final Result<Long> dateCreated = new Result<Long>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
-        @Override
-        public void run(Objectify datastore) {
-          ProjectData pd = datastore.find(projectKey(projectId));
-          if (pd != null) {
-            dateCreated.t = pd.dateCreated;
-          } else {
-            dateCreated.t = UserProject.NOTPUBLISHED;
-          }
-        }
-      }, true);
+      ProjectData pd = getProjectData(projectId);
+      return pd != null ? pd.dateCreated : UserProject.NOTPUBLISHED;
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId), e);
     }
-    return dateCreated.t;
   }
 
   @Override
   public long getProjectGalleryId(String userId, final long projectId) {
-    final Result<Long> galleryId = new Result<Long>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
-        @Override
-        public void run(Objectify datastore) {
-          ProjectData pd = datastore.find(projectKey(projectId));
-          if (pd != null) {
-            galleryId.t = pd.galleryId;
-          } else {
-            galleryId.t = UserProject.NOTPUBLISHED;
-          }
-        }
-      }, true);
+      ProjectData pd = getProjectData(projectId);
+      return pd != null ? pd.galleryId : UserProject.NOTPUBLISHED;
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG,
           null,"error in getProjectGalleryId", e);
     }
-    return galleryId.t;
   }
   @Override
   public long getProjectAttributionId(final long projectId) {
-    final Result<Long> attributionId = new Result<Long>();
     try {
-      runJobWithRetries(new JobRetryHelper() {
-        @Override
-        public void run(Objectify datastore) {
-          ProjectData pd = datastore.find(projectKey(projectId));
-          if (pd != null) {
-            attributionId.t = pd.attributionId;
-          } else {
-            attributionId.t = UserProject.FROMSCRATCH;
-          }
-        }
-      }, true);
+      ProjectData pd = getProjectData(projectId);
+      return pd != null ? pd.attributionId : UserProject.FROMSCRATCH;
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           "error in getProjectAttributionId", e);
     }
-    return attributionId.t;
   }
 
   @Override
@@ -1329,6 +1291,9 @@ public class ObjectifyStorageIo implements  StorageIo {
           addFilesToProject(datastore, projectId, FileData.RoleEnum.SOURCE, changeModDate, userId, fileNames);
         }
       }, true);
+      if (changeModDate) {
+        forgetProjectData(projectId);
+      }
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileNames[0]), e);
@@ -1395,6 +1360,9 @@ public class ObjectifyStorageIo implements  StorageIo {
           removeFilesFromProject(datastore, projectId, FileData.RoleEnum.SOURCE, changeModDate, fileNames);
         }
       }, true);
+      if (changeModDate) {
+        forgetProjectData(projectId);
+      }
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileNames[0]), e);
@@ -1509,6 +1477,148 @@ public class ObjectifyStorageIo implements  StorageIo {
     }
   }
 
+  /*
+   * Returns the ProjectData of the given project, or null if there is no such
+   * project. Lookups go to the cache of the request (see
+   * getRequestProjectCache), then to memcache, and only then to the datastore.
+   * Every change to a ProjectData must call forgetProjectData once it has
+   * committed.
+   */
+  private ProjectData getProjectData(final long projectId) throws ObjectifyException {
+    Map<Long, ProjectData> cache = getRequestProjectCache();
+    ProjectData projectData = cache == null ? null : cache.get(projectId);
+    if (projectData != null) {
+      countProjectCacheLookup(projectCacheHits);
+      return projectData;
+    }
+    String memcacheKey = projectMemcacheKey(projectId);
+    projectData = (ProjectData) memcache.get(memcacheKey);
+    if (projectData != null) {
+      countProjectCacheLookup(projectMemcacheHits);
+    } else {
+      countProjectCacheLookup(projectCacheMisses);
+      final Result<ProjectData> result = new Result<ProjectData>();
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          result.t = datastore.find(projectKey(projectId));
+        }
+      }, false);
+      projectData = result.t;
+      if (projectData == null) {
+        return null;
+      }
+      // Doesn't replace a newer copy, nor add one shortly after forgetProjectData.
+      memcache.put(memcacheKey, projectData,
+          Expiration.byDeltaSeconds(PROJECT_MEMCACHE_SECONDS),
+          SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    }
+    if (cache != null) {
+      cache.put(projectId, projectData);
+    }
+    return projectData;
+  }
+
+  /*
+   * Drops the ProjectData of the given project from the request's cache and
+   * from memcache. Must be called after the transaction that changed it has
+   * committed, or a lookup in between could cache the old entity again.
+   */
+  private void forgetProjectData(long projectId) {
+    Map<Long, ProjectData> cache = getRequestProjectCache();
+    if (cache != null) {
+      cache.remove(projectId);
+    }
+    memcache.delete(projectMemcacheKey(projectId), PROJECT_MEMCACHE_NO_READD_MILLIS);
+  }
+
+  /*
+   * Drops the cached ProjectData of the given project if its modification
+   * date isn't the given one, as returned by updateProjectModDate. Most file
+   * changes leave the date alone (see updateProjectModDate), and so keep the
+   * cached copies.
+   */
+  private void forgetProjectDataIfModified(long projectId, long dateModified) {
+    Map<Long, ProjectData> cache = getRequestProjectCache();
+    ProjectData projectData = cache == null ? null : cache.get(projectId);
+    if (projectData == null) {
+      projectData = (ProjectData) memcache.get(projectMemcacheKey(projectId));
+    }
+    if (projectData != null && projectData.dateModified != dateModified) {
+      forgetProjectData(projectId);
+    }
+  }
+
+  private static String projectMemcacheKey(long projectId) {
+    return PROJECT_MEMCACHE_PREFIX + projectId;
+  }
+
+  /*
+   * Returns the cache of ProjectData entities of the current request, or null
+   * outside of a request. The cache is kept in the attributes of the
+   * request's environment, so it goes away with the request. Like
+   * JobRetryTracker, this locks the attributes map while it adds to it.
+   */
+  @SuppressWarnings("unchecked")
+  private static Map<Long, ProjectData> getRequestProjectCache() {
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    if (environment == null) {
+      return null;
+    }
+    Map<String, Object> attributes = environment.getAttributes();
+    synchronized (attributes) {
+      Map<Long, ProjectData> cache =
+          (Map<Long, ProjectData>) attributes.get(PROJECT_CACHE_ATTRIBUTE);
+      if (cache == null) {
+        cache = new ConcurrentHashMap<Long, ProjectData>();
+        attributes.put(PROJECT_CACHE_ATTRIBUTE, cache);
+      }
+      return cache;
+    }
+  }
+
+  /*
+   * Counts a lookup in the project caches, and now and then logs the totals
+   * so the caches' hit rates show in the logs.
+   */
+  private void countProjectCacheLookup(AtomicLong counter) {
+    counter.incrementAndGet();
+    if (projectCacheLookups.incrementAndGet() % PROJECT_CACHE_LOG_INTERVAL == 0) {
+      LOG.info("Project cache: " + getProjectCacheHits() + " request hits, "
+          + getProjectMemcacheHits() + " memcache hits, "
+          + getProjectCacheMisses() + " misses");
+    }
+  }
+
+  /**
+   * Returns the number of project metadata lookups that were answered from
+   * the cache of the request.
+   */
+  public long getProjectCacheHits() {
+    return projectCacheHits.get();
+  }
+
+  /**
+   * Returns the number of project metadata lookups that were answered from
+   * memcache.
+   */
+  public long getProjectMemcacheHits() {
+    return projectMemcacheHits.get();
+  }
+
+  /**
+   * Returns the number of project metadata lookups that had to go to the
+   * datastore.
+   */
+  public long getProjectCacheMisses() {
+    return projectCacheMisses.get();
+  }
+
+  /*
+   * Moves the project's modification date forward, unless it changed less
+   * than a minute ago, and returns the resulting date. The caller must pass
+   * the date to forgetProjectDataIfModified once the transaction commits.
+   */
   private long updateProjectModDate(Objectify datastore, long projectId, boolean doingConversion) {
     long modDate = System.currentTimeMillis();
     ProjectData pd = datastore.find(projectKey(projectId));
@@ -1552,12 +1662,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       final boolean force, final byte[] content, final boolean doingConversion) throws BlocksTruncatedException {
     validateGCS();
     final Result<Long> modTime = new Result<Long>();
-    final boolean useGCS = useGCSforFile(fileName, content.length);
-    final Result<String> oldBlobstoreKey = new Result<String>();
-    final boolean considerBackup = (useGcs?((fileName.contains("src/") && fileName.endsWith(".blk")) // AI1 Blocks Files
-        || (fileName.contains("src/") && fileName.endsWith(".bky")) // Blockly files
-        || (fileName.contains("src/") && fileName.endsWith(".scm"))) // Form Definitions
-      :false);
+    final Set<String> oldBlobstoreKeys = new LinkedHashSet<String>();
 
     try {
       runJobWithRetries(new JobRetryHelper() {
@@ -1574,88 +1679,8 @@ public class ObjectifyStorageIo implements  StorageIo {
               LOG.log(Level.INFO, "Fetched " + key.getString() + " from memcache.");
             }
           }
-
-          // <Screen>.yail files are missing when user converts AI1 project to AI2
-          // instead of blowing up, just create a <Screen>.yail file
-          if (fd == null && (fileName.endsWith(".yail") || (fileName.endsWith(".png")))){
-            fd = createProjectFile(datastore, projectKey(projectId), FileData.RoleEnum.SOURCE, fileName);
-            fd.userId = userId;
-          }
-
-          Preconditions.checkState(fd != null);
-
-          if (fd.userId != null && !fd.userId.equals("")) {
-            if (!fd.userId.equals(userId)) {
-              throw CrashReport.createAndLogError(LOG, null,
-                collectUserProjectErrorInfo(userId, projectId),
-                new UnauthorizedAccessException(userId, projectId, null));
-            }
-          }
-
-          if ((content.length < 125) && (fileName.endsWith(".bky"))) { // Likely this is an empty blocks workspace
-            if (!force) {            // force is true if we *really* want to save it!
-              checkForBlocksTruncation(fd); // See if we had previous content and throw and exception if so
-            }
-          }
-
-          if (fd.isBlob) {
-            // mark the old blobstore blob for deletion
-           oldBlobstoreKey.t = fd.blobKey;
-          }
-          if (useGCS) {
-            fd.isGCS = true;
-            fd.gcsName = makeGCSfileName(fileName, projectId);
-            try {
-              GcsOutputChannel outputChannel =
-                gcsService.createOrReplace(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName), GcsFileOptions.getDefaultInstance());
-              outputChannel.write(ByteBuffer.wrap(content));
-              outputChannel.close();
-            } catch (IOException e) {
-              throw CrashReport.createAndLogError(LOG, null,
-                collectProjectErrorInfo(userId, projectId, fileName), e);
-            }
-            // If the content was previously stored in the datastore, clear it out.
-            fd.content = null;
-            fd.isBlob = false;  // in case we are converting from a blob
-            fd.blobstorePath = null;
-          } else {
-            if (isTrue(fd.isGCS)) {     // Was a GCS file, must have gotten smaller
-              try {             // and is now stored in the data store
-                gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName));
-              } catch (IOException e) {
-                throw CrashReport.createAndLogError(LOG, null,
-                  collectProjectErrorInfo(userId, projectId, fileName), e);
-              }
-              fd.isGCS = false;
-              fd.gcsName = null;
-            }
-            // Note, Don't have to do anything if the file was in the
-            // Blobstore and shrank because the code above (3 lines
-            // into the function) already handles removing the old
-            // contents from the Blobstore.
-            fd.isBlob = false;
-            fd.blobstorePath = null;
-            fd.content = content;
-          }
-          if (considerBackup && !doingConversion) {
-            if ((fd.lastBackup + TWENTYFOURHOURS) < System.currentTimeMillis()) {
-              try {
-                String gcsName = makeGCSfileName(fileName + "." + formattedTime() + ".backup", projectId);
-                GcsOutputChannel outputChannel =
-                    gcsService.createOrReplace((new GcsFilename(GCS_BUCKET_NAME, gcsName)), GcsFileOptions.getDefaultInstance());
-                outputChannel.write(ByteBuffer.wrap(content));
-                outputChannel.close();
-                fd.lastBackup = System.currentTimeMillis();
-              } catch (IOException e) {
-                throw CrashReport.createAndLogError(LOG, null,
-                    collectProjectErrorInfo(userId, projectId, fileName + "(backup)"), e);
-              }
-            }
-          }
-          // Old file not marked with ownership, mark it now
-          if (fd.userId == null || fd.userId.equals("")) {
-            fd.userId = userId;
-          }
+          fd = updateProjectFile(datastore, fd, projectId, fileName, userId, force, content,
+              doingConversion, oldBlobstoreKeys);
           datastore.put(fd);
           memcache.put(key.getString(), fd); // Store the updated data in memcache
           modTime.t = updateProjectModDate(datastore, projectId, doingConversion);
@@ -1664,18 +1689,19 @@ public class ObjectifyStorageIo implements  StorageIo {
         @Override
         public void onNonFatalError() {
           if (fd != null && fd.blobKey != null) {
-            oldBlobstoreKey.t = fd.blobKey;
+            oldBlobstoreKeys.add(fd.blobKey);
           }
         }
       }, false);        // Use transaction for blobstore, otherwise we don't need one
                                // and without one the caching code comes into play.
+      forgetProjectDataIfModified(projectId, modTime.t);
 
       // It would have been convenient to delete the old blobstore file within the run() method
       // above but that caused an exception where the app engine datastore claimed to be doing
       // operations on multiple entity groups within the same transaction.  Apparently the blobstore
       // operations are, at least partially, also datastore operations.
-      if (oldBlobstoreKey.t != null) {
-        deleteBlobstoreFile(oldBlobstoreKey.t);
+      for (String oldBlobstoreKey : oldBlobstoreKeys) {
+        deleteBlobstoreFile(oldBlobstoreKey);
       }
     } catch (ObjectifyException e) {
       if (e.getMessage().startsWith("Blocks")) { // Convert Exception
@@ -1687,6 +1713,200 @@ public class ObjectifyStorageIo implements  StorageIo {
     return modTime.t;
   }
 
+  @Override
+  public long uploadFiles(final long projectId, final String userId, final boolean force,
+      final Map<String, String> contents, final String encoding) throws BlocksTruncatedException {
+    validateGCS();
+    long modDate = 0;
+    Map<String, byte[]> batch = new LinkedHashMap<String, byte[]>();
+    int batchBytes = 0;
+    for (Map.Entry<String, String> file : contents.entrySet()) {
+      byte[] content;
+      try {
+        content = file.getValue().getBytes(encoding);
+      } catch (UnsupportedEncodingException e) {
+        throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding,"
+            + collectProjectErrorInfo(null, projectId, file.getKey()), e);
+      }
+      // Content written to GCS isn't part of the datastore commit.
+      int size = useGCSforFile(file.getKey(), content.length) ? 0 : content.length;
+      if (!batch.isEmpty() && (batch.size() >= MAX_FILES_PER_UPLOAD
+          || batchBytes + size > MAX_BYTES_PER_UPLOAD)) {
+        modDate = uploadRawFiles(projectId, userId, force, batch);
+        batch.clear();
+        batchBytes = 0;
+      }
+      batch.put(file.getKey(), content);
+      batchBytes += size;
+    }
+    if (!batch.isEmpty()) {
+      modDate = uploadRawFiles(projectId, userId, force, batch);
+    }
+    return modDate;
+  }
+
+  /*
+   * Writes the given files of a project in a single transaction, with one batched get and put
+   * of the file entities and one update of the project modification date. All the entities
+   * are in the project's entity group.
+   */
+  private long uploadRawFiles(final long projectId, final String userId, final boolean force,
+      final Map<String, byte[]> contents) throws BlocksTruncatedException {
+    final Result<Long> modTime = new Result<Long>();
+    final Set<String> oldBlobstoreKeys = new LinkedHashSet<String>();
+    final Map<String, FileData> updatedFiles = new LinkedHashMap<String, FileData>();
+
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) throws ObjectifyException {
+          updatedFiles.clear();
+          Key<ProjectData> projectKey = projectKey(projectId);
+          List<String> cacheKeys = new ArrayList<String>();
+          for (String fileName : contents.keySet()) {
+            cacheKeys.add(projectFileKey(projectKey, fileName).getString());
+          }
+          Map<String, Object> cachedFiles = memcache.getAll(cacheKeys);
+          List<Key<FileData>> uncachedKeys = new ArrayList<Key<FileData>>();
+          for (String fileName : contents.keySet()) {
+            Key<FileData> key = projectFileKey(projectKey, fileName);
+            if (cachedFiles.get(key.getString()) == null) {
+              uncachedKeys.add(key);
+            }
+          }
+          Map<Key<FileData>, FileData> storedFiles = uncachedKeys.isEmpty()
+              ? new HashMap<Key<FileData>, FileData>()
+              : datastore.get(uncachedKeys);  // batch get
+
+          for (Map.Entry<String, byte[]> file : contents.entrySet()) {
+            Key<FileData> key = projectFileKey(projectKey, file.getKey());
+            FileData fd = (FileData) cachedFiles.get(key.getString());
+            if (fd == null) {
+              fd = storedFiles.get(key);
+            }
+            fd = updateProjectFile(datastore, fd, projectId, file.getKey(), userId, force,
+                file.getValue(), false, oldBlobstoreKeys);
+            updatedFiles.put(key.getString(), fd);
+          }
+          datastore.put(updatedFiles.values());  // batch put
+          modTime.t = updateProjectModDate(datastore, projectId, false);
+        }
+      }, true);
+
+      // Cache the files only once the transaction has committed.
+      memcache.putAll(updatedFiles);
+      forgetProjectDataIfModified(projectId, modTime.t);
+      for (String oldBlobstoreKey : oldBlobstoreKeys) {
+        deleteBlobstoreFile(oldBlobstoreKey);
+      }
+    } catch (ObjectifyException e) {
+      if (e.getMessage().startsWith("Blocks")) { // Convert Exception
+        throw new BlocksTruncatedException();
+      }
+      throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, contents.keySet().toString()), e);
+    }
+    return modTime.t;
+  }
+
+  /*
+   * Stores new content in the given file entity, which is null if the file isn't in the
+   * datastore yet, and returns the entity to put. The keys of blobstore blobs that are no
+   * longer needed are added to oldBlobstoreKeys, to be deleted once the entity is put.
+   */
+  private FileData updateProjectFile(Objectify datastore, FileData fd, long projectId,
+      String fileName, String userId, boolean force, byte[] content, boolean doingConversion,
+      Set<String> oldBlobstoreKeys) throws ObjectifyException {
+    final boolean useGCS = useGCSforFile(fileName, content.length);
+    final boolean considerBackup = (useGcs?((fileName.contains("src/") && fileName.endsWith(".blk")) // AI1 Blocks Files
+        || (fileName.contains("src/") && fileName.endsWith(".bky")) // Blockly files
+        || (fileName.contains("src/") && fileName.endsWith(".scm"))) // Form Definitions
+      :false);
+
+    // <Screen>.yail files are missing when user converts AI1 project to AI2
+    // instead of blowing up, just create a <Screen>.yail file
+    if (fd == null && (fileName.endsWith(".yail") || (fileName.endsWith(".png")))){
+      fd = createProjectFile(datastore, projectKey(projectId), FileData.RoleEnum.SOURCE, fileName);
+      fd.userId = userId;
+    }
+
+    Preconditions.checkState(fd != null);
+
+    if (fd.userId != null && !fd.userId.equals("")) {
+      if (!fd.userId.equals(userId)) {
+        throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId),
+          new UnauthorizedAccessException(userId, projectId, null));
+      }
+    }
+
+    if ((content.length < 125) && (fileName.endsWith(".bky"))) { // Likely this is an empty blocks workspace
+      if (!force) {            // force is true if we *really* want to save it!
+        checkForBlocksTruncation(fd); // See if we had previous content and throw and exception if so
+      }
+    }
+
+    if (fd.isBlob) {
+      // mark the old blobstore blob for deletion
+      oldBlobstoreKeys.add(fd.blobKey);
+    }
+    if (useGCS) {
+      fd.isGCS = true;
+      fd.gcsName = makeGCSfileName(fileName, projectId);
+      try {
+        GcsOutputChannel outputChannel =
+          gcsService.createOrReplace(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName), GcsFileOptions.getDefaultInstance());
+        outputChannel.write(ByteBuffer.wrap(content));
+        outputChannel.close();
+      } catch (IOException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+      }
+      // If the content was previously stored in the datastore, clear it out.
+      fd.content = null;
+      fd.isBlob = false;  // in case we are converting from a blob
+      fd.blobstorePath = null;
+    } else {
+      if (isTrue(fd.isGCS)) {     // Was a GCS file, must have gotten smaller
+        try {             // and is now stored in the data store
+          gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName));
+        } catch (IOException e) {
+          throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, projectId, fileName), e);
+        }
+        fd.isGCS = false;
+        fd.gcsName = null;
+      }
+      // Note, Don't have to do anything if the file was in the
+      // Blobstore and shrank because the code above (3 lines
+      // into the function) already handles removing the old
+      // contents from the Blobstore.
+      fd.isBlob = false;
+      fd.blobstorePath = null;
+      fd.content = content;
+    }
+    if (considerBackup && !doingConversion) {
+      if ((fd.lastBackup + TWENTYFOURHOURS) < System.currentTimeMillis()) {
+        try {
+          String gcsName = makeGCSfileName(fileName + "." + formattedTime() + ".backup", projectId);
+          GcsOutputChannel outputChannel =
+              gcsService.createOrReplace((new GcsFilename(GCS_BUCKET_NAME, gcsName)), GcsFileOptions.getDefaultInstance());
+          outputChannel.write(ByteBuffer.wrap(content));
+          outputChannel.close();
+          fd.lastBackup = System.currentTimeMillis();
+        } catch (IOException e) {
+          throw CrashReport.createAndLogError(LOG, null,
+              collectProjectErrorInfo(userId, projectId, fileName + "(backup)"), e);
+        }
+      }
+    }
+    // Old file not marked with ownership, mark it now
+    if (fd.userId == null || fd.userId.equals("")) {
+      fd.userId = userId;
+    }
+    return fd;
+  }
+
   protected void deleteBlobstoreFile(String blobKeyString) {
     // It would be nice if there were an AppEngineFile.delete() method but alas there isn't, so we
     // have to get the BlobKey and delete via the BlobstoreService.
@@ -1751,6 +1971,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           modTime.t = updateProjectModDate(datastore, projectId, false);
         }
       }, true);
+      forgetProjectDataIfModified(projectId, modTime.t);
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileName), e);
@@ -1985,6 +2206,25 @@ public class ObjectifyStorageIo implements  StorageIo {
     final boolean includeScreenShots,
     final boolean forGallery,
     final boolean fatalError) throws IOException {
+    return exportProjectSourceZip(userId, projectId, includeProjectHistory, includeAndroidKeystore,
+        zipName, includeYail, includeScreenShots, forGallery, fatalError, null);
+  }
+
+  /**
+   * Exports project files as a zip archive, like
+   * {@link #exportProjectSourceZip(String, long, boolean, boolean, String, boolean, boolean,
+   * boolean, boolean)}, but writes the archive to {@code zipStream} if it isn't null. The
+   * returned ProjectSourceZip then has no content. The stream is not closed.
+   */
+  public ProjectSourceZip exportProjectSourceZip(final String userId, final long projectId,
+    final boolean includeProjectHistory,
+    final boolean includeAndroidKeystore,
+    @Nullable String zipName,
+    final boolean includeYail,
+    final boolean includeScreenShots,
+    final boolean forGallery,
+    final boolean fatalError,
+    @Nullable OutputStream zipStream) throws IOException {
     validateGCS();
     final Result<Integer> fileCount = new Result<Integer>();
     fileCount.t = 0;
@@ -1999,8 +2239,8 @@ public class ObjectifyStorageIo implements  StorageIo {
     projectName.t = null;
     String fileName = null;
 
-    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
-    final ZipOutputStream out = new ZipOutputStream(zipFile);
+    ByteArrayOutputStream zipFile = zipStream == null ? new ByteArrayOutputStream() : null;
+    final ZipOutputStream out = new ZipOutputStream(zipStream == null ? zipFile : zipStream);
     out.setComment("Built with MIT App Inventor");
 
     try {
@@ -2052,87 +2292,31 @@ public class ObjectifyStorageIo implements  StorageIo {
         throw error;
       }
       // Process the file contents outside of the job since we can't read
-      // blobs in the job.
-      for (FileData fd : fileData) {
-        fileName = fd.fileName;
-        byte[] data = null;
-        if (fd.isBlob) {
-          try {
-            if (fd.blobKey == null) {
-              throw new BlobReadException("blobKey is null");
-            }
-            data = getBlobstoreBytes(fd.blobKey);
-          } catch (BlobReadException e) {
-            throw CrashReport.createAndLogError(LOG, null,
-                collectProjectErrorInfo(userId, projectId, fileName), e);
-          }
-        } else if (isTrue(fd.isGCS)) {
-          try {
-            int count;
-            boolean npfHappened = false;
-            boolean recovered = false;
-            for (count = 0; count < 5; count++) {
-              GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fd.gcsName);
-              int bytesRead = 0;
-              int fileSize = 0;
-              ByteBuffer resultBuffer;
-              try {
-                fileSize = (int) gcsService.getMetadata(gcsFileName).getLength();
-                resultBuffer = ByteBuffer.allocate(fileSize);
-                GcsInputChannel readChannel = gcsService.openReadChannel(gcsFileName, 0);
-                try {
-                  while (bytesRead < fileSize) {
-                    bytesRead += readChannel.read(resultBuffer);
-                    if (bytesRead < fileSize) {
-                      if (DEBUG) {
-                        LOG.log(Level.INFO, "readChannel: bytesRead = " + bytesRead + " fileSize = " + fileSize);
-                      }
-                    }
-                  }
-                  recovered = true;
-                  data = resultBuffer.array();
-                  break;        // We got the data, break out of the loop!
-                } finally {
-                  readChannel.close();
-                }
-              } catch (NullPointerException e) {
-                // This happens if the object in GCS is non-existent, which would happen
-                // when people uploaded a zero length object. As of this change, we now
-                // store zero length objects into GCS, but there are plenty of older objects
-                // that are missing in GCS.
-                LOG.log(Level.WARNING, "exportProjectFile: NPF recorded for " + fd.gcsName);
-                npfHappened = true;
-                resultBuffer = ByteBuffer.allocate(0);
-                data = resultBuffer.array();
-              }
-            }
-
-            // report out on how things went above
-            if (npfHappened) {    // We lost at least once
-              if (recovered) {
-                LOG.log(Level.WARNING, "recovered from NPF in exportProjectFile filename = " + fd.gcsName +
-                  " count = " + count);
-              } else {
-                LOG.log(Level.WARNING, "FATAL NPF in exportProjectFile filename = " + fd.gcsName);
-                if (fatalError) {
-                  throw new IOException("FATAL Error reading file from GCS filename = " + fd.gcsName);
-                }
-              }
-            }
-          } catch (IOException e) {
-            throw CrashReport.createAndLogError(LOG, null,
-              collectProjectErrorInfo(userId, projectId, fileName), e);
-          }
-        } else {
-          data = fd.content;
+      // blobs in the job. Blobstore and GCS files are read ahead on other
+      // threads, with at most MAX_OUTSTANDING_READS reads in flight, and
+      // written to the zip in order as their reads complete.
+      ExecutorService readers = newReadExecutor();
+      try {
+        Deque<Future<byte[]>> reads = new ArrayDeque<Future<byte[]>>();
+        int nextRead = 0;
+        for (FileData fd : fileData) {
+          while (nextRead < fileData.size() && reads.size() < MAX_OUTSTANDING_READS) {
+            reads.add(startRead(readers, fileData.get(nextRead++), userId, projectId, fatalError));
+          }
+          fileName = fd.fileName;
+          byte[] data = getReadResult(reads.remove());
+          if (data == null) {     // This happens if file creation is interrupted
+            data = new byte[0];
+          }
+          out.putNextEntry(new ZipEntry(fileName));
+          out.write(data, 0, data.length);
+          out.closeEntry();
+          fileCount.t++;
         }
-        if (data == null) {     // This happens if file creation is interrupted
-          data = new byte[0];
+      } finally {
+        if (readers != null) {
+          readers.shutdownNow();
         }
-        out.putNextEntry(new ZipEntry(fileName));
-        out.write(data, 0, data.length);
-        out.closeEntry();
-        fileCount.t++;
       }
       if (projectHistory.t != null) {
         byte[] data = projectHistory.t.getBytes(StorageUtil.DEFAULT_CHARSET);
@@ -2186,17 +2370,154 @@ public class ObjectifyStorageIo implements  StorageIo {
       }
     }
 
-    out.close();
+    if (zipStream == null) {
+      out.close();
+    } else {
+      out.finish();
+    }
 
     if (zipName == null) {
       zipName = projectName.t + ".aia";
     }
-    ProjectSourceZip projectSourceZip =
-        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount.t);
+    ProjectSourceZip projectSourceZip = new ProjectSourceZip(zipName,
+        zipFile == null ? new byte[0] : zipFile.toByteArray(), fileCount.t);
     projectSourceZip.setMetadata(projectName.t);
     return projectSourceZip;
   }
 
+  /*
+   * Returns an executor for reading project files on request threads, or null
+   * if request threads can't be created, as is the case outside of a request.
+   */
+  private static ExecutorService newReadExecutor() {
+    try {
+      return Executors.newFixedThreadPool(MAX_OUTSTANDING_READS,
+          ThreadManager.currentRequestThreadFactory());
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  /*
+   * Starts reading the content of a project file. Content stored in the
+   * datastore entity, and all content when there is no executor, is read
+   * in the calling thread.
+   */
+  private Future<byte[]> startRead(ExecutorService readers, final FileData fd,
+      final String userId, final long projectId, final boolean fatalError) {
+    Callable<byte[]> read = new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws IOException {
+        return readProjectFileData(fd, userId, projectId, fatalError);
+      }
+    };
+    if (readers == null || !(fd.isBlob || isTrue(fd.isGCS))) {
+      FutureTask<byte[]> task = new FutureTask<byte[]>(read);
+      task.run();
+      return task;
+    }
+    return readers.submit(read);
+  }
+
+  private static byte[] getReadResult(Future<byte[]> read) throws IOException {
+    try {
+      return read.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading project files");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /*
+   * Reads the content of a project file from wherever it is stored. Returns
+   * null if the file has no content.
+   */
+  private byte[] readProjectFileData(FileData fd, String userId, long projectId,
+      boolean fatalError) throws IOException {
+    byte[] data = null;
+    if (fd.isBlob) {
+      try {
+        if (fd.blobKey == null) {
+          throw new BlobReadException("blobKey is null");
+        }
+        data = getBlobstoreBytes(fd.blobKey);
+      } catch (BlobReadException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, projectId, fd.fileName), e);
+      }
+    } else if (isTrue(fd.isGCS)) {
+      try {
+        int count;
+        boolean npfHappened = false;
+        boolean recovered = false;
+        for (count = 0; count < 5; count++) {
+          GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fd.gcsName);
+          int bytesRead = 0;
+          int fileSize = 0;
+          ByteBuffer resultBuffer;
+          try {
+            fileSize = (int) gcsService.getMetadata(gcsFileName).getLength();
+            resultBuffer = ByteBuffer.allocate(fileSize);
+            GcsInputChannel readChannel = gcsService.openReadChannel(gcsFileName, 0);
+            try {
+              while (bytesRead < fileSize) {
+                bytesRead += readChannel.read(resultBuffer);
+                if (bytesRead < fileSize) {
+                  if (DEBUG) {
+                    LOG.log(Level.INFO, "readChannel: bytesRead = " + bytesRead + " fileSize = " + fileSize);
+                  }
+                }
+              }
+              recovered = true;
+              data = resultBuffer.array();
+              break;        // We got the data, break out of the loop!
+            } finally {
+              readChannel.close();
+            }
+          } catch (NullPointerException e) {
+            // This happens if the object in GCS is non-existent, which would happen
+            // when people uploaded a zero length object. As of this change, we now
+            // store zero length objects into GCS, but there are plenty of older objects
+            // that are missing in GCS.
+            LOG.log(Level.WARNING, "exportProjectFile: NPF recorded for " + fd.gcsName);
+            npfHappened = true;
+            resultBuffer = ByteBuffer.allocate(0);
+            data = resultBuffer.array();
+          }
+        }
+
+        // report out on how things went above
+        if (npfHappened) {    // We lost at least once
+          if (recovered) {
+            LOG.log(Level.WARNING, "recovered from NPF in exportProjectFile filename = " + fd.gcsName +
+              " count = " + count);
+          } else {
+            LOG.log(Level.WARNING, "FATAL NPF in exportProjectFile filename = " + fd.gcsName);
+            if (fatalError) {
+              throw new IOException("FATAL Error reading file from GCS filename = " + fd.gcsName);
+            }
+          }
+        }
+      } catch (IOException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fd.fileName), e);
+      }
+    } else {
+      data = fd.content;
+    }
+    return data;
+  }
+
   @Override
   public Motd getCurrentMotd() {
     final Result<Motd> motd = new Result<Motd>();
@@ -2493,7 +2814,8 @@ public class ObjectifyStorageIo implements  StorageIo {
   /**
    * Call job.run() if we get a {@link java.util.ConcurrentModificationException}
    * or {@link com.google.appinventor.server.storage.ObjectifyException}
-   * we will retry the job (at most {@code MAX_JOB_RETRIES times}).
+   * we will retry the job, as long as the retry policy allows, waiting longer
+   * before every retry.
    * Any other exception will cause the job to fail immediately.
    * If useTransaction is true, create a transaction and run the job in
    * that transaction. If the job terminates normally, commit the transaction.
@@ -2510,23 +2832,26 @@ public class ObjectifyStorageIo implements  StorageIo {
    */
   @VisibleForTesting
   void runJobWithRetries(JobRetryHelper job, boolean useTransaction) throws ObjectifyException {
-    int tries = 0;
-    while (tries <= MAX_JOB_RETRIES) {
+    JobRetryTracker.Run run = retryTracker.start(job);
+    while (true) {
       Objectify datastore;
       if (useTransaction) {
         datastore = ObjectifyService.beginTransaction();
       } else {
         datastore = ObjectifyService.begin();
       }
+      boolean contention;
       try {
         job.run(datastore);
         if (useTransaction) {
           datastore.getTxn().commit();
         }
+        run.succeeded();
         break;
       } catch (ConcurrentModificationException ex) {
         job.onNonFatalError();
         LOG.log(Level.WARNING, "Optimistic concurrency failure", ex);
+        contention = true;
       } catch (ObjectifyException oe) {
         String message = oe.getMessage();
         if (message != null &&
@@ -2536,6 +2861,7 @@ public class ObjectifyStorageIo implements  StorageIo {
         // maybe this should be a fatal error? I think only thing
         // that creates this exception is this method.
         job.onNonFatalError();
+        contention = false;
       } catch (IOException e) {
         job.onIOException(e);
         break;
@@ -2548,13 +2874,29 @@ public class ObjectifyStorageIo implements  StorageIo {
           }
         }
       }
-      tries++;
-    }
-    if (tries > MAX_JOB_RETRIES) {
-      throw new ObjectifyException("Couldn't commit job after max retries.");
+      // Wait outside of the transaction, so that it doesn't hold up others
+      if (!run.retry(contention)) {
+        throw new ObjectifyException("Couldn't commit job after max retries.");
+      }
     }
   }
 
+  /**
+   * Sets the policy deciding whether and when failed jobs are retried.
+   */
+  @VisibleForTesting
+  void setRetryPolicy(RetryPolicy policy) {
+    retryTracker.setRetryPolicy(policy);
+  }
+
+  /**
+   * Returns the retry counts of the operations that have retried jobs.
+   */
+  @VisibleForTesting
+  Map<String, JobRetryTracker.OperationStats> getRetryStats() {
+    return retryTracker.getStats();
+  }
+
   private static String collectUserErrorInfo(final String userId) {
     return collectUserErrorInfo(userId, CrashReport.NOT_AVAILABLE);
   }
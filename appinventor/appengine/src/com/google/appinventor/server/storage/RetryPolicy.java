@@ -0,0 +1,21 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+/**
+ * Decides whether, and after how long, a datastore job that failed with a
+ * retryable error is run again.
+ */
+interface RetryPolicy {
+  /**
+   * Returns how long to wait before the given retry of a job, or a negative
+   * number if the job should not be retried.
+   *
+   * @param retry  the number of the retry, starting at 1
+   * @param elapsedMillis  the time since the job was first started
+   */
+  long getRetryDelayMillis(int retry, long elapsedMillis);
+}
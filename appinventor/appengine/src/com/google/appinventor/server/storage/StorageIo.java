@@ -21,6 +21,7 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 import javax.annotation.Nullable;
@@ -467,6 +468,20 @@ public interface StorageIo {
    */
   long uploadFileForce(long projectId, String fileId, String userId, String content, String encoding);
 
+  /**
+   * Uploads several files of a project, with a single update of the project
+   * modification date. The files are written in as few transactions as the
+   * datastore's limits on the size of a commit allow.
+   * @param projectId  project ID
+   * @param userId the user who owns the files
+   * @param force true to write even a trivial workspace file
+   * @param contents  file content by file ID
+   * @param encoding encoding of contents
+   * @return modification date for project
+   */
+  long uploadFiles(long projectId, String userId, boolean force, Map<String, String> contents,
+      String encoding) throws BlocksTruncatedException;
+
   /**
    * Uploads a file.
    * @param projectId  project ID
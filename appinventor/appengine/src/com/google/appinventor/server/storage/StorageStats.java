@@ -0,0 +1,40 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * Lists the counts the storage layer keeps for operators: the hits and
+ * misses of the project metadata caches, and the datastore job retries of
+ * each operation (see {@link JobRetryTracker}). The counts are those of this
+ * instance since it started.
+ */
+public final class StorageStats {
+
+  private StorageStats() {
+  }
+
+  /**
+   * Writes the counts as plain text, one per line.
+   */
+  public static void write(StorageIo storageIo, PrintWriter out) {
+    if (storageIo instanceof ObjectifyStorageIo) {
+      ObjectifyStorageIo objectifyStorageIo = (ObjectifyStorageIo) storageIo;
+      out.println("project cache: request hits=" + objectifyStorageIo.getProjectCacheHits()
+          + ", memcache hits=" + objectifyStorageIo.getProjectMemcacheHits()
+          + ", misses=" + objectifyStorageIo.getProjectCacheMisses());
+    }
+    Map<String, JobRetryTracker.OperationStats> retryStats = JobRetryTracker.getAllStats();
+    if (retryStats.isEmpty()) {
+      out.println("datastore retries: none");
+    }
+    for (Map.Entry<String, JobRetryTracker.OperationStats> entry : retryStats.entrySet()) {
+      out.println("datastore retries: " + entry.getKey() + ": " + entry.getValue());
+    }
+  }
+}
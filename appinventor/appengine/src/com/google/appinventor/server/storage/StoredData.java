@@ -66,9 +66,11 @@ public class StoredData {
 
   // Project properties
   // The ProjectData class is an entity root, and the parent of FileData
+  // Note: ProjectData has to be Serializable so we can put it into
+  //       memcache.
   @Cached
   @Unindexed
-  static final class ProjectData {
+  static final class ProjectData implements Serializable {
     // Auto-generated unique project id
     @Id Long id;
 
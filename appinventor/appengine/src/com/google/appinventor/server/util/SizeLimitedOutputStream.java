@@ -0,0 +1,67 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that counts the bytes written through it and fails once
+ * more than a given number of bytes have been written. The bytes that would
+ * have exceeded the limit are not passed on.
+ */
+public class SizeLimitedOutputStream extends FilterOutputStream {
+  private final long limit;
+  private long count = 0;
+  private boolean limitExceeded = false;
+
+  /**
+   * Creates a stream that writes to {@code out}.
+   *
+   * @param out  the underlying stream
+   * @param limit  the most bytes that may be written
+   */
+  public SizeLimitedOutputStream(OutputStream out, long limit) {
+    super(out);
+    this.limit = limit;
+  }
+
+  /**
+   * Returns the number of bytes written.
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * Returns whether a write failed because it would have exceeded the limit.
+   */
+  public boolean isLimitExceeded() {
+    return limitExceeded;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    checkLimit(1);
+    out.write(b);
+    count++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    checkLimit(len);
+    out.write(b, off, len);
+    count += len;
+  }
+
+  private void checkLimit(int len) throws IOException {
+    if (count + len > limit) {
+      limitExceeded = true;
+      throw new IOException("More than " + limit + " bytes written");
+    }
+  }
+}
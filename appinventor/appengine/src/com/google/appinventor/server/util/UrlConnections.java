@@ -0,0 +1,45 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.util;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * Opens outgoing connections with connect and read timeouts.
+ *
+ * <p>Outgoing connections use sockets rather than URLFetch (see the url-stream-handler in
+ * appengine-web.xml), so URLFetch's default deadline doesn't apply to them and, without
+ * timeouts, an unresponsive server would hold the request thread indefinitely. All outgoing
+ * connections should be opened here.
+ */
+public final class UrlConnections {
+
+  // Matches appengine.api.urlfetch.defaultDeadline in appengine-web.xml
+  public static final int DEFAULT_TIMEOUT_MILLIS = 40 * 1000;
+
+  private UrlConnections() {
+  }
+
+  /**
+   * Opens a connection to the given URL with the default timeouts.
+   */
+  public static URLConnection open(URL url) throws IOException {
+    return open(url, DEFAULT_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Opens a connection to the given URL that fails if connecting, or waiting for data, takes
+   * longer than the given time.
+   */
+  public static URLConnection open(URL url, int timeoutMillis) throws IOException {
+    URLConnection connection = url.openConnection();
+    connection.setConnectTimeout(timeoutMillis);
+    connection.setReadTimeout(timeoutMillis);
+    return connection;
+  }
+}
@@ -18,11 +18,15 @@ import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.fail;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isA;
 
 /**
  * Tests for {@link DownloadServlet}. Mocks out FileExporter. Mainly tests
@@ -91,8 +95,10 @@ public class DownloadServletTest {
   public void testDownloadProjectSourceZipWithTitle() throws IOException {
     MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
         "project-source/1234/My Project Title 123");
-    expect(exporterMock.exportProjectSourceZip(USER_ID, PROJECT_ID, true, false,
-        "MyProjectTitle123.aia", false, false, false, false))
+    // The zip is streamed to the response when its name is known.
+    expect(exporterMock.exportProjectSourceZip(eq(USER_ID), eq(PROJECT_ID), eq(true), eq(false),
+        eq("MyProjectTitle123.aia"), eq(false), eq(false), eq(false), eq(false),
+        isA(OutputStream.class)))
         .andReturn(dummyZipWithTitle);
     PowerMock.replayAll();
     DownloadServlet download = new DownloadServlet();
@@ -103,6 +109,29 @@ public class DownloadServletTest {
     PowerMock.verifyAll();
   }
 
+  @Test
+  public void testDownloadProjectSourceZipWithTitleFailure() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
+        "project-source/1234/My Project Title 123");
+    IOException expectedException = new IOException();
+    expect(exporterMock.exportProjectSourceZip(eq(USER_ID), eq(PROJECT_ID), eq(true), eq(false),
+        eq("MyProjectTitle123.aia"), eq(false), eq(false), eq(false), eq(false),
+        isA(OutputStream.class)))
+        .andThrow(expectedException);
+    PowerMock.replayAll();
+    DownloadServlet download = new DownloadServlet();
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    try {
+      download.doGet(request, response);
+      fail();
+    } catch (IOException ex) {
+      assertEquals(expectedException, ex);
+    }
+    // Nothing was written, so the response doesn't look like a download.
+    assertNull(response.getHeader("content-disposition"));
+    PowerMock.verifyAll();
+  }
+
   @Test
   public void testDownloadProjectSourceZipWithNonExistingProject() throws IOException {
     IllegalArgumentException expectedException = new IllegalArgumentException();
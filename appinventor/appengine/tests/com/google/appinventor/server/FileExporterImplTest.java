@@ -125,6 +125,17 @@ public class FileExporterImplTest extends LocalDatastoreTestCase {
         StorageUtil.DEFAULT_CHARSET));
   }
 
+  public void testExportProjectSourceZipToStream() throws IOException {
+    ByteArrayOutputStream zipStream = new ByteArrayOutputStream();
+    ProjectSourceZip project = exporter.exportProjectSourceZip(USER_ID, projectId,
+      false, false, null, false, false, false, false, zipStream);
+    assertEquals(0, project.getContent().length);
+    Map<String, byte[]> content = testExportProjectSourceZipHelper(
+        new ProjectSourceZip(project.getFileName(), zipStream.toByteArray(),
+            project.getFileCount()));
+    assertEquals(2, content.size());
+  }
+
   public void testExportProjectSourceZipWithNonExistingProject() throws IOException {
     try {
       exporter.exportProjectSourceZip(USER_ID, projectId + 1, false, false, null, false, false, false, false);
@@ -0,0 +1,40 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link ExponentialBackoffRetryPolicy}.
+ */
+public class ExponentialBackoffRetryPolicyTest extends TestCase {
+
+  public void testDelayDoublesUpToMaximum() {
+    RetryPolicy policy = new ExponentialBackoffRetryPolicy(10, 100, 400, 100000);
+    for (int i = 0; i < 20; i++) {
+      assertInRange(50, 100, policy.getRetryDelayMillis(1, 0));
+      assertInRange(100, 200, policy.getRetryDelayMillis(2, 0));
+      assertInRange(200, 400, policy.getRetryDelayMillis(3, 0));
+      assertInRange(200, 400, policy.getRetryDelayMillis(10, 0));
+    }
+  }
+
+  public void testGivesUpAfterMaxRetries() {
+    RetryPolicy policy = new ExponentialBackoffRetryPolicy(2, 10, 100, 100000);
+    assertTrue(policy.getRetryDelayMillis(2, 0) >= 0);
+    assertTrue(policy.getRetryDelayMillis(3, 0) < 0);
+  }
+
+  public void testGivesUpWhenBudgetIsSpent() {
+    RetryPolicy policy = new ExponentialBackoffRetryPolicy(10, 100, 100, 1000);
+    assertTrue(policy.getRetryDelayMillis(1, 800) >= 0);
+    assertTrue(policy.getRetryDelayMillis(1, 950) < 0);
+  }
+
+  private static void assertInRange(long min, long max, long value) {
+    assertTrue(value + " not in [" + min + ", " + max + "]", min <= value && value <= max);
+  }
+}
@@ -0,0 +1,77 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Tests {@link JobRetryTracker}.
+ */
+public class JobRetryTrackerTest extends TestCase {
+  private static final RetryPolicy TWO_RETRIES = new RetryPolicy() {
+    @Override
+    public long getRetryDelayMillis(int retry, long elapsedMillis) {
+      return retry <= 2 ? 1 : -1;
+    }
+  };
+
+  public void testCountsRetriesByOperation() {
+    JobRetryTracker tracker = new JobRetryTracker(TWO_RETRIES, 1000);
+    JobRetryTracker.Run run = tracker.start(newJob());
+    assertTrue(run.retry(true));
+    assertTrue(run.retry(false));
+    run.succeeded();
+
+    JobRetryTracker.OperationStats stats =
+        tracker.getStats().get("JobRetryTrackerTest.newJob");
+    assertEquals(1, stats.getRetriedJobs());
+    assertEquals(2, stats.getRetries());
+    assertEquals(1, stats.getContentions());
+    assertEquals(0, stats.getFailedJobs());
+    assertEquals(2, stats.getBackoffMillis());
+  }
+
+  public void testGivesUpWhenPolicySays() {
+    JobRetryTracker tracker = new JobRetryTracker(TWO_RETRIES, 1000);
+    JobRetryTracker.Run run = tracker.start(newJob());
+    assertTrue(run.retry(true));
+    assertTrue(run.retry(true));
+    assertFalse(run.retry(true));
+
+    JobRetryTracker.OperationStats stats =
+        tracker.getStats().get("JobRetryTrackerTest.newJob");
+    assertEquals(2, stats.getRetries());
+    assertEquals(3, stats.getContentions());
+    assertEquals(1, stats.getFailedJobs());
+  }
+
+  public void testStorageStatsListsAllTrackers() {
+    JobRetryTracker tracker = JobRetryTracker.create("JobRetryTrackerTest");
+    tracker.setRetryPolicy(TWO_RETRIES);
+    JobRetryTracker.Run run = tracker.start(newJob());
+    assertTrue(run.retry(true));
+    run.succeeded();
+    assertEquals(1, JobRetryTracker.getAllStats().get("JobRetryTrackerTest.newJob").getRetries());
+
+    StringWriter text = new StringWriter();
+    StorageStats.write(null, new PrintWriter(text));
+    assertTrue(text.toString().contains("datastore retries: JobRetryTrackerTest.newJob: "
+        + "retriedJobs=1, retries=1, contentions=1, failedJobs=0, backoffMillis=1"));
+  }
+
+  public void testOperationName() {
+    assertEquals("JobRetryTrackerTest.newJob",
+        JobRetryTracker.operationName(newJob().getClass()));
+    assertEquals(String.class.getName(), JobRetryTracker.operationName(String.class));
+  }
+
+  private static Object newJob() {
+    return new Object() { };
+  }
+}
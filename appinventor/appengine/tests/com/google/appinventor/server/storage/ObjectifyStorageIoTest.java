@@ -7,6 +7,7 @@
 package com.google.appinventor.server.storage;
 
 import com.google.appengine.api.blobstore.BlobKey;
+import com.google.apphosting.api.ApiProxy;
 import com.google.appinventor.server.LocalDatastoreTestCase;
 import com.google.appinventor.server.storage.StoredData.ProjectData;
 import com.google.appinventor.shared.rpc.BlocksTruncatedException;
@@ -20,6 +21,7 @@ import com.google.appinventor.shared.rpc.user.User;
 import com.google.appinventor.shared.storage.StorageUtil;
 
 import com.google.common.base.Charsets;
+import com.googlecode.objectify.Objectify;
 
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
@@ -30,7 +32,9 @@ import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.json.JSONObject;
 
@@ -325,6 +329,147 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     assertFalse(storage.getProjectOutputFiles(USER_ID, projectId).contains(FILE_NAME_OUTPUT));
   }
 
+  public void testUploadFiles() throws BlocksTruncatedException {
+    final String USER_ID = "1250";
+    final String USER_EMAIL = "newuser1250@test.com";
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, FILE_NAME1, FILE_NAME2);
+    long oldModificationDate = storage.getProjectDateModified(USER_ID, projectId);
+
+    Map<String, String> contents = new LinkedHashMap<String, String>();
+    contents.put(FILE_NAME1, FILE_CONTENT1);
+    contents.put(FILE_NAME2, FILE_CONTENT2);
+    long modificationDate = storage.uploadFiles(projectId, USER_ID, false, contents,
+        StorageUtil.DEFAULT_CHARSET);
+    assertTrue(oldModificationDate <= modificationDate);
+    assertEquals(modificationDate, storage.getProjectDateModified(USER_ID, projectId));
+    assertEquals(FILE_CONTENT1, storage.downloadFile(USER_ID, projectId, FILE_NAME1,
+        StorageUtil.DEFAULT_CHARSET));
+    assertEquals(FILE_CONTENT2, storage.downloadFile(USER_ID, projectId, FILE_NAME2,
+        StorageUtil.DEFAULT_CHARSET));
+
+    // Files that were saved before are overwritten.
+    contents.put(FILE_NAME1, FILE_CONTENT2);
+    storage.uploadFiles(projectId, USER_ID, false, contents, StorageUtil.DEFAULT_CHARSET);
+    assertEquals(FILE_CONTENT2, storage.downloadFile(USER_ID, projectId, FILE_NAME1,
+        StorageUtil.DEFAULT_CHARSET));
+
+    // Only the owner of the project can save its files.
+    try {
+      storage.uploadFiles(projectId, "1251", false, contents, StorageUtil.DEFAULT_CHARSET);
+      fail();
+    } catch (Exception e) {
+      assertTrue(e instanceof UnauthorizedAccessException
+                 || e.getCause() instanceof UnauthorizedAccessException);
+    }
+    assertEquals(FILE_CONTENT2, storage.downloadFile(USER_ID, projectId, FILE_NAME1,
+        StorageUtil.DEFAULT_CHARSET));
+  }
+
+  public void testProjectDataCache() throws BlocksTruncatedException {
+    final String USER_ID = "1260";
+    final String USER_EMAIL = "newuser1260@test.com";
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+
+    assertEquals(PROJECT_NAME, storage.getProjectName(USER_ID, projectId));
+    long hits = storage.getProjectCacheHits();
+    long misses = storage.getProjectCacheMisses();
+    long dateCreated = storage.getProjectDateCreated(USER_ID, projectId);
+    assertEquals(dateCreated, storage.getUserProject(USER_ID, projectId).getDateCreated());
+    assertEquals(hits + 2, storage.getProjectCacheHits());
+    assertEquals(misses, storage.getProjectCacheMisses());
+
+    // Changes to the project are seen by later lookups.
+    final String NEW_SETTINGS = "{settings: \"changed\"}";
+    storage.storeProjectSettings(USER_ID, projectId, NEW_SETTINGS);
+    assertEquals(NEW_SETTINGS, storage.loadProjectSettings(USER_ID, projectId));
+    storage.setProjectGalleryId(USER_ID, projectId, 42);
+    assertEquals(42, storage.getProjectGalleryId(USER_ID, projectId));
+    storage.setProjectAttributionId(USER_ID, projectId, 43);
+    assertEquals(43, storage.getProjectAttributionId(projectId));
+    assertEquals(misses + 3, storage.getProjectCacheMisses());
+
+    storage.deleteProject(USER_ID, projectId);
+    assertEquals("", storage.getProjectName(USER_ID, projectId));
+  }
+
+  public void testProjectDataMemcache() throws BlocksTruncatedException {
+    final String USER_ID = "1261";
+    final String USER_EMAIL = "newuser1261@test.com";
+    storage.getUser(USER_ID, USER_EMAIL);
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    assertEquals(PROJECT_NAME, storage.getProjectName(USER_ID, projectId));
+
+    // A later request finds the project in memcache.
+    startNewRequest();
+    long memcacheHits = storage.getProjectMemcacheHits();
+    long misses = storage.getProjectCacheMisses();
+    assertEquals(PROJECT_NAME, storage.getProjectName(USER_ID, projectId));
+    assertEquals(memcacheHits + 1, storage.getProjectMemcacheHits());
+    assertEquals(misses, storage.getProjectCacheMisses());
+
+    // Saving a file right after the project was created leaves its
+    // modification date, and so the cached copies, alone.
+    long hits = storage.getProjectCacheHits();
+    storage.uploadFile(projectId, FORM_QUALIFIED_NAME, USER_ID, FILE_CONTENT1,
+        StorageUtil.DEFAULT_CHARSET);
+    storage.getProjectDateModified(USER_ID, projectId);
+    assertEquals(hits + 1, storage.getProjectCacheHits());
+
+    // A change drops the copy in memcache, so a later request reads the new one.
+    final String NEW_SETTINGS = "{settings: \"memcache\"}";
+    storage.storeProjectSettings(USER_ID, projectId, NEW_SETTINGS);
+    startNewRequest();
+    assertEquals(NEW_SETTINGS, storage.loadProjectSettings(USER_ID, projectId));
+    assertEquals(misses + 1, storage.getProjectCacheMisses());
+  }
+
+  /*
+   * Drops the state kept for the current request, as if a new one had started.
+   */
+  private static void startNewRequest() {
+    ApiProxy.getCurrentEnvironment().getAttributes().clear();
+  }
+
+  public void testJobRetries() throws ObjectifyException {
+    final int[] runs = {0};
+    storage.setRetryPolicy(new RetryPolicy() {
+      @Override
+      public long getRetryDelayMillis(int retry, long elapsedMillis) {
+        return retry <= 2 ? 0 : -1;
+      }
+    });
+    storage.runJobWithRetries(storage.new JobRetryHelper() {
+      @Override
+      public void run(Objectify datastore) {
+        if (++runs[0] < 3) {
+          throw new ConcurrentModificationException();
+        }
+      }
+    }, true);
+    assertEquals(3, runs[0]);
+
+    try {
+      storage.runJobWithRetries(storage.new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          throw new ConcurrentModificationException();
+        }
+      }, true);
+      fail();
+    } catch (ObjectifyException expected) {
+    }
+
+    JobRetryTracker.OperationStats stats =
+        storage.getRetryStats().get("ObjectifyStorageIoTest.testJobRetries");
+    assertEquals(2, stats.getRetriedJobs());
+    assertEquals(4, stats.getRetries());
+    assertEquals(5, stats.getContentions());
+    assertEquals(1, stats.getFailedJobs());
+  }
+
   public void testAddRemoveUserFile() {
     // Note that neither FILE_NAME1 nor FILE_NAME_OUTPUT should exist
     // at the start of this test
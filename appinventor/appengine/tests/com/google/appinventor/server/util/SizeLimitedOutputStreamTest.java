@@ -0,0 +1,42 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.util;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Tests {@link SizeLimitedOutputStream}.
+ */
+public class SizeLimitedOutputStreamTest extends TestCase {
+
+  public void testWritesWithinLimit() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    SizeLimitedOutputStream out = new SizeLimitedOutputStream(bytes, 4);
+    out.write(1);
+    out.write(new byte[] {2, 3, 4});
+    assertEquals(4, out.getCount());
+    assertFalse(out.isLimitExceeded());
+    assertEquals(4, bytes.size());
+  }
+
+  public void testWritePastLimitFails() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    SizeLimitedOutputStream out = new SizeLimitedOutputStream(bytes, 4);
+    out.write(new byte[] {1, 2, 3});
+    try {
+      out.write(new byte[] {4, 5});
+      fail();
+    } catch (IOException expected) {
+    }
+    assertTrue(out.isLimitExceeded());
+    // Nothing past the limit reaches the underlying stream.
+    assertEquals(3, out.getCount());
+    assertEquals(3, bytes.size());
+  }
+}
@@ -0,0 +1,46 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.util;
+
+import junit.framework.TestCase;
+
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * Tests {@link UrlConnections}.
+ */
+public class UrlConnectionsTest extends TestCase {
+
+  public void testDefaultTimeouts() throws Exception {
+    URLConnection connection = UrlConnections.open(new URL("http://localhost/"));
+    assertEquals(UrlConnections.DEFAULT_TIMEOUT_MILLIS, connection.getConnectTimeout());
+    assertEquals(UrlConnections.DEFAULT_TIMEOUT_MILLIS, connection.getReadTimeout());
+  }
+
+  public void testUnresponsiveServerTimesOut() throws Exception {
+    // Accepts connections, but never responds.
+    ServerSocket server = new ServerSocket(0);
+    try {
+      URLConnection connection =
+          UrlConnections.open(new URL("http://localhost:" + server.getLocalPort() + "/"), 200);
+      long start = System.currentTimeMillis();
+      try {
+        InputStream in = connection.getInputStream();
+        in.close();
+        fail("Expected a timeout");
+      } catch (SocketTimeoutException e) {
+        // Expected
+      }
+      assertTrue(System.currentTimeMillis() - start < 10 * 1000);
+    } finally {
+      server.close();
+    }
+  }
+}
@@ -0,0 +1,309 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipFile;
+
+/**
+ * Smoke timings of the hot paths of the build server on generated projects of several sizes.
+ * See {@link SmokeTimer} for what these times can and cannot show.
+ *
+ * <p>Run with {@code ant BuildServerSmokeTimings} from the buildserver directory. The report
+ * is written to {@code build/buildserver/smoketimings/report.tsv}; keep the report of a
+ * release and pass it with {@code -Dbaseline=...} to see which operations got much slower.
+ *
+ * <p>The end-to-end build needs the Android SDK tools and takes tens of seconds per
+ * operation, so it only runs with {@code --compile}.
+ */
+public final class BuildServerSmokeTimings {
+
+  static class CommandLineOptions {
+    @Option(name = "--report",
+            usage = "the file to write the report to")
+    File report = null;
+
+    @Option(name = "--baseline",
+            usage = "an earlier report to compare the results with")
+    File baseline = null;
+
+    @Option(name = "--threshold",
+            usage = "the change in mean time, in percent, that is reported against the baseline")
+    double threshold = 25;
+
+    @Option(name = "--screens",
+            usage = "comma separated numbers of screens of the timed projects")
+    String screens = "1,10,50";
+
+    @Option(name = "--warmups",
+            usage = "the number of untimed warm-up runs of each operation")
+    int warmups = 10;
+
+    @Option(name = "--iterations",
+            usage = "the number of timed runs of each operation")
+    int iterations = 30;
+
+    @Option(name = "--filter",
+            usage = "only time the operations whose names contain this string")
+    String filter = "";
+
+    @Option(name = "--compile",
+            usage = "also time complete builds; needs the Android SDK tools")
+    boolean compile = false;
+
+    @Option(name = "--failOnRegression",
+            usage = "exit with status 1 if an operation got slower than the threshold allows")
+    boolean failOnRegression = false;
+  }
+
+  private static CommandLineOptions commandLineOptions = new CommandLineOptions();
+
+  private static final String SYNTHETIC_KAWA_OUTPUT_LINE =
+      "%1$s/youngandroidproject/../src/com/example/Screen1.yail:%2$d:12: warning - "
+      + "no declaration seen for Label%2$d\n"
+      + "%1$s/runtime.scm:%2$d:3: warning - unreachable code\n"
+      + "(compiling %1$s/src/com/example/Screen1.yail to com.example.Screen1)\n";
+
+  private final SmokeTimer runner;
+  private final File workDir;
+
+  private BuildServerSmokeTimings(SmokeTimer runner, File workDir) {
+    this.runner = runner;
+    this.workDir = workDir;
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args  command line arguments
+   */
+  public static void main(String[] args) throws Exception {
+    CmdLineParser cmdLineParser = new CmdLineParser(commandLineOptions);
+    try {
+      cmdLineParser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      cmdLineParser.printUsage(System.err);
+      System.exit(1);
+    }
+
+    // The per-build log messages would otherwise swamp the results.
+    Logger.getLogger("com.google.appinventor").setLevel(Level.WARNING);
+    SmokeTimer runner = new SmokeTimer(commandLineOptions.warmups,
+        commandLineOptions.iterations);
+    File workDir = Files.createTempDir();
+    try {
+      BuildServerSmokeTimings timings = new BuildServerSmokeTimings(runner, workDir);
+      timings.runDexHashing();
+      timings.runCompilerOutput();
+      for (String screens : commandLineOptions.screens.split(",")) {
+        timings.runProject(Integer.parseInt(screens.trim()));
+      }
+    } finally {
+      FileUtils.deleteQuietly(workDir);
+    }
+
+    if (commandLineOptions.report != null) {
+      runner.writeReport(commandLineOptions.report);
+      System.out.println("Wrote " + commandLineOptions.report);
+    }
+    if (commandLineOptions.baseline != null && commandLineOptions.baseline.exists()) {
+      int regressions = runner.compare(commandLineOptions.baseline, commandLineOptions.threshold);
+      if (regressions > 0 && commandLineOptions.failOnRegression) {
+        System.exit(1);
+      }
+    }
+    System.exit(0);
+  }
+
+  private static boolean isSelected(String name) {
+    return name.contains(commandLineOptions.filter);
+  }
+
+  private void measure(SmokeTimer.Operation operation, String parameter) throws Exception {
+    if (isSelected(operation.name)) {
+      runner.measure(operation, parameter);
+    }
+  }
+
+  /*
+   * Hashes the runtime jar the way the dex cache does on its first use of the jar.
+   */
+  private void runDexHashing() throws Exception {
+    final File runtimeJar = new File(Compiler.getResource(
+        Compiler.RUNTIME_FILES_DIR + "AndroidRuntime.jar"));
+    final File dexCacheRoot = new File(workDir, "dexcache");
+    measure(new SmokeTimer.Operation("dex-cache-hash") {
+      DexExecTask dexTask;
+      int count;
+
+      @Override
+      void beforeEach() {
+        // A new cache directory per operation, so that its hash index is empty.
+        File dexCache = new File(dexCacheRoot, Integer.toString(count++));
+        dexCache.mkdirs();
+        dexTask = new DexExecTask();
+        dexTask.setDexedLibs(dexCache.getPath());
+      }
+
+      @Override
+      void run() {
+        dexTask.getHashFor(runtimeJar);
+      }
+    }, runtimeJar.length() / 1024 + "KB");
+  }
+
+  /*
+   * Formats the warnings of a Kawa compilation, as done for every build that fails.
+   */
+  private void runCompilerOutput() throws Exception {
+    final String srcPath = "/tmp/1234567890";
+    StringBuilder output = new StringBuilder();
+    for (int line = 1; line <= 200; line++) {
+      output.append(String.format(SYNTHETIC_KAWA_OUTPUT_LINE, srcPath, line));
+    }
+    final String kawaOutput = output.toString();
+    measure(new SmokeTimer.Operation("process-compiler-output") {
+      @Override
+      void run() {
+        ProjectBuilder.processCompilerOutput(kawaOutput, srcPath);
+      }
+    }, "600-lines");
+  }
+
+  /*
+   * Times the operations that depend on the size of the project.
+   */
+  private void runProject(int screens) throws Exception {
+    final String parameter = screens + "-screens";
+    File projectDir = new File(workDir, parameter);
+    projectDir.mkdirs();
+    final ZipFile zip = new ZipFile(SampleProjects.write(projectDir, screens));
+    try {
+      final ProjectBuilder projectBuilder = new ProjectBuilder();
+      final File extractRoot = new File(projectDir, "extract");
+      measure(new SmokeTimer.Operation("extract-project-files") {
+        int count;
+        File root;
+
+        @Override
+        void beforeEach() {
+          root = new File(extractRoot, Integer.toString(count++));
+        }
+
+        @Override
+        void run() throws Exception {
+          projectBuilder.extractProjectFiles(zip, root);
+        }
+      }, parameter);
+
+      File projectRoot = new File(projectDir, "project");
+      final List<String> files = projectBuilder.extractProjectFiles(zip, projectRoot);
+      final List<String> forms = Lists.newArrayList();
+      for (String file : files) {
+        if (file.endsWith(".scm")) {
+          forms.add(Files.toString(new File(file), Charsets.UTF_8));
+        }
+      }
+      measure(new SmokeTimer.Operation("parse-form-files") {
+        @Override
+        void run() {
+          for (String form : forms) {
+            FormPropertiesAnalyzer.parseSourceFile(form);
+          }
+        }
+      }, parameter);
+      measure(new SmokeTimer.Operation("form-component-types") {
+        @Override
+        void run() {
+          for (String form : forms) {
+            FormPropertiesAnalyzer.getComponentTypesFromFormFile(form);
+          }
+        }
+      }, parameter);
+
+      final Project project = new Project(
+          new File(projectRoot, "youngandroidproject/project.properties").getPath());
+      final File assetsDir = project.getAssetsDirectory();
+      measure(new SmokeTimer.Operation("project-component-types") {
+        @Override
+        void run() throws Exception {
+          ProjectBuilder.getComponentTypes(files, assetsDir);
+        }
+      }, parameter);
+
+      Set<String> compTypes = ProjectBuilder.getComponentTypes(files, assetsDir);
+      PrintStream discard = new PrintStream(new ByteArrayOutputStream(), false);
+      final Compiler compiler = new Compiler(project, compTypes, discard, discard, discard,
+          false, 2048, null, null);
+      compiler.generateAssets();
+      compiler.generateActivities();
+      compiler.generateBroadcastReceivers();
+      compiler.generateLibNames();
+      compiler.generateNativeLibNames();
+      compiler.generatePermissions();
+      compiler.generateMinSdks();
+      compiler.generateBroadcastReceiver();
+      final File resDir = new File(projectDir, "res");
+      resDir.mkdirs();
+      measure(new SmokeTimer.Operation("write-android-manifest") {
+        @Override
+        void run() {
+          compiler.writeAndroidManifest(new File(resDir, "AndroidManifest.xml"));
+        }
+      }, parameter);
+      measure(new SmokeTimer.Operation("create-values-xml") {
+        @Override
+        void run() {
+          compiler.createValuesXml(resDir, "");
+        }
+      }, parameter);
+
+      if (commandLineOptions.compile && isSelected("build-project")) {
+        final File outputRoot = new File(projectDir, "output");
+        final String dexCache = new File(projectDir, "dexcache").getPath();
+        // Builds take long enough that a couple of runs give a stable mean.
+        runner.measure(new SmokeTimer.Operation("build-project") {
+          int count;
+          File outputDir;
+
+          @Override
+          void beforeEach() {
+            outputDir = new File(outputRoot, Integer.toString(count++));
+            outputDir.mkdirs();
+          }
+
+          @Override
+          void run() {
+            Result result = projectBuilder.build("smoketimings", zip, outputDir, false, 2048,
+                dexCache, null);
+            if (!result.succeeded()) {
+              throw new IllegalStateException("Build failed: " + result.getError());
+            }
+          }
+        }, parameter, 1, 3);
+      }
+    } finally {
+      zip.close();
+    }
+  }
+}
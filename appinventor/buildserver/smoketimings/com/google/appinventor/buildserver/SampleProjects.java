@@ -0,0 +1,132 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes the project zips the smoke timings build: a Young Android project with the given
+ * number of screens, each with a few labels, buttons and text boxes and an event handler.
+ *
+ * <p>The projects are generated rather than checked in so that every release is timed on
+ * exactly the same input, and so that other sizes can be tried with {@code --screens}.
+ */
+final class SampleProjects {
+
+  // Components of each kind on every screen.
+  private static final int COMPONENTS_PER_KIND = 5;
+
+  private SampleProjects() {
+  }
+
+  /**
+   * Returns the package of the sample project with the given number of screens.
+   */
+  static String getPackageName(int screens) {
+    return "com.example.sample" + screens;
+  }
+
+  /**
+   * Writes the sample project with the given number of screens to {@code dir}.
+   *
+   * @return the project zip, as uploaded by the App Inventor server
+   */
+  static File write(File dir, int screens) throws IOException {
+    String packageName = getPackageName(screens);
+    String sourceDir = "src/" + packageName.replace('.', '/') + "/";
+    File zipFile = new File(dir, "Sample" + screens + ".zip");
+    ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(
+        new FileOutputStream(zipFile)));
+    try {
+      add(out, "youngandroidproject/project.properties",
+          "main=" + packageName + ".Screen1\n" +
+          "name=Sample" + screens + "\n" +
+          "assets=../assets\n" +
+          "source=../src\n" +
+          "build=../build\n" +
+          "versioncode=1\n" +
+          "versionname=1.0\n" +
+          "useslocation=False\n" +
+          "aname=Sample" + screens + "\n");
+      for (int screen = 1; screen <= screens; screen++) {
+        String name = "Screen" + screen;
+        add(out, sourceDir + name + ".scm", formFile(name));
+        add(out, sourceDir + name + ".bky", "<xml xmlns=\"http://www.w3.org/1999/xhtml\"></xml>");
+        add(out, sourceDir + name + ".yail", yailFile(packageName, name));
+      }
+      // A small asset, so that asset staging is part of the measurement.
+      out.putNextEntry(new ZipEntry("assets/data.bin"));
+      out.write(new byte[16 * 1024]);
+      out.closeEntry();
+    } finally {
+      out.close();
+    }
+    return zipFile;
+  }
+
+  private static void add(ZipOutputStream out, String name, String content)
+      throws IOException {
+    out.putNextEntry(new ZipEntry(name));
+    out.write(content.getBytes(Charsets.UTF_8));
+    out.closeEntry();
+  }
+
+  private static String formFile(String screen) {
+    StringBuilder components = new StringBuilder();
+    int uuid = 1;
+    for (int i = 1; i <= COMPONENTS_PER_KIND; i++) {
+      if (components.length() > 0) {
+        components.append(',');
+      }
+      components.append("{\"$Name\":\"Label").append(i)
+          .append("\",\"$Type\":\"Label\",\"$Version\":\"4\",\"Uuid\":\"").append(uuid++)
+          .append("\",\"Text\":\"Label ").append(i).append("\"},")
+          .append("{\"$Name\":\"Button").append(i)
+          .append("\",\"$Type\":\"Button\",\"$Version\":\"6\",\"Uuid\":\"").append(uuid++)
+          .append("\",\"Text\":\"Button ").append(i).append("\"},")
+          .append("{\"$Name\":\"TextBox").append(i)
+          .append("\",\"$Type\":\"TextBox\",\"$Version\":\"5\",\"Uuid\":\"").append(uuid++)
+          .append("\",\"Hint\":\"Text ").append(i).append("\"}");
+    }
+    return "#|\n$JSON\n{\"YaVersion\":\"160\",\"Source\":\"Form\",\"Properties\":{\"$Name\":\""
+        + screen + "\",\"$Type\":\"Form\",\"$Version\":\"20\",\"Uuid\":\"0\",\"Title\":\""
+        + screen + "\",\"$Components\":[" + components + "]}}\n|#";
+  }
+
+  private static String yailFile(String packageName, String screen) {
+    StringBuilder yail = new StringBuilder();
+    yail.append("#|\n$Source $Yail\n|#\n\n")
+        .append("(define-form ").append(packageName).append('.').append(screen).append(' ')
+        .append(screen).append(")\n")
+        .append("(require <com.google.youngandroid.runtime>)\n\n")
+        .append(";;; ").append(screen).append("\n\n")
+        .append("(do-after-form-creation (set-and-coerce-property! '").append(screen)
+        .append(" 'Title \"").append(screen).append("\" 'text)\n)\n");
+    for (int i = 1; i <= COMPONENTS_PER_KIND; i++) {
+      yail.append("\n(add-component ").append(screen).append(" Label Label").append(i)
+          .append("\n(set-and-coerce-property! 'Label").append(i).append(" 'Text \"Label ")
+          .append(i).append("\" 'text)\n)\n")
+          .append("\n(add-component ").append(screen).append(" Button Button").append(i)
+          .append("\n(set-and-coerce-property! 'Button").append(i).append(" 'Text \"Button ")
+          .append(i).append("\" 'text)\n)\n")
+          .append("\n(define-event Button").append(i).append(" Click()(set-this-form)\n")
+          .append("    (set-and-coerce-property! 'Label").append(i)
+          .append(" 'Text (get-property 'TextBox").append(i).append(" 'Text) 'text))\n")
+          .append("\n(add-component ").append(screen).append(" TextBox TextBox").append(i)
+          .append("\n(set-and-coerce-property! 'TextBox").append(i).append(" 'Hint \"Text ")
+          .append(i).append("\" 'text)\n)\n");
+    }
+    yail.append("\n(init-runtime)");
+    return yail.toString();
+  }
+}
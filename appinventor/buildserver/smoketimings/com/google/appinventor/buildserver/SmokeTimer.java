@@ -0,0 +1,211 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Times operations and writes the times as a report that can be compared with the report of
+ * another release.
+ *
+ * <p>This is a smoke timer, not a benchmark harness. Operations run in the timer's own JVM,
+ * one after another, with no protection against dead-code elimination or constant folding,
+ * and without confidence intervals. Its times only catch large slowdowns, such as an
+ * operation that became quadratic; changes of a few percent are noise. Measurements that
+ * need to be precise should use a harness such as JMH.
+ *
+ * <p>Each operation is first run a number of times to warm up the JIT compiler and caches,
+ * then timed over a number of runs. The report has one line per operation and parameter,
+ * sorted, with the mean, median, 90th percentile and minimum time per run and the bytes
+ * allocated per run, so two reports can be compared with diff.
+ */
+final class SmokeTimer {
+
+  /**
+   * An operation to time.
+   */
+  abstract static class Operation {
+    final String name;
+
+    Operation(String name) {
+      this.name = name;
+    }
+
+    /**
+     * Prepares for the next run. Not timed.
+     */
+    void beforeEach() throws Exception {
+    }
+
+    /**
+     * Performs the operation once.
+     */
+    abstract void run() throws Exception;
+  }
+
+  /**
+   * The times of one operation with one parameter.
+   */
+  static final class Result {
+    final String name;
+    final String parameter;
+    final long[] nanos;
+    final long allocatedBytesPerOp;
+
+    Result(String name, String parameter, long[] nanos, long allocatedBytesPerOp) {
+      this.name = name;
+      this.parameter = parameter;
+      this.nanos = nanos.clone();
+      Arrays.sort(this.nanos);
+      this.allocatedBytesPerOp = allocatedBytesPerOp;
+    }
+
+    String getKey() {
+      return name + "\t" + parameter;
+    }
+
+    double getMeanMillis() {
+      long total = 0;
+      for (long sample : nanos) {
+        total += sample;
+      }
+      return total / (nanos.length * 1e6);
+    }
+
+    double getPercentileMillis(double percentile) {
+      int index = (int) Math.ceil(percentile / 100.0 * nanos.length) - 1;
+      return nanos[Math.max(0, Math.min(nanos.length - 1, index))] / 1e6;
+    }
+  }
+
+  private static final String HEADER =
+      "operation\tparameter\tops\tmean_ms\tp50_ms\tp90_ms\tmin_ms\talloc_kb_per_op";
+
+  private final int warmups;
+  private final int iterations;
+  private final List<Result> results = new ArrayList<Result>();
+
+  SmokeTimer(int warmups, int iterations) {
+    this.warmups = warmups;
+    this.iterations = iterations;
+  }
+
+  /**
+   * Times an operation with the default numbers of warm-up and timed runs.
+   */
+  Result measure(Operation operation, String parameter) throws Exception {
+    return measure(operation, parameter, warmups, iterations);
+  }
+
+  /**
+   * Times an operation and adds its result to the report.
+   */
+  Result measure(Operation operation, String parameter, int warmupRuns, int runs)
+      throws Exception {
+    for (int i = 0; i < warmupRuns; i++) {
+      operation.beforeEach();
+      operation.run();
+    }
+    System.gc();
+    long[] nanos = new long[runs];
+    long allocated = 0;
+    for (int i = 0; i < runs; i++) {
+      operation.beforeEach();
+      long allocatedBefore = getAllocatedBytes();
+      long start = System.nanoTime();
+      operation.run();
+      nanos[i] = System.nanoTime() - start;
+      allocated += getAllocatedBytes() - allocatedBefore;
+    }
+    Result result = new Result(operation.name, parameter, nanos, allocated / runs);
+    results.add(result);
+    System.out.println(format(result));
+    return result;
+  }
+
+  /*
+   * Returns the bytes allocated by the calling thread so far, or 0 if the JVM doesn't say.
+   */
+  private static long getAllocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return 0;
+  }
+
+  private static String format(Result result) {
+    return String.format("%s\t%d\t%.3f\t%.3f\t%.3f\t%.3f\t%d", result.getKey(),
+        result.nanos.length, result.getMeanMillis(), result.getPercentileMillis(50),
+        result.getPercentileMillis(90), result.getPercentileMillis(0),
+        result.allocatedBytesPerOp / 1024);
+  }
+
+  /**
+   * Writes the results measured so far, sorted by operation and parameter.
+   */
+  void writeReport(File report) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    for (Result result : results) {
+      lines.add(format(result));
+    }
+    Collections.sort(lines);
+    StringBuilder text = new StringBuilder(HEADER).append('\n');
+    for (String line : lines) {
+      text.append(line).append('\n');
+    }
+    Files.createParentDirs(report);
+    Files.write(text, report, Charsets.UTF_8);
+  }
+
+  /**
+   * Compares the results measured so far with an earlier report and prints every operation
+   * whose mean time changed by more than {@code thresholdPercent}.
+   *
+   * @return the number of operations that got slower by more than the threshold
+   */
+  int compare(File baseline, double thresholdPercent) throws IOException {
+    Map<String, Double> baselineMeans = new HashMap<String, Double>();
+    for (String line : Files.readLines(baseline, Charsets.UTF_8)) {
+      String[] fields = line.split("\t");
+      // The header was "benchmark\t..." in reports of earlier releases.
+      if (fields.length >= 4 && !line.startsWith("operation\t")
+          && !line.startsWith("benchmark\t")) {
+        baselineMeans.put(fields[0] + "\t" + fields[1], Double.parseDouble(fields[3]));
+      }
+    }
+    int regressions = 0;
+    for (Result result : results) {
+      Double before = baselineMeans.get(result.getKey());
+      if (before == null || before == 0) {
+        continue;
+      }
+      double change = (result.getMeanMillis() - before) / before * 100;
+      if (Math.abs(change) > thresholdPercent) {
+        System.out.println(String.format("%s %s: %.3f ms -> %.3f ms (%+.1f%%)",
+            change > 0 ? "SLOWER" : "FASTER", result.getKey().replace('\t', ' '), before,
+            result.getMeanMillis(), change));
+        if (change > 0) {
+          regressions++;
+        }
+      }
+    }
+    return regressions;
+  }
+}
@@ -0,0 +1,312 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.CountingOutputStream;
+
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Signs and aligns an APK in a single pass, producing the same result as running
+ * {@code jarsigner} followed by {@code zipalign 4}.
+ *
+ * <p>Every entry of the unsigned APK is copied to the output once. Uncompressed entries are
+ * preceded by padding in their local header's extra field so that their data starts at a
+ * multiple of {@link #ALIGNMENT}, and the digest of each entry is computed while it is
+ * copied. The manifest, signature file and signature block are written last; Android reads
+ * them through the central directory, so they need not come first.
+ *
+ * <p>Signatures use the same algorithms as the {@code jarsigner} command line in
+ * {@link Compiler}, so that an app signed either way can update the other.
+ *
+ * <p>Disabled until {@link #configure} is called with {@code enabled} true.
+ */
+final class ApkSigner {
+
+  // Data of uncompressed entries starts at a multiple of this many bytes.
+  static final int ALIGNMENT = 4;
+
+  private static final String KEY_ALIAS = "AndroidKey";
+  private static final char[] KEYSTORE_PASSWORD = "android".toCharArray();
+
+  private static final String DIGEST_ALGORITHM = "SHA1";
+  private static final String SIGNATURE_ALGORITHM = "MD5withRSA";
+  private static final String DIGEST_ATTRIBUTE = "SHA1-Digest";
+  private static final String CREATED_BY = "1.0 (App Inventor)";
+
+  private static final String META_INF = "META-INF/";
+  private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+  private static final String SIGNATURE_FILE_NAME = "META-INF/CERT.SF";
+  private static final String SIGNATURE_BLOCK_NAME = "META-INF/CERT.RSA";
+
+  // Length of a local file header without the file name and extra field.
+  private static final int LOCAL_HEADER_LENGTH = 30;
+
+  private static final int MAX_LINE_LENGTH = 72;
+
+  private static volatile boolean enabled = false;
+
+  private ApkSigner() {
+  }
+
+  static void configure(boolean enable) {
+    enabled = enable;
+  }
+
+  static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Writes a signed and aligned copy of an APK.
+   *
+   * @param unsignedApk the APK written by ApkBuilder
+   * @param keystore keystore holding the app's signing key
+   * @param signedApk the file to write
+   * @throws IOException if the APK could not be read or written, or the keystore could not
+   *     be used to sign it
+   */
+  static void signAndAlign(File unsignedApk, File keystore, File signedApk) throws IOException {
+    PrivateKey key;
+    X509Certificate certificate;
+    try {
+      KeyStore keyStore = KeyStore.getInstance("JKS");
+      InputStream in = new FileInputStream(keystore);
+      try {
+        keyStore.load(in, KEYSTORE_PASSWORD);
+      } finally {
+        in.close();
+      }
+      key = (PrivateKey) keyStore.getKey(KEY_ALIAS, KEYSTORE_PASSWORD);
+      certificate = (X509Certificate) keyStore.getCertificate(KEY_ALIAS);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Unable to load the signing key from " + keystore, e);
+    }
+    if (key == null || certificate == null) {
+      throw new IOException("No key " + KEY_ALIAS + " in " + keystore);
+    }
+
+    ZipFile input = new ZipFile(unsignedApk);
+    try {
+      CountingOutputStream counter = new CountingOutputStream(
+          new BufferedOutputStream(new FileOutputStream(signedApk)));
+      ZipOutputStream output = new ZipOutputStream(counter);
+      try {
+        Map<String, String> digests = copyEntries(input, output, counter);
+        byte[] manifest = writeManifest(digests);
+        byte[] signatureFile = writeSignatureFile(manifest, digests);
+        byte[] signatureBlock = sign(signatureFile, key, certificate);
+        writeEntry(output, MANIFEST_NAME, manifest);
+        writeEntry(output, SIGNATURE_FILE_NAME, signatureFile);
+        writeEntry(output, SIGNATURE_BLOCK_NAME, signatureBlock);
+      } finally {
+        output.close();
+      }
+    } finally {
+      input.close();
+    }
+  }
+
+  /*
+   * Copies all entries except existing signature files, and returns the base64 digest of
+   * each copied entry, in order.
+   */
+  private static Map<String, String> copyEntries(ZipFile input, ZipOutputStream output,
+      CountingOutputStream counter) throws IOException {
+    MessageDigest digest = newDigest();
+    Map<String, String> digests = new LinkedHashMap<String, String>();
+    byte[] buffer = new byte[64 * 1024];
+    Enumeration<? extends ZipEntry> entries = input.entries();
+    while (entries.hasMoreElements()) {
+      ZipEntry entry = entries.nextElement();
+      String name = entry.getName();
+      if (isSignatureFile(name)) {
+        continue;
+      }
+      ZipEntry copy = new ZipEntry(name);
+      copy.setTime(entry.getTime());
+      copy.setMethod(entry.getMethod());
+      if (entry.getMethod() == ZipEntry.STORED) {
+        copy.setSize(entry.getSize());
+        copy.setCompressedSize(entry.getSize());
+        copy.setCrc(entry.getCrc());
+        long dataOffset = counter.getCount() + LOCAL_HEADER_LENGTH
+            + name.getBytes(Charsets.UTF_8).length;
+        int padding = (int) ((ALIGNMENT - dataOffset % ALIGNMENT) % ALIGNMENT);
+        if (padding > 0) {
+          copy.setExtra(new byte[padding]);
+        }
+      }
+      output.putNextEntry(copy);
+      if (entry.getMethod() == ZipEntry.STORED && counter.getCount() % ALIGNMENT != 0) {
+        throw new IOException("Unable to align " + name);
+      }
+      InputStream in = input.getInputStream(entry);
+      try {
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          output.write(buffer, 0, read);
+          digest.update(buffer, 0, read);
+        }
+      } finally {
+        in.close();
+      }
+      output.closeEntry();
+      if (!entry.isDirectory()) {
+        digests.put(name, BaseEncoding.base64().encode(digest.digest()));
+      }
+    }
+    return digests;
+  }
+
+  private static boolean isSignatureFile(String name) {
+    if (!name.startsWith(META_INF) || name.indexOf('/', META_INF.length()) != -1) {
+      return false;
+    }
+    return name.equals(MANIFEST_NAME) || name.endsWith(".SF") || name.endsWith(".RSA")
+        || name.endsWith(".DSA") || name.endsWith(".EC");
+  }
+
+  private static byte[] writeManifest(Map<String, String> digests) throws IOException {
+    ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+    writeAttribute(manifest, "Manifest-Version", "1.0");
+    writeAttribute(manifest, "Created-By", CREATED_BY);
+    writeNewline(manifest);
+    for (Map.Entry<String, String> entry : digests.entrySet()) {
+      manifest.write(manifestSection(entry.getKey(), entry.getValue()));
+    }
+    return manifest.toByteArray();
+  }
+
+  /*
+   * Writes the signature file, which holds the digest of the whole manifest and of each of
+   * its sections.
+   */
+  private static byte[] writeSignatureFile(byte[] manifest, Map<String, String> digests)
+      throws IOException {
+    MessageDigest digest = newDigest();
+    ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+    writeAttribute(signatureFile, "Signature-Version", "1.0");
+    writeAttribute(signatureFile, "Created-By", CREATED_BY);
+    writeAttribute(signatureFile, DIGEST_ATTRIBUTE + "-Manifest",
+        BaseEncoding.base64().encode(digest.digest(manifest)));
+    writeNewline(signatureFile);
+    for (Map.Entry<String, String> entry : digests.entrySet()) {
+      byte[] section = manifestSection(entry.getKey(), entry.getValue());
+      writeAttribute(signatureFile, "Name", entry.getKey());
+      writeAttribute(signatureFile, DIGEST_ATTRIBUTE,
+          BaseEncoding.base64().encode(digest.digest(section)));
+      writeNewline(signatureFile);
+    }
+    return signatureFile.toByteArray();
+  }
+
+  private static byte[] manifestSection(String name, String digest) throws IOException {
+    ByteArrayOutputStream section = new ByteArrayOutputStream();
+    writeAttribute(section, "Name", name);
+    writeAttribute(section, DIGEST_ATTRIBUTE, digest);
+    writeNewline(section);
+    return section.toByteArray();
+  }
+
+  /*
+   * Writes a manifest attribute, continuing lines longer than 72 bytes on the next line
+   * after a space, as java.util.jar.Manifest does.
+   */
+  private static void writeAttribute(OutputStream out, String name, String value)
+      throws IOException {
+    byte[] line = (name + ": " + value).getBytes(Charsets.UTF_8);
+    int length = Math.min(line.length, MAX_LINE_LENGTH);
+    out.write(line, 0, length);
+    for (int start = length; start < line.length; start += MAX_LINE_LENGTH - 1) {
+      writeNewline(out);
+      out.write(' ');
+      out.write(line, start, Math.min(line.length - start, MAX_LINE_LENGTH - 1));
+    }
+    writeNewline(out);
+  }
+
+  private static void writeNewline(OutputStream out) throws IOException {
+    out.write('\r');
+    out.write('\n');
+  }
+
+  /*
+   * Creates the PKCS#7 signature block of the signature file, without signed attributes,
+   * as jarsigner does.
+   */
+  private static byte[] sign(byte[] signatureFile, PrivateKey key, X509Certificate certificate)
+      throws IOException {
+    try {
+      CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+      generator.addSignerInfoGenerator(
+          new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().build())
+              .setDirectSignature(true)
+              .build(new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(key), certificate));
+      generator.addCertificates(new JcaCertStore(Collections.singletonList(certificate)));
+      CMSSignedData signedData =
+          generator.generate(new CMSProcessableByteArray(signatureFile), false);
+      return ASN1Primitive.fromByteArray(signedData.getEncoded())
+          .getEncoded(ASN1Encoding.DER);
+    } catch (CertificateEncodingException e) {
+      throw new IOException("Unable to sign the APK", e);
+    } catch (OperatorCreationException e) {
+      throw new IOException("Unable to sign the APK", e);
+    } catch (CMSException e) {
+      throw new IOException("Unable to sign the APK", e);
+    }
+  }
+
+  private static void writeEntry(ZipOutputStream output, String name, byte[] data)
+      throws IOException {
+    output.putNextEntry(new ZipEntry(name));
+    output.write(data);
+    output.closeEntry();
+  }
+
+  private static MessageDigest newDigest() throws IOException {
+    try {
+      return MessageDigest.getInstance(DIGEST_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+}
@@ -0,0 +1,365 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.common.version.GitBuildId;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A content-addressed, size-bounded on-disk cache of build outputs.
+ *
+ * <p>Three kinds of entries are kept: complete APKs, keyed by the hash of every file in the
+ * project zip (see {@link #hashProject}); unsigned companion APKs, keyed by the hash of every
+ * file but the keystore (see {@link #hashUnsignedProject}); and the class files Kawa produced
+ * for a single YAIL source, keyed by {@link #hashSource}. All keys include the build server
+ * version, so a new release never sees entries of an older one.
+ *
+ * <p>Entries are written to a temporary file and renamed into place, so concurrent builds
+ * never observe partial entries. When the cache grows beyond its size limit, the least
+ * recently used entries are deleted.
+ *
+ * <p>The cache also provides a directory for unpacked AAR libraries and their merged
+ * resources (see {@link #getLibraryDir}). Those are keyed by content hash and managed by
+ * {@link com.google.appinventor.buildserver.util.AARLibraries}; they are few and small, and
+ * are not subject to eviction.
+ */
+final class BuildCache {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildCache.class.getName());
+
+  private static final String APK_DIR_NAME = "apk";
+  private static final String CLASSES_DIR_NAME = "classes";
+  private static final String LIBRARY_DIR_NAME = "aar";
+  private static final String UNSIGNED_APK_SUFFIX = ".unsigned.apk";
+
+  private static volatile BuildCache instance = null;
+
+  private final File apkDir;
+  private final File classesDir;
+  private final File libraryDir;
+  private final long maxBytes;
+
+  private BuildCache(File cacheDir, long maxBytes) {
+    this.apkDir = new File(cacheDir, APK_DIR_NAME);
+    this.classesDir = new File(cacheDir, CLASSES_DIR_NAME);
+    this.libraryDir = new File(cacheDir, LIBRARY_DIR_NAME);
+    this.maxBytes = maxBytes;
+    apkDir.mkdirs();
+    classesDir.mkdirs();
+    libraryDir.mkdirs();
+  }
+
+  /**
+   * Enables the build cache. A {@code null} directory disables it.
+   *
+   * @param cacheDir directory holding the cache, shared by all builds of this server
+   * @param maxMb maximum size of the cache, in MBs
+   */
+  static void configure(String cacheDir, int maxMb) {
+    if (cacheDir == null) {
+      instance = null;
+    } else {
+      instance = new BuildCache(new File(cacheDir), maxMb * 1024L * 1024L);
+      LOG.info("Build cache at " + cacheDir + ", limited to " + maxMb + " MB");
+    }
+  }
+
+  /**
+   * Returns the configured cache, or {@code null} if caching is disabled.
+   */
+  static BuildCache getInstance() {
+    return instance;
+  }
+
+  /**
+   * Computes the key of a whole project build from the names and contents of all files in
+   * the project zip.
+   */
+  static String hashProject(ZipFile inputZip, boolean isForCompanion) throws IOException {
+    return hashEntries(inputZip, newHasher().putBoolean(isForCompanion), null);
+  }
+
+  /**
+   * Computes the key of an unsigned companion APK from the names and contents of all files in
+   * the project zip except the keystore, which only affects the signature.
+   */
+  static String hashUnsignedProject(ZipFile inputZip) throws IOException {
+    return hashEntries(inputZip, newHasher().putString("unsigned companion").putByte((byte) 0),
+        YoungAndroidConstants.PROJECT_KEYSTORE_LOCATION);
+  }
+
+  private static String hashEntries(ZipFile inputZip, Hasher hasher, String excludedEntry)
+      throws IOException {
+    List<ZipEntry> entries = new ArrayList<ZipEntry>();
+    Enumeration<? extends ZipEntry> e = inputZip.entries();
+    while (e.hasMoreElements()) {
+      entries.add(e.nextElement());
+    }
+    Collections.sort(entries, new Comparator<ZipEntry>() {
+      @Override
+      public int compare(ZipEntry left, ZipEntry right) {
+        return left.getName().compareTo(right.getName());
+      }
+    });
+    byte[] buffer = new byte[8192];
+    for (ZipEntry entry : entries) {
+      if (entry.getName().equals(excludedEntry)) {
+        continue;
+      }
+      hasher.putString(entry.getName()).putByte((byte) 0);
+      InputStream in = inputZip.getInputStream(entry);
+      try {
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          hasher.putBytes(buffer, 0, read);
+        }
+      } finally {
+        in.close();
+      }
+      hasher.putByte((byte) 0);
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Computes the key of the classes compiled from a single source file.
+   *
+   * @param source the source file
+   * @param context anything else the compiled classes depend on, such as the package name
+   *     and the hashes of extension libraries on the class path
+   */
+  static String hashSource(File source, String context) throws IOException {
+    return newHasher()
+        .putString(context).putByte((byte) 0)
+        .putBytes(Files.toByteArray(source))
+        .hash().toString();
+  }
+
+  private static Hasher newHasher() {
+    return Hashing.sha1().newHasher()
+        .putString(GitBuildId.getVersion()).putByte((byte) 0)
+        .putString(GitBuildId.getFingerprint()).putByte((byte) 0);
+  }
+
+  /**
+   * Returns the directory holding unpacked AAR libraries and merged library resources.
+   */
+  File getLibraryDir() {
+    return libraryDir;
+  }
+
+  /**
+   * Places the cached APK for the given key at {@code target}, which must not be changed.
+   *
+   * @return {@code true} if the APK was found and placed
+   */
+  boolean restoreApk(String key, File target) {
+    return restoreFile(new File(apkDir, key + ".apk"), target);
+  }
+
+  /**
+   * Adds an APK to the cache.
+   */
+  void putApk(String key, File apk) {
+    putFile(key, apk, key + ".apk");
+  }
+
+  /**
+   * Places the cached unsigned companion APK for the given key at {@code target}, which must
+   * not be changed.
+   *
+   * @return {@code true} if the APK was found and placed
+   */
+  boolean restoreUnsignedApk(String key, File target) {
+    return restoreFile(new File(apkDir, key + UNSIGNED_APK_SUFFIX), target);
+  }
+
+  /**
+   * Adds an unsigned companion APK to the cache.
+   */
+  void putUnsignedApk(String key, File apk) {
+    putFile(key, apk, key + UNSIGNED_APK_SUFFIX);
+  }
+
+  /*
+   * Links or copies a cache entry to the target. This holds the lock evict() takes, so the
+   * entry cannot be deleted in between; once placed, the target outlives the entry.
+   */
+  private synchronized boolean restoreFile(File entry, File target) {
+    if (touch(entry) == null) {
+      return false;
+    }
+    try {
+      FileStaging.link(entry, target);
+      return true;
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to restore cached " + entry.getName(), e);
+      return false;
+    }
+  }
+
+  private void putFile(String key, File file, String name) {
+    try {
+      File tmp = File.createTempFile(key, ".tmp", apkDir);
+      Files.copy(file, tmp);
+      publish(tmp, new File(apkDir, name));
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to cache " + file, e);
+    }
+  }
+
+  /**
+   * Extracts the cached classes for the given key into {@code outputDir}.
+   *
+   * @return {@code true} if the classes were found and extracted
+   */
+  boolean restoreClasses(String key, File outputDir) {
+    File entry = touch(new File(classesDir, key + ".zip"));
+    if (entry == null) {
+      return false;
+    }
+    try {
+      ZipFile zip = new ZipFile(entry);
+      try {
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+          ZipEntry zipEntry = entries.nextElement();
+          File target = new File(outputDir, zipEntry.getName());
+          Files.createParentDirs(target);
+          InputStream in = zip.getInputStream(zipEntry);
+          try {
+            OutputStream out = new FileOutputStream(target);
+            try {
+              ByteStreams.copy(in, out);
+            } finally {
+              out.close();
+            }
+          } finally {
+            in.close();
+          }
+        }
+      } finally {
+        zip.close();
+      }
+      return true;
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to restore cached classes " + key, e);
+      return false;
+    }
+  }
+
+  /**
+   * Adds class files to the cache.
+   *
+   * @param key the key of the source the classes were compiled from
+   * @param baseDir the class output directory
+   * @param classFiles the class files, all located beneath {@code baseDir}
+   */
+  void putClasses(String key, File baseDir, List<File> classFiles) {
+    if (classFiles.isEmpty()) {
+      return;
+    }
+    String basePath = baseDir.getAbsolutePath() + File.separator;
+    try {
+      File tmp = File.createTempFile(key, ".tmp", classesDir);
+      ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(
+          new FileOutputStream(tmp)));
+      try {
+        for (File classFile : classFiles) {
+          String name = classFile.getAbsolutePath().substring(basePath.length())
+              .replace(File.separatorChar, '/');
+          out.putNextEntry(new ZipEntry(name));
+          Files.copy(classFile, out);
+          out.closeEntry();
+        }
+      } finally {
+        out.close();
+      }
+      publish(tmp, new File(classesDir, key + ".zip"));
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to cache classes " + key, e);
+    }
+  }
+
+  /*
+   * Returns the file after marking it as recently used, or null if it doesn't exist.
+   */
+  private static File touch(File file) {
+    if (!file.isFile()) {
+      return null;
+    }
+    file.setLastModified(System.currentTimeMillis());
+    return file;
+  }
+
+  private void publish(File tmp, File target) throws IOException {
+    try {
+      java.nio.file.Files.move(tmp.toPath(), target.toPath(),
+          StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      tmp.delete();
+    }
+    evict();
+  }
+
+  /*
+   * Deletes least recently used entries until the cache fits in maxBytes.
+   */
+  private synchronized void evict() {
+    List<File> files = new ArrayList<File>();
+    long total = 0;
+    for (File dir : new File[] { apkDir, classesDir }) {
+      File[] children = dir.listFiles();
+      if (children != null) {
+        files.addAll(Arrays.asList(children));
+      }
+    }
+    for (File file : files) {
+      total += file.length();
+    }
+    if (total <= maxBytes) {
+      return;
+    }
+    Collections.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File left, File right) {
+        return Long.compare(left.lastModified(), right.lastModified());
+      }
+    });
+    for (File file : files) {
+      if (total <= maxBytes) {
+        break;
+      }
+      long length = file.length();
+      if (file.delete()) {
+        total -= length;
+      }
+    }
+  }
+}
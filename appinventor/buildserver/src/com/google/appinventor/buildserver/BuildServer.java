@@ -6,7 +6,9 @@
 package com.google.appinventor.buildserver;
 
 import com.google.appinventor.common.version.GitBuildId;
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 
@@ -28,6 +30,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.lang.management.ManagementFactory;
@@ -39,10 +43,15 @@ import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.URL;
 import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
@@ -73,50 +82,240 @@ public class BuildServer {
     // We create a ProgressReporter instance which is handed off to the
     // project builder and compiler. It is called to report the progress
     // of the build. The reporting is done by calling the callback URL
-    // and putting the status inside a "build.status" file. This isn't
-    // particularly efficient, but this is the version 0.9 implementation
-    String callbackUrlStr;
+    // and putting the status inside a "build.status" file. The final
+    // build result is sent to the same URL once the build is done.
+    //
+    // Reports are posted by the sender threads, never by the build
+    // thread, so a slow callback can't hold up a build. Each reporter
+    // posts one request at a time, in order; progress that arrives while
+    // a request is in flight replaces any progress not yet sent, and is
+    // dropped altogether once the result is queued. Response bodies are
+    // read to the end so that HttpURLConnection can keep the connection
+    // to the callback host alive for the next request.
+    //
+    // The reporters of identical requests can be attached to the reporter
+    // of the build they wait for (see InFlightBuilds). They get the same
+    // progress reports, and a link to the result zip to send.
+    private static final ExecutorService senders = Executors.newCachedThreadPool(
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger(0);
+
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "progress-reporter-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+
+    // Number of results queued or being sent, which the shutdown hook waits for.
+    private static final AtomicInteger pendingResults = new AtomicInteger(0);
+
+    private final String callbackUrlStr;
+    private final Runnable sender = new Runnable() {
+      @Override
+      public void run() {
+        sendPending();
+      }
+    };
+
+    // Guarded by this.
+    private int pendingProgress = -1;
+    private File pendingResult = null;
+    private boolean resultQueued = false;
+    private boolean sending = false;
+    private int lastProgress = -1;
+    private final List<ProgressReporter> attached = new ArrayList<ProgressReporter>();
+
     ProgressReporter(String callbackUrlStr) {
       this.callbackUrlStr = callbackUrlStr;
     }
 
+    static int getPendingResults() {
+      return pendingResults.get();
+    }
+
     public void report(int progress) {
-      try {
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        ZipOutputStream zipoutput = new ZipOutputStream(output);
-        zipoutput.putNextEntry(new ZipEntry("build.status"));
-        PrintWriter pout = new PrintWriter(zipoutput);
-        pout.println(progress);
-        pout.flush();
-        zipoutput.flush();
-        zipoutput.close();
-        ByteArrayInputStream zipinput = new ByteArrayInputStream(output.toByteArray());
-        URL callbackUrl = new URL(callbackUrlStr);
-        HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
-        connection.setDoOutput(true);
-        connection.setRequestMethod("POST");
-        // Make sure we aren't misinterpreted as
-        // form-url-encoded
-        connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
-        connection.setConnectTimeout(5000);
-        connection.setReadTimeout(5000);
-        BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
+      List<ProgressReporter> followers;
+      boolean send;
+      synchronized (this) {
+        if (resultQueued) {
+          return;
+        }
+        pendingProgress = progress;
+        lastProgress = progress;
+        followers = attached.isEmpty() ? null : new ArrayList<ProgressReporter>(attached);
+        send = !sending;
+        sending = true;
+      }
+      if (send) {
+        senders.execute(sender);
+      }
+      if (followers != null) {
+        for (ProgressReporter follower : followers) {
+          follower.report(progress);
+        }
+      }
+    }
+
+    /**
+     * Attaches the reporter of an identical request, which is then sent the progress and the
+     * result of this reporter's build.
+     *
+     * @return false if the result of this build has already been queued, in which case
+     *     {@code follower} must get a build of its own
+     */
+    boolean attach(ProgressReporter follower) {
+      int progress;
+      synchronized (this) {
+        if (resultQueued) {
+          return false;
+        }
+        attached.add(follower);
+        progress = lastProgress;
+      }
+      if (progress >= 0) {
+        follower.report(progress);
+      }
+      return true;
+    }
+
+    /**
+     * Queues the build result for sending after any progress report in flight. The result
+     * zip is streamed from disk and deleted once it has been sent.
+     */
+    void sendResult(File resultZip) {
+      pendingResults.incrementAndGet();
+      List<ProgressReporter> followers;
+      synchronized (this) {
+        resultQueued = true;
+        followers = new ArrayList<ProgressReporter>(attached);
+        attached.clear();
+      }
+      // The attached reporters are sent the result before this reporter's result is queued,
+      // while the zip still exists.
+      sendResultTo(followers, resultZip);
+      synchronized (this) {
+        pendingProgress = -1;
+        pendingResult = resultZip;
+        if (sending) {
+          return;
+        }
+        sending = true;
+      }
+      senders.execute(sender);
+    }
+
+    /**
+     * Sends a result to the attached reporters only, for a build that ended without a result
+     * of its own. Requests that attach afterwards get a build of their own. The result zip is
+     * deleted once it has been linked for each of them.
+     */
+    void sendResultToAttached(File resultZip) {
+      List<ProgressReporter> followers;
+      synchronized (this) {
+        resultQueued = true;
+        followers = new ArrayList<ProgressReporter>(attached);
+        attached.clear();
+      }
+      sendResultTo(followers, resultZip);
+      resultZip.delete();
+    }
+
+    // Each reporter deletes the zip it sent, so the attached ones get links of their own.
+    private static void sendResultTo(List<ProgressReporter> followers, File resultZip) {
+      for (ProgressReporter follower : followers) {
         try {
-          BufferedInputStream bufferedInputStream = new BufferedInputStream(zipinput);
+          File link = File.createTempFile(resultZip.getName(), ".zip");
+          link.deleteOnExit();  // In case build server is killed before it is sent.
+          FileStaging.link(resultZip, link);
+          follower.sendResult(link);
+        } catch (IOException e) {
+          LOG.severe("IOException during copying build result: " + e.getMessage());
+        }
+      }
+    }
+
+    private void sendPending() {
+      while (true) {
+        int progress;
+        File result;
+        synchronized (this) {
+          progress = pendingProgress;
+          result = pendingResult;
+          pendingProgress = -1;
+          pendingResult = null;
+          if (progress < 0 && result == null) {
+            sending = false;
+            return;
+          }
+        }
+        if (result != null) {
           try {
-            ByteStreams.copy(bufferedInputStream,bufferedOutputStream);
-            bufferedOutputStream.flush();
+            LOG.info("CallbackURL: " + callbackUrlStr);
+            InputStream in = new BufferedInputStream(new FileInputStream(result));
+            try {
+              post(in, result.length(), 60000, "");
+            } finally {
+              in.close();
+            }
+          } catch (IOException e) {
+            // TODO(user) Maybe do some retries
+            LOG.severe("IOException during sending build result: " + e.getMessage());
           } finally {
-            bufferedInputStream.close();
+            result.delete();
+            pendingResults.decrementAndGet();
+          }
+        } else {
+          try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            ZipOutputStream zipoutput = new ZipOutputStream(output);
+            zipoutput.putNextEntry(new ZipEntry("build.status"));
+            PrintWriter pout = new PrintWriter(zipoutput);
+            pout.println(progress);
+            pout.flush();
+            zipoutput.close();
+            byte[] status = output.toByteArray();
+            post(new ByteArrayInputStream(status), status.length, 5000, " (sending status)");
+          } catch (IOException e) {
+            LOG.severe("IOException during progress report!");
           }
-        } finally {
-          bufferedOutputStream.close();
         }
-        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
-          LOG.severe("Bad Response Code! (sending status): "+ connection.getResponseCode());
+      }
+    }
+
+    private void post(InputStream in, long length, int timeout, String what)
+        throws IOException {
+      URL callbackUrl = new URL(callbackUrlStr);
+      HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
+      connection.setDoOutput(true);
+      connection.setRequestMethod("POST");
+      // Stream the body instead of letting HttpURLConnection buffer all of
+      // it in memory to compute the Content-Length.
+      connection.setFixedLengthStreamingMode(length);
+      // Make sure we aren't misinterpreted as
+      // form-url-encoded
+      connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
+      connection.setConnectTimeout(timeout);
+      connection.setReadTimeout(timeout);
+      OutputStream out = connection.getOutputStream();
+      try {
+        ByteStreams.copy(in, out);
+      } finally {
+        out.close();
+      }
+      int responseCode = connection.getResponseCode();
+      if (responseCode != HttpURLConnection.HTTP_OK) {
+        LOG.severe("Bad Response Code!" + what + ": " + responseCode);
+      }
+      InputStream response = responseCode < HttpURLConnection.HTTP_BAD_REQUEST
+          ? connection.getInputStream() : connection.getErrorStream();
+      if (response != null) {
+        try {
+          ByteStreams.copy(response, ByteStreams.nullOutputStream());
+        } finally {
+          response.close();
         }
-      } catch (IOException e) {
-        LOG.severe("IOException during progress report!");
       }
     }
   }
@@ -135,6 +334,10 @@ public class BuildServer {
       usage = "Maximum number of builds that can run in parallel. O means unlimited.")
     int maxSimultaneousBuilds = 0;  // The default is unlimited.
 
+    @Option(name = "--maxQueuedBuilds",
+      usage = "Maximum number of builds waiting for one of the --maxSimultaneousBuilds slots. Ignored if that is unlimited.")
+    int maxQueuedBuilds = 0;
+
     @Option(name = "--port",
       usage = "The port number to bind to on the local machine.")
     int port = 9990;
@@ -151,6 +354,74 @@ public class BuildServer {
             usage = "the directory to cache the pre-dexed libraries")
     String dexCacheDir = null;
 
+    @Option(name = "--maxKawaProcesses",
+            usage = "Maximum number of builds compiling with Kawa at once. 0 means choose from processors and memory.")
+    int maxKawaProcesses = 0;
+
+    @Option(name = "--maxDxProcesses",
+            usage = "Maximum number of builds running DX at once. 0 means choose from processors and memory.")
+    int maxDxProcesses = 0;
+
+    @Option(name = "--maxAaptProcesses",
+            usage = "Maximum number of builds running AAPT at once. 0 means the number of processors.")
+    int maxAaptProcesses = 0;
+
+    @Option(name = "--maxSigningProcesses",
+            usage = "Maximum number of builds signing and aligning APKs at once. 0 means the number of processors.")
+    int maxSigningProcesses = 0;
+
+    @Option(name = "--kawaCompilerWorkers",
+            usage = "Number of warm Kawa compiler processes to keep running. 0 means fork Kawa for each build.")
+    int kawaCompilerWorkers = 0;
+
+    @Option(name = "--warmUpDexCache",
+            usage = "Pre-dex the libraries of all built-in components into the dex cache at startup.")
+    boolean warmUpDexCache = false;
+
+    @Option(name = "--inProcessDx",
+            usage = "Run dx inside the build server instead of in a child process.")
+    boolean inProcessDx = false;
+
+    @Option(name = "--inProcessDxMemoryMb",
+            usage = "Heap available to all in-process dx runs together, in MB. 0 means half the maximum heap.")
+    int inProcessDxMemoryMb = 0;
+
+    @Option(name = "--inProcessSigning",
+            usage = "Sign and align APKs inside the build server instead of running jarsigner and zipalign.")
+    boolean inProcessSigning = false;
+
+    @Option(name = "--keyPairPoolSize",
+            usage = "Number of signing key pairs generated ahead of time for users without a keystore. 0 means generate them when needed.")
+    int keyPairPoolSize = 0;
+
+    @Option(name = "--preDexThreads",
+            usage = "Number of libraries pre-dexed at once across all builds. 0 means half the number of processors.")
+    int preDexThreads = 0;
+
+    @Option(name = "--buildCacheDir",
+            usage = "the directory to cache compiled classes and APKs of earlier builds")
+    String buildCacheDir = null;
+
+    @Option(name = "--buildCacheSizeMb",
+            usage = "Maximum size of the build cache in MBs")
+    int buildCacheSizeMb = 2048;
+
+    @Option(name = "--sequentialStages",
+            usage = "Run the stages of a build one after another, instead of running Kawa and pre-dexing alongside AAPT.")
+    boolean sequentialStages = false;
+
+    @Option(name = "--buildTraceDir",
+            usage = "the directory to write a timeline of each build to, in the Chrome trace format")
+    String buildTraceDir = null;
+
+    @Option(name = "--memoryBudgetMb",
+            usage = "Memory the child processes of all builds may use together, in MB. 0 means the physical memory less the build server's heap and 1 GB.")
+    int memoryBudgetMb = 0;
+
+    @Option(name = "--separateIdenticalBuilds",
+            usage = "Build every request, instead of attaching requests to an identical build that is queued or running.")
+    boolean separateIdenticalBuilds = false;
+
   }
 
   private static final CommandLineOptions commandLineOptions = new CommandLineOptions();
@@ -179,6 +450,9 @@ public class BuildServer {
   //The number of failed build requests for this server run
   private static final AtomicInteger failedBuildRequests = new AtomicInteger(0);
 
+  // The number of build requests rejected because memory was short
+  private static final AtomicInteger lowMemoryBuildRequests = new AtomicInteger(0);
+
   //The number of failed build requests for this server run
   private static int maximumActiveBuildTasks = 0;
 
@@ -186,7 +460,10 @@ public class BuildServer {
   // NOTE(lizlooney) - the buildExecutor must be created after the command line options are
   // processed in main(). If it is created here, the number of simultaneous builds will always be
   // the default value, even if the --maxSimultaneousBuilds option is on the command line.
-  private static NonQueuingExecutor buildExecutor;
+  private static QueuingExecutor buildExecutor;
+
+  // The async builds queued or running, which identical requests are attached to.
+  private static final InFlightBuilds inFlightBuilds = new InFlightBuilds();
 
   // The input zip file. It will be deleted in cleanUp.
   private File inputZip;
@@ -218,11 +495,18 @@ public class BuildServer {
   //                DRAINING:   We have reached > 2/3 of max permitted jobs
   //                            We return bad health (but accept jobs) until
   //                            the number of active jobs is < 1/3 of max
-  private enum ShutdownState { UP, SHUTTING, DOWN, DRAINING };
+  //                            We also drain while memory is short (see
+  //                            MemoryBudget.isUnderPressure)
+  //                WARMING:    We are filling the dex cache
+  //                            We return bad health (but accept jobs) until
+  //                            it is filled
+  private enum ShutdownState { UP, SHUTTING, DOWN, DRAINING, WARMING };
 
   private static volatile boolean draining = false; // We have exceeded 2/3 max load, waiting for
                                                     // the load to become < 1/3 max load
 
+  private static volatile boolean warmingUp = false; // We are pre-dexing libraries
+
   @GET
   @Path("health")
   @Produces(MediaType.TEXT_PLAIN)
@@ -237,6 +521,9 @@ public class BuildServer {
     } else if (shut == ShutdownState.DRAINING) {
       LOG.info("Healthcheck: DRAINING");
       return Response.status(Response.Status.FORBIDDEN).type(MediaType.TEXT_PLAIN_TYPE).entity("Build Server is draining").build();
+    } else if (shut == ShutdownState.WARMING) {
+      LOG.info("Healthcheck: WARMING");
+      return Response.status(Response.Status.FORBIDDEN).type(MediaType.TEXT_PLAIN_TYPE).entity("Build Server is warming up").build();
     } else {
       LOG.info("Healthcheck: SHUTTING");
       return Response.status(Response.Status.FORBIDDEN).type(MediaType.TEXT_PLAIN_TYPE).entity("Build Server is shutting down").build();
@@ -289,8 +576,13 @@ public class BuildServer {
     // Build requests
     variables.put("count-async-build-requests", asyncBuildRequests.get() + "");
     variables.put("rejected-async-build-requests", rejectedAsyncBuildRequests.get() + "");
+    variables.put("low-memory-async-build-requests", lowMemoryBuildRequests.get() + "");
     variables.put("successful-async-build-requests", successfulBuildRequests.get() + "");
     variables.put("failed-async-build-requests", failedBuildRequests.get() + "");
+    variables.put("pending-build-results", ProgressReporter.getPendingResults() + "");
+    variables.put("attached-async-build-requests",
+        inFlightBuilds.getAttachedRequestCount() + "");
+    variables.put("in-flight-builds", inFlightBuilds.getBuildCount() + "");
 
     // Build tasks
     int max = buildExecutor.getMaxActiveTasks();
@@ -303,6 +595,20 @@ public class BuildServer {
     maximumActiveBuildTasks = Math.max(maximumActiveBuildTasks, buildExecutor.getActiveTaskCount());
     variables.put("maximum-simultaneous-build-tasks-occurred", maximumActiveBuildTasks + "");
     variables.put("active-build-tasks", buildExecutor.getActiveTaskCount() + "");
+    variables.put("maximum-queued-build-tasks-allowed", buildExecutor.getMaxQueuedTasks() + "");
+    variables.put("queued-build-tasks", buildExecutor.getQueuedTaskCount() + "");
+    variables.put("rejected-build-tasks", buildExecutor.getRejectedTaskCount() + "");
+    variables.put("queue-wait-p50-ms", buildExecutor.getWaitPercentileMillis(50) + "");
+    variables.put("queue-wait-p90-ms", buildExecutor.getWaitPercentileMillis(90) + "");
+    variables.put("queue-wait-p99-ms", buildExecutor.getWaitPercentileMillis(99) + "");
+    variables.put("estimated-queue-wait-ms", buildExecutor.estimateWaitMillis() + "");
+
+    // Child process memory
+    MemoryBudget.addVariables(variables);
+
+    // Compiler stages
+    StageScheduler.addVariables(variables);
+    BuildTrace.addVariables(variables);
 
     StringBuilder html = new StringBuilder();
     html.append("<html><body><tt>");
@@ -345,6 +651,49 @@ public class BuildServer {
     }
   }
 
+  /**
+   * Fills the dex cache with the pre-dexed libraries of all built-in components. The server
+   * reports bad health until this is done.
+   */
+  @GET
+  @Path("warmup")
+  @Produces(MediaType.TEXT_PLAIN)
+  public Response warmup() throws IOException {
+    if (commandLineOptions.dexCacheDir == null) {
+      return Response.status(Response.Status.FORBIDDEN).type(MediaType.TEXT_PLAIN_TYPE).entity("No dex cache directory").build();
+    }
+    if (!startWarmUp()) {
+      return Response.ok("ok: Already warming up", MediaType.TEXT_PLAIN_TYPE).build();
+    }
+    return Response.ok("ok: Warming up", MediaType.TEXT_PLAIN_TYPE).build();
+  }
+
+  /*
+   * Starts pre-dexing in the background. Returns false if it is already running.
+   */
+  private static synchronized boolean startWarmUp() {
+    if (warmingUp) {
+      return false;
+    }
+    warmingUp = true;
+    Thread warmUpThread = new Thread("dex-cache-warm-up") {
+      @Override
+      public void run() {
+        try {
+          if (!Compiler.warmUpDexCache(commandLineOptions.dexCacheDir,
+              commandLineOptions.childProcessRamMb)) {
+            LOG.warning("Some libraries could not be pre-dexed");
+          }
+        } finally {
+          warmingUp = false;
+        }
+      }
+    };
+    warmUpThread.setDaemon(true);
+    warmUpThread.start();
+    return true;
+  }
+
   /**
    * Build an APK file from the input zip file. The zip file needs to be a variant of the same
    * App Inventor source zip that's generated by the Download Source command.  The differences are
@@ -514,54 +863,71 @@ public class BuildServer {
         }
       }
 
+      final ProgressReporter reporter = new ProgressReporter(callbackUrlStr);
+      final String buildKey = commandLineOptions.separateIdenticalBuilds
+          ? null : getBuildKey(userName, inputZipFile);
       Runnable buildTask = new Runnable() {
           @Override
           public void run() {
             int count = buildCount.incrementAndGet();
+            boolean resultSent = false;
             try {
               LOG.info("START NEW BUILD " + count);
               checkMemory();
-              buildAndCreateZip(userName, inputZipFile, new ProgressReporter(callbackUrlStr));
-              // Send zip back to the callbackUrl
-              LOG.info("CallbackURL: " + callbackUrlStr);
-              URL callbackUrl = new URL(callbackUrlStr);
-              HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
-              connection.setDoOutput(true);
-              connection.setRequestMethod("POST");
-              // Make sure we aren't misinterpreted as
-              // form-url-encoded
-              connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
-              connection.setConnectTimeout(60000);
-              connection.setReadTimeout(60000);
-              BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
-              try {
-                BufferedInputStream bufferedInputStream = new BufferedInputStream(
-                  new FileInputStream(outputZip));
-                try {
-                  ByteStreams.copy(bufferedInputStream,bufferedOutputStream);
-                  checkMemory();
-                  bufferedOutputStream.flush();
-                } finally {
-                  bufferedInputStream.close();
-                }
-              } finally {
-                bufferedOutputStream.close();
-              }
-              if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {LOG.severe("Bad Response Code!: "+ connection.getResponseCode());
-                // TODO(user) Maybe do some retries
-              }
+              buildAndCreateZip(userName, inputZipFile, reporter);
+              // Send zip back to the callbackUrl. The reporter deletes it once sent, so clear
+              // the outputZip field so that cleanUp() leaves it alone.
+              reporter.sendResult(outputZip);
+              resultSent = true;
+              outputZip = null;
             } catch (Exception e) {
               // TODO(user): Maybe send a failure callback
               LOG.severe("Exception: " + e.getMessage()+ " and the length is of inputZip is "+ inputZip.length());
             } finally {
+              if (buildKey != null) {
+                if (!resultSent) {
+                  // Requests attached to this build would otherwise wait for a result forever.
+                  failAttachedRequests(reporter, inputZipFile.getName());
+                }
+                inFlightBuilds.remove(buildKey, reporter);
+              }
               cleanUp();
               checkMemory();
               LOG.info("BUILD " + count + " FINISHED");
             }
           }
         };
+      long estimatedWaitSeconds = (buildExecutor.estimateWaitMillis() + 999) / 1000;
+      // A request attached to an identical build in flight costs no memory, so it is
+      // accepted even when memory is short.
+      boolean attached = buildKey != null && inFlightBuilds.attach(buildKey, reporter);
+      // Refuse builds while memory is short, unless nothing is building that could free it.
+      if (!attached && MemoryBudget.isUnderPressure()
+          && buildExecutor.getActiveTaskCount() + buildExecutor.getQueuedTaskCount() > 0) {
+        rejectedAsyncBuildRequests.incrementAndGet();
+        lowMemoryBuildRequests.incrementAndGet();
+        cleanUp();
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE)
+          .header("Retry-After", Math.max(1, estimatedWaitSeconds))
+          .entity("The build server is currently low on memory.").build();
+      }
       try {
-        buildExecutor.execute(buildTask);
+        if (buildKey == null) {
+          buildExecutor.execute(buildTask);
+        } else if (!attached) {
+          // An identical build may have been submitted since the check above.
+          attached = inFlightBuilds.attachOrExecute(buildKey, reporter, buildExecutor, buildTask);
+        }
+        if (attached) {
+          // The result of the identical build will be sent to our callback too.
+          LOG.info("Request attached to an identical build in flight");
+          cleanUp();
+        }
+        // Let the caller know how many builds wait and how long this one is expected to wait.
+        return Response.ok().type(MediaType.TEXT_PLAIN_TYPE)
+          .header("X-Build-Queue-Length", buildExecutor.getQueuedTaskCount())
+          .header("X-Build-Estimated-Wait-Seconds", estimatedWaitSeconds)
+          .entity("" + 50).build();
       } catch (RejectedExecutionException e) {
         // This request was rejected because all threads in the build
         // executor are busy.
@@ -573,7 +939,9 @@ public class BuildServer {
         // overloading or maintenance of the server. The implication
         // is that this is a temporary condition which will be
         // alleviated after some delay."
-        return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE).entity("The build server is currently at maximum capacity.").build();
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE)
+          .header("Retry-After", Math.max(1, estimatedWaitSeconds))
+          .entity("The build server is currently at maximum capacity.").build();
       }
     }
     // Note: The code below should no longer be invoked. Progress reports
@@ -612,6 +980,46 @@ public class BuildServer {
     zipOutputStream.close();
   }
 
+  /*
+   * Sends a failing build result to the requests attached to a build that ended without
+   * a result.
+   */
+  private void failAttachedRequests(ProgressReporter reporter, String inputName) {
+    try {
+      File failureZip = File.createTempFile(inputName, ".zip");
+      failureZip.deleteOnExit();  // In case build server is killed before it is sent.
+      ZipOutputStream zipOutputStream =
+        new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(failureZip)));
+      try {
+        zipOutputStream.putNextEntry(new ZipEntry("build.out"));
+        PrintStream zipPrintStream = new PrintStream(zipOutputStream);
+        zipPrintStream.print(genBuildOutput(
+            Result.createFailingResult("", "Server error performing build")));
+        zipPrintStream.flush();
+      } finally {
+        zipOutputStream.close();
+      }
+      reporter.sendResultToAttached(failureZip);
+    } catch (IOException e) {
+      LOG.severe("IOException during creating failure result: " + e.getMessage());
+    } catch (JSONException e) {
+      LOG.severe("JSONException during creating failure result: " + e.getMessage());
+    }
+  }
+
+  /*
+   * Returns the key identical build requests share, or null if the zip can't be read, in
+   * which case the build is left to report the problem.
+   */
+  private static String getBuildKey(String userName, File zipFile) {
+    try {
+      return InFlightBuilds.getKey(zipFile, userName);
+    } catch (IOException e) {
+      LOG.warning("Unable to hash " + zipFile + ": " + e.getMessage());
+      return null;
+    }
+  }
+
   private String genBuildOutput(Result buildResult) throws JSONException {
     JSONObject buildOutputJsonObj = new JSONObject();
     buildOutputJsonObj.put("result", buildResult.getResult());
@@ -670,7 +1078,8 @@ public class BuildServer {
     MemoryMXBean mBean = ManagementFactory.getMemoryMXBean();
     mBean.gc();
     LOG.info("Build " + buildCount + " current used memory: "
-      + mBean.getHeapMemoryUsage().getUsed() + " bytes");
+      + mBean.getHeapMemoryUsage().getUsed() + " bytes, available to child processes: "
+      + MemoryBudget.getAvailableMb() + " MB");
   }
 
   public static void main(String[] args) throws IOException {
@@ -704,7 +1113,8 @@ public class BuildServer {
             return;
           }
           while (true) {
-            int tasks = buildExecutor.getActiveTaskCount();
+            int tasks = buildExecutor.getActiveTaskCount() + buildExecutor.getQueuedTaskCount()
+                + ProgressReporter.getPendingResults();
             if (tasks <= 0) {
               try {
                 Thread.sleep(10000); // One final wait so people can get
@@ -724,7 +1134,47 @@ public class BuildServer {
 
 
     // Now that the command line options have been processed, we can create the buildExecutor.
-    buildExecutor = new NonQueuingExecutor(commandLineOptions.maxSimultaneousBuilds);
+    buildExecutor = new QueuingExecutor(commandLineOptions.maxSimultaneousBuilds,
+        commandLineOptions.maxQueuedBuilds);
+    if (commandLineOptions.dexCacheDir != null) {
+      // Keep the built-in libraries at stable paths, so the dex cache's hash index still
+      // knows them after a restart.
+      Compiler.setResourceDir(new File(commandLineOptions.dexCacheDir,
+          "resources-" + Hashing.sha1().hashString(GitBuildId.getVersion() + "|"
+              + GitBuildId.getFingerprint() + "|" + GitBuildId.getDate(), Charsets.UTF_8)));
+    }
+    KawaCompilerDaemon.setMaxWorkers(commandLineOptions.kawaCompilerWorkers,
+        commandLineOptions.childProcessRamMb);
+    DexExecTask.setPreDexThreads(commandLineOptions.preDexThreads);
+    InProcessDexer.configure(commandLineOptions.inProcessDx,
+        commandLineOptions.inProcessDxMemoryMb);
+    // Index the built-in components before the first build needs them.
+    try {
+      ComponentIndex.getBuiltIn();
+    } catch (Exception e) {
+      LOG.severe("Unable to index the built-in components: " + e.getMessage());
+    }
+    ApkSigner.configure(commandLineOptions.inProcessSigning);
+    KeyStoreGenerator.configure(commandLineOptions.keyPairPoolSize);
+    BuildCache.configure(commandLineOptions.buildCacheDir, commandLineOptions.buildCacheSizeMb);
+    BuildTrace.configure(commandLineOptions.buildTraceDir);
+    Compiler.setParallelStages(!commandLineOptions.sequentialStages);
+    MemoryBudget.configure(commandLineOptions.memoryBudgetMb,
+        commandLineOptions.childProcessRamMb);
+    StageScheduler.configure(commandLineOptions.childProcessRamMb,
+        commandLineOptions.maxKawaProcesses, commandLineOptions.maxDxProcesses,
+        commandLineOptions.maxAaptProcesses, commandLineOptions.maxSigningProcesses);
+
+    // Start warming up before the server accepts health checks, so it is never reported
+    // healthy with a cold dex cache.
+    if (commandLineOptions.warmUpDexCache) {
+      if (commandLineOptions.dexCacheDir == null) {
+        LOG.warning("--warmUpDexCache requires --dexCacheDir");
+      } else {
+        LOG.info("Warming up the dex cache");
+        startWarmUp();
+      }
+    }
 
     int port = commandLineOptions.port;
     SelectorThread threadSelector = GrizzlyServerFactory.create("http://localhost:" + port + "/");
@@ -736,6 +1186,7 @@ public class BuildServer {
       LOG.info("Maximum simultanous builds = unlimited!");
     } else {
       LOG.info("Maximum simultanous builds = " + commandLineOptions.maxSimultaneousBuilds);
+      LOG.info("Maximum queued builds = " + buildExecutor.getMaxQueuedTasks());
     }
     LOG.info("Visit: http://" + hostAddress + ":" + port +
       "/buildserver/health for server health");
@@ -760,12 +1211,18 @@ public class BuildServer {
 
   private ShutdownState getShutdownState() {
     if (shuttingTime == 0) {
+      if (warmingUp) {
+        return ShutdownState.WARMING;
+      }
+      // Memory pressure drains the server whatever its build limit.
+      boolean lowMemory = MemoryBudget.isUnderPressure();
       int max = buildExecutor.getMaxActiveTasks();
       if (max < 10) {           // Only do this scheme if we are not unlimited
                                 // (unlimited == 0) and allow more then 10 max builds
-        return ShutdownState.UP;
+        return lowMemory ? ShutdownState.DRAINING : ShutdownState.UP;
       }
-      int active = buildExecutor.getActiveTaskCount();
+      // Queued builds count as load, since they will occupy a slot shortly.
+      int active = buildExecutor.getActiveTaskCount() + buildExecutor.getQueuedTaskCount();
       if (draining) {
         if (active < max/3) {
           draining = false;
@@ -775,7 +1232,7 @@ public class BuildServer {
           draining = true;
         }
       }
-      if (draining) {
+      if (draining || lowMemory) {
         return ShutdownState.DRAINING;
       } else {
         return ShutdownState.UP;
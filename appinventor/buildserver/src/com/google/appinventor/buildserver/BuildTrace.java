@@ -0,0 +1,423 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records how long each part of a build takes.
+ *
+ * <p>A build is divided into spans: one for each stage of the compiler, and nested within
+ * them spans for child processes and for time spent waiting on locks and stage permits.
+ * Every span is added to a per-process histogram of its kind, which is shown on the server's
+ * variables page (see {@link #addVariables}). While a build is traced (see {@link #start}),
+ * its spans are also kept and, if {@link #configure} was given a directory, written there
+ * in the Chrome trace event format when the build finishes. The file can be opened in
+ * chrome://tracing or Perfetto.
+ *
+ * <p>The trace of a build belongs to the thread running it. Work the build hands to other
+ * threads is added to the same trace by {@link #attach}ing it on those threads.
+ */
+final class BuildTrace {
+
+  /**
+   * Kinds of spans.
+   */
+  static final String STAGE = "stage";
+  static final String PROCESS = "process";
+  static final String WAIT = "wait";
+  static final String TASK = "task";
+
+  /**
+   * A timed part of a build. Must be ended exactly once, by the thread that began it.
+   */
+  static final class Span {
+    private final BuildTrace trace;
+    private final String name;
+    private final String category;
+    private final long threadId;
+    private final long startNanos;
+    private long durationNanos = -1;
+    private long bytesRead = 0;
+    private long bytesWritten = 0;
+    private Map<String, Object> args = null;
+
+    private Span(BuildTrace trace, String name, String category, long startNanos) {
+      this.trace = trace;
+      this.name = name;
+      this.category = category;
+      this.threadId = Thread.currentThread().getId();
+      this.startNanos = startNanos;
+    }
+
+    /**
+     * Adds a value shown with the span in the build's trace.
+     */
+    Span arg(String key, Object value) {
+      if (args == null) {
+        args = new LinkedHashMap<String, Object>();
+      }
+      args.put(key, value);
+      return this;
+    }
+
+    Span addBytesRead(long bytes) {
+      bytesRead += bytes;
+      return this;
+    }
+
+    Span addBytesWritten(long bytes) {
+      bytesWritten += bytes;
+      return this;
+    }
+
+    void end() {
+      if (durationNanos >= 0) {
+        return;
+      }
+      durationNanos = System.nanoTime() - startNanos;
+      getHistogram(category, name).add(durationNanos, bytesRead, bytesWritten);
+      if (trace != null) {
+        trace.add(this);
+      }
+    }
+  }
+
+  /*
+   * Durations of the most recent spans of one kind, and totals of all of them.
+   */
+  private static final class Histogram {
+    private final long[] samplesNanos = new long[SAMPLES];
+    private long count = 0;
+    private long totalNanos = 0;
+    private long maxNanos = 0;
+    private long bytesRead = 0;
+    private long bytesWritten = 0;
+
+    synchronized void add(long durationNanos, long read, long written) {
+      samplesNanos[(int) (count % SAMPLES)] = durationNanos;
+      count++;
+      totalNanos += durationNanos;
+      maxNanos = Math.max(maxNanos, durationNanos);
+      bytesRead += read;
+      bytesWritten += written;
+    }
+
+    synchronized void addVariables(String prefix, Map<String, String> variables) {
+      long[] samples = Arrays.copyOf(samplesNanos, (int) Math.min(count, SAMPLES));
+      Arrays.sort(samples);
+      variables.put(prefix + "count", count + "");
+      variables.put(prefix + "total-ms", toMillis(totalNanos) + "");
+      variables.put(prefix + "p50-ms", toMillis(percentile(samples, 50)) + "");
+      variables.put(prefix + "p90-ms", toMillis(percentile(samples, 90)) + "");
+      variables.put(prefix + "p99-ms", toMillis(percentile(samples, 99)) + "");
+      variables.put(prefix + "max-ms", toMillis(maxNanos) + "");
+      if (bytesRead > 0) {
+        variables.put(prefix + "bytes-read", bytesRead + "");
+      }
+      if (bytesWritten > 0) {
+        variables.put(prefix + "bytes-written", bytesWritten + "");
+      }
+    }
+
+    private static long percentile(long[] sortedSamples, double percentile) {
+      if (sortedSamples.length == 0) {
+        return 0;
+      }
+      int index = (int) Math.ceil(percentile / 100.0 * sortedSamples.length) - 1;
+      return sortedSamples[Math.max(0, Math.min(sortedSamples.length - 1, index))];
+    }
+  }
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildTrace.class.getName());
+
+  // Number of recent spans of each kind the percentiles are computed from.
+  private static final int SAMPLES = 1000;
+
+  // Spans kept per build. Further spans are only added to the histograms.
+  private static final int MAX_SPANS = 10000;
+
+  private static final ConcurrentMap<String, Histogram> histograms =
+      new ConcurrentHashMap<String, Histogram>();
+
+  private static final ThreadLocal<BuildTrace> currentTrace = new ThreadLocal<BuildTrace>();
+  private static final ThreadLocal<Span> currentStage = new ThreadLocal<Span>();
+
+  private static final AtomicLong traceCount = new AtomicLong(0);
+
+  private static volatile File traceDir = null;
+
+  private final String buildId;
+  private final long startMillis;
+  private final long startNanos;
+  private final List<Span> spans = new ArrayList<Span>();
+  private final Map<Long, String> threadNames = new TreeMap<Long, String>();
+  private boolean finished = false;
+
+  private BuildTrace(String buildId) {
+    this.buildId = buildId;
+    this.startMillis = System.currentTimeMillis();
+    this.startNanos = System.nanoTime();
+  }
+
+  /**
+   * Sets the directory each build's trace is written to, or {@code null} to not write
+   * traces.
+   */
+  static void configure(String dir) {
+    if (dir == null) {
+      traceDir = null;
+      return;
+    }
+    File directory = new File(dir);
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      LOG.severe("Unable to create the build trace directory " + dir);
+      return;
+    }
+    traceDir = directory;
+    LOG.info("Writing build traces to " + directory);
+  }
+
+  /**
+   * Starts tracing a build on the calling thread.
+   */
+  static BuildTrace start() {
+    BuildTrace trace = new BuildTrace(
+        new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date())
+        + "-" + traceCount.incrementAndGet());
+    currentTrace.set(trace);
+    return trace;
+  }
+
+  /**
+   * Returns the trace of the build running on the calling thread, or {@code null} if there
+   * is none.
+   */
+  static BuildTrace current() {
+    return currentTrace.get();
+  }
+
+  /**
+   * Makes {@code trace} the trace of the calling thread, which runs part of that build.
+   *
+   * @return the thread's previous trace, to be attached again when the work is done
+   */
+  static BuildTrace attach(BuildTrace trace) {
+    BuildTrace previous = currentTrace.get();
+    currentTrace.set(trace);
+    return previous;
+  }
+
+  /**
+   * Begins a span in the current build's trace, if any.
+   */
+  static Span begin(String name, String category) {
+    return new Span(currentTrace.get(), name, category, System.nanoTime());
+  }
+
+  /**
+   * Records a span of the given kind from {@code startNanos}, a {@link System#nanoTime}
+   * value, until now. Used for time spent blocked, where the span can only be ended once
+   * the wait is over.
+   */
+  static void record(String name, String category, long startNanos) {
+    new Span(currentTrace.get(), name, category, startNanos).end();
+  }
+
+  /**
+   * Ends the current stage of the calling thread, if any, and begins the named one.
+   */
+  static void stage(String name) {
+    endStage();
+    currentStage.set(begin(name, STAGE));
+  }
+
+  /**
+   * Returns the current stage of the calling thread, to which bytes read and written may be
+   * added. If no stage was begun, the returned span is not recorded anywhere.
+   */
+  static Span currentStage() {
+    Span stage = currentStage.get();
+    return stage != null ? stage : new Span(null, "none", STAGE, System.nanoTime());
+  }
+
+  /**
+   * Ends the current stage of the calling thread, if any.
+   */
+  static void endStage() {
+    Span stage = currentStage.get();
+    if (stage != null) {
+      currentStage.remove();
+      stage.end();
+    }
+  }
+
+  /**
+   * Stops tracing the build and writes its trace to the configured directory.
+   *
+   * @return the file the trace was written to, or {@code null} if it was not written
+   */
+  File finish() {
+    endStage();
+    if (currentTrace.get() == this) {
+      currentTrace.remove();
+    }
+    synchronized (this) {
+      finished = true;
+    }
+    File dir = traceDir;
+    if (dir == null) {
+      return null;
+    }
+    File file = new File(dir, "build-" + buildId + ".json");
+    try {
+      Files.write(toJson(), file, Charsets.UTF_8);
+      LOG.info("Wrote build trace " + file);
+      return file;
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to write build trace " + file, e);
+    } catch (JSONException e) {
+      LOG.log(Level.WARNING, "Unable to write build trace " + file, e);
+    }
+    return null;
+  }
+
+  private synchronized void add(Span span) {
+    if (finished || spans.size() >= MAX_SPANS) {
+      return;
+    }
+    spans.add(span);
+    if (!threadNames.containsKey(span.threadId)) {
+      threadNames.put(span.threadId, Thread.currentThread().getName());
+    }
+  }
+
+  /**
+   * Returns the trace in the Chrome trace event format.
+   */
+  synchronized String toJson() throws JSONException {
+    JSONArray events = new JSONArray();
+    events.put(metadata("process_name", 0, "Build " + buildId));
+    for (Map.Entry<Long, String> thread : threadNames.entrySet()) {
+      events.put(metadata("thread_name", thread.getKey(), thread.getValue()));
+    }
+    for (Span span : spans) {
+      JSONObject event = new JSONObject();
+      event.put("name", span.name);
+      event.put("cat", span.category);
+      event.put("ph", "X");
+      event.put("ts", toMicros(span.startNanos - startNanos));
+      event.put("dur", toMicros(span.durationNanos));
+      event.put("pid", 1);
+      event.put("tid", span.threadId);
+      JSONObject args = new JSONObject();
+      if (span.args != null) {
+        for (Map.Entry<String, Object> arg : span.args.entrySet()) {
+          args.put(arg.getKey(), arg.getValue());
+        }
+      }
+      if (span.bytesRead > 0) {
+        args.put("bytesRead", span.bytesRead);
+      }
+      if (span.bytesWritten > 0) {
+        args.put("bytesWritten", span.bytesWritten);
+      }
+      if (args.length() > 0) {
+        event.put("args", args);
+      }
+      events.put(event);
+    }
+    JSONObject json = new JSONObject();
+    json.put("traceEvents", events);
+    json.put("displayTimeUnit", "ms");
+    json.put("otherData", new JSONObject().put("buildId", buildId).put("startTime",
+        new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ")
+            .format(new Date(startMillis))));
+    return json.toString();
+  }
+
+  private static JSONObject metadata(String name, long threadId, String value)
+      throws JSONException {
+    return new JSONObject().put("name", name).put("ph", "M").put("pid", 1)
+        .put("tid", threadId).put("args", new JSONObject().put("name", value));
+  }
+
+  private static Histogram getHistogram(String category, String name) {
+    String key = category + "-" + name;
+    Histogram histogram = histograms.get(key);
+    if (histogram == null) {
+      Histogram newHistogram = new Histogram();
+      histogram = histograms.putIfAbsent(key, newHistogram);
+      if (histogram == null) {
+        histogram = newHistogram;
+      }
+    }
+    return histogram;
+  }
+
+  /**
+   * Adds the count, total, percentiles and bytes read and written of every kind of span to
+   * the given map of server variables.
+   */
+  static void addVariables(Map<String, String> variables) {
+    for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(histograms)
+        .entrySet()) {
+      entry.getValue().addVariables("trace-" + entry.getKey() + "-", variables);
+    }
+  }
+
+  /**
+   * Returns a short name for the program a command runs: the jar or main class run by
+   * {@code java}, otherwise the executable's file name.
+   */
+  static String processName(String[] command) {
+    String program = new File(command[0]).getName();
+    if (!program.equals("java") && !program.equals("java.exe")) {
+      return program;
+    }
+    for (int i = 1; i < command.length; i++) {
+      String arg = command[i];
+      if (arg.equals("-jar") && i + 1 < command.length) {
+        return new File(command[i + 1]).getName();
+      } else if (arg.equals("-cp") || arg.equals("-classpath")) {
+        i++;
+      } else if (!arg.startsWith("-")) {
+        return arg;
+      }
+    }
+    return program;
+  }
+
+  private static long toMillis(long nanos) {
+    return nanos / 1000000;
+  }
+
+  private static long toMicros(long nanos) {
+    return nanos / 1000;
+  }
+}
@@ -10,11 +10,16 @@ import com.google.appinventor.buildserver.util.AARLibraries;
 import com.google.appinventor.buildserver.util.AARLibrary;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.android.ide.common.internal.AaptCruncher;
 import com.android.ide.common.internal.PngCruncher;
 import com.android.sdklib.build.ApkBuilder;
@@ -37,6 +42,7 @@ import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -45,8 +51,16 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -73,9 +87,6 @@ public final class Compiler {
 
   public static int currentProgress = 10;
 
-  // Kawa and DX processes can use a lot of memory. We only launch one Kawa or DX process at a time.
-  private static final Object SYNC_KAWA_OR_DX = new Object();
-
   private static final String SLASH = File.separator;
   private static final String COLON = File.pathSeparator;
   private static final String ZIPSLASH = "/";
@@ -154,8 +165,6 @@ public final class Compiler {
       RUNTIME_FILES_DIR + "support-v4.jar",
       RUNTIME_FILES_DIR + "support-vector-drawable.jar"
   };
-  private static final String COMP_BUILD_INFO =
-      RUNTIME_FILES_DIR + "simple_components_build_info.json";
   private static final String DX_JAR =
       RUNTIME_FILES_DIR + "dx.jar";
   private static final String KAWA_RUNTIME =
@@ -176,8 +185,13 @@ public final class Compiler {
   private static final String WINDOWS_ZIPALIGN_TOOL =
       "/tools/windows/zipalign";
 
+  // Name of the unsigned apk in the build's tmp directory, when it is kept separately.
+  static final String UNSIGNED_APK_NAME = "unsigned.apk";
+
   @VisibleForTesting
   static final String YAIL_RUNTIME = RUNTIME_FILES_DIR + "runtime.scm";
+  // Where Kawa puts the classes compiled from runtime.scm, relative to the classes directory.
+  private static final String YAIL_RUNTIME_PACKAGE_PATH = "com/google/youngandroid";
 
   private final ConcurrentMap<String, Set<String>> assetsNeeded =
       new ConcurrentHashMap<String, Set<String>>();
@@ -231,6 +245,33 @@ public final class Compiler {
   private static final ConcurrentMap<String, File> resources =
       new ConcurrentHashMap<String, File>();
 
+  // Directory the resources are extracted to, or null for temporary files. Guarded by the
+  // class lock.
+  private static File resourceDir = null;
+
+  /**
+   * Class path of the warm Kawa processes. Computed once, see getKawaBaseClasspath().
+   */
+  private static String kawaBaseClasspath;
+
+  /**
+   * Runs the stages of builds that start while an earlier stage is still running. Idle
+   * threads are let go after a minute.
+   */
+  private static final ExecutorService stageExecutor = Executors.newCachedThreadPool(
+      new ThreadFactory() {
+        private final AtomicInteger threadCount = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "build-stage-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private static volatile boolean parallelStages = true;
+
   // TODO(user,lizlooney): i18n here and in lines below that call String.format(...)
   private static final String COMPILATION_ERROR =
       "Error: Your build failed due to an error when compiling %s.\n";
@@ -241,6 +282,8 @@ public final class Compiler {
       "Error: Your build failed because %s cannot be used as the application icon.\n";
   private static final String NO_USER_CODE_ERROR =
       "Error: No user code exists.\n";
+  private static final String PRIMARY_DEX_ERROR =
+      "Error: Your build failed because your program has too many methods or fields: %s.\n";
 
   private final int childProcessRamMb;  // Maximum ram that can be used by a child processes, in MB.
   private final boolean isForCompanion;
@@ -251,10 +294,11 @@ public final class Compiler {
 
   private File libsDir; // The directory that will contain any native libraries for packaging
   private String dexCacheDir;
-  private boolean hasSecondDex = false; // True if classes2.dex should be added to the APK
+  private int dexFileCount = 1; // Number of classesN.dex files to add to the APK
+  // Stages running on other threads, see startStage().
+  private final List<Future<Boolean>> startedStages = new ArrayList<Future<Boolean>>();
 
-  private JSONArray simpleCompsBuildInfo;
-  private JSONArray extCompsBuildInfo;
+  private ComponentIndex componentIndex;  // built-in components and the project's extensions
   private Set<String> simpleCompTypes;  // types needed by the project
   private Set<String> extCompTypes; // types needed by the project
 
@@ -462,7 +506,8 @@ public final class Compiler {
     }
   }
 
-  private void generateMinSdks() {
+  @VisibleForTesting
+  void generateMinSdks() {
     try {
       loadJsonInfo(minSdksNeeded, ANDROIDMINSDK_TARGET);
     } catch (IOException|JSONException e) {
@@ -558,7 +603,8 @@ public final class Compiler {
   /**
    * Create the default color and styling for the app.
    */
-  private boolean createValuesXml(File valuesDir, String suffix) {
+  @VisibleForTesting
+  boolean createValuesXml(File valuesDir, String suffix) {
     String colorPrimary = project.getPrimaryColor() == null ? "#A5CF47" : project.getPrimaryColor();
     String colorPrimaryDark = project.getPrimaryColorDark() == null ? "#41521C" : project.getPrimaryColorDark();
     String colorAccent = project.getAccentColor() == null ? "#00728A" : project.getAccentColor();
@@ -662,7 +708,8 @@ public final class Compiler {
   /*
    * Creates an AndroidManifest.xml file needed for the Android application.
    */
-  private boolean writeAndroidManifest(File manifestFile) {
+  @VisibleForTesting
+  boolean writeAndroidManifest(File manifestFile) {
     // Create AndroidManifest.xml
     String mainClass = project.getMainClass();
     String packageName = Signatures.getPackageName(mainClass);
@@ -924,8 +971,8 @@ public final class Compiler {
     long start = System.currentTimeMillis();
 
     // Create a new compiler instance for the compilation
-    Compiler compiler = new Compiler(project, compTypes, out, err, userErrors, isForCompanion,
-                                     childProcessRam, dexCacheDir, reporter);
+    final Compiler compiler = new Compiler(project, compTypes, out, err, userErrors, isForCompanion,
+                                           childProcessRam, dexCacheDir, reporter);
 
     compiler.generateAssets();
     compiler.generateActivities();
@@ -945,7 +992,7 @@ public final class Compiler {
     File buildDir = createDir(project.getBuildDirectory());
 
     // Prepare application icon.
-    out.println("________Preparing application icon");
+    compiler.beginStage("icon", "Preparing application icon");
     File resDir = createDir(buildDir, "res");
     File drawableDir = createDir(resDir, "drawable");
     if (!compiler.prepareApplicationIcon(new File(drawableDir, "ya.png"))) {
@@ -956,14 +1003,14 @@ public final class Compiler {
     }                             // Static context
 
     // Create anim directory and animation xml files
-    out.println("________Creating animation xml");
+    compiler.beginStage("animation-xml", "Creating animation xml");
     File animDir = createDir(resDir, "anim");
     if (!compiler.createAnimationXml(animDir)) {
       return false;
     }
 
     // Create values directory and style xml files
-    out.println("________Creating style xml");
+    compiler.beginStage("style-xml", "Creating style xml");
     File styleDir = createDir(resDir, "values");
     File style11Dir = createDir(resDir, "values-v11");
     File style14Dir = createDir(resDir, "values-v14");
@@ -975,14 +1022,14 @@ public final class Compiler {
       return false;
     }
 
-    out.println("________Creating provider_path xml");
+    compiler.beginStage("provider-xml", "Creating provider_path xml");
     File providerDir = createDir(resDir, "xml");
     if (!compiler.createProviderXml(providerDir)) {
       return false;
     }
 
     // Generate AndroidManifest.xml
-    out.println("________Generating manifest file");
+    compiler.beginStage("manifest", "Generating manifest file");
     File manifestFile = new File(buildDir, "AndroidManifest.xml");
     if (!compiler.writeAndroidManifest(manifestFile)) {
       return false;
@@ -992,107 +1039,292 @@ public final class Compiler {
     }
 
     // Insert native libraries
-    out.println("________Attaching native libraries");
+    compiler.beginStage("native-libraries", "Attaching native libraries");
     if (!compiler.insertNativeLibs(buildDir)) {
       return false;
     }
 
     // Attach Android AAR Library dependencies
-    out.println("________Attaching Android Archive (AAR) libraries");
+    compiler.beginStage("aar-libraries", "Attaching Android Archive (AAR) libraries");
     if (!compiler.attachAarLibraries(buildDir)) {
       return false;
     }
 
     // Add raw assets to sub-directory of project assets.
-    out.println("________Attaching component assets");
+    compiler.beginStage("assets", "Attaching component assets");
     if (!compiler.attachCompAssets()) {
       return false;
     }
 
-    // Invoke aapt to package everything up
-    out.println("________Invoking AAPT");
-    File deployDir = createDir(buildDir, "deploy");
-    String tmpPackageName = deployDir.getAbsolutePath() + SLASH +
-        project.getProjectName() + ".ap_";
-    File srcJavaDir = createDir(buildDir, "generated/src");
-    File rJavaDir = createDir(buildDir, "generated/symbols");
-    if (!compiler.runAaptPackage(manifestFile, resDir, tmpPackageName, srcJavaDir, rJavaDir)) {
+    // Kawa only needs the libraries, and pre-dexing them only the set of libraries, so both
+    // run alongside AAPT. Every stage started here is waited for before returning, since the
+    // build directory is deleted afterwards.
+    if (!compiler.collectLibraries()) {
       return false;
     }
-    if (reporter != null) {
-      reporter.report(30);
-    }
+    final File classesDir = createDir(buildDir, "classes");
+    try {
+      Future<Boolean> kawa = compiler.startStage("kawa", "Compiling source files",
+          new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+              return compiler.generateClasses(classesDir);
+            }
+          });
+      Future<Boolean> preDex = compiler.startStage("pre-dex", "Pre-dexing libraries",
+          new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+              return compiler.preDexLibraries(classesDir);
+            }
+          });
+
+      // Invoke aapt to package everything up
+      compiler.beginStage("aapt", "Invoking AAPT");
+      File deployDir = createDir(buildDir, "deploy");
+      String tmpPackageName = deployDir.getAbsolutePath() + SLASH +
+          project.getProjectName() + ".ap_";
+      File srcJavaDir = createDir(buildDir, "generated/src");
+      File rJavaDir = createDir(buildDir, "generated/symbols");
+      StageScheduler.Permit aaptPermit = StageScheduler.acquire(StageScheduler.Stage.AAPT);
+      try {
+        if (!compiler.runAaptPackage(manifestFile, resDir, tmpPackageName, srcJavaDir,
+            rJavaDir)) {
+          return false;
+        }
+      } finally {
+        aaptPermit.release();
+      }
+      if (reporter != null) {
+        reporter.report(30);
+      }
 
-    // Create class files.
-    out.println("________Compiling source files");
-    File classesDir = createDir(buildDir, "classes");
-    if (!compiler.generateRClasses(classesDir)) {
-      return false;
-    }
-    if (!compiler.generateClasses(classesDir)) {
-      return false;
-    }
-    if (reporter != null) {
-      reporter.report(35);
-    }
-
-    // Invoke dx on class files
-    out.println("________Invoking DX");
-    // TODO(markf): Running DX is now pretty slow (~25 sec overhead the first time and ~15 sec
-    // overhead for subsequent runs).  I think it's because of the need to dx the entire
-    // kawa runtime every time.  We should probably only do that once and then copy all the
-    // kawa runtime dx files into the generated classes.dex (which would only contain the
-    // files compiled for this project).
-    // Aargh.  It turns out that there's no way to manipulate .dex files to do the above.  An
-    // Android guy suggested an alternate approach of shipping the kawa runtime .dex file as
-    // data with the application and then creating a new DexClassLoader using that .dex file
-    // and with the original app class loader as the parent of the new one.
-    // TODONE(zhuowei): Now using the new Android DX tool to merge dex files
-    // Needs to specify a writable cache dir on the command line that persists after shutdown
-    // Each pre-dexed file is identified via its MD5 hash (since the standard Android SDK's
-    // method of identifying via a hash of the path won't work when files
-    // are copied into temporary storage) and processed via a hacked up version of
-    // Android SDK's Dex Ant task
-    File tmpDir = createDir(buildDir, "tmp");
-    String dexedClassesDir = tmpDir.getAbsolutePath();
-    if (!compiler.runDx(classesDir, dexedClassesDir, false)) {
-      return false;
+      // Create class files.
+      compiler.beginStage("r-classes", "Compiling R classes");
+      if (!compiler.generateRClasses(classesDir)) {
+        return false;
+      }
+      if (!compiler.awaitStage(kawa, "Compile")) {
+        return false;
+      }
+      if (reporter != null) {
+        reporter.report(35);
+      }
+
+      // Invoke dx on class files
+      compiler.beginStage("dx", "Invoking DX");
+      // TODO(markf): Running DX is now pretty slow (~25 sec overhead the first time and ~15 sec
+      // overhead for subsequent runs).  I think it's because of the need to dx the entire
+      // kawa runtime every time.  We should probably only do that once and then copy all the
+      // kawa runtime dx files into the generated classes.dex (which would only contain the
+      // files compiled for this project).
+      // Aargh.  It turns out that there's no way to manipulate .dex files to do the above.  An
+      // Android guy suggested an alternate approach of shipping the kawa runtime .dex file as
+      // data with the application and then creating a new DexClassLoader using that .dex file
+      // and with the original app class loader as the parent of the new one.
+      // TODONE(zhuowei): Now using the new Android DX tool to merge dex files
+      // Needs to specify a writable cache dir on the command line that persists after shutdown
+      // Each pre-dexed file is identified via its MD5 hash (since the standard Android SDK's
+      // method of identifying via a hash of the path won't work when files
+      // are copied into temporary storage) and processed via a hacked up version of
+      // Android SDK's Dex Ant task
+      if (!compiler.awaitStage(preDex, "DX")) {
+        return false;
+      }
+      File tmpDir = createDir(buildDir, "tmp");
+      String dexedClassesDir = tmpDir.getAbsolutePath();
+      if (!compiler.runDx(classesDir, dexedClassesDir)) {
+        return false;
+      }
+      if (reporter != null) {
+        reporter.report(85);
+      }
+
+      // Seal the apk with ApkBuilder
+      compiler.beginStage("apkbuilder", "Invoking ApkBuilder");
+      String apkAbsolutePath = deployDir.getAbsolutePath() + SLASH +
+          project.getProjectName() + ".apk";
+      // When signing in-process, the unsigned apk is written to tmpDir and the signed and
+      // aligned apk is written from it in a single pass. The unsigned companion is kept there
+      // for the build cache, see signPrebuilt().
+      String unsignedApkPath = ApkSigner.isEnabled() || compiler.isForCompanion
+          ? tmpDir.getAbsolutePath() + SLASH + UNSIGNED_APK_NAME
+          : apkAbsolutePath;
+      if (!compiler.runApkBuilder(unsignedApkPath, tmpPackageName, dexedClassesDir)) {
+        return false;
+      }
+      if (reporter != null) {
+        reporter.report(95);
+      }
+
+      if (!compiler.signApk(unsignedApkPath, keystoreFilePath, apkAbsolutePath, tmpDir)) {
+        return false;
+      }
+    } finally {
+      compiler.awaitStartedStages();
     }
+
     if (reporter != null) {
-      reporter.report(85);
+      reporter.report(100);
     }
 
-    // Seal the apk with ApkBuilder
-    out.println("________Invoking ApkBuilder");
+    out.println("Build finished in " +
+        ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
+
+    return true;
+  }
+
+  /**
+   * Builds a companion project from the unsigned apk of an earlier build of the same project,
+   * which only leaves signing and aligning it with the given keystore.
+   *
+   * @param project  project to build
+   * @param compTypes component types used in the project
+   * @param out  stdout stream for compiler messages
+   * @param err  stderr stream for compiler messages
+   * @param userErrors stream to write user-visible error messages
+   * @param unsignedApk the unsigned apk, which is not changed
+   * @param keystoreFilePath path of the keystore the apk is signed with
+   * @param reporter reports build progress
+   * @return  {@code true} if the apk was signed, {@code false} otherwise
+   */
+  public static boolean signPrebuilt(Project project, Set<String> compTypes,
+                                     PrintStream out, PrintStream err, PrintStream userErrors,
+                                     File unsignedApk, String keystoreFilePath,
+                                     BuildServer.ProgressReporter reporter) {
+    long start = System.currentTimeMillis();
+    Compiler compiler = new Compiler(project, compTypes, out, err, userErrors, true, 0, null,
+                                     reporter);
+    File buildDir = createDir(project.getBuildDirectory());
+    File deployDir = createDir(buildDir, "deploy");
+    File tmpDir = createDir(buildDir, "tmp");
     String apkAbsolutePath = deployDir.getAbsolutePath() + SLASH +
         project.getProjectName() + ".apk";
-    if (!compiler.runApkBuilder(apkAbsolutePath, tmpPackageName, dexedClassesDir)) {
+    out.println("Using prebuilt companion");
+    if (!compiler.signApk(unsignedApk.getAbsolutePath(), keystoreFilePath, apkAbsolutePath,
+        tmpDir)) {
       return false;
     }
     if (reporter != null) {
-      reporter.report(95);
+      reporter.report(100);
     }
+    out.println("Build finished in " +
+        ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
+    return true;
+  }
 
-    // Sign the apk file
-    out.println("________Signing the apk file");
-    if (!compiler.runJarSigner(apkAbsolutePath, keystoreFilePath)) {
-      return false;
+  /*
+   * Signs and aligns the apk, in-process if enabled, otherwise with jarsigner and zipalign. If
+   * unsignedApkPath is not apkAbsolutePath, the unsigned apk is left unchanged.
+   */
+  private boolean signApk(String unsignedApkPath, String keystoreFilePath,
+      String apkAbsolutePath, File tmpDir) {
+    StageScheduler.Permit signPermit = StageScheduler.acquire(StageScheduler.Stage.SIGN);
+    try {
+      if (!unsignedApkPath.equals(apkAbsolutePath)) {
+        if (ApkSigner.isEnabled()) {
+          beginStage("sign-and-align", "Signing and aligning the apk file");
+          if (runApkSigner(unsignedApkPath, keystoreFilePath, apkAbsolutePath)) {
+            return true;
+          }
+        }
+        // jarsigner and zipalign work in place, on a copy.
+        if (!copyApk(unsignedApkPath, apkAbsolutePath)) {
+          return false;
+        }
+      }
+
+      // Sign the apk file
+      beginStage("sign", "Signing the apk file");
+      if (!runJarSigner(apkAbsolutePath, keystoreFilePath)) {
+        return false;
+      }
+
+      // ZipAlign the apk file
+      beginStage("zipalign", "ZipAligning the apk file");
+      return runZipAlign(apkAbsolutePath, tmpDir);
+    } finally {
+      signPermit.release();
     }
+  }
 
-    // ZipAlign the apk file
-    out.println("________ZipAligning the apk file");
-    if (!compiler.runZipAlign(apkAbsolutePath, tmpDir)) {
-      return false;
+  /**
+   * Sets whether independent stages of a build, such as Kawa and AAPT, run at the same time.
+   */
+  static void setParallelStages(boolean enabled) {
+    parallelStages = enabled;
+  }
+
+  /*
+   * Starts a stage that later stages wait for with awaitStage. It runs on another thread,
+   * unless parallel stages are disabled, in which case it runs before this method returns.
+   */
+  @VisibleForTesting
+  Future<Boolean> startStage(final String name, final String description,
+      final Callable<Boolean> stage) {
+    final BuildTrace trace = BuildTrace.current();
+    FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        BuildTrace previous = BuildTrace.attach(trace);
+        try {
+          beginStage(name, description);
+          return stage.call();
+        } finally {
+          BuildTrace.endStage();
+          BuildTrace.attach(previous);
+        }
+      }
+    });
+    if (parallelStages) {
+      startedStages.add(task);
+      stageExecutor.execute(task);
+    } else {
+      task.run();
     }
+    return task;
+  }
 
-    if (reporter != null) {
-      reporter.report(100);
+  /*
+   * Waits for a stage started by startStage and returns whether it succeeded.
+   */
+  @VisibleForTesting
+  boolean awaitStage(Future<Boolean> stage, String stageName) {
+    long waitStart = System.nanoTime();
+    try {
+      return stage.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException e) {
+      e.getCause().printStackTrace();
+      userErrors.print(String.format(ERROR_IN_STAGE, stageName));
+      return false;
+    } finally {
+      BuildTrace.record("stage-" + stageName.toLowerCase(), BuildTrace.WAIT, waitStart);
     }
+  }
 
-    out.println("Build finished in " +
-        ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
+  /*
+   * Waits for every stage started by startStage to finish, whether or not it succeeded.
+   */
+  @VisibleForTesting
+  void awaitStartedStages() {
+    for (Future<Boolean> stage : startedStages) {
+      try {
+        Uninterruptibles.getUninterruptibly(stage);
+      } catch (ExecutionException e) {
+        // Already reported, or of no consequence because the build failed earlier.
+      }
+    }
+  }
 
-    return true;
+  /*
+   * Announces the next stage of the build and starts tracing it.
+   */
+  private void beginStage(String name, String description) {
+    out.println("________" + description);
+    BuildTrace.stage(name);
   }
 
   /*
@@ -1152,14 +1384,16 @@ public final class Compiler {
       ApkBuilder apkBuilder =
           new ApkBuilder(apkAbsolutePath, zipArchive,
             dexedClassesDir + File.separator + "classes.dex", null, System.out);
-      if (hasSecondDex) {
-        apkBuilder.addFile(new File(dexedClassesDir + File.separator + "classes2.dex"),
-          "classes2.dex");
+      for (int i = 2; i <= dexFileCount; i++) {
+        String dexFileName = "classes" + i + ".dex";
+        apkBuilder.addFile(new File(dexedClassesDir + File.separator + dexFileName),
+          dexFileName);
       }
       if (nativeLibsNeeded.size() != 0) { // Need to add native libraries...
         apkBuilder.addNativeLibraries(libsDir);
       }
       apkBuilder.sealApk();
+      BuildTrace.currentStage().addBytesWritten(new File(apkAbsolutePath).length());
       return true;
     } catch (Exception e) {
       // This is fatal.
@@ -1200,14 +1434,53 @@ public final class Compiler {
 
   }
 
+  /*
+   * Collects the libraries used by the project into uniqueLibsNeeded, which generateClasses and
+   * runDx read. Each library appears in the set only once (which is why it is a set!). This is
+   * important because when we Dex the libraries, a given library can only appear once.
+   *
+   * The set is complete once the AAR libraries are attached, and must not change afterwards
+   * because Kawa and pre-dexing read it from other threads.
+   */
+  private boolean collectLibraries() {
+    for (String type : libsNeeded.keySet()) {
+      for (String lib : libsNeeded.get(type)) {
+        String sourcePath = getLibraryPath(type, lib);
+        if (sourcePath == null) {
+          userErrors.print(String.format(ERROR_IN_STAGE, "Compile"));
+          return false;
+        }
+        uniqueLibsNeeded.add(sourcePath);
+      }
+    }
+
+    // Add dependencies for classes.jar in any AAR libraries
+    for (File classesJar : explodedAarLibs.getClasses()) {
+      if (classesJar != null) {  // true for optimized AARs in App Inventor libs
+        uniqueLibsNeeded.add(classesJar.getAbsolutePath());
+      }
+    }
+    return true;
+  }
+
+  /*
+   * Returns the path of a library of the given component type, or null if the type is unknown.
+   */
+  private String getLibraryPath(String type, String lib) {
+    String pathSuffix = RUNTIME_FILES_DIR + lib;
+    if (simpleCompTypes.contains(type)) {
+      return getResource(pathSuffix);
+    } else if (extCompTypes.contains(type)) {
+      return getExtCompDirPath(type) + pathSuffix;
+    }
+    return null;
+  }
+
   /*
    * Runs the Kawa compiler in a separate process to generate classes. Returns false if not able to
    * create a class file for every source file in the project.
    *
-   * As a side effect, we generate uniqueLibsNeeded which contains a set of libraries used by
-   * runDx. Each library appears in the set only once (which is why it is a set!). This is
-   * important because when we Dex the libraries, a given library can only appear once.
-   *
+   * The libraries must have been collected by collectLibraries.
    */
   private boolean generateClasses(File classesDir) {
     try {
@@ -1264,32 +1537,24 @@ public final class Compiler {
 
       // attach the jars of external comps
       Set<String> addedExtJars = new HashSet<String>();
+      List<String> extClasspath = Lists.newArrayList();
       for (String type : extCompTypes) {
         String sourcePath = getExtCompDirPath(type) + SIMPLE_ANDROID_RUNTIME_JAR;
         if (!addedExtJars.contains(sourcePath)) {  // don't add multiple copies for bundled extensions
           classpath.append(sourcePath);
           classpath.append(COLON);
           addedExtJars.add(sourcePath);
+          extClasspath.add(sourcePath);
         }
       }
 
       // Add component library names to classpath
       for (String type : libsNeeded.keySet()) {
         for (String lib : libsNeeded.get(type)) {
-          String sourcePath = "";
-          String pathSuffix = RUNTIME_FILES_DIR + lib;
-
-          if (simpleCompTypes.contains(type)) {
-            sourcePath = getResource(pathSuffix);
-          } else if (extCompTypes.contains(type)) {
-            sourcePath = getExtCompDirPath(type) + pathSuffix;
-          } else {
-            userErrors.print(String.format(ERROR_IN_STAGE, "Compile"));
-            return false;
+          String sourcePath = getLibraryPath(type, lib);
+          if (extCompTypes.contains(type)) {
+            extClasspath.add(sourcePath);
           }
-
-          uniqueLibsNeeded.add(sourcePath);
-
           classpath.append(sourcePath);
           classpath.append(COLON);
         }
@@ -1298,9 +1563,7 @@ public final class Compiler {
       // Add dependencies for classes.jar in any AAR libraries
       for (File classesJar : explodedAarLibs.getClasses()) {
         if (classesJar != null) {  // true for optimized AARs in App Inventor libs
-          final String abspath = classesJar.getAbsolutePath();
-          uniqueLibsNeeded.add(abspath);
-          classpath.append(abspath);
+          classpath.append(classesJar.getAbsolutePath());
           classpath.append(COLON);
         }
       }
@@ -1314,46 +1577,44 @@ public final class Compiler {
       System.out.println("Libraries Classpath = " + classpath);
 
       String yailRuntime = getResource(YAIL_RUNTIME);
-      List<String> kawaCommandArgs = Lists.newArrayList();
-      int mx = childProcessRamMb - 200;
-      Collections.addAll(kawaCommandArgs,
-          System.getProperty("java.home") + "/bin/java",
-          "-Dfile.encoding=UTF-8",
-          "-mx" + mx + "M",
-          "-cp", classpath.toString(),
-          "kawa.repl",
-          "-f", yailRuntime,
-          "-d", classesDir.getAbsolutePath(),
-          "-P", Signatures.getPackageName(project.getMainClass()) + ".",
-          "-C");
-      // TODO(lizlooney) - we are currently using (and have always used) absolute paths for the
-      // source file names. The resulting .class files contain references to the source file names,
-      // including the name of the tmp directory that contains them. We may be able to avoid that
-      // by using source file names that are relative to the project root and using the project
-      // root as the working directory for the Kawa compiler process.
-      kawaCommandArgs.addAll(sourceFileNames);
-      kawaCommandArgs.add(yailRuntime);
-      String[] kawaCommandLine = kawaCommandArgs.toArray(new String[kawaCommandArgs.size()]);
-
-      long start = System.currentTimeMillis();
-      // Capture Kawa compiler stderr. The ODE server parses out the warnings and errors and adds
-      // them to the protocol buffer for logging purposes. (See
-      // buildserver/ProjectBuilder.processCompilerOutout.
-      ByteArrayOutputStream kawaOutputStream = new ByteArrayOutputStream();
-      boolean kawaSuccess;
-      synchronized (SYNC_KAWA_OR_DX) {
-        kawaSuccess = Execution.execute(null, kawaCommandLine,
-            System.out, new PrintStream(kawaOutputStream));
+
+      // Restore the classes of unchanged sources from the build cache, and compile only the
+      // remaining ones.
+      BuildCache cache = BuildCache.getInstance();
+      Map<String, String> cacheKeys = Maps.newHashMap();
+      List<String> kawaSources = Lists.newArrayList();
+      if (cache != null) {
+        String context = getClassCacheContext(extClasspath);
+        for (String sourceFileName : sourceFileNames) {
+          String key = BuildCache.hashSource(new File(sourceFileName), context);
+          if (!cache.restoreClasses(key, classesDir)) {
+            cacheKeys.put(sourceFileName, key);
+            kawaSources.add(sourceFileName);
+          }
+        }
+        String key = BuildCache.hashSource(new File(yailRuntime), context);
+        if (!cache.restoreClasses(key, classesDir)) {
+          cacheKeys.put(yailRuntime, key);
+          kawaSources.add(yailRuntime);
+        }
+        int cached = sourceFileNames.size() + 1 - kawaSources.size();
+        if (cached > 0) {
+          out.println("Using cached classes for " + cached + " of " +
+              (sourceFileNames.size() + 1) + " sources");
+        }
+      } else {
+        kawaSources.addAll(sourceFileNames);
+        kawaSources.add(yailRuntime);
       }
-      if (!kawaSuccess) {
-        LOG.log(Level.SEVERE, "Kawa compile has failed.");
+
+      boolean kawaSuccess = kawaSources.isEmpty()
+          || runKawa(classpath.toString(), yailRuntime, kawaSources, classesDir);
+      if (cache != null && kawaSuccess) {
+        for (String sourceFileName : cacheKeys.keySet()) {
+          cache.putClasses(cacheKeys.get(sourceFileName), classesDir,
+              findClassFiles(sourceFileName, yailRuntime, classesDir));
+        }
       }
-      String kawaOutput = kawaOutputStream.toString();
-      out.print(kawaOutput);
-      String kawaCompileTimeMessage = "Kawa compile time: " +
-          ((System.currentTimeMillis() - start) / 1000.0) + " seconds";
-      out.println(kawaCompileTimeMessage);
-      LOG.info(kawaCompileTimeMessage);
 
       // Check that all of the class files were created.
       // If they weren't, return with an error.
@@ -1376,6 +1637,236 @@ public final class Compiler {
     return true;
   }
 
+  /*
+   * Runs Kawa on the given sources, which may include the YAIL runtime. Returns whether Kawa
+   * reported success; a failed screen is detected later from its missing class file.
+   */
+  private boolean runKawa(String classpath, String yailRuntime, List<String> kawaSources,
+      File classesDir) {
+    List<String> kawaCommandArgs = Lists.newArrayList();
+    int mx = childProcessRamMb - 200;
+    Collections.addAll(kawaCommandArgs,
+        System.getProperty("java.home") + "/bin/java",
+        "-Dfile.encoding=UTF-8",
+        "-mx" + mx + "M",
+        "-cp", classpath,
+        "kawa.repl",
+        "-f", yailRuntime,
+        "-d", classesDir.getAbsolutePath(),
+        "-P", Signatures.getPackageName(project.getMainClass()) + ".",
+        "-C");
+    // TODO(lizlooney) - we are currently using (and have always used) absolute paths for the
+    // source file names. The resulting .class files contain references to the source file names,
+    // including the name of the tmp directory that contains them. We may be able to avoid that
+    // by using source file names that are relative to the project root and using the project
+    // root as the working directory for the Kawa compiler process.
+    kawaCommandArgs.addAll(kawaSources);
+    String[] kawaCommandLine = kawaCommandArgs.toArray(new String[kawaCommandArgs.size()]);
+
+    long start = System.currentTimeMillis();
+    // Capture Kawa compiler stderr. The ODE server parses out the warnings and errors and adds
+    // them to the protocol buffer for logging purposes. (See
+    // buildserver/ProjectBuilder.processCompilerOutout.
+    ByteArrayOutputStream kawaOutputStream = new ByteArrayOutputStream();
+    boolean kawaSuccess;
+    // The memory of the warm Kawa processes is accounted for when the daemon starts.
+    StageScheduler.Permit kawaPermit = StageScheduler.acquire(StageScheduler.Stage.KAWA,
+        !canUseKawaDaemon());
+    try {
+      if (canUseKawaDaemon()) {
+        kawaSuccess = runKawaDaemon(classpath, yailRuntime, kawaSources, classesDir,
+            kawaOutputStream);
+      } else {
+        kawaSuccess = Execution.execute(null, kawaCommandLine,
+            System.out, new PrintStream(kawaOutputStream));
+      }
+    } finally {
+      kawaPermit.release();
+    }
+    if (!kawaSuccess) {
+      LOG.log(Level.SEVERE, "Kawa compile has failed.");
+    }
+    String kawaOutput = kawaOutputStream.toString();
+    out.print(kawaOutput);
+    String kawaCompileTimeMessage = "Kawa compile time: " +
+        ((System.currentTimeMillis() - start) / 1000.0) + " seconds";
+    out.println(kawaCompileTimeMessage);
+    LOG.info(kawaCompileTimeMessage);
+    return kawaSuccess;
+  }
+
+  /*
+   * Returns the part of the build cache key shared by all sources of this project: the
+   * package the classes are compiled into and the contents of the extension libraries on
+   * the class path. Built-in libraries are covered by the build server version.
+   */
+  private String getClassCacheContext(List<String> extClasspath) throws IOException {
+    StringBuilder context = new StringBuilder(
+        Signatures.getPackageName(project.getMainClass()));
+    for (String path : extClasspath) {
+      context.append(COLON).append(Files.hash(new File(path), Hashing.sha1()));
+    }
+    return context.toString();
+  }
+
+  /*
+   * Returns the class files Kawa produced for the given source: the screen class and its
+   * inner classes, or all classes of the YAIL runtime package.
+   */
+  private List<File> findClassFiles(String sourceFileName, String yailRuntime,
+      File classesDir) {
+    List<File> classFiles = Lists.newArrayList();
+    if (sourceFileName.equals(yailRuntime)) {
+      File[] files = new File(classesDir, YAIL_RUNTIME_PACKAGE_PATH).listFiles();
+      if (files != null) {
+        Collections.addAll(classFiles, files);
+      }
+      return classFiles;
+    }
+    String sourceName = new File(sourceFileName).getName();
+    String className = sourceName.substring(0,
+        sourceName.length() - YoungAndroidConstants.YAIL_EXTENSION.length());
+    File packageDir = new File(classesDir,
+        Signatures.getPackageName(project.getMainClass()).replace('.', File.separatorChar));
+    File[] files = packageDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        if (name.equals(className + ".class") || name.startsWith(className + "$")) {
+          classFiles.add(file);
+        }
+      }
+    }
+    return classFiles;
+  }
+
+  /*
+   * Extension classes are kept out of the warm Kawa processes because Kawa caches class
+   * metadata for the lifetime of the process, and extensions with the same class name may
+   * differ from one project to the next.
+   */
+  private boolean canUseKawaDaemon() {
+    return KawaCompilerDaemon.isEnabled() && extCompTypes.isEmpty();
+  }
+
+  /*
+   * Compiles the project with a warm Kawa process, falling back to a fresh process if
+   * no warm process could be started.
+   */
+  private boolean runKawaDaemon(String classpath, String yailRuntime,
+      List<String> kawaSources, File classesDir, ByteArrayOutputStream kawaOutputStream) {
+    String baseClasspath = getKawaBaseClasspath();
+    Set<String> baseEntries = Sets.newHashSet(baseClasspath.split(COLON));
+    List<String> extraClasspath = Lists.newArrayList();
+    for (String entry : classpath.split(COLON)) {
+      if (!entry.isEmpty() && !baseEntries.contains(entry)) {
+        extraClasspath.add(entry);
+      }
+    }
+
+    List<String> kawaArgs = Lists.newArrayList(
+        "-d", classesDir.getAbsolutePath(),
+        "-P", Signatures.getPackageName(project.getMainClass()) + ".",
+        "-C");
+    kawaArgs.addAll(kawaSources);
+    try {
+      return KawaCompilerDaemon.compile(baseClasspath, extraClasspath, yailRuntime,
+          childProcessRamMb, kawaArgs, System.out, new PrintStream(kawaOutputStream));
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Kawa worker unavailable, forking Kawa instead", e);
+      List<String> kawaCommandArgs = Lists.newArrayList(
+          System.getProperty("java.home") + "/bin/java",
+          "-Dfile.encoding=UTF-8",
+          "-mx" + (childProcessRamMb - 200) + "M",
+          "-cp", classpath,
+          "kawa.repl",
+          "-f", yailRuntime);
+      kawaCommandArgs.addAll(kawaArgs);
+      return Execution.execute(null,
+          kawaCommandArgs.toArray(new String[kawaCommandArgs.size()]),
+          System.out, new PrintStream(kawaOutputStream));
+    }
+  }
+
+  /*
+   * Returns the class path that warm Kawa processes are started with: the Kawa and App
+   * Inventor runtimes plus every library of a built-in component. Project specific entries
+   * are supplied per compilation.
+   */
+  private String getKawaBaseClasspath() {
+    long waitStart = System.nanoTime();
+    synchronized (Compiler.class) {
+      BuildTrace.record("kawa-classpath", BuildTrace.WAIT, waitStart);
+      if (kawaBaseClasspath != null) {
+        return kawaBaseClasspath;
+      }
+      Set<String> entries;
+      try {
+        entries = getBuiltInLibraries();
+      } catch (IOException | JSONException e) {
+        throw new IllegalStateException("Unable to read component build info", e);
+      }
+      entries.add(getResource(ANDROID_RUNTIME));
+      kawaBaseClasspath = Joiner.on(COLON).join(entries);
+      return kawaBaseClasspath;
+    }
+  }
+
+  /*
+   * Returns the paths of the jars that apps with built-in components may include: the Kawa
+   * and ACRA runtimes, AndroidRuntime.jar, the support libraries and every library other
+   * than AARs listed in the component build info.
+   */
+  private static Set<String> getBuiltInLibraries() throws IOException, JSONException {
+    Set<String> entries = Sets.newLinkedHashSet();
+    entries.add(getResource(KAWA_RUNTIME));
+    entries.add(getResource(ACRA_RUNTIME));
+    entries.add(getResource(SIMPLE_ANDROID_RUNTIME_JAR));
+    for (String jar : SUPPORT_JARS) {
+      entries.add(getResource(jar));
+    }
+    ComponentIndex index = ComponentIndex.getBuiltIn();
+    for (String type : index.getBuiltInTypes()) {
+      for (String lib : index.getBuildInfo(type, LIBRARIES_TARGET)) {
+        if (!lib.endsWith(".aar")) {
+          entries.add(getResource(RUNTIME_FILES_DIR + lib));
+        }
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Pre-dexes the libraries of all built-in components into the dex cache, so that the first
+   * builds after a deployment need not do so.
+   *
+   * @param dexCacheDir the dex cache directory
+   * @param childProcessRamMb maximum RAM for each dx process, in MBs
+   * @return true if all libraries were pre-dexed
+   */
+  static boolean warmUpDexCache(String dexCacheDir, int childProcessRamMb) {
+    long start = System.currentTimeMillis();
+    List<File> libraries = Lists.newArrayList();
+    try {
+      for (String library : getBuiltInLibraries()) {
+        libraries.add(new File(library));
+      }
+    } catch (IOException | JSONException e) {
+      LOG.log(Level.SEVERE, "Unable to read component build info", e);
+      return false;
+    }
+    createDir(new File(dexCacheDir));
+    DexExecTask dexTask = new DexExecTask();
+    dexTask.setExecutable(getResource(DX_JAR));
+    dexTask.setChildProcessRamMb(childProcessRamMb);
+    dexTask.setDexedLibs(dexCacheDir);
+    boolean success = dexTask.preDex(libraries);
+    LOG.info("Pre-dexed " + libraries.size() + " libraries in " +
+        ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
+    return success;
+  }
+
+
   private boolean runJarSigner(String apkAbsolutePath, String keystoreAbsolutePath) {
     // TODO(user): maybe make a command line flag for the jarsigner location
     String javaHome = System.getProperty("java.home");
@@ -1417,6 +1908,43 @@ public final class Compiler {
     return true;
   }
 
+  /*
+   * Signs and aligns the apk without running jarsigner and zipalign. Returns false if that
+   * failed, in which case the unsigned apk is left in place for those tools.
+   */
+  private boolean runApkSigner(String unsignedApkPath, String keystoreAbsolutePath,
+      String apkAbsolutePath) {
+    long startSigning = System.currentTimeMillis();
+    try {
+      ApkSigner.signAndAlign(new File(unsignedApkPath), new File(keystoreAbsolutePath),
+          new File(apkAbsolutePath));
+      BuildTrace.currentStage().addBytesRead(new File(unsignedApkPath).length())
+          .addBytesWritten(new File(apkAbsolutePath).length());
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "YAIL compiler - in-process signing failed, " +
+          "falling back to jarsigner and zipalign", e);
+      return false;
+    }
+    String signingTimeMessage = "Signing and ZIPALIGN time: " +
+        ((System.currentTimeMillis() - startSigning) / 1000.0) + " seconds";
+    out.println(signingTimeMessage);
+    LOG.info(signingTimeMessage);
+    return true;
+  }
+
+  private boolean copyApk(String srcPath, String dstPath) {
+    try {
+      Files.copy(new File(srcPath), new File(dstPath));
+    } catch (IOException e) {
+      e.printStackTrace();
+      LOG.warning("YAIL compiler - copying " + srcPath + " failed.");
+      err.println("YAIL compiler - copying " + srcPath + " failed.");
+      userErrors.print(String.format(ERROR_IN_STAGE, "JarSigner"));
+      return false;
+    }
+    return true;
+  }
+
   private boolean runZipAlign(String apkAbsolutePath, File tmpDir) {
     // TODO(user): add zipalign tool appinventor->lib->android->tools->linux and windows
     // Need to make sure assets directory exists otherwise zipalign will fail.
@@ -1501,33 +2029,24 @@ public final class Compiler {
     return true;
   }
 
-  private boolean runDx(File classesDir, String dexedClassesDir, boolean secondTry) {
-    List<File> libList = new ArrayList<File>();
-    List<File> inputList = new ArrayList<File>();
-    List<File> class2List = new ArrayList<File>();
-    inputList.add(classesDir); //this is a directory, and won't be cached into the dex cache
-    inputList.add(new File(getResource(SIMPLE_ANDROID_RUNTIME_JAR)));
-    inputList.add(new File(getResource(KAWA_RUNTIME)));
-    inputList.add(new File(getResource(ACRA_RUNTIME)));
+  /*
+   * Adds the inputs that must be in classes.dex, which Android loads before any other, to
+   * primaryList and the remaining libraries to libList.
+   */
+  private void getDexInputs(File classesDir, List<File> primaryList, List<File> libList) {
+    primaryList.add(classesDir); //this is a directory, and won't be cached into the dex cache
+    primaryList.add(new File(getResource(SIMPLE_ANDROID_RUNTIME_JAR)));
+    primaryList.add(new File(getResource(KAWA_RUNTIME)));
+    primaryList.add(new File(getResource(ACRA_RUNTIME)));
 
     for (String jar : SUPPORT_JARS) {
-      inputList.add(new File(getResource(jar)));
+      primaryList.add(new File(getResource(jar)));
     }
 
     for (String lib : uniqueLibsNeeded) {
       libList.add(new File(lib));
     }
 
-    // BEGIN DEBUG -- XXX --
-    // System.err.println("runDx -- libraries");
-    // for (File aFile : inputList) {
-    //   System.err.println(" inputList => " + aFile.getAbsolutePath());
-    // }
-    // for (File aFile : libList) {
-    //   System.err.println(" libList => " + aFile.getAbsolutePath());
-    // }
-    // END DEBUG -- XXX --
-
     // attach the jars of external comps to the libraries list
     Set<String> addedExtJars = new HashSet<String>();
     for (String type : extCompTypes) {
@@ -1537,31 +2056,11 @@ public final class Compiler {
         addedExtJars.add(sourcePath);
       }
     }
+  }
 
-    int offset = libList.size();
-    // Note: The choice of 12 libraries is arbitrary. We note that things
-    // worked to put all libraries into the first classes.dex file when we
-    // had 16 libraries and broke at 17. So this is a conservative number
-    // to try.
-    if (!secondTry) {           // First time through, try base + 12 libraries
-      if (offset > 12)
-        offset = 12;
-    } else {
-      offset = 0;               // Add NO libraries the second time through!
-    }
-    for (int i = 0; i < offset; i++) {
-      inputList.add(libList.get(i));
-    }
-
-    if (libList.size() - offset > 0) { // Any left over for classes2?
-      for (int i = offset; i < libList.size(); i++) {
-        class2List.add(libList.get(i));
-      }
-    }
-
+  private DexExecTask createDexTask() {
     DexExecTask dexTask = new DexExecTask();
     dexTask.setExecutable(getResource(DX_JAR));
-    dexTask.setOutput(dexedClassesDir + File.separator + "classes.dex");
     dexTask.setChildProcessRamMb(childProcessRamMb);
     if (dexCacheDir == null) {
       dexTask.setDisableDexMerger(true);
@@ -1569,31 +2068,80 @@ public final class Compiler {
       createDir(new File(dexCacheDir));
       dexTask.setDexedLibs(dexCacheDir);
     }
+    return dexTask;
+  }
+
+  /*
+   * Pre-dexes the libraries into the dex cache, if there is one. Only the set of libraries
+   * is needed, so this can run before the project's classes are compiled; runDx then finds
+   * the libraries in the cache.
+   */
+  private boolean preDexLibraries(File classesDir) {
+    if (dexCacheDir == null) {
+      return true;
+    }
+    List<File> inputs = new ArrayList<File>();
+    getDexInputs(classesDir, inputs, inputs);
+    return preDex(createDexTask(), inputs);
+  }
+
+  /*
+   * Pre-dexes the given inputs as one of the builds in the DX stage. The dx processes of
+   * the pre-dexing pool reserve their own memory, so the build reserves none while it waits
+   * for them.
+   */
+  private static boolean preDex(DexExecTask dexTask, List<File> inputs) {
+    StageScheduler.Permit dxPermit = StageScheduler.acquire(StageScheduler.Stage.DX, false);
+    try {
+      return dexTask.preDex(inputs);
+    } finally {
+      dxPermit.release();
+    }
+  }
+
+  private boolean runDx(File classesDir, String dexedClassesDir) {
+    // Inputs that must be in classes.dex, which Android loads before any other
+    List<File> primaryList = new ArrayList<File>();
+    List<File> libList = new ArrayList<File>();
+    getDexInputs(classesDir, primaryList, libList);
+    DexExecTask dexTask = createDexTask();
 
     long startDx = System.currentTimeMillis();
     // Using System.err and System.out on purpose. Don't want to pollute build messages with
     // tools output
-    boolean dxSuccess;
-    synchronized (SYNC_KAWA_OR_DX) {
-      setProgress(50);
-      dxSuccess = dexTask.execute(inputList);
-      if (dxSuccess && (class2List.size() > 0)) {
-        setProgress(60);
-        dexTask.setOutput(dexedClassesDir + File.separator + "classes2.dex");
-        inputList = new ArrayList<File>();
-        dxSuccess = dexTask.execute(class2List);
-        setProgress(75);
-        hasSecondDex = true;
-      } else if (!dxSuccess) {  // The initial dx blew out, try more conservative
-        LOG.info("DX execution failed, trying with fewer libraries.");
-        if (secondTry) {        // Already tried the more conservative approach!
-          LOG.warning("YAIL compiler - DX execution failed (secondTry!).");
-          err.println("YAIL compiler - DX execution failed.");
-          userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
-          return false;
-        } else {
-          return runDx(classesDir, dexedClassesDir, true);
+    boolean dxSuccess = true;
+    setProgress(50);
+    // Pre-dex first, so that the number of references of each library can be read from
+    // its pre-dexed version, then spread the libraries over as many dex files as needed.
+    List<File> allInputs = new ArrayList<File>(primaryList);
+    allInputs.addAll(libList);
+    if (!preDex(dexTask, allInputs)) {
+      dxSuccess = false;
+    } else {
+      StageScheduler.Permit dxPermit = StageScheduler.acquire(StageScheduler.Stage.DX);
+      try {
+        Map<File, MultiDexPacker.References> references = Maps.newHashMap();
+        for (File input : allInputs) {
+          references.put(input, MultiDexPacker.count(dexTask.getPreDexedFile(input)));
+        }
+        List<List<File>> dexInputs = MultiDexPacker.pack(primaryList, libList, references);
+        for (int i = 0; i < dexInputs.size() && dxSuccess; i++) {
+          String dexFileName = i == 0 ? "classes.dex" : "classes" + (i + 1) + ".dex";
+          dexTask.setOutput(dexedClassesDir + File.separator + dexFileName);
+          dxSuccess = dexTask.execute(dexInputs.get(i));
+          setProgress(50 + 25 * (i + 1) / dexInputs.size());
         }
+        dexFileCount = dexInputs.size();
+      } catch (MultiDexPacker.PrimaryDexOverflowException e) {
+        LOG.warning("YAIL compiler - " + e.getMessage());
+        err.println("YAIL compiler - " + e.getMessage());
+        userErrors.print(String.format(PRIMARY_DEX_ERROR, e.getMessage()));
+        return false;
+      } catch (IOException e) {
+        e.printStackTrace();
+        dxSuccess = false;
+      } finally {
+        dxPermit.release();
       }
     }
     if (!dxSuccess) {
@@ -1602,6 +2150,11 @@ public final class Compiler {
       userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
       return false;
     }
+    for (int i = 0; i < dexFileCount; i++) {
+      String dexFileName = i == 0 ? "classes.dex" : "classes" + (i + 1) + ".dex";
+      BuildTrace.currentStage().addBytesWritten(
+          new File(dexedClassesDir, dexFileName).length());
+    }
     String dxTimeMessage = "DX time: " +
         ((System.currentTimeMillis() - startDx) / 1000.0) + " seconds";
     out.println(dxTimeMessage);
@@ -1610,6 +2163,7 @@ public final class Compiler {
     return true;
   }
 
+
   private boolean runAaptPackage(File manifestFile, File resDir, String tmpPackageName, File sourceOutputDir, File symbolOutputDir) {
     // Need to make sure assets directory exists otherwise aapt will fail.
     final File mergedAssetsDir = createDir(project.getBuildDirectory(), ASSET_DIR_NAME);
@@ -1673,6 +2227,7 @@ public final class Compiler {
       userErrors.print(String.format(ERROR_IN_STAGE, "AAPT"));
       return false;
     }
+    BuildTrace.currentStage().addBytesWritten(new File(tmpPackageName).length());
     String aaptTimeMessage = "AAPT time: " +
         ((System.currentTimeMillis() - startAapt) / 1000.0) + " seconds";
     out.println(aaptTimeMessage);
@@ -1756,6 +2311,7 @@ public final class Compiler {
     final File genSrcDir = createDir(generatedDir, "src");
     explodedAarLibs = new AARLibraries(genSrcDir);
     final Set<String> processedLibs = new HashSet<>();
+    final BuildCache cache = BuildCache.getInstance();
 
     // walk components list for libraries ending in ".aar"
     try {
@@ -1766,9 +2322,14 @@ public final class Compiler {
           if (libname.endsWith(".aar")) {
             i.remove();
             if (!processedLibs.contains(libname)) {
-              // explode libraries into ${buildDir}/exploded-aars/<package>/
+              // explode libraries into ${buildDir}/exploded-aars/<package>/, or reuse the
+              // copy in the build cache
               AARLibrary aarLib = new AARLibrary(new File(getResource(RUNTIME_FILES_DIR + libname)));
-              aarLib.unpackToDirectory(explodedBaseDir);
+              if (cache != null) {
+                aarLib.unpackToCache(cache.getLibraryDir());
+              } else {
+                aarLib.unpackToDirectory(explodedBaseDir);
+              }
               explodedAarLibs.add(aarLib);
               processedLibs.add(libname);
             }
@@ -1790,7 +2351,7 @@ public final class Compiler {
       // The assets directory have been created before this.
       File mergedAssetDir = createDir(project.getBuildDirectory(), ASSET_DIR_NAME);
 
-      // Copy component/extension assets to build/assets
+      // Link component/extension assets into build/assets
       for (String type : assetsNeeded.keySet()) {
         for (String assetName : assetsNeeded.get(type)) {
           File targetDir = mergedAssetDir;
@@ -1811,16 +2372,16 @@ public final class Compiler {
             return false;
           }
 
-          Files.copy(new File(sourcePath), new File(targetDir, assetName));
+          FileStaging.link(new File(sourcePath), new File(targetDir, assetName));
         }
       }
 
-      // Copy project assets to build/assets
+      // Link project assets into build/assets
       File[] assets = project.getAssetsDirectory().listFiles();
       if (assets != null) {
         for (File asset : assets) {
           if (asset.isFile()) {
-            Files.copy(asset, new File(mergedAssetDir, asset.getName()));
+            FileStaging.link(asset, new File(mergedAssetDir, asset.getName()));
           }
         }
       }
@@ -1846,6 +2407,11 @@ public final class Compiler {
     File resDir = createDir(intermediates, "res");
     mergedResDir = createDir(resDir, "merged");
     PngCruncher cruncher = new AaptCruncher(getResource(aaptTool), null, null);
+    BuildCache cache = BuildCache.getInstance();
+    if (cache != null) {
+      return explodedAarLibs.mergeResources(mergedResDir, mainResDir, cruncher,
+          cache.getLibraryDir());
+    }
     return explodedAarLibs.mergeResources(mergedResDir, mainResDir, cruncher);
   }
 
@@ -1870,7 +2436,21 @@ public final class Compiler {
   }
 
   /**
-   * Writes out the given resource as a temp file and returns the absolute path.
+   * Extracts resources into the given directory instead of temporary files. Resources that
+   * are already in the directory are used as they are, so a restarted build server finds
+   * its libraries at the same paths and with the same modification times as before. The
+   * directory must be specific to this build of the build server.
+   *
+   * @param dir the directory, or {@code null} to use temporary files
+   */
+  static synchronized void setResourceDir(File dir) {
+    resourceDir = dir;
+    resources.clear();
+  }
+
+  /**
+   * Writes out the given resource as a file and returns the absolute path. The file is a
+   * temporary file, or is in the directory given to {@link #setResourceDir}.
    * Caches the location of the files, so we can reuse them.
    *
    * @param resourcePath the name of the resource
@@ -1879,26 +2459,17 @@ public final class Compiler {
     try {
       File file = resources.get(resourcePath);
       if (file == null) {
-        String basename = PathUtil.basename(resourcePath);
-        String prefix;
-        String suffix;
-        int lastDot = basename.lastIndexOf(".");
-        if (lastDot != -1) {
-          prefix = basename.substring(0, lastDot);
-          suffix = basename.substring(lastDot);
+        if (resourceDir == null) {
+          file = createTempResourceFile(resourcePath);
+          Resources.asByteSource(Compiler.class.getResource(resourcePath))
+              .copyTo(Files.asByteSink(file));
         } else {
-          prefix = basename;
-          suffix = "";
-        }
-        while (prefix.length() < 3) {
-          prefix = prefix + "_";
+          file = new File(resourceDir, resourcePath);
+          if (!file.isFile()) {
+            extractResource(resourcePath, file);
+          }
         }
-        file = File.createTempFile(prefix, suffix);
         file.setExecutable(true);
-        file.deleteOnExit();
-        file.getParentFile().mkdirs();
-        Resources.asByteSource(Compiler.class.getResource(resourcePath))
-            .copyTo(Files.asByteSink(file));
         resources.put(resourcePath, file);
       }
       return file.getAbsolutePath();
@@ -1907,6 +2478,44 @@ public final class Compiler {
     }
   }
 
+  private static File createTempResourceFile(String resourcePath) throws IOException {
+    String basename = PathUtil.basename(resourcePath);
+    String prefix;
+    String suffix;
+    int lastDot = basename.lastIndexOf(".");
+    if (lastDot != -1) {
+      prefix = basename.substring(0, lastDot);
+      suffix = basename.substring(lastDot);
+    } else {
+      prefix = basename;
+      suffix = "";
+    }
+    while (prefix.length() < 3) {
+      prefix = prefix + "_";
+    }
+    File file = File.createTempFile(prefix, suffix);
+    file.deleteOnExit();
+    file.getParentFile().mkdirs();
+    return file;
+  }
+
+  /*
+   * Extracts a resource through a temporary file renamed into place, so that build servers
+   * sharing the directory never see a partially written resource.
+   */
+  private static void extractResource(String resourcePath, File file) throws IOException {
+    Files.createParentDirs(file);
+    File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+    try {
+      Resources.asByteSource(Compiler.class.getResource(resourcePath))
+          .copyTo(Files.asByteSink(tmp));
+      java.nio.file.Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      tmp.delete();
+    }
+  }
+
   /*
    * This code is only invoked on Linux. It copies libc++.so into /tmp/lib64. This
    * is needed on linux to run the aapt tool.
@@ -1940,45 +2549,13 @@ public final class Compiler {
         return;
       }
 
-      JSONArray buildInfo = new JSONArray(
-          "[" + simpleCompsBuildInfo.join(",") + "," +
-          extCompsBuildInfo.join(",") + "]");
-
-      for (int i = 0; i < buildInfo.length(); ++i) {
-        JSONObject compJson = buildInfo.getJSONObject(i);
-        JSONArray infoArray = null;
-        String type = compJson.getString("type");
-        try {
-          infoArray = compJson.getJSONArray(targetInfo);
-        } catch (JSONException e) {
-          // Older compiled extensions will not have a broadcastReceiver
-          // defined. Rather then require them all to be recompiled, we
-          // treat the missing attribute as empty.
-          if (e.getMessage().contains("broadcastReceiver")) {
-            LOG.log(Level.INFO, "Component \"" + type + "\" does not have a broadcast receiver.");
-            continue;
-          } else if (e.getMessage().contains(ANDROIDMINSDK_TARGET)) {
-            LOG.log(Level.INFO, "Component \"" + type + "\" does not specify a minimum SDK.");
-            continue;
-          } else {
-            throw e;
-          }
-        }
-
-        if (!simpleCompTypes.contains(type) && !extCompTypes.contains(type)) {
-          continue;
-        }
-
-        Set<String> infoSet = Sets.newHashSet();
-        for (int j = 0; j < infoArray.length(); ++j) {
-          String info = infoArray.getString(j);
-          if (!info.isEmpty()) {
-            infoSet.add(info);
-          }
-        }
-
+      if (componentIndex == null) {
+        throw new IOException("Component build info is unavailable");
+      }
+      for (String type : Iterables.concat(simpleCompTypes, extCompTypes)) {
+        Set<String> infoSet = componentIndex.getBuildInfo(type, targetInfo);
         if (!infoSet.isEmpty()) {
-          infoMap.put(type, infoSet);
+          infoMap.put(type, Sets.newHashSet(infoSet));
         }
       }
     }
@@ -2048,10 +2625,7 @@ public final class Compiler {
 
   private void readBuildInfo() {
     try {
-      simpleCompsBuildInfo = new JSONArray(Resources.toString(
-          Compiler.class.getResource(COMP_BUILD_INFO), Charsets.UTF_8));
-
-      extCompsBuildInfo = new JSONArray();
+      JSONArray extCompsBuildInfo = new JSONArray();
       Set<String> readComponentInfos = new HashSet<String>();
       for (String type : extCompTypes) {
         // .../assets/external_comps/com.package.MyExtComp/files/component_build_info.json
@@ -2089,6 +2663,8 @@ public final class Compiler {
           readComponentInfos.add(jsonFile.getAbsolutePath());
         }
       }
+      componentIndex = ComponentIndex.getBuiltIn().withExtensions(new JSONArray(),
+          extCompsBuildInfo);
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -2096,14 +2672,7 @@ public final class Compiler {
 
   private void prepareCompTypes(Set<String> neededTypes) {
     try {
-      JSONArray buildInfo = new JSONArray(Resources.toString(
-          Compiler.class.getResource(COMP_BUILD_INFO), Charsets.UTF_8));
-
-      Set<String> allSimpleTypes = Sets.newHashSet();
-      for (int i = 0; i < buildInfo.length(); ++i) {
-        JSONObject comp = buildInfo.getJSONObject(i);
-        allSimpleTypes.add(comp.getString("type"));
-      }
+      Set<String> allSimpleTypes = ComponentIndex.getBuiltIn().getBuiltInTypes();
 
       simpleCompTypes = Sets.newHashSet(neededTypes);
       simpleCompTypes.retainAll(allSimpleTypes);
@@ -0,0 +1,196 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Resources;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * An immutable index of component metadata: the type of each component name, and the
+ * build info of each component type, such as the libraries, assets, permissions,
+ * activities, broadcast receivers, native libraries and minimum SDK it needs.
+ *
+ * <p>The built-in components are indexed once per process, from simple_components.json and
+ * simple_components_build_info.json (see {@link #getBuiltIn}). The extensions of a project
+ * are overlaid on it per build (see {@link #withExtensions}), which leaves the built-in
+ * index untouched and shares it between all builds.
+ */
+final class ComponentIndex {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(ComponentIndex.class.getName());
+
+  private static final String SIMPLE_COMPONENTS = "/files/simple_components.json";
+  private static final String SIMPLE_COMPONENTS_BUILD_INFO =
+      "/files/simple_components_build_info.json";
+
+  // Build info that older extensions may lack, and that is then treated as empty. A missing
+  // target of any other kind is an error.
+  private static final Set<String> OPTIONAL_TARGETS =
+      ImmutableSet.of("broadcastReceiver", "broadcastReceivers", "androidMinSdk");
+
+  private static volatile ComponentIndex builtIn = null;
+
+  // The index this one overlays, or null for the built-in index.
+  private final ComponentIndex base;
+  private final Map<String, String> typesByName;
+  // Build info by component type, then by target.
+  private final Map<String, Map<String, Set<String>>> buildInfo;
+
+  private ComponentIndex(ComponentIndex base, Map<String, String> typesByName,
+      Map<String, Map<String, Set<String>>> buildInfo) {
+    this.base = base;
+    this.typesByName = typesByName;
+    this.buildInfo = buildInfo;
+  }
+
+  /**
+   * Returns the index of the built-in components, loading it on first use.
+   */
+  static ComponentIndex getBuiltIn() throws IOException, JSONException {
+    ComponentIndex index = builtIn;
+    if (index == null) {
+      synchronized (ComponentIndex.class) {
+        index = builtIn;
+        if (index == null) {
+          long start = System.currentTimeMillis();
+          index = new ComponentIndex(null,
+              indexNames(new JSONArray(read(SIMPLE_COMPONENTS))),
+              indexBuildInfo(new JSONArray(read(SIMPLE_COMPONENTS_BUILD_INFO))));
+          LOG.info("Indexed " + index.buildInfo.size() + " built-in components in " +
+              (System.currentTimeMillis() - start) + " ms");
+          builtIn = index;
+        }
+      }
+    }
+    return index;
+  }
+
+  private static String read(String resource) throws IOException {
+    URL url = ComponentIndex.class.getResource(resource);
+    if (url == null) {
+      throw new IOException("Missing resource " + resource);
+    }
+    return Resources.toString(url, Charsets.UTF_8);
+  }
+
+  /**
+   * Returns an index of the built-in components and the given extensions.
+   *
+   * @param components descriptions of the extensions, with at least their names and types
+   * @param extensionBuildInfo build info of the extensions
+   */
+  ComponentIndex withExtensions(JSONArray components, JSONArray extensionBuildInfo)
+      throws JSONException {
+    if (components.length() == 0 && extensionBuildInfo.length() == 0) {
+      return this;
+    }
+    return new ComponentIndex(this, indexNames(components),
+        indexBuildInfo(extensionBuildInfo));
+  }
+
+  private static Map<String, String> indexNames(JSONArray components) throws JSONException {
+    Map<String, String> typesByName = new HashMap<String, String>();
+    for (int i = 0; i < components.length(); i++) {
+      JSONObject component = components.getJSONObject(i);
+      typesByName.put(component.getString("name"), component.getString("type"));
+    }
+    return ImmutableMap.copyOf(typesByName);
+  }
+
+  private static Map<String, Map<String, Set<String>>> indexBuildInfo(JSONArray components)
+      throws JSONException {
+    // Later descriptions of a type replace earlier ones.
+    Map<String, Map<String, Set<String>>> buildInfo =
+        new HashMap<String, Map<String, Set<String>>>();
+    for (int i = 0; i < components.length(); i++) {
+      JSONObject component = components.getJSONObject(i);
+      ImmutableMap.Builder<String, Set<String>> targets = ImmutableMap.builder();
+      Iterator<?> keys = component.keys();
+      while (keys.hasNext()) {
+        String target = (String) keys.next();
+        JSONArray values = component.optJSONArray(target);
+        if (values == null) {
+          continue;
+        }
+        ImmutableSet.Builder<String> infoSet = ImmutableSet.builder();
+        for (int j = 0; j < values.length(); j++) {
+          String info = values.getString(j);
+          if (!info.isEmpty()) {
+            infoSet.add(info);
+          }
+        }
+        targets.put(target, infoSet.build());
+      }
+      buildInfo.put(component.getString("type"), targets.build());
+    }
+    return ImmutableMap.copyOf(buildInfo);
+  }
+
+  /**
+   * Returns the type of the component with the given name, or {@code null} if there is
+   * none.
+   */
+  String getType(String name) {
+    String type = typesByName.get(name);
+    if (type == null && base != null) {
+      type = base.getType(name);
+    }
+    return type;
+  }
+
+  /**
+   * Returns whether the given type is a built-in component.
+   */
+  boolean isBuiltIn(String type) {
+    return base == null ? buildInfo.containsKey(type) : base.isBuiltIn(type);
+  }
+
+  /**
+   * Returns the types of all built-in components.
+   */
+  Set<String> getBuiltInTypes() {
+    return base == null ? buildInfo.keySet() : base.getBuiltInTypes();
+  }
+
+  /**
+   * Returns one kind of build info of a component, such as its permissions.
+   *
+   * @param type the component type
+   * @param target the kind of build info, for example "permissions"
+   * @return the non-empty values given for the target, or an empty set if the component is
+   *     unknown or gives none
+   * @throws JSONException if the component lacks build info the target is required for
+   */
+  Set<String> getBuildInfo(String type, String target) throws JSONException {
+    Map<String, Set<String>> targets = buildInfo.get(type);
+    if (targets == null) {
+      return base == null ? ImmutableSet.<String>of() : base.getBuildInfo(type, target);
+    }
+    Set<String> infoSet = targets.get(target);
+    if (infoSet == null) {
+      if (!OPTIONAL_TARGETS.contains(target)) {
+        throw new JSONException("Component \"" + type + "\" has no " + target);
+      }
+      return ImmutableSet.of();
+    }
+    return infoSet;
+  }
+}
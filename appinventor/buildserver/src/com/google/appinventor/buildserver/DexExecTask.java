@@ -17,16 +17,31 @@
 package com.google.appinventor.buildserver;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
-
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
@@ -44,10 +59,57 @@ public class DexExecTask  {
     private boolean mNoLocals = false;
     private int mChildProcessRamMb = 1024;
     private boolean mDisableDexMerger = false;
-    private static Map<String, String> alreadyChecked = new HashMap<String, String>();
+    // Name of the file in the dex cache directory that persists the hash index.
+    private static final String HASH_INDEX_FILE_NAME = "hash-index.properties";
+
+    // Prune entries for files that no longer exist once an index grows past this size.
+    private static final int HASH_INDEX_PRUNE_SIZE = 1000;
+
+    // For each dex cache directory, maps "<path>|<mtime>|<size>" of a library to the MD5 of
+    // its content, so that unchanged libraries need not be read again to find their cache
+    // entries. Built-in libraries keep their paths across restarts (see
+    // Compiler.setResourceDir), so their entries stay valid. Guarded by itself; each index
+    // is guarded by itself.
+    private static final Map<String, Properties> hashIndexes = new HashMap<String, Properties>();
+
+    // One lock per dex cache entry, so that each library is pre-dexed only once even when
+    // several builds need it at the same time.
+    private static final ConcurrentHashMap<String, Object> entryLocks =
+        new ConcurrentHashMap<String, Object>();
 
-    private static Object semaphore = new Object(); // Used to protect dex cache creation
+    // Shared by all builds, so it also bounds the number of pre-dexing dx processes. Each
+    // of them also reserves its memory from the MemoryBudget, as the builds waiting for them
+    // reserve none for pre-dexing.
+    private static ExecutorService preDexExecutor = newPreDexExecutor(0);
+
+    /**
+     * Sets the number of libraries pre-dexed at once across all builds.
+     * @param threads the number of threads, or 0 for half the number of processors.
+     */
+    public static synchronized void setPreDexThreads(int threads) {
+        ExecutorService old = preDexExecutor;
+        preDexExecutor = newPreDexExecutor(threads);
+        old.shutdown();
+    }
+
+    private static ExecutorService newPreDexExecutor(int threads) {
+        if (threads <= 0) {
+            threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        }
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "pre-dex-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
 
+    private static synchronized ExecutorService getPreDexExecutor() {
+        return preDexExecutor;
+    }
 
     /**
      * Sets the value of the "executable" attribute.
@@ -100,42 +162,102 @@ public class DexExecTask  {
             return true;
         }
 
-        synchronized(semaphore) {
-
-            final int count = inputs.size();
-            boolean allSuccessful = true;
-            for (int i = 0 ; i < count; i++) {
-                File input = inputs.get(i);
-                if (input.isFile()) {
-                    // check if this libs needs to be pre-dexed
-                    String fileName = getDexFileName(input);
-                    File dexedLib = new File(mDexedLibs, fileName);
-                    String dexedLibPath = dexedLib.getAbsolutePath();
-
-                    if (dexedLib.isFile() == false/*||
-                                                    dexedLib.lastModified() < input.lastModified()*/) {
-
-                        System.out.println(
-                            String.format("Pre-Dexing %1$s -> %2$s",
-                              input.getAbsolutePath(), fileName));
-
-                        if (dexedLib.isFile()) {
-                            dexedLib.delete();
+        // Pre-dex the libraries missing from the cache in parallel, then replace each input
+        // with its pre-dexed version.
+        ExecutorService executor = getPreDexExecutor();
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        final BuildTrace trace = BuildTrace.current();
+        final int count = inputs.size();
+        for (int i = 0 ; i < count; i++) {
+            final File input = inputs.get(i);
+            if (input.isFile()) {
+                final String fileName = getDexFileName(input);
+                final File dexedLib = new File(mDexedLibs, fileName);
+                if (dexedLib.isFile()) {
+                    System.out.println(
+                        String.format("Using Pre-Dexed %1$s <- %2$s",
+                          fileName, input.getAbsolutePath()));
+                } else {
+                    results.add(executor.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() {
+                            BuildTrace previous = BuildTrace.attach(trace);
+                            try {
+                                return preDexLibrary(input, dexedLib);
+                            } finally {
+                                BuildTrace.attach(previous);
+                            }
                         }
+                    }));
+                }
 
-                        boolean dexSuccess = runDx(input, dexedLibPath, false /*showInput*/);
-                        allSuccessful = allSuccessful && dexSuccess;
-                    } else {
-                        System.out.println(
-                            String.format("Using Pre-Dexed %1$s <- %2$s",
-                              fileName, input.getAbsolutePath()));
-                    }
+                // replace the input with the pre-dex libs.
+                inputs.set(i, dexedLib);
+            }
+        }
+
+        boolean allSuccessful = true;
+        for (Future<Boolean> result : results) {
+            try {
+                allSuccessful = result.get() && allSuccessful;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                allSuccessful = false;
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+                allSuccessful = false;
+            }
+        }
+        return allSuccessful;
+    }
 
-                    // replace the input with the pre-dex libs.
-                    inputs.set(i, dexedLib);
+    /**
+     * Pre-dexes a single library into the dex cache, unless another build did so first.
+     * dx writes to a temporary file, which is renamed into place once complete so that
+     * other builds never see a partially written cache entry.
+     */
+    private boolean preDexLibrary(File input, File dexedLib) {
+        Object lock = entryLocks.get(dexedLib.getName());
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = entryLocks.putIfAbsent(dexedLib.getName(), newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        long waitStart = System.nanoTime();
+        synchronized (lock) {
+            BuildTrace.record("dex-cache-entry", BuildTrace.WAIT, waitStart);
+            if (dexedLib.isFile()) {
+                return true;
+            }
+            System.out.println(
+                String.format("Pre-Dexing %1$s -> %2$s",
+                  input.getAbsolutePath(), dexedLib.getName()));
+            File tmpLib = null;
+            BuildTrace.Span span = BuildTrace.begin("pre-dex", BuildTrace.TASK)
+                .arg("library", input.getName())
+                .addBytesRead(input.length());
+            try {
+                // dx picks the output format from the extension, so keep ".jar".
+                tmpLib = File.createTempFile(dexedLib.getName(), ".jar", dexedLib.getParentFile());
+                if (!runDx(Collections.singleton(input), tmpLib.getAbsolutePath(),
+                        false /*showInputs*/, true /*reserveMemory*/)) {
+                    return false;
+                }
+                span.addBytesWritten(tmpLib.length());
+                Files.move(tmpLib.toPath(), dexedLib.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            } finally {
+                span.end();
+                if (tmpLib != null) {
+                    tmpLib.delete();
                 }
             }
-            return allSuccessful;
         }
     }
 
@@ -153,15 +275,25 @@ public class DexExecTask  {
         return "dex-cached-" + hashed + ".jar";
     }
 
-    private String getHashFor(File inputFile) {
-        String retval = alreadyChecked.get(inputFile.getAbsolutePath());
+    @VisibleForTesting
+    String getHashFor(File inputFile) {
+        String key = inputFile.getAbsolutePath() + "|" + inputFile.lastModified() + "|"
+            + inputFile.length();
+        Properties index = getHashIndex(mDexedLibs);
+        String retval;
+        synchronized (index) {
+            retval = index.getProperty(key);
+        }
         if (retval != null) return retval;
         // add a hash of the original file path
         try {
             HashFunction hashFunction = Hashing.md5();
             HashCode hashCode = hashFunction.hashBytes(Files.readAllBytes(inputFile.toPath()));
             retval = hashCode.toString();
-            alreadyChecked.put(inputFile.getAbsolutePath(), retval);
+            synchronized (index) {
+                index.setProperty(key, retval);
+                saveHashIndex(mDexedLibs, index);
+            }
             return retval;
         } catch (IOException e) {
             e.printStackTrace();
@@ -169,6 +301,107 @@ public class DexExecTask  {
         }
     }
 
+    /**
+     * Returns the hash index of the given dex cache directory, loading it on first use.
+     */
+    private static Properties getHashIndex(String dexedLibs) {
+        synchronized (hashIndexes) {
+            Properties index = hashIndexes.get(dexedLibs);
+            if (index == null) {
+                index = new Properties();
+                if (dexedLibs != null) {
+                    File indexFile = new File(dexedLibs, HASH_INDEX_FILE_NAME);
+                    if (indexFile.isFile()) {
+                        try {
+                            InputStream in = new FileInputStream(indexFile);
+                            try {
+                                index.load(in);
+                            } finally {
+                                in.close();
+                            }
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                            index.clear();
+                        }
+                    }
+                }
+                hashIndexes.put(dexedLibs, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Writes the hash index to the dex cache directory, through a temporary file renamed
+     * into place. Entries of files that no longer exist, such as the extensions of finished
+     * builds, are dropped once the index grows large. The caller must hold the index lock.
+     */
+    private static void saveHashIndex(String dexedLibs, Properties index) {
+        if (dexedLibs == null) {
+            return;
+        }
+        if (index.size() > HASH_INDEX_PRUNE_SIZE) {
+            Iterator<Object> keys = index.keySet().iterator();
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+                String path = key.substring(0, key.indexOf('|'));
+                if (!new File(path).isFile()) {
+                    keys.remove();
+                }
+            }
+        }
+        File tmpFile = null;
+        try {
+            tmpFile = File.createTempFile(HASH_INDEX_FILE_NAME, ".tmp", new File(dexedLibs));
+            OutputStream out = new FileOutputStream(tmpFile);
+            try {
+                index.store(out, "Library hashes for the dex cache");
+            } finally {
+                out.close();
+            }
+            Files.move(tmpFile.toPath(), new File(dexedLibs, HASH_INDEX_FILE_NAME).toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Forgets the hash indexes loaded so far, so the next lookup reads them from disk again.
+     */
+    @VisibleForTesting
+    static void clearHashIndexes() {
+        synchronized (hashIndexes) {
+            hashIndexes.clear();
+        }
+    }
+
+    /**
+     * Returns the pre-dexed version of the given input if it is in the dex cache, otherwise
+     * the input itself.
+     * @param input the input.
+     */
+    public File getPreDexedFile(File input) {
+        if (mDisableDexMerger || mDexedLibs == null || !input.isFile()) {
+            return input;
+        }
+        File dexedLib = new File(mDexedLibs, getDexFileName(input));
+        return dexedLib.isFile() ? dexedLib : input;
+    }
+
+    /**
+     * Pre-dexes the given libraries into the dex cache without producing any other output.
+     * @param libraries the libraries.
+     * @return true if all libraries are in the dex cache.
+     */
+    public boolean preDex(List<File> libraries) {
+        return preDexLibraries(new ArrayList<File>(libraries));
+    }
+
     public boolean execute(List<File> paths) {
         // pre dex libraries if needed
         boolean successPredex = preDexLibraries(paths);
@@ -177,50 +410,71 @@ public class DexExecTask  {
         System.out.println(String.format(
                 "Converting compiled files and external libraries into %1$s...", mOutput));
 
-        return runDx(paths, mOutput, mVerbose /*showInputs*/);
+        // The caller holds the memory for this dx process, see StageScheduler.Stage.DX.
+        return runDx(paths, mOutput, mVerbose /*showInputs*/, false /*reserveMemory*/);
     }
 
-    private boolean runDx(File input, String output, boolean showInputs) {
-        return runDx(Collections.singleton(input), output, showInputs);
-    }
-
-    private boolean runDx(Collection<File> inputs, String output, boolean showInputs) {
+    private boolean runDx(Collection<File> inputs, String output, boolean showInputs,
+            boolean reserveMemory) {
         int mx = mChildProcessRamMb - 200;
 
-        List<String> commandLineList = new ArrayList<String>();
-        commandLineList.add(System.getProperty("java.home") + "/bin/java");
-        commandLineList.add("-mx" + mx + "M");
-        commandLineList.add("-jar");
-        commandLineList.add(mExecutable);
-
-        commandLineList.add("--dex");
-        commandLineList.add("--positions=lines");
+        List<String> dxArgs = new ArrayList<String>();
+        dxArgs.add("--positions=lines");
 
         if (mNoLocals) {
-            commandLineList.add("--no-locals");
+            dxArgs.add("--no-locals");
         }
 
         if (mVerbose) {
-            commandLineList.add("--verbose");
+            dxArgs.add("--verbose");
         }
 
-        commandLineList.add("--output=" + output);
+        dxArgs.add("--output=" + output);
 
         for (File input : inputs) {
             String absPath = input.getAbsolutePath();
             if (showInputs) {
                 System.out.println("Input: " + absPath);
             }
-            commandLineList.add(absPath);
+            dxArgs.add(absPath);
+        }
+
+        if (InProcessDexer.isEnabled()) {
+            try {
+                return InProcessDexer.run(mExecutable, dxArgs, mx, System.out, System.err);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Running dx in a child process instead.");
+            }
         }
 
+        List<String> commandLineList = new ArrayList<String>();
+        commandLineList.add(System.getProperty("java.home") + "/bin/java");
+        commandLineList.add("-mx" + mx + "M");
+        commandLineList.add("-jar");
+        commandLineList.add(mExecutable);
+        commandLineList.add("--dex");
+        commandLineList.addAll(dxArgs);
+
         // Convert command line to an array
         String[] dxCommandLine = new String[commandLineList.size()];
         commandLineList.toArray(dxCommandLine);
 
-        boolean dxSuccess = Execution.execute(null, dxCommandLine, System.out, System.err);
-        return dxSuccess;
+        MemoryBudget.Reservation memory =
+            MemoryBudget.reserve(reserveMemory ? mChildProcessRamMb : 0);
+        try {
+            return executeDx(dxCommandLine);
+        } finally {
+            memory.release();
+        }
+    }
 
+    /**
+     * Runs dx in a child process with the given command line.
+     */
+    @VisibleForTesting
+    boolean executeDx(String[] dxCommandLine) {
+        return Execution.execute(null, dxCommandLine, System.out, System.err);
     }
 
     protected String getExecTaskName() {
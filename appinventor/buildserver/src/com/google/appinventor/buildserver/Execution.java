@@ -107,14 +107,19 @@ public final class Execution {
     		command[i] = command[i].replace("\"", "\\\"");
     	}
     }
+    BuildTrace.Span span = BuildTrace.begin(BuildTrace.processName(command), BuildTrace.PROCESS);
     try {
       Process process = Runtime.getRuntime().exec(command, null, workingDir);
       new RedirectStreamHandler(new PrintWriter(out, true), process.getInputStream());
       new RedirectStreamHandler(new PrintWriter(err, true), process.getErrorStream());
-      return process.waitFor() == 0;
+      int exitCode = process.waitFor();
+      span.arg("exitCode", exitCode);
+      return exitCode == 0;
     } catch (Exception e) {
       LOG.log(Level.WARNING, "____Execution failure: ", e);
       return false;
+    } finally {
+      span.end();
     }
   }
 
@@ -131,16 +136,22 @@ public final class Execution {
   public static int execute(File workingDir, String[] command, StringBuffer out,
       StringBuffer err) throws IOException {
     LOG.log(Level.INFO, "____Executing " + joiner.join(command));
-    Process process = Runtime.getRuntime().exec(command, null, workingDir);
-    Thread outThread = new RedirectStreamToStringBuffer(out, process.getInputStream());
-    Thread errThread = new RedirectStreamToStringBuffer(err, process.getErrorStream());
+    BuildTrace.Span span = BuildTrace.begin(BuildTrace.processName(command), BuildTrace.PROCESS);
     try {
-      process.waitFor();
-      outThread.join();
-      errThread.join();
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
+      Process process = Runtime.getRuntime().exec(command, null, workingDir);
+      Thread outThread = new RedirectStreamToStringBuffer(out, process.getInputStream());
+      Thread errThread = new RedirectStreamToStringBuffer(err, process.getErrorStream());
+      try {
+        process.waitFor();
+        outThread.join();
+        errThread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      span.arg("exitCode", process.exitValue());
+      return process.exitValue();
+    } finally {
+      span.end();
     }
-    return process.exitValue();
   }
 }
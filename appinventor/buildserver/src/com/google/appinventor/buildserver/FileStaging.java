@@ -0,0 +1,68 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Places files where a build needs them without copying their contents when possible.
+ *
+ * <p>Files that are not modified after staging, such as assets and finished APKs, are
+ * hard-linked. When the file system doesn't support hard links, or the source and target
+ * are on different file systems, the file is copied instead.
+ */
+final class FileStaging {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(FileStaging.class.getName());
+
+  // Number of files copied because they could not be linked.
+  private static final AtomicLong copies = new AtomicLong(0);
+
+  private FileStaging() {
+  }
+
+  /**
+   * Makes {@code target} a hard link to {@code source}, or a copy of it if the file system
+   * doesn't allow that. An existing target is replaced. Neither file may be modified
+   * afterwards, since a change to one may show in the other.
+   */
+  static void link(File source, File target) throws IOException {
+    java.nio.file.Files.deleteIfExists(target.toPath());
+    try {
+      java.nio.file.Files.createLink(target.toPath(), source.toPath());
+      return;
+    } catch (IOException e) {
+      logCopy(source, e);
+    } catch (UnsupportedOperationException e) {
+      logCopy(source, e);
+    }
+    Files.copy(source, target);
+  }
+
+  /**
+   * Moves {@code source} to {@code target}, replacing any existing target. The file is
+   * copied only if it is moved to a different file system.
+   */
+  static void move(File source, File target) throws IOException {
+    java.nio.file.Files.move(source.toPath(), target.toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static void logCopy(File source, Exception e) {
+    // Linking fails for every file in the same place, so only log the first few failures.
+    if (copies.incrementAndGet() <= 10) {
+      LOG.log(Level.INFO, "Copying " + source + " because it could not be linked", e);
+    }
+  }
+}
@@ -0,0 +1,118 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipFile;
+
+/**
+ * Keeps track of the async builds that are queued or running, so that a request identical to
+ * one of them is attached to that build instead of taking another build slot.
+ *
+ * <p>Requests are identical if their project zips have the same contents, including the
+ * android.keystore file the APK is signed with. A project without a keystore gets one
+ * generated for its user, so the user name is part of the key in that case. An attached
+ * request gets the progress reports and a copy of the result of the build it is attached to,
+ * sent to its own callback URL.</p>
+ */
+final class InFlightBuilds {
+
+  // The reporters of the builds in flight, by key. Guarded by this.
+  private final Map<String, BuildServer.ProgressReporter> builds =
+      new HashMap<String, BuildServer.ProgressReporter>();
+
+  // The number of requests attached to a build instead of being built.
+  private final AtomicInteger attachedRequests = new AtomicInteger(0);
+
+  /**
+   * Returns the key under which builds of the given project zip are tracked.
+   *
+   * @param zipFile  the project zip of the request
+   * @param userName  the user the keystore is generated for if the zip has none
+   */
+  static String getKey(File zipFile, String userName) throws IOException {
+    ZipFile zip = new ZipFile(zipFile);
+    try {
+      String key = BuildCache.hashProject(zip, false);
+      if (zip.getEntry(YoungAndroidConstants.PROJECT_KEYSTORE_LOCATION) == null) {
+        key += "/" + userName;
+      }
+      return key;
+    } finally {
+      zip.close();
+    }
+  }
+
+  /**
+   * Attaches {@code reporter} to the build of {@code key} if one is in flight.
+   *
+   * @return true if the request was attached to a build in flight
+   */
+  synchronized boolean attach(String key, BuildServer.ProgressReporter reporter) {
+    BuildServer.ProgressReporter build = builds.get(key);
+    // A build whose result has already been queued can't take any more requests.
+    if (build != null && build.attach(reporter)) {
+      attachedRequests.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Attaches {@code reporter} to the build of {@code key} if one is in flight. Otherwise
+   * {@code task} is handed to {@code executor} and tracked under {@code key} until
+   * {@link #remove} is called.
+   *
+   * @return true if the request was attached to a build in flight, false if {@code task}
+   *     was executed
+   * @throws RejectedExecutionException if the executor rejected {@code task}
+   */
+  synchronized boolean attachOrExecute(String key, BuildServer.ProgressReporter reporter,
+      Executor executor, Runnable task) {
+    if (attach(key, reporter)) {
+      return true;
+    }
+    // Executing while holding the lock keeps identical requests from attaching to a task
+    // that is then rejected. The executor doesn't block, so this is quick.
+    builds.put(key, reporter);
+    try {
+      executor.execute(task);
+    } catch (RejectedExecutionException e) {
+      builds.remove(key);
+      throw e;
+    }
+    return false;
+  }
+
+  /**
+   * Stops tracking the build of {@code key}, if {@code reporter} is the one tracked.
+   */
+  synchronized void remove(String key, BuildServer.ProgressReporter reporter) {
+    if (builds.get(key) == reporter) {
+      builds.remove(key);
+    }
+  }
+
+  /**
+   * Returns the number of builds tracked.
+   */
+  synchronized int getBuildCount() {
+    return builds.size();
+  }
+
+  /**
+   * Returns the number of requests that were attached to a build in flight.
+   */
+  int getAttachedRequestCount() {
+    return attachedRequests.get();
+  }
+}
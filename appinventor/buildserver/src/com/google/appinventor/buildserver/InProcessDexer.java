@@ -0,0 +1,179 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs dx inside the build server instead of forking a JVM for it.
+ *
+ * <p>dx keeps state in static fields, so each invocation gets a class loader of its own
+ * over dx.jar. Class loaders are reused by later invocations, which saves loading and
+ * JIT-compiling dx again, and retired after {@link #MAX_RUNS_PER_LOADER} runs.
+ *
+ * <p>The heap that in-process dx runs may use is bounded by a budget in MBs. Each run
+ * reserves the heap its child process would have been given, and waits if the budget is
+ * exhausted. A run that cannot be completed in-process, for example because the build
+ * server itself ran out of memory, is reported with an {@link IOException} so that the
+ * caller can fall back to a child process.
+ *
+ * <p>Disabled until {@link #configure} is called with {@code enabled} true.
+ */
+final class InProcessDexer {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(InProcessDexer.class.getName());
+
+  private static final int MAX_RUNS_PER_LOADER = 25;
+
+  private static final String DX_CONTEXT_CLASS = "com.android.dx.command.dexer.DxContext";
+  private static final String DX_MAIN_CLASS = "com.android.dx.command.dexer.Main";
+  private static final String DX_ARGUMENTS_CLASS = "com.android.dx.command.dexer.Main$Arguments";
+
+  private static volatile boolean enabled = false;
+  private static volatile int budgetMb = 0;
+  private static volatile Semaphore memoryBudget = new Semaphore(0);
+  private static final LinkedBlockingDeque<Loader> idleLoaders = new LinkedBlockingDeque<Loader>();
+
+  private InProcessDexer() {
+  }
+
+  /**
+   * Enables or disables in-process dx.
+   *
+   * @param enable whether dx runs in-process
+   * @param memoryMb heap available to all in-process dx runs together, in MBs; 0 means half
+   *     of the build server's maximum heap
+   */
+  static synchronized void configure(boolean enable, int memoryMb) {
+    if (memoryMb <= 0) {
+      memoryMb = (int) (Runtime.getRuntime().maxMemory() / (2 * 1024 * 1024));
+    }
+    enabled = enable;
+    budgetMb = memoryMb;
+    memoryBudget = new Semaphore(memoryMb, true);
+    idleLoaders.clear();
+    if (enable) {
+      LOG.info("Running dx in-process with a heap budget of " + memoryMb + " MB");
+    }
+  }
+
+  static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Runs dx.
+   *
+   * @param dxJar path to dx.jar
+   * @param args dx arguments following {@code --dex}
+   * @param memoryMb heap reserved for this run, in MBs
+   * @param out stream receiving dx's standard output
+   * @param err stream receiving dx's standard error
+   * @return {@code true} if dx succeeded, {@code false} if it reported an error
+   * @throws IOException if dx could not be run in-process
+   */
+  static boolean run(String dxJar, List<String> args, int memoryMb, PrintStream out,
+      PrintStream err) throws IOException {
+    Semaphore budget = memoryBudget;
+    int permits = Math.max(1, Math.min(memoryMb, budgetMb));
+    long waitStart = System.nanoTime();
+    budget.acquireUninterruptibly(permits);
+    BuildTrace.record("dx-memory", BuildTrace.WAIT, waitStart);
+    BuildTrace.Span span = BuildTrace.begin("dx-in-process", BuildTrace.TASK);
+    try {
+      Loader loader = takeLoader(dxJar);
+      boolean success = loader.run(args.toArray(new String[args.size()]), out, err);
+      if (loader.runs < MAX_RUNS_PER_LOADER) {
+        idleLoaders.offer(loader);
+      }
+      return success;
+    } finally {
+      span.end();
+      budget.release(permits);
+    }
+  }
+
+  private static Loader takeLoader(String dxJar) throws IOException {
+    Loader loader;
+    while ((loader = idleLoaders.poll()) != null) {
+      if (loader.dxJar.equals(dxJar)) {
+        return loader;
+      }
+    }
+    return new Loader(dxJar);
+  }
+
+  private static class Loader {
+    private final String dxJar;
+    private final ClassLoader classLoader;
+    private int runs = 0;
+
+    Loader(String dxJar) throws IOException {
+      this.dxJar = dxJar;
+      // The parent excludes the build server's own class path, which has other versions of
+      // some Android tools classes.
+      this.classLoader = new URLClassLoader(new URL[] { new File(dxJar).toURI().toURL() },
+          ClassLoader.getSystemClassLoader().getParent());
+    }
+
+    boolean run(String[] args, PrintStream out, PrintStream err) throws IOException {
+      runs++;
+      try {
+        Class<?> contextClass = classLoader.loadClass(DX_CONTEXT_CLASS);
+        Class<?> argumentsClass = classLoader.loadClass(DX_ARGUMENTS_CLASS);
+        Class<?> mainClass = classLoader.loadClass(DX_MAIN_CLASS);
+        Object context = contextClass.getConstructor(OutputStream.class, OutputStream.class)
+            .newInstance(out, err);
+        Object arguments = argumentsClass.getConstructor(contextClass).newInstance(context);
+        // Arguments.parse is private, so set the flags and the inputs separately.
+        List<String> flags = new ArrayList<String>();
+        List<String> fileNames = new ArrayList<String>();
+        for (String arg : args) {
+          (arg.startsWith("--") ? flags : fileNames).add(arg);
+        }
+        argumentsClass.getMethod("parseFlags", String[].class)
+            .invoke(arguments, (Object) flags.toArray(new String[flags.size()]));
+        argumentsClass.getField("fileNames")
+            .set(arguments, fileNames.toArray(new String[fileNames.size()]));
+        argumentsClass.getMethod("makeOptionsObjects").invoke(arguments);
+        Object main = mainClass.getConstructor(contextClass).newInstance(context);
+        try {
+          return (Integer) mainClass.getMethod("runDx", argumentsClass).invoke(main, arguments)
+              == 0;
+        } finally {
+          mainClass.getMethod("clearInternTables").invoke(null);
+        }
+      } catch (InvocationTargetException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Error) {
+          // Most likely out of memory; the caller retries in a child process.
+          runs = MAX_RUNS_PER_LOADER;
+          throw new IOException("dx failed in-process", cause);
+        }
+        // dx rejected its input, which a child process would do too.
+        LOG.log(Level.WARNING, "dx failed", cause);
+        cause.printStackTrace(err);
+        return false;
+      } catch (ReflectiveOperationException | LinkageError e) {
+        runs = MAX_RUNS_PER_LOADER;
+        throw new IOException("Unable to run dx in-process", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,275 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Joiner;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of warm Kawa compiler processes.
+ *
+ * <p>Forking {@code kawa.repl} for every build means paying for a JVM start-up and for
+ * loading runtime.scm on each build. Instead, the daemon keeps up to {@code maxWorkers}
+ * {@link KawaCompilerWorker} processes alive with runtime.scm already loaded, and hands
+ * each compilation to an idle one. Workers are retired after
+ * {@link #MAX_COMPILATIONS_PER_WORKER} compilations so that state accumulated inside Kawa
+ * cannot grow without bound.
+ *
+ * <p>The daemon is disabled (and {@link #isEnabled()} returns false) until
+ * {@link #setMaxWorkers(int, int)} is called with a positive value. Since workers stay alive
+ * between builds, their memory is taken out of the {@link MemoryBudget} when the daemon is
+ * configured rather than reserved by each compilation.
+ */
+final class KawaCompilerDaemon {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(KawaCompilerDaemon.class.getName());
+
+  private static final int MAX_COMPILATIONS_PER_WORKER = 25;
+
+  private static volatile int maxWorkers = 0;
+  private static volatile Semaphore workerPermits = new Semaphore(0);
+  private static final LinkedBlockingDeque<Worker> idleWorkers = new LinkedBlockingDeque<Worker>();
+
+  private KawaCompilerDaemon() {
+  }
+
+  /**
+   * Sets the maximum number of warm Kawa processes. 0 disables the daemon.
+   *
+   * @param workers the maximum number of warm Kawa processes
+   * @param childProcessRamMb maximum RAM for each worker process, in MBs
+   */
+  static synchronized void setMaxWorkers(int workers, int childProcessRamMb) {
+    maxWorkers = Math.max(0, workers);
+    MemoryBudget.setResidentMb((long) maxWorkers * Math.max(0, childProcessRamMb));
+    workerPermits = new Semaphore(maxWorkers, true);
+    Worker worker;
+    while ((worker = idleWorkers.poll()) != null) {
+      worker.destroy();
+    }
+  }
+
+  static boolean isEnabled() {
+    return maxWorkers > 0;
+  }
+
+  /**
+   * Compiles YAIL sources with a warm Kawa process.
+   *
+   * @param baseClasspath class path the worker process is started with
+   * @param extraClasspath additional class path entries needed only for this compilation
+   * @param yailRuntime path to runtime.scm
+   * @param childProcessRamMb maximum RAM for the worker process, in MBs
+   * @param kawaArgs arguments for {@code kawa.repl}, excluding {@code -f runtime.scm}
+   * @param out stream receiving the compiler's standard output
+   * @param err stream receiving the compiler's standard error
+   * @return {@code true} if Kawa completed without error, {@code false} otherwise
+   * @throws IOException if no worker process could be started
+   */
+  static boolean compile(String baseClasspath, List<String> extraClasspath, String yailRuntime,
+      int childProcessRamMb, List<String> kawaArgs, PrintStream out, PrintStream err)
+      throws IOException {
+    Semaphore permits = workerPermits;
+    long waitStart = System.nanoTime();
+    permits.acquireUninterruptibly();
+    BuildTrace.record("kawa-worker", BuildTrace.WAIT, waitStart);
+    BuildTrace.Span span = BuildTrace.begin("kawa-worker", BuildTrace.PROCESS);
+    Worker worker = null;
+    try {
+      worker = takeWorker(baseClasspath, yailRuntime, childProcessRamMb);
+      List<String> fields = new ArrayList<String>();
+      fields.add(Joiner.on(File.pathSeparator).join(extraClasspath));
+      fields.addAll(kawaArgs);
+      boolean success = worker.run(Joiner.on(KawaCompilerWorker.FIELD_SEPARATOR).join(fields),
+          out, err);
+      if (worker.isAlive() && worker.compilations < MAX_COMPILATIONS_PER_WORKER) {
+        idleWorkers.offer(worker);
+      } else {
+        worker.destroy();
+      }
+      return success;
+    } catch (IOException e) {
+      if (worker != null) {
+        worker.destroy();
+      }
+      throw e;
+    } finally {
+      span.end();
+      permits.release();
+    }
+  }
+
+  private static Worker takeWorker(String baseClasspath, String yailRuntime,
+      int childProcessRamMb) throws IOException {
+    Worker worker;
+    while ((worker = idleWorkers.poll()) != null) {
+      if (worker.isAlive() && worker.matches(baseClasspath, yailRuntime, childProcessRamMb)) {
+        return worker;
+      }
+      worker.destroy();
+    }
+    return Worker.start(baseClasspath, yailRuntime, childProcessRamMb);
+  }
+
+  /*
+   * Reads lines from a worker's output stream and forwards them to the stream of the
+   * compilation currently in progress, until the completion marker is seen.
+   */
+  private static class StreamPump extends Thread {
+    private final BufferedReader reader;
+    private final Semaphore done = new Semaphore(0);
+    private volatile PrintStream target = System.out;
+    private volatile int status = -1;
+    private volatile boolean eof = false;
+
+    StreamPump(InputStream input) throws IOException {
+      this.reader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          // Output that doesn't end with a newline shares its line with the marker.
+          int marker = Math.max(line.indexOf(KawaCompilerWorker.READY),
+              line.indexOf(KawaCompilerWorker.DONE));
+          if (marker > 0) {
+            target.println(line.substring(0, marker));
+            line = line.substring(marker);
+          }
+          if (line.equals(KawaCompilerWorker.READY)) {
+            done.release();
+          } else if (line.startsWith(KawaCompilerWorker.DONE)) {
+            status = Integer.parseInt(line.substring(KawaCompilerWorker.DONE.length()));
+            done.release();
+          } else {
+            target.println(line);
+          }
+        }
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Kawa worker I/O failure", e);
+      } finally {
+        eof = true;
+        status = -1;
+        done.release();
+      }
+    }
+
+    /*
+     * Waits for the next marker. Returns false if the worker went away instead.
+     */
+    boolean await() {
+      done.acquireUninterruptibly();
+      return !eof;
+    }
+  }
+
+  private static class Worker {
+    private final Process process;
+    private final Writer requests;
+    private final StreamPump stdout;
+    private final StreamPump stderr;
+    private final String baseClasspath;
+    private final String yailRuntime;
+    private final int childProcessRamMb;
+    private int compilations = 0;
+
+    private Worker(Process process, String baseClasspath, String yailRuntime,
+        int childProcessRamMb) throws IOException {
+      this.process = process;
+      this.baseClasspath = baseClasspath;
+      this.yailRuntime = yailRuntime;
+      this.childProcessRamMb = childProcessRamMb;
+      this.requests = new OutputStreamWriter(process.getOutputStream(), "UTF-8");
+      this.stdout = new StreamPump(process.getInputStream());
+      this.stderr = new StreamPump(process.getErrorStream());
+      stdout.start();
+      stderr.start();
+    }
+
+    static Worker start(String baseClasspath, String yailRuntime, int childProcessRamMb)
+        throws IOException {
+      String workerLocation;
+      try {
+        workerLocation = new File(KawaCompilerWorker.class.getProtectionDomain().getCodeSource()
+            .getLocation().toURI()).getAbsolutePath();
+      } catch (Exception e) {
+        throw new IOException("Unable to locate the Kawa worker class", e);
+      }
+      String[] command = {
+          System.getProperty("java.home") + "/bin/java",
+          "-Dfile.encoding=UTF-8",
+          "-mx" + (childProcessRamMb - 200) + "M",
+          "-cp", baseClasspath + File.pathSeparator + workerLocation,
+          KawaCompilerWorker.class.getName(),
+          yailRuntime
+      };
+      long start = System.currentTimeMillis();
+      Worker worker = new Worker(Runtime.getRuntime().exec(command), baseClasspath, yailRuntime,
+          childProcessRamMb);
+      if (!worker.stdout.await()) {
+        worker.destroy();
+        throw new IOException("Kawa worker exited while loading " + yailRuntime);
+      }
+      LOG.info("Started Kawa worker in " + ((System.currentTimeMillis() - start) / 1000.0) +
+          " seconds");
+      return worker;
+    }
+
+    boolean matches(String baseClasspath, String yailRuntime, int childProcessRamMb) {
+      return this.baseClasspath.equals(baseClasspath) && this.yailRuntime.equals(yailRuntime)
+          && this.childProcessRamMb == childProcessRamMb;
+    }
+
+    boolean isAlive() {
+      return !stdout.eof && !stderr.eof;
+    }
+
+    boolean run(String request, PrintStream out, PrintStream err) throws IOException {
+      compilations++;
+      stdout.target = out;
+      stderr.target = err;
+      try {
+        requests.write(request);
+        requests.write('\n');
+        requests.flush();
+        // Kawa's -C option calls System.exit on compilation errors, in which case both
+        // pumps reach end of stream and the compilation is reported as failed.
+        boolean completed = stdout.await() & stderr.await();
+        return completed && stdout.status == 0;
+      } finally {
+        stdout.target = System.out;
+        stderr.target = System.err;
+      }
+    }
+
+    void destroy() {
+      try {
+        requests.close();
+      } catch (IOException e) {
+        // ignored
+      }
+      process.destroy();
+    }
+  }
+}
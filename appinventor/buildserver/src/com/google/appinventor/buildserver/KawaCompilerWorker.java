@@ -0,0 +1,128 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Entry point of a long-lived Kawa compiler process.
+ *
+ * <p>The worker is started by {@link KawaCompilerDaemon} with the Kawa runtime and the
+ * built-in component libraries on its class path. It loads runtime.scm once and then
+ * compiles one batch of YAIL files for every request line read from standard input.
+ * Each request is a NUL separated list whose first field holds any additional class path
+ * entries for the request (separated by {@link File#pathSeparator}) and whose remaining
+ * fields are the arguments passed to {@code kawa.repl}.
+ *
+ * <p>This class must only depend on the JDK, because the Kawa class path does not include
+ * the libraries used by the rest of the build server.
+ */
+public final class KawaCompilerWorker {
+
+  static final String READY = "__KAWA_WORKER_READY__";
+  static final String DONE = "__KAWA_WORKER_DONE__:";
+  static final char FIELD_SEPARATOR = '\0';
+
+  private KawaCompilerWorker() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 1) {
+      System.err.println("usage: KawaCompilerWorker <runtime.scm>");
+      System.exit(1);
+    }
+    Class<?> repl = Class.forName("kawa.repl");
+    Method processArgs = repl.getMethod("processArgs", String[].class, int.class, int.class);
+
+    // Load the YAIL runtime once. Every subsequent compilation reuses its definitions.
+    String[] loadArgs = { "-f", args[0] };
+    processArgs.invoke(null, loadArgs, 0, loadArgs.length);
+    flushAll();
+    System.out.println(READY);
+    System.out.flush();
+
+    BufferedReader requests = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+    String request;
+    while ((request = requests.readLine()) != null) {
+      String[] fields = split(request);
+      int status = compile(processArgs, fields[0], fields);
+      flushAll();
+      System.out.println(DONE + status);
+      System.err.println(DONE + status);
+      System.out.flush();
+      System.err.flush();
+    }
+  }
+
+  private static int compile(Method processArgs, String extraClasspath, String[] fields) {
+    Thread thread = Thread.currentThread();
+    ClassLoader savedLoader = thread.getContextClassLoader();
+    URLClassLoader requestLoader = null;
+    try {
+      if (!extraClasspath.isEmpty()) {
+        // Kawa resolves component classes through the thread context class loader, so
+        // request-specific jars (e.g. classes.jar of exploded AARs) are made visible here.
+        List<URL> urls = new ArrayList<URL>();
+        for (String path : extraClasspath.split(File.pathSeparator)) {
+          urls.add(new File(path).toURI().toURL());
+        }
+        requestLoader = new URLClassLoader(urls.toArray(new URL[urls.size()]), savedLoader);
+        thread.setContextClassLoader(requestLoader);
+      }
+      processArgs.invoke(null, fields, 1, fields.length);
+      return 0;
+    } catch (Throwable e) {
+      e.printStackTrace();
+      return 1;
+    } finally {
+      thread.setContextClassLoader(savedLoader);
+      if (requestLoader != null) {
+        try {
+          requestLoader.close();
+        } catch (IOException e) {
+          // ignored
+        }
+      }
+    }
+  }
+
+  /*
+   * Kawa writes diagnostics through its own ports, which buffer independently of
+   * System.out and System.err. Flush them before the completion marker is written.
+   */
+  private static void flushAll() {
+    try {
+      Class<?> outPort = Class.forName("gnu.mapping.OutPort");
+      ((Flushable) outPort.getMethod("outDefault").invoke(null)).flush();
+      ((Flushable) outPort.getMethod("errDefault").invoke(null)).flush();
+    } catch (Throwable e) {
+      // Nothing more we can do; the streams below are still flushed.
+    }
+    System.out.flush();
+    System.err.flush();
+  }
+
+  private static String[] split(String request) {
+    List<String> fields = new ArrayList<String>();
+    int start = 0;
+    int end;
+    while ((end = request.indexOf(FIELD_SEPARATOR, start)) != -1) {
+      fields.add(request.substring(start, end));
+      start = end + 1;
+    }
+    fields.add(request.substring(start));
+    return fields.toArray(new String[fields.size()]);
+  }
+}
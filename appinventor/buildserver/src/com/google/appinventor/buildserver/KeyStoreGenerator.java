@@ -0,0 +1,197 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Creates the keystores of users who don't have one yet, without running keytool.
+ *
+ * <p>The keystore holds a 2048-bit RSA key under the alias {@code AndroidKey} and a
+ * self-signed certificate valid for 10000 days, protected by the password
+ * {@code android}, as created by the keytool command line in {@link ProjectBuilder}.
+ *
+ * <p>Generating an RSA key takes a noticeable fraction of a second. When a pool size is
+ * configured, key pairs are generated ahead of time on a background thread, and each
+ * keystore takes one from the pool if there is one. The pool is kept in memory only.
+ */
+final class KeyStoreGenerator {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(KeyStoreGenerator.class.getName());
+
+  static final String KEY_ALIAS = "AndroidKey";
+  private static final char[] KEYSTORE_PASSWORD = "android".toCharArray();
+
+  private static final String KEY_ALGORITHM = "RSA";
+  private static final int KEY_SIZE = 2048;
+  private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+  private static final long VALIDITY_DAYS = 10000;
+
+  private static final SecureRandom random = new SecureRandom();
+
+  private static volatile LinkedBlockingQueue<KeyPair> pool = null;
+
+  private static final ExecutorService refiller = Executors.newSingleThreadExecutor(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "key-pair-pool");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+
+  private KeyStoreGenerator() {
+  }
+
+  /**
+   * Sets the number of key pairs generated ahead of time. 0 disables the pool.
+   */
+  static synchronized void configure(int poolSize) {
+    if (poolSize <= 0) {
+      pool = null;
+    } else {
+      pool = new LinkedBlockingQueue<KeyPair>(poolSize);
+      LOG.info("Keeping a pool of " + poolSize + " key pairs");
+      refill();
+    }
+  }
+
+  /**
+   * Writes a new keystore.
+   *
+   * @param distinguishedName the distinguished name of the key's owner, in RFC 2253 format
+   * @param keyStoreFile the file to write
+   * @throws IOException if the keystore could not be created
+   */
+  static void createKeyStore(String distinguishedName, File keyStoreFile) throws IOException {
+    try {
+      KeyPair keyPair = takeKeyPair();
+      X509Certificate certificate = createCertificate(distinguishedName, keyPair);
+      KeyStore keyStore = KeyStore.getInstance("JKS");
+      keyStore.load(null, KEYSTORE_PASSWORD);
+      keyStore.setKeyEntry(KEY_ALIAS, keyPair.getPrivate(), KEYSTORE_PASSWORD,
+          new Certificate[] { certificate });
+      OutputStream out = new FileOutputStream(keyStoreFile);
+      try {
+        keyStore.store(out, KEYSTORE_PASSWORD);
+      } finally {
+        out.close();
+      }
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Unable to create keystore " + keyStoreFile, e);
+    } catch (OperatorCreationException e) {
+      throw new IOException("Unable to create keystore " + keyStoreFile, e);
+    } catch (IllegalArgumentException e) {
+      // Thrown for a malformed distinguished name.
+      throw new IOException("Unable to create keystore " + keyStoreFile, e);
+    }
+  }
+
+  /**
+   * Returns the key pairs currently in the pool.
+   */
+  @VisibleForTesting
+  static List<KeyPair> getPooledKeyPairs() {
+    LinkedBlockingQueue<KeyPair> keyPairs = pool;
+    return keyPairs == null ? Collections.<KeyPair>emptyList()
+        : new ArrayList<KeyPair>(keyPairs);
+  }
+
+  private static KeyPair takeKeyPair() throws GeneralSecurityException {
+    LinkedBlockingQueue<KeyPair> keyPairs = pool;
+    if (keyPairs != null) {
+      KeyPair keyPair = keyPairs.poll();
+      refill();
+      if (keyPair != null) {
+        return keyPair;
+      }
+    }
+    return generateKeyPair();
+  }
+
+  private static KeyPair generateKeyPair() throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+    generator.initialize(KEY_SIZE, random);
+    return generator.generateKeyPair();
+  }
+
+  /*
+   * Fills the pool on the background thread. Requests made while the pool is being filled
+   * find it full and return right away.
+   */
+  private static void refill() {
+    refiller.execute(new Runnable() {
+      @Override
+      public void run() {
+        LinkedBlockingQueue<KeyPair> keyPairs;
+        while ((keyPairs = pool) != null && keyPairs.remainingCapacity() > 0) {
+          try {
+            keyPairs.offer(generateKeyPair());
+          } catch (GeneralSecurityException e) {
+            LOG.log(Level.WARNING, "Unable to generate a key pair", e);
+            return;
+          }
+        }
+      }
+    });
+  }
+
+  private static X509Certificate createCertificate(String distinguishedName, KeyPair keyPair)
+      throws GeneralSecurityException, OperatorCreationException {
+    X500Name name = X500Name.getInstance(new X500Principal(distinguishedName).getEncoded());
+    long now = System.currentTimeMillis();
+    X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(name,
+        new BigInteger(64, random), new Date(now),
+        new Date(now + TimeUnit.DAYS.toMillis(VALIDITY_DAYS)), name, keyPair.getPublic());
+    try {
+      builder.addExtension(Extension.subjectKeyIdentifier, false,
+          new JcaX509ExtensionUtils().createSubjectKeyIdentifier(keyPair.getPublic()));
+    } catch (IOException e) {
+      throw new GeneralSecurityException(e);
+    }
+    return new JcaX509CertificateConverter().getCertificate(
+        builder.build(new JcaContentSignerBuilder(SIGNATURE_ALGORITHM)
+            .build(keyPair.getPrivate())));
+  }
+}
@@ -45,6 +45,14 @@ public final class Main {
     @Option(name = "--dexCacheDir",
             usage = "the directory to cache the pre-dexed libraries")
     String dexCacheDir = null;
+
+    @Option(name = "--buildCacheDir",
+            usage = "the directory to cache compiled classes and APKs of earlier builds")
+    String buildCacheDir = null;
+
+    @Option(name = "--buildCacheSizeMb",
+            usage = "Maximum size of the build cache in MBs")
+    int buildCacheSizeMb = 2048;
   }
 
   private static CommandLineOptions commandLineOptions = new CommandLineOptions();
@@ -71,6 +79,7 @@ public final class Main {
       System.exit(1);
     }
 
+    BuildCache.configure(commandLineOptions.buildCacheDir, commandLineOptions.buildCacheSizeMb);
     ProjectBuilder projectBuilder = new ProjectBuilder();
     ZipFile zip = null;
     try {
@@ -0,0 +1,236 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Accounts for the memory used by the child processes of builds.
+ *
+ * <p>Before a compiler stage starts a child process it reserves the memory the process may
+ * use (see {@link StageScheduler}), and waits if that would exceed the budget. The budget is
+ * the physical memory left over once the build server's own heap and some headroom are set
+ * aside, less what long-running child processes such as the warm Kawa workers hold (see
+ * {@link #setResidentMb}). The build server also checks the memory actually available
+ * before admitting a build, and reports itself as draining while memory is short. Until
+ * {@link #configure} is called the budget is unlimited, which is what the command line compiler needs.</p>
+ */
+final class MemoryBudget {
+
+  /**
+   * Memory reserved by {@link #reserve}. Must be released exactly once.
+   */
+  static final class Reservation {
+    private final long mb;
+    private boolean released = false;
+
+    private Reservation(long mb) {
+      this.mb = mb;
+    }
+
+    void release() {
+      if (!released) {
+        released = true;
+        MemoryBudget.release(mb);
+      }
+    }
+  }
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(MemoryBudget.class.getName());
+
+  // Memory kept back for the operating system and the build server's threads and metaspace.
+  private static final long HEADROOM_MB = 1024;
+
+  private static final long MB = 1024 * 1024;
+
+  private static final File MEMINFO = new File("/proc/meminfo");
+
+  private static final Object lock = new Object();
+
+  // Guarded by lock.
+  private static long budgetMb = Long.MAX_VALUE;
+  private static long reservedMb = 0;
+  private static long residentMb = 0;
+  private static int waiting = 0;
+  private static long buildMb = 0;
+  private static boolean underPressure = false;
+
+  private MemoryBudget() {
+  }
+
+  /**
+   * Sets the budget for child processes.
+   *
+   * @param budgetMb  memory child processes may reserve, in MB. 0 means the physical memory
+   *     less the maximum heap of the build server and some headroom.
+   * @param buildMb  the most memory a single build reserves at once, in MB. A build is
+   *     admitted only if at least this much is available.
+   */
+  static void configure(long budgetMb, long buildMb) {
+    if (budgetMb <= 0) {
+      long totalMb = getTotalPhysicalMb();
+      budgetMb = totalMb < 0 ? Long.MAX_VALUE : Math.max(buildMb,
+          totalMb - Runtime.getRuntime().maxMemory() / MB - HEADROOM_MB);
+    }
+    synchronized (lock) {
+      MemoryBudget.budgetMb = budgetMb;
+      MemoryBudget.buildMb = buildMb;
+      underPressure = false;
+      lock.notifyAll();
+    }
+    LOG.info("Memory budget for child processes = "
+        + (budgetMb == Long.MAX_VALUE ? "unlimited" : budgetMb + " MB"));
+  }
+
+  /**
+   * Sets the memory held by long-running child processes, which is taken out of the budget
+   * left for the child processes of build stages.
+   */
+  static void setResidentMb(long mb) {
+    synchronized (lock) {
+      residentMb = Math.max(0, mb);
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Blocks until {@code mb} of the budget can be reserved. A reservation larger than the
+   * whole budget is granted once nothing else is reserved.
+   */
+  static Reservation reserve(long mb) {
+    if (mb <= 0) {
+      return new Reservation(0);
+    }
+    boolean interrupted = false;
+    synchronized (lock) {
+      waiting++;
+      try {
+        while (reservedMb > 0 && residentMb + reservedMb + mb > budgetMb) {
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+      } finally {
+        waiting--;
+      }
+      reservedMb += mb;
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    return new Reservation(mb);
+  }
+
+  private static void release(long mb) {
+    if (mb > 0) {
+      synchronized (lock) {
+        reservedMb -= mb;
+        lock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Returns the memory available to new child processes: the unreserved part of the budget,
+   * or the physical memory actually available if that is less.
+   */
+  static long getAvailableMb() {
+    long unreservedMb;
+    synchronized (lock) {
+      unreservedMb = budgetMb - residentMb - reservedMb;
+    }
+    long freeMb = getFreePhysicalMb();
+    return freeMb < 0 ? unreservedMb : Math.min(unreservedMb, freeMb);
+  }
+
+  /**
+   * Returns whether there is too little memory to admit another build. The server stays
+   * under pressure until twice the memory of a build is available again, so it doesn't flap
+   * between admitting and refusing builds.
+   */
+  static boolean isUnderPressure() {
+    long availableMb = getAvailableMb();
+    synchronized (lock) {
+      if (underPressure) {
+        if (availableMb >= 2 * buildMb) {
+          underPressure = false;
+        }
+      } else if (availableMb < buildMb) {
+        underPressure = true;
+      }
+      return underPressure;
+    }
+  }
+
+  /*
+   * Returns the physical memory available without swapping, in MB, or -1 if unknown. On
+   * Linux this includes the page cache the kernel can drop, which the free memory reported
+   * by the JVM doesn't.
+   */
+  private static long getFreePhysicalMb() {
+    if (MEMINFO.canRead()) {
+      try {
+        for (String line : Files.readLines(MEMINFO, Charsets.US_ASCII)) {
+          if (line.startsWith("MemAvailable:")) {
+            return Long.parseLong(line.replaceAll("[^0-9]", "")) / 1024;
+          }
+        }
+      } catch (IOException e) {
+        // Fall back to the JVM's figure.
+      } catch (NumberFormatException e) {
+        // Fall back to the JVM's figure.
+      }
+    }
+    OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+    if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean) osBean).getFreePhysicalMemorySize() / MB;
+    }
+    return -1;
+  }
+
+  private static long getTotalPhysicalMb() {
+    OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+    if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean) osBean).getTotalPhysicalMemorySize()
+          / MB;
+    }
+    return -1;
+  }
+
+  /**
+   * Adds the budget, the reserved, resident and available memory and the number of stages
+   * waiting for memory to the given map of server variables.
+   */
+  static void addVariables(Map<String, String> variables) {
+    long budget;
+    long reserved;
+    long resident;
+    int waitingStages;
+    synchronized (lock) {
+      budget = budgetMb;
+      reserved = reservedMb;
+      resident = residentMb;
+      waitingStages = waiting;
+    }
+    variables.put("memory-budget-mb", budget == Long.MAX_VALUE ? "unlimited" : budget + "");
+    variables.put("memory-reserved-mb", reserved + "");
+    variables.put("memory-resident-mb", resident + "");
+    variables.put("memory-available-mb", getAvailableMb() + "");
+    variables.put("memory-free-physical-mb", getFreePhysicalMb() + "");
+    variables.put("memory-waiting-stages", waitingStages + "");
+  }
+}
@@ -0,0 +1,363 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Distributes the inputs of dx over as many dex files as needed to stay within the dex
+ * format's limit of 65536 method and field references per file.
+ *
+ * <p>The number of references of each input is read from the header of its pre-dexed
+ * version when available, and otherwise counted from its class files, where every distinct
+ * method or field is counted once. Both are upper bounds of what the input adds to a
+ * merged dex file, since references shared between inputs are counted once per input.
+ */
+final class MultiDexPacker {
+
+  // The most method or field references a single dex file may contain.
+  static final int MAX_REFERENCES = 65536;
+
+  // Offsets of field_ids_size and method_ids_size in the dex file header.
+  private static final int DEX_FIELD_IDS_SIZE_OFFSET = 0x50;
+  private static final int DEX_METHOD_IDS_SIZE_OFFSET = 0x58;
+
+  private static final String CLASSES_DEX = "classes.dex";
+  private static final String CLASS_SUFFIX = ".class";
+
+  /**
+   * Number of method and field references in a dx input.
+   */
+  static final class References {
+    final int methods;
+    final int fields;
+
+    References(int methods, int fields) {
+      this.methods = methods;
+      this.fields = fields;
+    }
+  }
+
+  /**
+   * Thrown when the inputs that must be in classes.dex have more references than a dex file
+   * can hold.
+   */
+  static final class PrimaryDexOverflowException extends IOException {
+    PrimaryDexOverflowException(References references) {
+      super("The classes that must be in classes.dex have " + references.methods
+          + " method and " + references.fields + " field references, more than the "
+          + MAX_REFERENCES + " of each a dex file can hold");
+    }
+  }
+
+  private MultiDexPacker() {
+  }
+
+  /**
+   * Assigns the inputs to dex files. The primary inputs all go to the first dex file, which
+   * Android loads before any other. The libraries are then packed first-fit, largest first,
+   * into the first dex file with room for them. Within each dex file, inputs keep the order
+   * they were given in.
+   *
+   * @param primary inputs that must be in the first dex file
+   * @param libraries inputs that may be in any dex file
+   * @param references the references of every input
+   * @return the inputs of each dex file, starting with classes.dex
+   * @throws PrimaryDexOverflowException if the primary inputs don't fit in one dex file
+   * @throws IOException if the primary inputs had to be counted again and couldn't be read
+   */
+  static List<List<File>> pack(List<File> primary, List<File> libraries,
+      Map<File, References> references) throws IOException {
+    List<Bin> bins = new ArrayList<Bin>();
+    Bin first = new Bin();
+    for (File input : primary) {
+      first.add(input, references.get(input));
+    }
+    if (first.overflows()) {
+      // References shared between the primary inputs were counted once per input, so count
+      // them together before giving up.
+      References primaryReferences = count(primary);
+      if (primaryReferences.methods > MAX_REFERENCES
+          || primaryReferences.fields > MAX_REFERENCES) {
+        throw new PrimaryDexOverflowException(primaryReferences);
+      }
+      first.methods = primaryReferences.methods;
+      first.fields = primaryReferences.fields;
+    }
+    bins.add(first);
+
+    List<File> sorted = new ArrayList<File>(libraries);
+    final Map<File, References> refs = references;
+    Collections.sort(sorted, new Comparator<File>() {
+      @Override
+      public int compare(File left, File right) {
+        return refs.get(right).methods - refs.get(left).methods;
+      }
+    });
+    for (File library : sorted) {
+      References libraryReferences = references.get(library);
+      Bin target = null;
+      for (Bin bin : bins) {
+        if (bin.fits(libraryReferences)) {
+          target = bin;
+          break;
+        }
+      }
+      if (target == null) {
+        target = new Bin();
+        bins.add(target);
+      }
+      target.add(library, libraryReferences);
+    }
+
+    List<List<File>> result = new ArrayList<List<File>>();
+    for (Bin bin : bins) {
+      List<File> inputs = new ArrayList<File>();
+      for (File input : primary) {
+        if (bin.inputs.contains(input)) {
+          inputs.add(input);
+        }
+      }
+      for (File input : libraries) {
+        if (bin.inputs.contains(input)) {
+          inputs.add(input);
+        }
+      }
+      result.add(inputs);
+    }
+    return result;
+  }
+
+  private static class Bin {
+    final List<File> inputs = new ArrayList<File>();
+    int methods = 0;
+    int fields = 0;
+
+    boolean fits(References references) {
+      return methods + references.methods <= MAX_REFERENCES
+          && fields + references.fields <= MAX_REFERENCES;
+    }
+
+    boolean overflows() {
+      return methods > MAX_REFERENCES || fields > MAX_REFERENCES;
+    }
+
+    void add(File input, References references) {
+      inputs.add(input);
+      methods += references.methods;
+      fields += references.fields;
+    }
+  }
+
+  /**
+   * Counts the references of a dx input: a pre-dexed jar, a jar of class files, or a
+   * directory of class files.
+   */
+  static References count(File input) throws IOException {
+    return count(Collections.singletonList(input));
+  }
+
+  /**
+   * Counts the references of several dx inputs together, so that references shared between
+   * inputs of class files are counted once. The references of pre-dexed inputs are added as
+   * they are.
+   */
+  static References count(List<File> inputs) throws IOException {
+    Counter counter = new Counter();
+    int dexMethods = 0;
+    int dexFields = 0;
+    for (File input : inputs) {
+      if (input.isDirectory()) {
+        countDirectory(input, counter);
+        continue;
+      }
+      ZipFile zip = new ZipFile(input);
+      try {
+        ZipEntry dex = zip.getEntry(CLASSES_DEX);
+        if (dex != null) {
+          InputStream in = zip.getInputStream(dex);
+          try {
+            References dexReferences = readDexHeader(in);
+            dexMethods += dexReferences.methods;
+            dexFields += dexReferences.fields;
+          } finally {
+            in.close();
+          }
+          continue;
+        }
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+          ZipEntry entry = entries.nextElement();
+          if (entry.getName().endsWith(CLASS_SUFFIX)) {
+            InputStream in = zip.getInputStream(entry);
+            try {
+              countClass(in, counter);
+            } finally {
+              in.close();
+            }
+          }
+        }
+      } finally {
+        zip.close();
+      }
+    }
+    return new References(counter.methods.size() + dexMethods,
+        counter.fields.size() + dexFields);
+  }
+
+  private static References readDexHeader(InputStream in) throws IOException {
+    byte[] header = new byte[DEX_METHOD_IDS_SIZE_OFFSET + 4];
+    ByteStreams.readFully(in, header);
+    return new References(readLittleEndianInt(header, DEX_METHOD_IDS_SIZE_OFFSET),
+        readLittleEndianInt(header, DEX_FIELD_IDS_SIZE_OFFSET));
+  }
+
+  private static int readLittleEndianInt(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8
+        | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+  }
+
+  private static void countDirectory(File dir, Counter counter) throws IOException {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.isDirectory()) {
+        countDirectory(file, counter);
+      } else if (file.getName().endsWith(CLASS_SUFFIX)) {
+        InputStream in = new FileInputStream(file);
+        try {
+          countClass(in, counter);
+        } finally {
+          in.close();
+        }
+      }
+    }
+  }
+
+  private static class Counter {
+    // The distinct methods and fields referenced or declared, as owner.name:descriptor.
+    final Set<String> methods = new HashSet<String>();
+    final Set<String> fields = new HashSet<String>();
+  }
+
+  /*
+   * Adds the method and field references of one class file, that is its constant pool
+   * method and field references plus its declared methods and fields.
+   */
+  private static void countClass(InputStream stream, Counter counter) throws IOException {
+    DataInputStream in = new DataInputStream(stream);
+    in.readInt();                       // magic
+    in.readUnsignedShort();             // minor_version
+    in.readUnsignedShort();             // major_version
+    int constantPoolCount = in.readUnsignedShort();
+    // For each entry: the Utf8 text, or the indexes a Class, NameAndType or
+    // Fieldref/Methodref entry points to.
+    String[] utf8 = new String[constantPoolCount];
+    int[] first = new int[constantPoolCount];
+    int[] second = new int[constantPoolCount];
+    int[] tags = new int[constantPoolCount];
+    for (int i = 1; i < constantPoolCount; i++) {
+      int tag = in.readUnsignedByte();
+      tags[i] = tag;
+      switch (tag) {
+        case 1:                         // Utf8
+          utf8[i] = in.readUTF();
+          break;
+        case 9:                         // Fieldref
+        case 10:                        // Methodref
+        case 11:                        // InterfaceMethodref
+        case 12:                        // NameAndType
+          first[i] = in.readUnsignedShort();
+          second[i] = in.readUnsignedShort();
+          break;
+        case 7:                         // Class
+          first[i] = in.readUnsignedShort();
+          break;
+        case 3:                         // Integer
+        case 4:                         // Float
+        case 17:                        // Dynamic
+        case 18:                        // InvokeDynamic
+          skip(in, 4);
+          break;
+        case 5:                         // Long
+        case 6:                         // Double
+          skip(in, 8);
+          i++;                          // takes two entries
+          break;
+        case 8:                         // String
+        case 16:                        // MethodType
+        case 19:                        // Module
+        case 20:                        // Package
+          skip(in, 2);
+          break;
+        case 15:                        // MethodHandle
+          skip(in, 3);
+          break;
+        default:
+          throw new IOException("Unknown constant pool tag " + tag);
+      }
+    }
+    for (int i = 1; i < constantPoolCount; i++) {
+      if (tags[i] == 9 || tags[i] == 10 || tags[i] == 11) {
+        int nameAndType = second[i];
+        String reference = utf8[first[first[i]]] + "." + utf8[first[nameAndType]] + ":"
+            + utf8[second[nameAndType]];
+        if (tags[i] == 9) {
+          counter.fields.add(reference);
+        } else {
+          counter.methods.add(reference);
+        }
+      }
+    }
+    in.readUnsignedShort();             // access_flags
+    String thisClass = utf8[first[in.readUnsignedShort()]];
+    in.readUnsignedShort();             // super_class
+    skip(in, 2 * in.readUnsignedShort());  // interfaces
+    readMembers(in, thisClass, utf8, counter.fields);
+    readMembers(in, thisClass, utf8, counter.methods);
+  }
+
+  /*
+   * Reads a fields or methods table and adds its entries to the given set.
+   */
+  private static void readMembers(DataInputStream in, String owner, String[] utf8,
+      Set<String> members) throws IOException {
+    int count = in.readUnsignedShort();
+    for (int i = 0; i < count; i++) {
+      in.readUnsignedShort();           // access_flags
+      String name = utf8[in.readUnsignedShort()];
+      String descriptor = utf8[in.readUnsignedShort()];
+      members.add(owner + "." + name + ":" + descriptor);
+      int attributes = in.readUnsignedShort();
+      for (int j = 0; j < attributes; j++) {
+        skip(in, 2);                    // attribute_name_index
+        skip(in, in.readInt());
+      }
+    }
+  }
+
+  private static void skip(DataInputStream in, int bytes) throws IOException {
+    ByteStreams.skipFully(in, bytes);
+  }
+}
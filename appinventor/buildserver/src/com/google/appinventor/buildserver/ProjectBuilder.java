@@ -13,10 +13,9 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
-import com.google.common.io.InputSupplier;
 import com.google.common.io.Resources;
 
 import org.codehaus.jettison.json.JSONArray;
@@ -25,16 +24,18 @@ import org.codehaus.jettison.json.JSONObject;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -120,12 +121,14 @@ public final class ProjectBuilder {
 
   Result build(String userName, ZipFile inputZip, File outputDir, boolean isForCompanion,
     int childProcessRam, String dexCachePath, BuildServer.ProgressReporter reporter) {
+    BuildTrace trace = BuildTrace.start();
     try {
       // Download project files into a temporary directory
       File projectRoot = createNewTempDir();
       LOG.info("temporary project root: " + projectRoot.getAbsolutePath());
       try {
         List<String> sourceFiles;
+        BuildTrace.stage("extract");
         try {
           sourceFiles = extractProjectFiles(inputZip, projectRoot);
         } catch (IOException e) {
@@ -136,6 +139,7 @@ public final class ProjectBuilder {
         File keyStoreFile = new File(projectRoot, KEYSTORE_FILE_NAME);
         String keyStorePath = keyStoreFile.getPath();
         if (!keyStoreFile.exists()) {
+          BuildTrace.stage("keystore");
           keyStorePath = createKeyStore(userName, projectRoot, KEYSTORE_FILE_NAME);
           saveKeystore = true;
         }
@@ -143,6 +147,21 @@ public final class ProjectBuilder {
         // Create project object from project properties file.
         Project project = getProjectProperties(projectRoot);
 
+        // A project that brings its own keystore always builds to the same APK, so an
+        // identical earlier build can be reused. A freshly generated keystore cannot.
+        BuildCache cache = saveKeystore ? null : BuildCache.getInstance();
+        String cacheKey = null;
+        if (cache != null) {
+          BuildTrace.stage("build-cache");
+          cacheKey = BuildCache.hashProject(inputZip, isForCompanion);
+          File cachedApk = new File(outputDir, project.getProjectName() + ".apk");
+          if (cache.restoreApk(cacheKey, cachedApk)) {
+            LOG.info("Using cached build " + cacheKey);
+            outputApk = cachedApk;
+            return new Result(true, "Using cached build.", "");
+          }
+        }
+
         File buildTmpDir = new File(projectRoot, "build/tmp");
         buildTmpDir.mkdirs();
 
@@ -155,10 +174,36 @@ public final class ProjectBuilder {
         Set<String> componentTypes = isForCompanion ? getAllComponentTypes() :
             getComponentTypes(sourceFiles, project.getAssetsDirectory());
 
+        // Companion builds of the same sources differ only in their keystore, so the unsigned
+        // companion is built once per release and then only signed for each user.
+        BuildCache unsignedCache = isForCompanion ? BuildCache.getInstance() : null;
+        String unsignedKey = null;
+        File prebuiltApk = null;
+        if (unsignedCache != null) {
+          BuildTrace.stage("build-cache");
+          unsignedKey = BuildCache.hashUnsignedProject(inputZip);
+          // Signing works on a link or copy of the cache entry, so it can't be evicted midway.
+          File unsignedApk = new File(buildTmpDir, Compiler.UNSIGNED_APK_NAME);
+          if (unsignedCache.restoreUnsignedApk(unsignedKey, unsignedApk)) {
+            prebuiltApk = unsignedApk;
+          }
+        }
+
         // Invoke YoungAndroid compiler
-        boolean success =
-            Compiler.compile(project, componentTypes, console, console, userErrors, isForCompanion,
-                             keyStorePath, childProcessRam, dexCachePath, reporter);
+        boolean success;
+        if (prebuiltApk != null) {
+          LOG.info("Using prebuilt companion " + unsignedKey);
+          success = Compiler.signPrebuilt(project, componentTypes, console, console, userErrors,
+              prebuiltApk, keyStorePath, reporter);
+        } else {
+          success = Compiler.compile(project, componentTypes, console, console, userErrors,
+              isForCompanion, keyStorePath, childProcessRam, dexCachePath, reporter);
+          File unsignedApk = new File(projectRoot, "build/tmp/" + Compiler.UNSIGNED_APK_NAME);
+          if (success && unsignedCache != null && unsignedApk.isFile()) {
+            unsignedCache.putUnsignedApk(unsignedKey, unsignedApk);
+          }
+        }
+        BuildTrace.endStage();
         console.close();
         userErrors.close();
 
@@ -174,8 +219,12 @@ public final class ProjectBuilder {
           if (!outputFile.exists()) {
             LOG.warning("Young Android build - " + outputFile + " does not exist");
           } else {
+            BuildTrace.stage("output");
             outputApk = new File(outputDir, outputFile.getName());
-            Files.copy(outputFile, outputApk);
+            FileStaging.move(outputFile, outputApk);
+            if (cache != null) {
+              cache.putApk(cacheKey, outputApk);
+            }
             if (saveKeystore) {
               outputKeystore = new File(outputDir, KEYSTORE_FILE_NAME);
               Files.copy(keyStoreFile, outputKeystore);
@@ -194,6 +243,8 @@ public final class ProjectBuilder {
     } catch (Exception e) {
       e.printStackTrace();
       return Result.createFailingResult("", "Server error performing build");
+    } finally {
+      trace.finish();
     }
   }
 
@@ -207,31 +258,40 @@ public final class ProjectBuilder {
     return compSet;
   }
 
-  private ArrayList<String> extractProjectFiles(ZipFile inputZip, File projectRoot)
+  @VisibleForTesting
+  ArrayList<String> extractProjectFiles(ZipFile inputZip, File projectRoot)
       throws IOException {
     ArrayList<String> projectFileNames = Lists.newArrayList();
     Enumeration<? extends ZipEntry> inputZipEnumeration = inputZip.entries();
     while (inputZipEnumeration.hasMoreElements()) {
       ZipEntry zipEntry = inputZipEnumeration.nextElement();
-      final InputStream extractedInputStream = inputZip.getInputStream(zipEntry);
       File extractedFile = new File(projectRoot, zipEntry.getName());
-      LOG.info("extracting " + extractedFile.getAbsolutePath() + " from input zip");
-      Files.createParentDirs(extractedFile); // Do I need this?
-      Files.copy(
-          new InputSupplier<InputStream>() {
-            public InputStream getInput() throws IOException {
-              return extractedInputStream;
-            }
-          },
-          extractedFile);
+      LOG.fine("extracting " + extractedFile.getAbsolutePath() + " from input zip");
+      Files.createParentDirs(extractedFile);
+      // Stream each entry straight to its file. Assets written here are linked, not copied,
+      // into the build's asset directory later.
+      InputStream in = inputZip.getInputStream(zipEntry);
+      try {
+        OutputStream out = new FileOutputStream(extractedFile);
+        try {
+          BuildTrace.currentStage().addBytesRead(Math.max(0, zipEntry.getCompressedSize()))
+              .addBytesWritten(ByteStreams.copy(in, out));
+        } finally {
+          out.close();
+        }
+      } finally {
+        in.close();
+      }
       projectFileNames.add(extractedFile.getPath());
     }
     return projectFileNames;
   }
 
-  private static Set<String> getComponentTypes(List<String> files, File assetsDir)
+  @VisibleForTesting
+  static Set<String> getComponentTypes(List<String> files, File assetsDir)
       throws IOException, JSONException {
-    Map<String, String> nameTypeMap = createNameTypeMap(assetsDir);
+    ComponentIndex componentIndex = ComponentIndex.getBuiltIn()
+        .withExtensions(readExtensionComponents(assetsDir), new JSONArray());
 
     Set<String> componentTypes = Sets.newHashSet();
     for (String f : files) {
@@ -240,7 +300,7 @@ public final class ProjectBuilder {
         String scmContent = new String(Files.toByteArray(scmFile),
             PathUtil.DEFAULT_CHARSET);
         for (String compName : getTypesFromScm(scmContent)) {
-          componentTypes.add(nameTypeMap.get(compName));
+          componentTypes.add(componentIndex.getType(compName));
         }
       }
     }
@@ -251,25 +311,18 @@ public final class ProjectBuilder {
    * In ode code, component names are used to identify a component though the
    * variables storing component names appear to be "type". While there's no
    * harm in ode, here in build server, they need to be separated.
-   * This method returns a name-type map, mapping the component names used in
-   * ode to the corresponding type, aka fully qualified name. The type will be
-   * used to build apk.
+   * This method returns the descriptions of the project's extensions, which
+   * map the component names used in ode to the corresponding type, aka fully
+   * qualified name. The built-in components are mapped by the shared
+   * {@link ComponentIndex}. The type will be used to build apk.
    */
-  private static Map<String, String> createNameTypeMap(File assetsDir)
+  private static JSONArray readExtensionComponents(File assetsDir)
       throws IOException, JSONException {
-    Map<String, String> nameTypeMap = Maps.newHashMap();
-
-    JSONArray simpleCompsJson = new JSONArray(Resources.toString(ProjectBuilder.
-        class.getResource("/files/simple_components.json"), Charsets.UTF_8));
-    for (int i = 0; i < simpleCompsJson.length(); ++i) {
-      JSONObject simpleCompJson = simpleCompsJson.getJSONObject(i);
-      nameTypeMap.put(simpleCompJson.getString("name"),
-          simpleCompJson.getString("type"));
-    }
+    JSONArray extComps = new JSONArray();
 
     File extCompsDir = new File(assetsDir, "external_comps");
     if (!extCompsDir.exists()) {
-      return nameTypeMap;
+      return extComps;
     }
 
     for (File extCompDir : extCompsDir.listFiles()) {
@@ -279,25 +332,21 @@ public final class ProjectBuilder {
 
       File extCompJsonFile = new File (extCompDir, "component.json");
       if (extCompJsonFile.exists()) {
-        JSONObject extCompJson = new JSONObject(Resources.toString(
-            extCompJsonFile.toURI().toURL(), Charsets.UTF_8));
-        nameTypeMap.put(extCompJson.getString("name"),
-            extCompJson.getString("type"));
+        extComps.put(new JSONObject(Resources.toString(
+            extCompJsonFile.toURI().toURL(), Charsets.UTF_8)));
       } else {  // multi-extension package
         extCompJsonFile = new File(extCompDir, "components.json");
         if (extCompJsonFile.exists()) {
           JSONArray extCompJson = new JSONArray(Resources.toString(
               extCompJsonFile.toURI().toURL(), Charsets.UTF_8));
           for (int i = 0; i < extCompJson.length(); i++) {
-            JSONObject extCompDescriptor = extCompJson.getJSONObject(i);
-            nameTypeMap.put(extCompDescriptor.getString("name"),
-                extCompDescriptor.getString("type"));
+            extComps.put(extCompJson.getJSONObject(i));
           }
         }
       }
     }
 
-    return nameTypeMap;
+    return extComps;
   }
 
   static String createKeyStore(String userName, File projectRoot, String keystoreFileName)
@@ -310,13 +359,22 @@ public final class ProjectBuilder {
     *
     * For DNAME, US may not the right country to assign it to.
     */
+    String distinguishedName =
+        "CN=" + quotifyUserName(userName) + ", O=AppInventor for Android, C=US";
+    try {
+      KeyStoreGenerator.createKeyStore(distinguishedName, keyStoreFile);
+      return keyStoreFile.getAbsolutePath();
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to create keystore in-process, running keytool", e);
+    }
+
     String[] keytoolCommandline = {
         System.getProperty("java.home") + "/bin/keytool",
         "-genkey",
         "-keystore", keyStoreFile.getAbsolutePath(),
         "-alias", "AndroidKey",
         "-keyalg", "RSA",
-        "-dname", "CN=" + quotifyUserName(userName) + ", O=AppInventor for Android, C=US",
+        "-dname", distinguishedName,
         "-validity", "10000",
         "-storepass", "android",
         "-keypass", "android"
@@ -0,0 +1,205 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An {@link Executor} used for executing build tasks using a fixed pool of worker threads.
+ *
+ * <p>At most {@code maxActiveTasks} tasks run at once. Up to {@code maxQueuedTasks}
+ * additional tasks wait in FIFO order for a worker; tasks beyond that are rejected with a
+ * {@link RejectedExecutionException}. With no queue, a task is accepted only if a worker
+ * is free.</p>
+ *
+ * <p>The executor records how long tasks waited in the queue and how long they ran, which
+ * is used for {@link #estimateWaitMillis()} and for the wait percentiles.</p>
+ */
+final class QueuingExecutor implements Executor {
+  // The number of recent wait times kept for percentiles.
+  private static final int WAIT_SAMPLES = 1000;
+
+  // Weight of the most recent task in the average run time.
+  private static final double RUN_TIME_WEIGHT = 0.1;
+
+  // The maximum number of active tasks. 0 means unlimited.
+  private final int maxActiveTasks;
+
+  // The maximum number of tasks waiting for a worker.
+  private final int maxQueuedTasks;
+
+  private final ThreadPoolExecutor pool;
+
+  // Tasks accepted but not yet started. Admission is decided on these counts rather than
+  // by the pool, so that a worker that has finished a task but not yet gone back to the
+  // pool's queue already counts as free.
+  private final AtomicInteger queuedTaskCount = new AtomicInteger(0);
+  private final AtomicInteger activeTaskCount = new AtomicInteger(0);
+  private final AtomicInteger completedTaskCount = new AtomicInteger(0);
+  private final AtomicInteger rejectedTaskCount = new AtomicInteger(0);
+
+  // lockExecute is used so that tasks are admitted one at a time.
+  private final Object lockExecute = new Object();
+
+  // Ring buffer of recent queue wait times, guarded by itself.
+  private final long[] waitMillis = new long[WAIT_SAMPLES];
+  private int waitSampleCount = 0;
+
+  // Exponentially weighted average of task run times, guarded by waitMillis.
+  private double averageRunMillis = 0;
+
+  /**
+   * Creates a QueuingExecutor.
+   *
+   * @param maxActiveTasks the maximum number of active tasks, 0 means unlimited
+   * @param maxQueuedTasks the maximum number of tasks waiting for a worker
+   */
+  QueuingExecutor(int maxActiveTasks, int maxQueuedTasks) {
+    this.maxActiveTasks = maxActiveTasks;
+    this.maxQueuedTasks = maxActiveTasks == 0 ? 0 : maxQueuedTasks;
+    final AtomicInteger threadCount = new AtomicInteger(0);
+    ThreadFactory threadFactory = new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        return new Thread(runnable, "build-" + threadCount.incrementAndGet());
+      }
+    };
+    if (maxActiveTasks == 0) {
+      pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+          new SynchronousQueue<Runnable>(), threadFactory);
+    } else {
+      // The queue is unbounded because execute() limits the tasks it accepts.
+      pool = new ThreadPoolExecutor(maxActiveTasks, maxActiveTasks, 0, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), threadFactory);
+    }
+  }
+
+  @Override
+  public void execute(final Runnable runnable) {
+    final long queuedAt = System.currentTimeMillis();
+    synchronized (lockExecute) {
+      if (maxActiveTasks != 0 && activeTaskCount.get() + queuedTaskCount.get()
+          >= maxActiveTasks + maxQueuedTasks) {
+        rejectedTaskCount.incrementAndGet();
+        throw new RejectedExecutionException();
+      }
+      queuedTaskCount.incrementAndGet();
+    }
+    try {
+      pool.execute(new Runnable() {
+        @Override
+        public void run() {
+          long startedAt = System.currentTimeMillis();
+          activeTaskCount.incrementAndGet();
+          queuedTaskCount.decrementAndGet();
+          recordWait(startedAt - queuedAt);
+          try {
+            runnable.run();
+          } finally {
+            completedTaskCount.incrementAndGet();
+            recordRun(System.currentTimeMillis() - startedAt);
+            activeTaskCount.decrementAndGet();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      queuedTaskCount.decrementAndGet();
+      rejectedTaskCount.incrementAndGet();
+      throw e;
+    }
+  }
+
+  private void recordWait(long millis) {
+    synchronized (waitMillis) {
+      waitMillis[waitSampleCount % WAIT_SAMPLES] = millis;
+      waitSampleCount++;
+    }
+  }
+
+  private void recordRun(long millis) {
+    synchronized (waitMillis) {
+      if (averageRunMillis == 0) {
+        averageRunMillis = millis;
+      } else {
+        averageRunMillis += RUN_TIME_WEIGHT * (millis - averageRunMillis);
+      }
+    }
+  }
+
+  /**
+   * Estimates how long a task submitted now would wait before it starts, based on the
+   * number of queued tasks and the average run time of recent tasks.
+   *
+   * @return the estimated wait in milliseconds, 0 if a worker is free
+   */
+  public long estimateWaitMillis() {
+    if (maxActiveTasks == 0) {
+      return 0;
+    }
+    int ahead = getQueuedTaskCount() + activeTaskCount.get() - maxActiveTasks + 1;
+    if (ahead <= 0) {
+      return 0;
+    }
+    double average;
+    synchronized (waitMillis) {
+      average = averageRunMillis;
+    }
+    // Tasks ahead of this one are spread over all workers.
+    long rounds = (ahead + maxActiveTasks - 1) / maxActiveTasks;
+    return (long) (rounds * average);
+  }
+
+  /**
+   * Returns the given percentile of recent queue wait times.
+   *
+   * @param percentile a value between 0 and 100
+   * @return the wait time in milliseconds, 0 if no task has started yet
+   */
+  public long getWaitPercentileMillis(double percentile) {
+    long[] samples;
+    synchronized (waitMillis) {
+      samples = Arrays.copyOf(waitMillis, Math.min(waitSampleCount, WAIT_SAMPLES));
+    }
+    if (samples.length == 0) {
+      return 0;
+    }
+    Arrays.sort(samples);
+    int index = (int) Math.ceil(percentile / 100.0 * samples.length) - 1;
+    return samples[Math.max(0, Math.min(samples.length - 1, index))];
+  }
+
+  public int getMaxActiveTasks() {
+    return maxActiveTasks;
+  }
+
+  public int getMaxQueuedTasks() {
+    return maxQueuedTasks;
+  }
+
+  public int getActiveTaskCount() {
+    return activeTaskCount.get();
+  }
+
+  public int getQueuedTaskCount() {
+    return queuedTaskCount.get();
+  }
+
+  public int getCompletedTaskCount() {
+    return completedTaskCount.get();
+  }
+
+  public int getRejectedTaskCount() {
+    return rejectedTaskCount.get();
+  }
+}
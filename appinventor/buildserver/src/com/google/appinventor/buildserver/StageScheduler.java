@@ -0,0 +1,232 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Limits how many builds may be in each resource-heavy stage of the compiler at once.
+ *
+ * <p>Each {@link Stage} has its own fair semaphore, so a build waiting to run DX does not
+ * block another build that is ready to run Kawa or AAPT. Once admitted to a stage, a build
+ * also reserves the memory of the stage's child process from the {@link MemoryBudget}. Until
+ * {@link #configure} is called, Kawa and DX are limited to one process each and the other
+ * stages to the number of processors, and no memory is reserved, which matches the command
+ * line compiler's needs.
+ */
+final class StageScheduler {
+
+  /**
+   * Stages of the compiler that launch expensive child processes.
+   */
+  enum Stage {
+    KAWA("kawa"),
+    DX("dx"),
+    AAPT("aapt"),
+    SIGN("sign");
+
+    private final String label;
+
+    Stage(String label) {
+      this.label = label;
+    }
+
+    String getLabel() {
+      return label;
+    }
+  }
+
+  /**
+   * Handle returned by {@link #acquire(Stage)}. Must be released exactly once.
+   */
+  static final class Permit {
+    private final StageState state;
+    private final MemoryBudget.Reservation memory;
+    private boolean released = false;
+
+    private Permit(StageState state, MemoryBudget.Reservation memory) {
+      this.state = state;
+      this.memory = memory;
+    }
+
+    void release() {
+      if (!released) {
+        released = true;
+        memory.release();
+        state.active.decrementAndGet();
+        state.semaphore.release();
+      }
+    }
+  }
+
+  /*
+   * Limit and counters of one stage. The semaphore is replaced when the scheduler is
+   * reconfigured; permits held at that time are returned to the semaphore they came from.
+   */
+  private static final class StageState {
+    final int limit;
+    final long ramMb;
+    final Semaphore semaphore;
+    final AtomicInteger waiting = new AtomicInteger(0);
+    final AtomicInteger active = new AtomicInteger(0);
+    final AtomicLong count = new AtomicLong(0);
+    final AtomicLong totalWaitMillis = new AtomicLong(0);
+    final AtomicLong maxWaitMillis = new AtomicLong(0);
+
+    StageState(int limit, long ramMb) {
+      this.limit = limit;
+      this.ramMb = ramMb;
+      this.semaphore = new Semaphore(limit, true);
+    }
+  }
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(StageScheduler.class.getName());
+
+  // Memory kept back for the build server itself when sizing the memory-bound stages.
+  private static final long RESERVED_RAM_MB = 1024;
+
+  // Memory reserved for an AAPT, jarsigner or zipalign process.
+  private static final long SMALL_PROCESS_RAM_MB = 256;
+
+  private static final Map<Stage, StageState> stages =
+      new EnumMap<Stage, StageState>(Stage.class);
+
+  static {
+    reset();
+  }
+
+  private StageScheduler() {
+  }
+
+  /**
+   * Restores the limits used until {@link #configure} is called.
+   */
+  @VisibleForTesting
+  static synchronized void reset() {
+    int processors = Runtime.getRuntime().availableProcessors();
+    stages.put(Stage.KAWA, new StageState(1, 0));
+    stages.put(Stage.DX, new StageState(1, 0));
+    stages.put(Stage.AAPT, new StageState(processors, 0));
+    stages.put(Stage.SIGN, new StageState(processors, 0));
+  }
+
+  /**
+   * Sets the concurrency limit and the memory reservation of every stage. A limit of 0
+   * selects a default based on the number of processors and, for Kawa and DX, on how many
+   * child processes of {@code childProcessRamMb} fit in physical memory. Stages that run
+   * inside the build server, such as in-process dx and signing, reserve no memory.
+   */
+  static void configure(int childProcessRamMb, int kawaLimit, int dxLimit, int aaptLimit,
+      int signLimit) {
+    int processors = Runtime.getRuntime().availableProcessors();
+    int memoryBound = Math.max(1, Math.min(processors / 2, memoryBoundLimit(childProcessRamMb)));
+    setLimit(Stage.KAWA, kawaLimit > 0 ? kawaLimit : memoryBound, childProcessRamMb);
+    setLimit(Stage.DX, dxLimit > 0 ? dxLimit : memoryBound,
+        InProcessDexer.isEnabled() ? 0 : childProcessRamMb);
+    setLimit(Stage.AAPT, aaptLimit > 0 ? aaptLimit : processors, SMALL_PROCESS_RAM_MB);
+    setLimit(Stage.SIGN, signLimit > 0 ? signLimit : processors,
+        ApkSigner.isEnabled() ? 0 : SMALL_PROCESS_RAM_MB);
+    for (Stage stage : Stage.values()) {
+      LOG.info("Maximum simultaneous " + stage.getLabel() + " processes = " + getLimit(stage));
+    }
+  }
+
+  private static synchronized void setLimit(Stage stage, int limit, long ramMb) {
+    stages.put(stage, new StageState(limit, ramMb));
+  }
+
+  private static synchronized StageState getState(Stage stage) {
+    return stages.get(stage);
+  }
+
+  /*
+   * Returns how many child processes of the given size fit in physical memory, or
+   * Integer.MAX_VALUE if the physical memory size is not available.
+   */
+  private static int memoryBoundLimit(int childProcessRamMb) {
+    OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+    if (childProcessRamMb <= 0 || !(osBean instanceof com.sun.management.OperatingSystemMXBean)) {
+      return Integer.MAX_VALUE;
+    }
+    long totalMb = ((com.sun.management.OperatingSystemMXBean) osBean)
+        .getTotalPhysicalMemorySize() / (1024 * 1024);
+    return (int) Math.max(1, (totalMb - RESERVED_RAM_MB) / childProcessRamMb);
+  }
+
+  /**
+   * Blocks until the calling build may enter the given stage and has reserved the memory
+   * of its child process.
+   */
+  static Permit acquire(Stage stage) {
+    return acquire(stage, true);
+  }
+
+  /**
+   * Blocks until the calling build may enter the given stage and, if {@code reserveMemory}
+   * is true, has reserved the memory of its child process. Builds that hand the stage's
+   * work to a long-running process, whose memory is already accounted for, reserve none.
+   */
+  static Permit acquire(Stage stage, boolean reserveMemory) {
+    StageState state = getState(stage);
+    long start = System.nanoTime();
+    state.waiting.incrementAndGet();
+    try {
+      state.semaphore.acquireUninterruptibly();
+    } finally {
+      state.waiting.decrementAndGet();
+    }
+    MemoryBudget.Reservation memory = MemoryBudget.reserve(reserveMemory ? state.ramMb : 0);
+    state.active.incrementAndGet();
+    BuildTrace.record("stage-" + stage.getLabel(), BuildTrace.WAIT, start);
+    long waited = (System.nanoTime() - start) / 1000000;
+    state.count.incrementAndGet();
+    state.totalWaitMillis.addAndGet(waited);
+    long max;
+    while (waited > (max = state.maxWaitMillis.get())) {
+      if (state.maxWaitMillis.compareAndSet(max, waited)) {
+        break;
+      }
+    }
+    if (waited > 0) {
+      LOG.info("Waited " + waited + " ms to enter the " + stage.getLabel() + " stage");
+    }
+    return new Permit(state, memory);
+  }
+
+  static int getLimit(Stage stage) {
+    return getState(stage).limit;
+  }
+
+  /**
+   * Adds the limit, queue depth and wait times of every stage to the given map of
+   * server variables.
+   */
+  static void addVariables(Map<String, String> variables) {
+    for (Stage stage : Stage.values()) {
+      StageState state = getState(stage);
+      String prefix = "stage-" + stage.getLabel() + "-";
+      long count = state.count.get();
+      variables.put(prefix + "limit", state.limit + "");
+      variables.put(prefix + "reserved-ram-mb", state.ramMb + "");
+      variables.put(prefix + "active", state.active.get() + "");
+      variables.put(prefix + "queue-depth", state.waiting.get() + "");
+      variables.put(prefix + "count", count + "");
+      variables.put(prefix + "average-wait-ms",
+          (count == 0 ? 0 : state.totalWaitMillis.get() / count) + "");
+      variables.put(prefix + "max-wait-ms", state.maxWaitMillis.get() + "");
+    }
+  }
+}
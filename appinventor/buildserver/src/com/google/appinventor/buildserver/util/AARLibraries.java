@@ -15,7 +15,10 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
 
+import org.apache.commons.io.FileUtils;
 import org.eclipse.jdt.core.compiler.batch.BatchCompiler;
 
 import com.android.builder.internal.SymbolLoader;
@@ -28,6 +31,8 @@ import com.android.ide.common.res2.ResourceSet;
 import com.android.utils.ILogger;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 /**
  * AARLibraries implements a set of {@link AARLibrary} and performs additional bookkeeping by
@@ -174,6 +179,69 @@ public class AARLibraries extends HashSet<AARLibrary> {
     ResourceSet mainResSet = new ResourceSet("main");
     mainResSet.addSource(mainResDir);
     resourceSets.add(mainResSet);
+    return mergeResourceSets(resourceSets, outputDir, cruncher);
+  }
+
+  /**
+   * Merges the resources from all of the dependent AAR libraries into the main resource bundle for
+   * the compiling app, reusing the merged library resources of an earlier build with the same
+   * libraries. The libraries must have been unpacked with {@link AARLibrary#unpackToCache(File)}.
+   * Library resources are merged once into {@code <cacheDir>/merged-res-<sha1>}, and each build
+   * only merges the app's resources on top of them.
+   *
+   * @param outputDir the output directory to write the R.java files.
+   * @param mainResDir the resource directory where the resource descriptors for the app reside.
+   * @param cruncher configured PNG cruncher utility for reducing the size of PNG assets.
+   * @param cacheDir the directory holding merged library resources.
+   * @return true if the merge was successful, otherwise false.
+   */
+  public boolean mergeResources(File outputDir, File mainResDir, PngCruncher cruncher,
+      File cacheDir) {
+    List<ResourceSet> librarySets = getResourceSets();
+    if (librarySets.isEmpty()) {
+      return mergeResources(outputDir, mainResDir, cruncher);
+    }
+
+    // Libraries are kept in a set and merged in no particular order, so the key doesn't
+    // depend on their order either.
+    Set<String> hashes = new TreeSet<>();
+    for (AARLibrary library : this) {
+      if (library.getContentHash() == null) {
+        return mergeResources(outputDir, mainResDir, cruncher);
+      }
+      hashes.add(library.getContentHash());
+    }
+    Hasher hasher = Hashing.sha1().newHasher();
+    for (String hash : hashes) {
+      hasher.putString(hash);
+    }
+    File mergedLibraryDir = new File(cacheDir, "merged-res-" + hasher.hash());
+    if (!mergedLibraryDir.isDirectory()) {
+      File tmpDir = new File(cacheDir, mergedLibraryDir.getName() + ".tmp-" + UUID.randomUUID());
+      try {
+        if (!mergeResourceSets(librarySets, tmpDir, cruncher)) {
+          return false;
+        }
+        if (!tmpDir.renameTo(mergedLibraryDir) && !mergedLibraryDir.isDirectory()) {
+          return mergeResources(outputDir, mainResDir, cruncher);
+        }
+      } finally {
+        FileUtils.deleteQuietly(tmpDir);
+      }
+    }
+
+    List<ResourceSet> resourceSets = new ArrayList<>();
+    ResourceSet librarySet = new ResourceSet("libraries");
+    librarySet.addSource(mergedLibraryDir);
+    resourceSets.add(librarySet);
+    ResourceSet mainResSet = new ResourceSet("main");
+    mainResSet.addSource(mainResDir);
+    resourceSets.add(mainResSet);
+    return mergeResourceSets(resourceSets, outputDir, cruncher);
+  }
+
+  private boolean mergeResourceSets(List<ResourceSet> resourceSets, File outputDir,
+      PngCruncher cruncher) {
     ResourceMerger merger = new ResourceMerger();
 
     try {
@@ -13,15 +13,19 @@ import java.io.OutputStream;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.UUID;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 import javax.xml.xpath.XPathExpressionException;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 
 import com.android.io.StreamException;
 import com.android.xml.AndroidManifest;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
 
 /**
  * AARLibrary encapsulates important information about Android Archive (AAR) files so that they
@@ -53,6 +57,11 @@ public class AARLibrary {
    */
   private String packageName;
 
+  /**
+   * SHA-1 of the archive's content, if it was unpacked into a cache.
+   */
+  private String contentHash = null;
+
   /**
    * Base directory where the archive is unpacked.
    */
@@ -138,6 +147,10 @@ public class AARLibrary {
     return packageName;
   }
 
+  public String getContentHash() {
+    return contentHash;
+  }
+
   public File getDirectory() {
     return basedir;
   }
@@ -271,6 +284,53 @@ public class AARLibrary {
     }
   }
 
+  /**
+   * Unpacks the Android Archive into a cache shared between builds, unless an archive with the
+   * same content has been unpacked there before. The archive is unpacked to
+   * {@code <cacheDir>/<sha1>/<package>}. Concurrent builds may unpack the same archive at the
+   * same time; each unpacks into a private directory and renames it into place, and the
+   * losers of that race discard their copy. The cached files must not be modified.
+   *
+   * @param cacheDir the directory holding unpacked archives.
+   * @throws IOException if any error occurs attempting to read the archive or write new files to
+   *                     the file system.
+   */
+  public void unpackToCache(final File cacheDir) throws IOException {
+    contentHash = Files.hash(aarPath, Hashing.sha1()).toString();
+    File entryDir = new File(cacheDir, contentHash);
+    if (!entryDir.isDirectory()) {
+      File tmpDir = new File(cacheDir, contentHash + ".tmp-" + UUID.randomUUID());
+      try {
+        unpackToDirectory(tmpDir);
+        if (!tmpDir.renameTo(entryDir) && !entryDir.isDirectory()) {
+          throw new IOException("Unable to move " + tmpDir + " to " + entryDir);
+        }
+      } finally {
+        FileUtils.deleteQuietly(tmpDir);
+      }
+    }
+    File[] packageDirs = entryDir.listFiles();
+    if (packageDirs == null || packageDirs.length != 1) {
+      throw new IOException("Corrupt AAR cache entry " + entryDir);
+    }
+    basedir = packageDirs[0];
+    packageName = basedir.getName();
+    manifest = null;
+    classes = null;
+    rtxt = null;
+    resources.clear();
+    assets.clear();
+    libs.clear();
+    jni.clear();
+    for (File file : FileUtils.listFiles(basedir, null, true)) {
+      catalog(file);
+    }
+    resdir = new File(basedir, "res");
+    if (!resdir.exists()) {
+      resdir = null;
+    }
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
@@ -0,0 +1,168 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests ApkSigner class.
+ */
+public class ApkSignerTest extends TestCase {
+  private File tempDir;
+  private File keystore;
+  private File unsignedApk;
+  private File signedApk;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    keystore = new File(tempDir, "android.keystore");
+    String[] keytoolCommandLine = {
+        System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool",
+        "-genkey", "-keystore", keystore.getAbsolutePath(), "-storetype", "JKS",
+        "-alias", "AndroidKey", "-dname", "CN=ApkSignerTest", "-keyalg", "RSA",
+        "-validity", "10000", "-storepass", "android", "-keypass", "android"
+    };
+    assertTrue(Execution.execute(null, keytoolCommandLine, System.out, System.err));
+
+    unsignedApk = new File(tempDir, "unsigned.apk");
+    signedApk = new File(tempDir, "signed.apk");
+    Random random = new Random(0);
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(unsignedApk));
+    try {
+      for (int i = 0; i < 20; i++) {
+        byte[] data = new byte[random.nextInt(1000) + 1];
+        random.nextBytes(data);
+        ZipEntry entry = new ZipEntry("assets/file" + i + (i % 3 == 0 ? "x" : ""));
+        if (i % 2 == 0) {
+          CRC32 crc = new CRC32();
+          crc.update(data);
+          entry.setMethod(ZipEntry.STORED);
+          entry.setSize(data.length);
+          entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(data);
+        out.closeEntry();
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteQuietly(tempDir);
+  }
+
+  public void testEntriesAreCopiedAndAligned() throws Exception {
+    ApkSigner.signAndAlign(unsignedApk, keystore, signedApk);
+    byte[] signed = Files.toByteArray(signedApk);
+    ZipFile unsignedZip = new ZipFile(unsignedApk);
+    ZipFile signedZip = new ZipFile(signedApk);
+    try {
+      for (ZipEntry entry : Collections.list(unsignedZip.entries())) {
+        ZipEntry copy = signedZip.getEntry(entry.getName());
+        assertNotNull(entry.getName(), copy);
+        assertEquals(entry.getMethod(), copy.getMethod());
+        assertTrue(Arrays.equals(read(unsignedZip, entry), read(signedZip, copy)));
+        if (entry.getMethod() == ZipEntry.STORED) {
+          assertEquals(entry.getName(), 0, dataOffset(signed, entry.getName()) % 4);
+        }
+      }
+    } finally {
+      unsignedZip.close();
+      signedZip.close();
+    }
+  }
+
+  public void testSignatureMatchesManifest() throws Exception {
+    ApkSigner.signAndAlign(unsignedApk, keystore, signedApk);
+    ZipFile signedZip = new ZipFile(signedApk);
+    try {
+      String manifest = new String(read(signedZip, "META-INF/MANIFEST.MF"), Charsets.UTF_8);
+      assertTrue(manifest.contains("Name: assets/file0x\r\nSHA1-Digest: "));
+      byte[] signatureFile = read(signedZip, "META-INF/CERT.SF");
+      CMSSignedData signedData = new CMSSignedData(new CMSProcessableByteArray(signatureFile),
+          read(signedZip, "META-INF/CERT.RSA"));
+      SignerInformation signer =
+          (SignerInformation) signedData.getSignerInfos().getSigners().iterator().next();
+      X509CertificateHolder certificate = (X509CertificateHolder)
+          signedData.getCertificates().getMatches(signer.getSID()).iterator().next();
+      assertTrue(signer.verify(new JcaSimpleSignerInfoVerifierBuilder().build(certificate)));
+    } finally {
+      signedZip.close();
+    }
+  }
+
+  public void testMissingKeyIsReported() throws Exception {
+    try {
+      ApkSigner.signAndAlign(unsignedApk, unsignedApk, signedApk);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  private static byte[] read(ZipFile zip, String name) throws IOException {
+    ZipEntry entry = zip.getEntry(name);
+    assertNotNull(name, entry);
+    return read(zip, entry);
+  }
+
+  private static byte[] read(ZipFile zip, ZipEntry entry) throws IOException {
+    InputStream in = zip.getInputStream(entry);
+    try {
+      return ByteStreams.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /*
+   * Returns the offset of an entry's data, found from its local file header.
+   */
+  private static int dataOffset(byte[] zip, String name) {
+    byte[] nameBytes = name.getBytes(Charsets.UTF_8);
+    for (int offset = 0; offset + 30 + nameBytes.length <= zip.length; offset++) {
+      if (zip[offset] == 'P' && zip[offset + 1] == 'K' && zip[offset + 2] == 3
+          && zip[offset + 3] == 4
+          && readShort(zip, offset + 26) == nameBytes.length
+          && Arrays.equals(nameBytes,
+              Arrays.copyOfRange(zip, offset + 30, offset + 30 + nameBytes.length))) {
+        return offset + 30 + nameBytes.length + readShort(zip, offset + 28);
+      }
+    }
+    throw new AssertionError("No local header for " + name);
+  }
+
+  private static int readShort(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8;
+  }
+}
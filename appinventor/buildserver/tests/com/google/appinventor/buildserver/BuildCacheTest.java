@@ -0,0 +1,147 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests BuildCache class.
+ */
+public class BuildCacheTest extends TestCase {
+  private File tempDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    BuildCache.configure(null, 0);
+    FileUtils.deleteQuietly(tempDir);
+  }
+
+  public void testSourceKeyDependsOnContentAndContext() throws Exception {
+    File source = new File(tempDir, "Screen1.yail");
+    Files.write("(foo)", source, Charsets.UTF_8);
+    String key = BuildCache.hashSource(source, "com.example");
+    assertEquals(key, BuildCache.hashSource(source, "com.example"));
+    assertFalse(key.equals(BuildCache.hashSource(source, "com.other")));
+    Files.write("(bar)", source, Charsets.UTF_8);
+    assertFalse(key.equals(BuildCache.hashSource(source, "com.example")));
+  }
+
+  public void testClassesRoundTrip() throws Exception {
+    BuildCache.configure(new File(tempDir, "cache").getPath(), 10);
+    BuildCache cache = BuildCache.getInstance();
+
+    File classesDir = new File(tempDir, "classes");
+    File screen = new File(classesDir, "com/example/Screen1.class");
+    File inner = new File(classesDir, "com/example/Screen1$frame.class");
+    Files.createParentDirs(screen);
+    Files.write("screen", screen, Charsets.UTF_8);
+    Files.write("inner", inner, Charsets.UTF_8);
+    cache.putClasses("key", classesDir, Arrays.asList(screen, inner));
+
+    File restoreDir = new File(tempDir, "restored");
+    assertTrue(cache.restoreClasses("key", restoreDir));
+    assertEquals("screen",
+        Files.toString(new File(restoreDir, "com/example/Screen1.class"), Charsets.UTF_8));
+    assertEquals("inner",
+        Files.toString(new File(restoreDir, "com/example/Screen1$frame.class"), Charsets.UTF_8));
+    assertFalse(cache.restoreClasses("missing", restoreDir));
+  }
+
+  public void testLeastRecentlyUsedEntriesAreEvicted() throws Exception {
+    BuildCache.configure(new File(tempDir, "cache").getPath(), 1);
+    BuildCache cache = BuildCache.getInstance();
+
+    File apk = new File(tempDir, "app.apk");
+    Files.write(new byte[600 * 1024], apk);
+    cache.putApk("old", apk);
+    new File(tempDir, "cache/apk/old.apk").setLastModified(System.currentTimeMillis() - 60000);
+    cache.putApk("new", apk);
+
+    File restored = new File(tempDir, "restored.apk");
+    assertFalse(cache.restoreApk("old", restored));
+    assertTrue(cache.restoreApk("new", restored));
+  }
+
+  public void testUnsignedProjectKeyIgnoresKeystore() throws Exception {
+    ZipFile first = writeProject("first.zip", "(foo)", "first key");
+    ZipFile second = writeProject("second.zip", "(foo)", "second key");
+    ZipFile changed = writeProject("changed.zip", "(bar)", "first key");
+    try {
+      assertFalse(BuildCache.hashProject(first, true)
+          .equals(BuildCache.hashProject(second, true)));
+      String key = BuildCache.hashUnsignedProject(first);
+      assertEquals(key, BuildCache.hashUnsignedProject(second));
+      assertFalse(key.equals(BuildCache.hashUnsignedProject(changed)));
+      assertFalse(key.equals(BuildCache.hashProject(first, true)));
+    } finally {
+      first.close();
+      second.close();
+      changed.close();
+    }
+  }
+
+  public void testUnsignedApksAreKeptApart() throws Exception {
+    BuildCache.configure(new File(tempDir, "cache").getPath(), 10);
+    BuildCache cache = BuildCache.getInstance();
+
+    File apk = new File(tempDir, "unsigned.apk");
+    Files.write("unsigned", apk, Charsets.UTF_8);
+    cache.putUnsignedApk("key", apk);
+    File restored = new File(tempDir, "restored.apk");
+    assertFalse(cache.restoreApk("key", restored));
+    assertTrue(cache.restoreUnsignedApk("key", restored));
+    assertEquals("unsigned", Files.toString(restored, Charsets.UTF_8));
+    assertFalse(cache.restoreUnsignedApk("missing", restored));
+  }
+
+  public void testRestoredApkOutlivesEviction() throws Exception {
+    BuildCache.configure(new File(tempDir, "cache").getPath(), 1);
+    BuildCache cache = BuildCache.getInstance();
+
+    File apk = new File(tempDir, "unsigned.apk");
+    Files.write(new byte[600 * 1024], apk);
+    cache.putUnsignedApk("old", apk);
+    File restored = new File(tempDir, "restored.apk");
+    assertTrue(cache.restoreUnsignedApk("old", restored));
+    new File(tempDir, "cache/apk/old.unsigned.apk")
+        .setLastModified(System.currentTimeMillis() - 60000);
+    cache.putUnsignedApk("new", apk);
+
+    assertFalse(cache.restoreUnsignedApk("old", new File(tempDir, "again.apk")));
+    assertEquals(600 * 1024, restored.length());
+  }
+
+  private ZipFile writeProject(String name, String source, String keystore) throws Exception {
+    File file = new File(tempDir, name);
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+    try {
+      out.putNextEntry(new ZipEntry("src/com/example/Screen1.yail"));
+      out.write(source.getBytes(Charsets.UTF_8));
+      out.putNextEntry(new ZipEntry(YoungAndroidConstants.PROJECT_KEYSTORE_LOCATION));
+      out.write(keystore.getBytes(Charsets.UTF_8));
+    } finally {
+      out.close();
+    }
+    return new ZipFile(file);
+  }
+}
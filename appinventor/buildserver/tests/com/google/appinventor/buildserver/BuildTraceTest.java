@@ -0,0 +1,111 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests BuildTrace class.
+ */
+public class BuildTraceTest extends TestCase {
+  private File tempDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    BuildTrace.configure(null);
+    FileUtils.deleteQuietly(tempDir);
+  }
+
+  public void testTraceIsWrittenInChromeFormat() throws Exception {
+    BuildTrace.configure(tempDir.getPath());
+    final BuildTrace trace = BuildTrace.start();
+    assertSame(trace, BuildTrace.current());
+    BuildTrace.stage("test-first");
+    BuildTrace.currentStage().addBytesWritten(42);
+    BuildTrace.Span span = BuildTrace.begin("test-child", BuildTrace.PROCESS).arg("exitCode", 0);
+    span.end();
+    BuildTrace.stage("test-second");
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        BuildTrace previous = BuildTrace.attach(trace);
+        try {
+          BuildTrace.record("test-lock", BuildTrace.WAIT, System.nanoTime());
+        } finally {
+          BuildTrace.attach(previous);
+        }
+      }
+    }, "test-worker");
+    thread.start();
+    thread.join();
+    File file = trace.finish();
+    assertNull(BuildTrace.current());
+
+    JSONArray events = new JSONObject(Files.toString(file, Charsets.UTF_8))
+        .getJSONArray("traceEvents");
+    Map<String, JSONObject> spans = new HashMap<String, JSONObject>();
+    boolean workerNamed = false;
+    for (int i = 0; i < events.length(); i++) {
+      JSONObject event = events.getJSONObject(i);
+      if (event.getString("ph").equals("X")) {
+        spans.put(event.getString("name"), event);
+      } else if (event.getString("name").equals("thread_name")) {
+        workerNamed |= event.getJSONObject("args").getString("name").equals("test-worker");
+      }
+    }
+    assertEquals(4, spans.size());
+    assertTrue(workerNamed);
+
+    JSONObject first = spans.get("test-first");
+    JSONObject child = spans.get("test-child");
+    assertEquals(BuildTrace.STAGE, first.getString("cat"));
+    assertEquals(42, first.getJSONObject("args").getLong("bytesWritten"));
+    assertEquals(0, child.getJSONObject("args").getInt("exitCode"));
+    assertTrue(child.getLong("ts") >= first.getLong("ts"));
+    assertTrue(child.getLong("ts") + child.getLong("dur")
+        <= first.getLong("ts") + first.getLong("dur"));
+    assertTrue(spans.get("test-second").getLong("ts") >= child.getLong("ts"));
+    assertFalse(spans.get("test-lock").getLong("tid") == first.getLong("tid"));
+  }
+
+  public void testSpansWithoutTraceAreCounted() throws Exception {
+    assertNull(BuildTrace.current());
+    for (int i = 0; i < 3; i++) {
+      BuildTrace.begin("test-untraced", BuildTrace.TASK).addBytesRead(10).end();
+    }
+    Map<String, String> variables = new HashMap<String, String>();
+    BuildTrace.addVariables(variables);
+    assertEquals("3", variables.get("trace-task-test-untraced-count"));
+    assertEquals("30", variables.get("trace-task-test-untraced-bytes-read"));
+    assertNotNull(variables.get("trace-task-test-untraced-p99-ms"));
+    assertNull(variables.get("trace-task-test-untraced-bytes-written"));
+  }
+
+  public void testProcessName() {
+    assertEquals("aapt", BuildTrace.processName(new String[] { "/sdk/aapt", "package" }));
+    assertEquals("dx.jar", BuildTrace.processName(
+        new String[] { "/jdk/bin/java", "-mx1024M", "-jar", "/lib/dx.jar", "--dex" }));
+    assertEquals("kawa.repl", BuildTrace.processName(
+        new String[] { "/jdk/bin/java", "-cp", "a.jar:b.jar", "kawa.repl", "-f", "x.scm" }));
+  }
+}
@@ -10,8 +10,14 @@ import com.google.common.collect.Sets;
 
 import junit.framework.TestCase;
 
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Tests Compiler class.
@@ -115,4 +121,81 @@ public class CompilerTest extends TestCase {
     // Finally, test for the name attribute of the <intent-filter>'s <action> subelement
     assertTrue(activityElementString.contains("name=\"android.intent.action.MAIN\""));
   }
+
+  public void testStartedStageRunsAlongside() throws Exception {
+    Compiler compiler = new Compiler(null, Sets.<String>newHashSet(), System.out, System.err,
+                                     System.err, false, 2048, null, null);
+    final CountDownLatch released = new CountDownLatch(1);
+    final Thread buildThread = Thread.currentThread();
+    Future<Boolean> stage = compiler.startStage("test", "Testing", new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return released.await(10, TimeUnit.SECONDS) && Thread.currentThread() != buildThread;
+      }
+    });
+    // The stage is still waiting to be released, so it must run on another thread.
+    assertFalse(stage.isDone());
+    released.countDown();
+    assertTrue(compiler.awaitStage(stage, "Test"));
+  }
+
+  public void testSequentialStageRunsBeforeStartReturns() throws Exception {
+    Compiler compiler = new Compiler(null, Sets.<String>newHashSet(), System.out, System.err,
+                                     System.err, false, 2048, null, null);
+    final Thread buildThread = Thread.currentThread();
+    Compiler.setParallelStages(false);
+    try {
+      Future<Boolean> stage = compiler.startStage("test", "Testing", new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return Thread.currentThread() == buildThread;
+        }
+      });
+      assertTrue(stage.isDone());
+      assertTrue(compiler.awaitStage(stage, "Test"));
+    } finally {
+      Compiler.setParallelStages(true);
+    }
+  }
+
+  public void testFailedStageIsReported() throws Exception {
+    ByteArrayOutputStream userErrors = new ByteArrayOutputStream();
+    Compiler compiler = new Compiler(null, Sets.<String>newHashSet(), System.out, System.err,
+                                     new PrintStream(userErrors, true), false, 2048, null, null);
+    Future<Boolean> failing = compiler.startStage("test", "Testing", new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        throw new IllegalStateException("stage failed");
+      }
+    });
+    Future<Boolean> unsuccessful = compiler.startStage("other", "Testing",
+        new Callable<Boolean>() {
+          @Override
+          public Boolean call() {
+            return false;
+          }
+        });
+    assertFalse(compiler.awaitStage(failing, "Test"));
+    assertTrue(userErrors.toString().contains("error in the Test stage"));
+    assertFalse(compiler.awaitStage(unsuccessful, "Other"));
+    assertFalse(userErrors.toString().contains("Other"));
+  }
+
+  public void testAwaitStartedStagesWaitsForAll() throws Exception {
+    Compiler compiler = new Compiler(null, Sets.<String>newHashSet(), System.out, System.err,
+                                     System.err, false, 2048, null, null);
+    final CountDownLatch finished = new CountDownLatch(2);
+    Callable<Boolean> slowStage = new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        Thread.sleep(200);
+        finished.countDown();
+        return true;
+      }
+    };
+    compiler.startStage("first", "Testing", slowStage);
+    compiler.startStage("second", "Testing", slowStage);
+    compiler.awaitStartedStages();
+    assertEquals(0, finished.getCount());
+  }
 }
@@ -0,0 +1,62 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ComponentIndex class.
+ */
+public class ComponentIndexTest extends TestCase {
+  private static final String BUTTON = "com.google.appinventor.components.runtime.Button";
+  private static final String EXTENSION = "com.example.MyExtension";
+
+  public void testBuiltInComponents() throws Exception {
+    ComponentIndex index = ComponentIndex.getBuiltIn();
+    assertSame(index, ComponentIndex.getBuiltIn());
+    assertEquals(BUTTON, index.getType("Button"));
+    assertTrue(index.isBuiltIn(BUTTON));
+    assertTrue(index.getBuiltInTypes().contains(BUTTON));
+    assertTrue(index.getBuildInfo("com.google.appinventor.components.runtime.Texting",
+        "permissions").contains("android.permission.SEND_SMS"));
+    assertTrue(index.getBuildInfo("com.example.Unknown", "permissions").isEmpty());
+  }
+
+  public void testExtensionsAreOverlaid() throws Exception {
+    ComponentIndex builtIn = ComponentIndex.getBuiltIn();
+    ComponentIndex index = builtIn.withExtensions(
+        new JSONArray("[{\"name\": \"MyExtension\", \"type\": \"" + EXTENSION + "\"}]"),
+        new JSONArray("[{\"type\": \"" + EXTENSION + "\", \"assets\": [], \"activities\": [], "
+            + "\"libraries\": [\"my.jar\", \"\"], \"native\": [], \"broadcastReceivers\": [], "
+            + "\"permissions\": [\"android.permission.INTERNET\"]}]"));
+
+    assertEquals(EXTENSION, index.getType("MyExtension"));
+    assertEquals(BUTTON, index.getType("Button"));
+    assertFalse(index.isBuiltIn(EXTENSION));
+    assertEquals(1, index.getBuildInfo(EXTENSION, "libraries").size());
+    assertTrue(index.getBuildInfo(EXTENSION, "permissions")
+        .contains("android.permission.INTERNET"));
+    assertTrue(index.getBuildInfo(EXTENSION, "androidMinSdk").isEmpty());
+
+    // The built-in index is not changed by the overlay.
+    assertNull(builtIn.getType("MyExtension"));
+    assertTrue(builtIn.getBuildInfo(EXTENSION, "permissions").isEmpty());
+  }
+
+  public void testMissingRequiredBuildInfoIsAnError() throws Exception {
+    ComponentIndex index = ComponentIndex.getBuiltIn().withExtensions(new JSONArray(),
+        new JSONArray("[{\"type\": \"" + EXTENSION + "\"}]"));
+    assertTrue(index.getBuildInfo(EXTENSION, "broadcastReceiver").isEmpty());
+    try {
+      index.getBuildInfo(EXTENSION, "permissions");
+      fail();
+    } catch (JSONException expected) {
+    }
+  }
+}
@@ -0,0 +1,177 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests DexExecTask class.
+ */
+public class DexExecTaskTest extends TestCase {
+  private File tempDir;
+  private File cacheDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    cacheDir = new File(tempDir, "dexCache");
+    cacheDir.mkdirs();
+    DexExecTask.clearHashIndexes();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    DexExecTask.setPreDexThreads(0);
+    DexExecTask.clearHashIndexes();
+    FileUtils.deleteQuietly(tempDir);
+  }
+
+  private DexExecTask newTask() {
+    DexExecTask task = new DexExecTask();
+    task.setDexedLibs(cacheDir.getAbsolutePath());
+    return task;
+  }
+
+  public void testHashIndexSurvivesRestart() throws Exception {
+    File library = new File(tempDir, "library.jar");
+    Files.write("library", library, Charsets.UTF_8);
+    String hash = newTask().getHashFor(library);
+    assertTrue(new File(cacheDir, "hash-index.properties").isFile());
+
+    // After a restart the index answers from disk, without reading the library again, so
+    // a change that keeps the size and modification time goes unnoticed.
+    long lastModified = library.lastModified();
+    Files.write("LIBRARY", library, Charsets.UTF_8);
+    assertTrue(library.setLastModified(lastModified));
+    DexExecTask.clearHashIndexes();
+    assertEquals(hash, newTask().getHashFor(library));
+  }
+
+  public void testHashIndexMissesChangedLibrary() throws Exception {
+    File library = new File(tempDir, "library.jar");
+    Files.write("library", library, Charsets.UTF_8);
+    String hash = newTask().getHashFor(library);
+
+    Files.write("changed library", library, Charsets.UTF_8);
+    DexExecTask.clearHashIndexes();
+    assertFalse(hash.equals(newTask().getHashFor(library)));
+  }
+
+  public void testConcurrentBuildsPreDexSharedLibraryOnce() throws Exception {
+    DexExecTask.setPreDexThreads(2);
+    File shared = library("shared.jar");
+    File first = library("first.jar");
+    File second = library("second.jar");
+    ConcurrentMap<String, AtomicInteger> runs = new ConcurrentHashMap<String, AtomicInteger>();
+    List<Boolean> results = preDexConcurrently(runs, true,
+        Arrays.<List<File>>asList(Arrays.asList(shared, first), Arrays.asList(shared, second)));
+
+    assertEquals(Arrays.asList(true, true), results);
+    assertEquals(1, runs.get("shared.jar").get());
+    assertEquals(1, runs.get("first.jar").get());
+    assertEquals(1, runs.get("second.jar").get());
+    // Only the finished entries and the hash index are left in the cache.
+    List<String> entries = new ArrayList<String>(Arrays.asList(cacheDir.list()));
+    assertTrue(entries.remove("hash-index.properties"));
+    assertEquals(3, entries.size());
+    DexExecTask task = newTask();
+    for (File library : Arrays.asList(shared, first, second)) {
+      File dexed = task.getPreDexedFile(library);
+      assertTrue(entries.contains(dexed.getName()));
+      assertEquals("dex", Files.toString(dexed, Charsets.UTF_8));
+    }
+  }
+
+  public void testFailedPreDexLeavesNoPartialEntry() throws Exception {
+    File shared = library("shared.jar");
+    File first = library("first.jar");
+    ConcurrentMap<String, AtomicInteger> runs = new ConcurrentHashMap<String, AtomicInteger>();
+    List<Boolean> results = preDexConcurrently(runs, false,
+        Arrays.<List<File>>asList(Arrays.asList(shared, first)));
+
+    assertEquals(Arrays.asList(false), results);
+    assertEquals(Arrays.asList("hash-index.properties"), Arrays.asList(cacheDir.list()));
+    assertEquals(shared, newTask().getPreDexedFile(shared));
+  }
+
+  private File library(String name) throws Exception {
+    File library = new File(tempDir, name);
+    Files.write(name, library, Charsets.UTF_8);
+    return library;
+  }
+
+  /*
+   * Pre-dexes each list of libraries on its own thread, as concurrent builds would, with dx
+   * processes that write part of their output, wait, and then succeed or fail. Counts the
+   * dx runs for each library and returns whether each build pre-dexed successfully.
+   */
+  private List<Boolean> preDexConcurrently(final ConcurrentMap<String, AtomicInteger> runs,
+      final boolean dxSucceeds, List<List<File>> builds) throws Exception {
+    final CountDownLatch ready = new CountDownLatch(builds.size());
+    final Boolean[] results = new Boolean[builds.size()];
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int i = 0; i < builds.size(); i++) {
+      final int build = i;
+      final List<File> libraries = builds.get(i);
+      final DexExecTask task = new DexExecTask() {
+        @Override
+        boolean executeDx(String[] dxCommandLine) {
+          String library = new File(dxCommandLine[dxCommandLine.length - 1]).getName();
+          runs.putIfAbsent(library, new AtomicInteger(0));
+          runs.get(library).incrementAndGet();
+          try {
+            for (String arg : dxCommandLine) {
+              if (arg.startsWith("--output=")) {
+                File output = new File(arg.substring("--output=".length()));
+                Files.write("d", output, Charsets.UTF_8);
+                Thread.sleep(200);
+                Files.append("ex", output, Charsets.UTF_8);
+              }
+            }
+            return dxSucceeds;
+          } catch (Exception e) {
+            return false;
+          }
+        }
+      };
+      task.setExecutable(new File(tempDir, "dx.jar").getAbsolutePath());
+      task.setDexedLibs(cacheDir.getAbsolutePath());
+      task.setChildProcessRamMb(1024);
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          ready.countDown();
+          try {
+            ready.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          results[build] = task.preDex(libraries);
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    return Arrays.asList(results);
+  }
+}
@@ -0,0 +1,54 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests FileStaging class.
+ */
+public class FileStagingTest extends TestCase {
+  private File tempDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteQuietly(tempDir);
+  }
+
+  public void testLinkReplacesTarget() throws Exception {
+    File source = new File(tempDir, "kitty.png");
+    File target = new File(tempDir, "assets/kitty.png");
+    Files.write("meow", source, Charsets.UTF_8);
+    Files.createParentDirs(target);
+    Files.write("old", target, Charsets.UTF_8);
+    FileStaging.link(source, target);
+    assertEquals("meow", Files.toString(target, Charsets.UTF_8));
+    assertTrue(source.delete());
+    assertEquals("meow", Files.toString(target, Charsets.UTF_8));
+  }
+
+  public void testMove() throws Exception {
+    File source = new File(tempDir, "app.apk");
+    File target = new File(tempDir, "out.apk");
+    Files.write("apk", source, Charsets.UTF_8);
+    Files.write("old", target, Charsets.UTF_8);
+    FileStaging.move(source, target);
+    assertFalse(source.exists());
+    assertEquals("apk", Files.toString(target, Charsets.UTF_8));
+  }
+}
@@ -0,0 +1,210 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests InFlightBuilds class.
+ */
+public class InFlightBuildsTest extends TestCase {
+  private File tempDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteQuietly(tempDir);
+  }
+
+  private File writeProject(String name, String source, String keystore) throws IOException {
+    File file = new File(tempDir, name);
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+    out.putNextEntry(new ZipEntry("src/com/example/Screen1.scm"));
+    out.write(source.getBytes(Charsets.UTF_8));
+    if (keystore != null) {
+      out.putNextEntry(new ZipEntry("android.keystore"));
+      out.write(keystore.getBytes(Charsets.UTF_8));
+    }
+    out.close();
+    return file;
+  }
+
+  public void testKeyIncludesKeystoreIdentity() throws Exception {
+    String key = InFlightBuilds.getKey(writeProject("a.zip", "form", "key1"), "alice");
+    assertEquals(key, InFlightBuilds.getKey(writeProject("b.zip", "form", "key1"), "bob"));
+    assertFalse(key.equals(InFlightBuilds.getKey(writeProject("c.zip", "form", "key2"), "alice")));
+    assertFalse(key.equals(InFlightBuilds.getKey(writeProject("d.zip", "other", "key1"), "alice")));
+
+    // Without a keystore, each user gets one of their own.
+    String noKeystore = InFlightBuilds.getKey(writeProject("e.zip", "form", null), "alice");
+    assertEquals(noKeystore, InFlightBuilds.getKey(writeProject("f.zip", "form", null), "alice"));
+    assertFalse(noKeystore.equals(
+        InFlightBuilds.getKey(writeProject("g.zip", "form", null), "bob")));
+  }
+
+  public void testIdenticalRequestsAreAttached() throws Exception {
+    final List<Runnable> executed = new ArrayList<Runnable>();
+    Executor executor = new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        executed.add(task);
+      }
+    };
+    InFlightBuilds builds = new InFlightBuilds();
+    BuildServer.ProgressReporter first = new BuildServer.ProgressReporter("http://localhost/1");
+    Runnable firstTask = new Runnable() {
+      @Override
+      public void run() {
+      }
+    };
+    assertFalse(builds.attachOrExecute("key", first, executor, firstTask));
+    assertTrue(builds.attachOrExecute("key",
+        new BuildServer.ProgressReporter("http://localhost/2"), executor, firstTask));
+    assertFalse(builds.attachOrExecute("other",
+        new BuildServer.ProgressReporter("http://localhost/3"), executor, firstTask));
+    assertEquals(2, executed.size());
+    assertEquals(2, builds.getBuildCount());
+    assertEquals(1, builds.getAttachedRequestCount());
+
+    builds.remove("key", first);
+    assertEquals(1, builds.getBuildCount());
+    assertFalse(builds.attachOrExecute("key",
+        new BuildServer.ProgressReporter("http://localhost/4"), executor, firstTask));
+    assertEquals(3, executed.size());
+  }
+
+  public void testAttachOnlyAttaches() throws Exception {
+    final List<Runnable> executed = new ArrayList<Runnable>();
+    Executor executor = new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        executed.add(task);
+      }
+    };
+    InFlightBuilds builds = new InFlightBuilds();
+    assertFalse(builds.attach("key", new BuildServer.ProgressReporter("http://localhost/1")));
+    assertEquals(0, builds.getBuildCount());
+
+    builds.attachOrExecute("key", new BuildServer.ProgressReporter("http://localhost/2"),
+        executor, null);
+    assertTrue(builds.attach("key", new BuildServer.ProgressReporter("http://localhost/3")));
+    assertEquals(1, executed.size());
+    assertEquals(1, builds.getAttachedRequestCount());
+  }
+
+  public void testRejectedBuildIsNotTracked() throws Exception {
+    InFlightBuilds builds = new InFlightBuilds();
+    Executor rejecting = new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        throw new RejectedExecutionException();
+      }
+    };
+    try {
+      builds.attachOrExecute("key", new BuildServer.ProgressReporter("http://localhost/1"),
+          rejecting, null);
+      fail();
+    } catch (RejectedExecutionException expected) {
+    }
+    assertEquals(0, builds.getBuildCount());
+  }
+
+  public void testResultIsSentToAttachedRequests() throws Exception {
+    final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch results = new CountDownLatch(2);
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        byte[] body = ByteStreams.toByteArray(exchange.getRequestBody());
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+        // Progress reports are smaller than the result.
+        if (body.length == 6) {
+          received.add(exchange.getRequestURI().getPath());
+          results.countDown();
+        }
+      }
+    });
+    server.start();
+    try {
+      String url = "http://localhost:" + server.getAddress().getPort();
+      BuildServer.ProgressReporter leader = new BuildServer.ProgressReporter(url + "/leader");
+      BuildServer.ProgressReporter follower = new BuildServer.ProgressReporter(url + "/follower");
+      assertTrue(leader.attach(follower));
+
+      File result = new File(tempDir, "result.zip");
+      Files.write("result", result, Charsets.UTF_8);
+      leader.sendResult(result);
+      assertFalse(leader.attach(new BuildServer.ProgressReporter(url + "/late")));
+      assertTrue(results.await(10, TimeUnit.SECONDS));
+      Collections.sort(received);
+      assertEquals("[/follower, /leader]", received.toString());
+    } finally {
+      server.stop(0);
+    }
+  }
+
+  public void testFailureIsSentToAttachedRequestsOnly() throws Exception {
+    final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch results = new CountDownLatch(1);
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        ByteStreams.toByteArray(exchange.getRequestBody());
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+        received.add(exchange.getRequestURI().getPath());
+        results.countDown();
+      }
+    });
+    server.start();
+    try {
+      String url = "http://localhost:" + server.getAddress().getPort();
+      BuildServer.ProgressReporter leader = new BuildServer.ProgressReporter(url + "/leader");
+      BuildServer.ProgressReporter follower = new BuildServer.ProgressReporter(url + "/follower");
+      assertTrue(leader.attach(follower));
+
+      File failure = new File(tempDir, "failure.zip");
+      Files.write("failure", failure, Charsets.UTF_8);
+      leader.sendResultToAttached(failure);
+      assertFalse(leader.attach(new BuildServer.ProgressReporter(url + "/late")));
+      assertTrue(results.await(10, TimeUnit.SECONDS));
+      assertEquals("[/follower]", received.toString());
+      assertFalse(failure.exists());
+    } finally {
+      server.stop(0);
+    }
+  }
+}
@@ -0,0 +1,112 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests InProcessDexer class.
+ */
+public class InProcessDexerTest extends TestCase {
+  private File tempDir;
+  private String dxJar;
+  private File input;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    dxJar = Compiler.getResource(Compiler.RUNTIME_FILES_DIR + "dx.jar");
+    input = new File(tempDir, "input.jar");
+    JarOutputStream jar = new JarOutputStream(new FileOutputStream(input));
+    try {
+      for (Class<?> c : Arrays.asList(InProcessDexerTest.class, MultiDexPacker.class)) {
+        String name = c.getName().replace('.', '/') + ".class";
+        jar.putNextEntry(new ZipEntry(name));
+        InputStream in = c.getClassLoader().getResourceAsStream(name);
+        try {
+          ByteStreams.copy(in, jar);
+        } finally {
+          in.close();
+        }
+        jar.closeEntry();
+      }
+    } finally {
+      jar.close();
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    InProcessDexer.configure(false, 0);
+    FileUtils.deleteQuietly(tempDir);
+  }
+
+  public void testOutputMatchesChildProcess() throws Exception {
+    File childOutput = new File(tempDir, "child.jar");
+    String[] command = {
+        System.getProperty("java.home") + "/bin/java", "-mx512M", "-jar", dxJar, "--dex",
+        "--output=" + childOutput.getAbsolutePath(), input.getAbsolutePath()
+    };
+    assertTrue(Execution.execute(null, command, System.out, System.err));
+
+    InProcessDexer.configure(true, 512);
+    // The second run reuses the class loader of the first.
+    for (int run = 0; run < 2; run++) {
+      File output = new File(tempDir, "in-process-" + run + ".jar");
+      assertTrue(InProcessDexer.run(dxJar,
+          Arrays.asList("--output=" + output.getAbsolutePath(), input.getAbsolutePath()), 512,
+          System.out, System.err));
+      assertTrue(Arrays.equals(classesDex(childOutput), classesDex(output)));
+    }
+  }
+
+  public void testInvalidInputFails() throws Exception {
+    File invalid = new File(tempDir, "invalid.jar");
+    JarOutputStream jar = new JarOutputStream(new FileOutputStream(invalid));
+    try {
+      jar.putNextEntry(new ZipEntry("Invalid.class"));
+      jar.write(new byte[] { 1, 2, 3 });
+      jar.closeEntry();
+    } finally {
+      jar.close();
+    }
+    InProcessDexer.configure(true, 512);
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    assertFalse(InProcessDexer.run(dxJar,
+        Arrays.asList("--output=" + new File(tempDir, "out.jar").getAbsolutePath(),
+            invalid.getAbsolutePath()), 512, System.out, new PrintStream(err, true)));
+    assertTrue(err.size() > 0);
+  }
+
+  private static byte[] classesDex(File dexJar) throws Exception {
+    JarFile jar = new JarFile(dexJar);
+    try {
+      InputStream in = jar.getInputStream(jar.getEntry("classes.dex"));
+      try {
+        return ByteStreams.toByteArray(in);
+      } finally {
+        in.close();
+      }
+    } finally {
+      jar.close();
+    }
+  }
+}
@@ -0,0 +1,73 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests KawaCompilerDaemon class.
+ */
+public class KawaCompilerDaemonTest extends TestCase {
+  private File tempDir;
+  private String kawaClasspath;
+  private String runtime;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    File runtimeFile = new File(tempDir, "runtime.scm");
+    Files.write("(define marker \"loaded\")\n", runtimeFile, Charsets.UTF_8);
+    runtime = runtimeFile.getAbsolutePath();
+    kawaClasspath = new File(Class.forName("kawa.repl").getProtectionDomain().getCodeSource()
+        .getLocation().toURI()).getAbsolutePath();
+    KawaCompilerDaemon.setMaxWorkers(1, 400);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    KawaCompilerDaemon.setMaxWorkers(0, 0);
+    FileUtils.deleteQuietly(tempDir);
+  }
+
+  /*
+   * Evaluates the given expression in a worker. Returns its output, or null if it failed.
+   */
+  private String eval(String expression) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    PrintStream outStream = new PrintStream(out, true, "UTF-8");
+    PrintStream errStream = new PrintStream(new ByteArrayOutputStream(), true, "UTF-8");
+    boolean success = KawaCompilerDaemon.compile(kawaClasspath, Collections.<String>emptyList(),
+        runtime, 400, Arrays.asList("-e", expression), outStream, errStream);
+    return success ? out.toString("UTF-8").trim() : null;
+  }
+
+  public void testWorkerIsReused() throws Exception {
+    assertEquals("loaded", eval("(display marker)"));
+    assertEquals("", eval("(define counter 5)"));
+    // The definition is still there, so the same worker ran both requests.
+    assertEquals("5", eval("(display counter)"));
+  }
+
+  public void testWorkerIsRestartedAfterCrash() throws Exception {
+    assertEquals("", eval("(define counter 5)"));
+    assertNull(eval("(exit 3)"));
+    // A new worker, with the runtime loaded but not the earlier definition, takes over.
+    assertEquals("loaded", eval("(display marker)"));
+    assertNull(eval("(display counter)"));
+    assertEquals("loaded", eval("(display marker)"));
+  }
+}
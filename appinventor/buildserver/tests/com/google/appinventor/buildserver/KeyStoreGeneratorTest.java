@@ -0,0 +1,87 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests KeyStoreGenerator class.
+ */
+public class KeyStoreGeneratorTest extends TestCase {
+  private static final String DNAME = "CN=\"Doe, \\\"Jane\\\"\", O=AppInventor for Android, C=US";
+
+  private File tempDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    KeyStoreGenerator.configure(0);
+    FileUtils.deleteQuietly(tempDir);
+  }
+
+  public void testCreateKeyStore() throws Exception {
+    File keyStoreFile = new File(tempDir, "android.keystore");
+    KeyStoreGenerator.createKeyStore(DNAME, keyStoreFile);
+    checkKeyStore(keyStoreFile);
+  }
+
+  public void testKeyPairsComeFromThePool() throws Exception {
+    KeyStoreGenerator.configure(1);
+    // Wait for the pool to fill, so the first keystore must use the pooled key pair.
+    long deadline = System.currentTimeMillis() + 60000;
+    List<KeyPair> pooled;
+    while ((pooled = KeyStoreGenerator.getPooledKeyPairs()).isEmpty()) {
+      assertTrue("The pool was never filled", System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+    File first = new File(tempDir, "first.keystore");
+    File second = new File(tempDir, "second.keystore");
+    KeyStoreGenerator.createKeyStore(DNAME, first);
+    KeyStoreGenerator.createKeyStore(DNAME, second);
+    X509Certificate firstCertificate = checkKeyStore(first);
+    X509Certificate secondCertificate = checkKeyStore(second);
+    assertEquals(pooled.get(0).getPublic(), firstCertificate.getPublicKey());
+    assertFalse(firstCertificate.getPublicKey().equals(secondCertificate.getPublicKey()));
+  }
+
+  private static X509Certificate checkKeyStore(File keyStoreFile) throws Exception {
+    KeyStore keyStore = KeyStore.getInstance("JKS");
+    InputStream in = new FileInputStream(keyStoreFile);
+    try {
+      keyStore.load(in, "android".toCharArray());
+    } finally {
+      in.close();
+    }
+    PrivateKey key = (PrivateKey) keyStore.getKey("AndroidKey", "android".toCharArray());
+    assertEquals("RSA", key.getAlgorithm());
+    X509Certificate certificate = (X509Certificate) keyStore.getCertificate("AndroidKey");
+    certificate.verify(certificate.getPublicKey());
+    certificate.checkValidity();
+    assertTrue(certificate.getSubjectX500Principal().getName(),
+        certificate.getSubjectX500Principal().getName().startsWith("CN=Doe\\, \\\"Jane\\\","));
+    long days = (certificate.getNotAfter().getTime() - certificate.getNotBefore().getTime())
+        / (24 * 60 * 60 * 1000L);
+    assertEquals(10000, days);
+    return certificate;
+  }
+}
@@ -0,0 +1,196 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests MemoryBudget class.
+ */
+public class MemoryBudgetTest extends TestCase {
+  @Override
+  protected void tearDown() throws Exception {
+    MemoryBudget.configure(Long.MAX_VALUE, 0);
+    MemoryBudget.setResidentMb(0);
+    StageScheduler.reset();
+    DexExecTask.setPreDexThreads(0);
+  }
+
+  public void testReservationsWaitForTheBudget() throws Exception {
+    MemoryBudget.configure(3000, 2000);
+    MemoryBudget.Reservation first = MemoryBudget.reserve(2000);
+
+    final CountDownLatch reserved = new CountDownLatch(1);
+    Thread waiter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        MemoryBudget.reserve(2000).release();
+        reserved.countDown();
+      }
+    });
+    waiter.start();
+    assertFalse(reserved.await(200, TimeUnit.MILLISECONDS));
+
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    MemoryBudget.addVariables(variables);
+    assertEquals("3000", variables.get("memory-budget-mb"));
+    assertEquals("2000", variables.get("memory-reserved-mb"));
+    assertEquals("1", variables.get("memory-waiting-stages"));
+    assertTrue(Long.parseLong(variables.get("memory-available-mb")) <= 1000);
+    // Less than one build's worth of memory is left.
+    assertTrue(MemoryBudget.isUnderPressure());
+
+    first.release();
+    first.release();  // Releasing twice has no effect.
+    assertTrue(reserved.await(5, TimeUnit.SECONDS));
+    variables.clear();
+    MemoryBudget.addVariables(variables);
+    assertEquals("0", variables.get("memory-reserved-mb"));
+  }
+
+  public void testOversizedReservationRunsAlone() throws Exception {
+    MemoryBudget.configure(1000, 500);
+    MemoryBudget.Reservation big = MemoryBudget.reserve(4000);
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    MemoryBudget.addVariables(variables);
+    assertEquals("4000", variables.get("memory-reserved-mb"));
+    big.release();
+  }
+
+  public void testStagesReserveMemory() throws Exception {
+    MemoryBudget.configure(100000, 2048);
+    StageScheduler.configure(2048, 1, 1, 1, 1);
+    StageScheduler.Permit kawa = StageScheduler.acquire(StageScheduler.Stage.KAWA);
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    MemoryBudget.addVariables(variables);
+    assertEquals("2048", variables.get("memory-reserved-mb"));
+    kawa.release();
+    variables.clear();
+    MemoryBudget.addVariables(variables);
+    assertEquals("0", variables.get("memory-reserved-mb"));
+  }
+
+  public void testResidentMemoryIsTakenOutOfTheBudget() throws Exception {
+    MemoryBudget.configure(3000, 1000);
+    MemoryBudget.setResidentMb(2000);
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    MemoryBudget.addVariables(variables);
+    assertEquals("2000", variables.get("memory-resident-mb"));
+    assertTrue(Long.parseLong(variables.get("memory-available-mb")) <= 1000);
+
+    MemoryBudget.Reservation first = MemoryBudget.reserve(1000);
+    final CountDownLatch reserved = new CountDownLatch(1);
+    Thread waiter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        MemoryBudget.reserve(500).release();
+        reserved.countDown();
+      }
+    });
+    waiter.start();
+    assertFalse(reserved.await(200, TimeUnit.MILLISECONDS));
+    first.release();
+    assertTrue(reserved.await(5, TimeUnit.SECONDS));
+  }
+
+  public void testWarmKawaWorkersReserveNoMemoryPerBuild() throws Exception {
+    MemoryBudget.configure(100000, 2048);
+    StageScheduler.configure(2048, 1, 1, 1, 1);
+    StageScheduler.Permit kawa = StageScheduler.acquire(StageScheduler.Stage.KAWA, false);
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    MemoryBudget.addVariables(variables);
+    assertEquals("0", variables.get("memory-reserved-mb"));
+    kawa.release();
+  }
+
+  public void testConcurrentPreDexingReservesMemoryPerProcess() throws Exception {
+    // Room for one 2000 MB dx process at a time, although the pool has two threads.
+    MemoryBudget.configure(3000, 2000);
+    DexExecTask.setPreDexThreads(2);
+    assertEquals(1, preDexTwoLibraries(2000, new CountDownLatch(0)));
+  }
+
+  public void testPreDexingRunsConcurrentlyWithinTheBudget() throws Exception {
+    MemoryBudget.configure(5000, 2000);
+    DexExecTask.setPreDexThreads(2);
+    // Each dx process waits for the other to start, which it can only do if both fit.
+    assertEquals(2, preDexTwoLibraries(2000, new CountDownLatch(2)));
+  }
+
+  /*
+   * Pre-dexes two libraries with dx processes that record the memory reserved while they
+   * run. Returns the most dx processes that ran at once.
+   */
+  private int preDexTwoLibraries(final int childProcessRamMb, final CountDownLatch started)
+      throws Exception {
+    File tempDir = Files.createTempDir();
+    try {
+      final AtomicInteger running = new AtomicInteger(0);
+      final AtomicInteger maxRunning = new AtomicInteger(0);
+      DexExecTask dexTask = new DexExecTask() {
+        @Override
+        boolean executeDx(String[] dxCommandLine) {
+          int now = running.incrementAndGet();
+          try {
+            synchronized (maxRunning) {
+              maxRunning.set(Math.max(maxRunning.get(), now));
+            }
+            Map<String, String> variables = new LinkedHashMap<String, String>();
+            MemoryBudget.addVariables(variables);
+            assertEquals(now * childProcessRamMb + "", variables.get("memory-reserved-mb"));
+            started.countDown();
+            started.await(5, TimeUnit.SECONDS);
+            Thread.sleep(100);
+            for (String arg : dxCommandLine) {
+              if (arg.startsWith("--output=")) {
+                Files.write("dex", new File(arg.substring("--output=".length())),
+                    Charsets.UTF_8);
+              }
+            }
+            return true;
+          } catch (IOException e) {
+            return false;
+          } catch (InterruptedException e) {
+            return false;
+          } finally {
+            running.decrementAndGet();
+          }
+        }
+      };
+      File cacheDir = new File(tempDir, "dexCache");
+      cacheDir.mkdirs();
+      dexTask.setExecutable(new File(tempDir, "dx.jar").getAbsolutePath());
+      dexTask.setDexedLibs(cacheDir.getAbsolutePath());
+      dexTask.setChildProcessRamMb(childProcessRamMb);
+      File first = new File(tempDir, "first.jar");
+      File second = new File(tempDir, "second.jar");
+      Files.write("first", first, Charsets.UTF_8);
+      Files.write("second", second, Charsets.UTF_8);
+      assertTrue(dexTask.preDex(Arrays.asList(first, second)));
+
+      Map<String, String> variables = new LinkedHashMap<String, String>();
+      MemoryBudget.addVariables(variables);
+      assertEquals("0", variables.get("memory-reserved-mb"));
+      return maxRunning.get();
+    } finally {
+      FileUtils.deleteQuietly(tempDir);
+    }
+  }
+}
@@ -0,0 +1,217 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests MultiDexPacker class.
+ */
+public class MultiDexPackerTest extends TestCase {
+  private final Map<File, MultiDexPacker.References> references =
+      new HashMap<File, MultiDexPacker.References>();
+
+  private File input(String name, int methods, int fields) {
+    File file = new File(name);
+    references.put(file, new MultiDexPacker.References(methods, fields));
+    return file;
+  }
+
+  public void testEverythingFitsInOneDex() throws Exception {
+    File classes = input("classes", 1000, 100);
+    File lib1 = input("lib1.jar", 20000, 1000);
+    File lib2 = input("lib2.jar", 30000, 1000);
+    List<List<File>> dexes = MultiDexPacker.pack(Arrays.asList(classes),
+        Arrays.asList(lib1, lib2), references);
+    assertEquals(1, dexes.size());
+    assertEquals(Arrays.asList(classes, lib1, lib2), dexes.get(0));
+  }
+
+  public void testLibrariesSpillIntoAsManyDexFilesAsNeeded() throws Exception {
+    File classes = input("classes", 40000, 100);
+    File lib1 = input("lib1.jar", 30000, 100);
+    File lib2 = input("lib2.jar", 30000, 100);
+    File lib3 = input("lib3.jar", 30000, 100);
+    File lib4 = input("lib4.jar", 20000, 100);
+    List<List<File>> dexes = MultiDexPacker.pack(Arrays.asList(classes),
+        Arrays.asList(lib1, lib2, lib3, lib4), references);
+    assertEquals(3, dexes.size());
+    assertEquals(Arrays.asList(classes, lib4), dexes.get(0));
+    assertEquals(Arrays.asList(lib1, lib2), dexes.get(1));
+    assertEquals(Arrays.asList(lib3), dexes.get(2));
+  }
+
+  public void testFieldReferencesAreLimitedToo() throws Exception {
+    File classes = input("classes", 100, 60000);
+    File lib = input("lib.jar", 100, 10000);
+    List<List<File>> dexes = MultiDexPacker.pack(Arrays.asList(classes),
+        Arrays.asList(lib), references);
+    assertEquals(2, dexes.size());
+    assertEquals(Arrays.asList(lib), dexes.get(1));
+  }
+
+  public void testPrimaryInputsAreCountedTogether() throws Exception {
+    File classes = new File(MultiDexPackerTest.class.getProtectionDomain().getCodeSource()
+        .getLocation().toURI());
+    File classFile = new File(classes,
+        MultiDexPackerTest.class.getName().replace('.', '/') + ".class");
+    File dir = Files.createTempDir();
+    try {
+      File first = new File(dir, "first");
+      File second = new File(dir, "second");
+      first.mkdirs();
+      second.mkdirs();
+      Files.copy(classFile, new File(first, "A.class"));
+      Files.copy(classFile, new File(second, "A.class"));
+      // Counted one by one, the copies seem too large for classes.dex together.
+      references.put(first, new MultiDexPacker.References(40000, 100));
+      references.put(second, new MultiDexPacker.References(40000, 100));
+      File lib = input("lib.jar", 1000, 100);
+      List<List<File>> dexes = MultiDexPacker.pack(Arrays.asList(first, second),
+          Arrays.asList(lib), references);
+      assertEquals(1, dexes.size());
+      assertEquals(Arrays.asList(first, second, lib), dexes.get(0));
+    } finally {
+      FileUtils.deleteQuietly(dir);
+    }
+  }
+
+  public void testPrimaryOverflowFails() throws Exception {
+    File dir = Files.createTempDir();
+    try {
+      // Two classes with 33000 fields each, 66000 distinct field references in all.
+      Files.write(classWithFields("A", 33000), new File(dir, "A.class"));
+      Files.write(classWithFields("B", 33000), new File(dir, "B.class"));
+      references.put(dir, MultiDexPacker.count(dir));
+      assertEquals(66000, references.get(dir).fields);
+      try {
+        MultiDexPacker.pack(Arrays.asList(dir), Arrays.<File>asList(), references);
+        fail();
+      } catch (MultiDexPacker.PrimaryDexOverflowException e) {
+        assertTrue(e.getMessage().contains("66000 field references"));
+      }
+    } finally {
+      FileUtils.deleteQuietly(dir);
+    }
+  }
+
+  /*
+   * Returns a class file declaring the given number of int fields.
+   */
+  private static byte[] classWithFields(String name, int count) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(0xCAFEBABE);
+    out.writeShort(0);                  // minor_version
+    out.writeShort(50);                 // major_version
+    out.writeShort(4 + count);          // constant_pool_count
+    out.writeByte(1);                   // #1 Utf8
+    out.writeUTF(name);
+    out.writeByte(7);                   // #2 Class
+    out.writeShort(1);
+    out.writeByte(1);                   // #3 Utf8
+    out.writeUTF("I");
+    for (int i = 0; i < count; i++) {
+      out.writeByte(1);                 // #4 + i Utf8
+      out.writeUTF("f" + i);
+    }
+    out.writeShort(0x0001);             // access_flags
+    out.writeShort(2);                  // this_class
+    out.writeShort(0);                  // super_class
+    out.writeShort(0);                  // interfaces_count
+    out.writeShort(count);              // fields_count
+    for (int i = 0; i < count; i++) {
+      out.writeShort(0x0001);           // access_flags
+      out.writeShort(4 + i);            // name_index
+      out.writeShort(3);                // descriptor_index
+      out.writeShort(0);                // attributes_count
+    }
+    out.writeShort(0);                  // methods_count
+    out.writeShort(0);                  // attributes_count
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  public void testCountClassFiles() throws Exception {
+    File jar = new File(TestCase.class.getProtectionDomain().getCodeSource().getLocation()
+        .toURI());
+    MultiDexPacker.References counts = MultiDexPacker.count(jar);
+    assertTrue(counts.methods > 100);
+    assertTrue(counts.fields > 10);
+  }
+
+  public void testSharedReferencesAreCountedOnce() throws Exception {
+    File classes = new File(MultiDexPackerTest.class.getProtectionDomain().getCodeSource()
+        .getLocation().toURI());
+    File classFile = new File(classes,
+        MultiDexPackerTest.class.getName().replace('.', '/') + ".class");
+    File dir = Files.createTempDir();
+    try {
+      Files.copy(classFile, new File(dir, "A.class"));
+      MultiDexPacker.References once = MultiDexPacker.count(dir);
+      Files.copy(classFile, new File(dir, "B.class"));
+      MultiDexPacker.References twice = MultiDexPacker.count(dir);
+      assertTrue(once.methods > 0);
+      assertEquals(once.methods, twice.methods);
+      assertEquals(once.fields, twice.fields);
+    } finally {
+      FileUtils.deleteQuietly(dir);
+    }
+  }
+
+  public void testCountModuleInfo() throws Exception {
+    // A module-info class, whose constant pool has Module and Package entries.
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(0xCAFEBABE);
+    out.writeShort(0);                  // minor_version
+    out.writeShort(53);                 // major_version
+    out.writeShort(7);                  // constant_pool_count
+    out.writeByte(1);                   // #1 Utf8
+    out.writeUTF("module-info");
+    out.writeByte(7);                   // #2 Class
+    out.writeShort(1);
+    out.writeByte(1);                   // #3 Utf8
+    out.writeUTF("example");
+    out.writeByte(19);                  // #4 Module
+    out.writeShort(3);
+    out.writeByte(20);                  // #5 Package
+    out.writeShort(3);
+    out.writeByte(17);                  // #6 Dynamic
+    out.writeShort(0);
+    out.writeShort(0);
+    out.writeShort(0x8000);             // access_flags
+    out.writeShort(2);                  // this_class
+    out.writeShort(0);                  // super_class
+    out.writeShort(0);                  // interfaces_count
+    out.writeShort(0);                  // fields_count
+    out.writeShort(0);                  // methods_count
+    out.writeShort(0);                  // attributes_count
+    out.close();
+
+    File dir = Files.createTempDir();
+    try {
+      Files.write(bytes.toByteArray(), new File(dir, "module-info.class"));
+      MultiDexPacker.References counts = MultiDexPacker.count(dir);
+      assertEquals(0, counts.methods);
+      assertEquals(0, counts.fields);
+    } finally {
+      FileUtils.deleteQuietly(dir);
+    }
+  }
+}
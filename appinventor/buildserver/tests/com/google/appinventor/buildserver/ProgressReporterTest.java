@@ -0,0 +1,129 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Tests BuildServer.ProgressReporter class.
+ */
+public class ProgressReporterTest extends TestCase {
+  private File tempDir;
+  private HttpServer server;
+  private String url;
+  private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+  // The callback doesn't answer until this is released.
+  private final CountDownLatch callbackReleased = new CountDownLatch(1);
+  private final CountDownLatch firstRequest = new CountDownLatch(1);
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        byte[] body = ByteStreams.toByteArray(exchange.getRequestBody());
+        firstRequest.countDown();
+        try {
+          callbackReleased.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(body));
+        ZipEntry entry = zip.getNextEntry();
+        if (entry != null && entry.getName().equals("build.status")) {
+          received.add(new String(ByteStreams.toByteArray(zip), Charsets.UTF_8).trim());
+        } else {
+          received.add(new String(body, Charsets.UTF_8));
+        }
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+    url = "http://localhost:" + server.getAddress().getPort() + "/callback";
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    callbackReleased.countDown();
+    server.stop(0);
+    FileUtils.deleteQuietly(tempDir);
+  }
+
+  public void testProgressIsCoalescedWhileCallbackIsSlow() throws Exception {
+    BuildServer.ProgressReporter reporter = new BuildServer.ProgressReporter(url);
+    reporter.report(10);
+    assertTrue(firstRequest.await(10, TimeUnit.SECONDS));
+    // The build thread isn't held up by the callback that is still busy with 10.
+    reporter.report(20);
+    reporter.report(30);
+    reporter.report(40);
+    callbackReleased.countDown();
+    awaitReceived(2);
+    assertEquals("[10, 40]", received.toString());
+
+    File result = newResult();
+    reporter.sendResult(result);
+    awaitReceived(3);
+    assertEquals("[10, 40, result]", received.toString());
+  }
+
+  public void testResultReplacesPendingProgress() throws Exception {
+    BuildServer.ProgressReporter reporter = new BuildServer.ProgressReporter(url);
+    reporter.report(10);
+    assertTrue(firstRequest.await(10, TimeUnit.SECONDS));
+    reporter.report(50);
+    File result = newResult();
+    reporter.sendResult(result);
+    reporter.report(60);
+    assertEquals(1, BuildServer.ProgressReporter.getPendingResults());
+    callbackReleased.countDown();
+    awaitReceived(2);
+    assertEquals("[10, result]", received.toString());
+    assertFalse(result.exists());
+  }
+
+  private File newResult() throws IOException {
+    File result = new File(tempDir, "result.zip");
+    Files.write("result", result, Charsets.UTF_8);
+    return result;
+  }
+
+  /*
+   * Waits until the callback has received the given number of requests and the reporter has
+   * no result left to send.
+   */
+  private void awaitReceived(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while ((received.size() < count || BuildServer.ProgressReporter.getPendingResults() > 0)
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+}
@@ -0,0 +1,108 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests QueuingExecutor class.
+ */
+public class QueuingExecutorTest extends TestCase {
+  public void testTasksAreQueuedThenRejected() throws Exception {
+    int maxActive = 2;
+    int maxQueued = 3;
+    QueuingExecutor executor = new QueuingExecutor(maxActive, maxQueued);
+
+    // Fill the workers and the queue with tasks that wait until the signal is counted down.
+    CountDownLatch signal = new CountDownLatch(1);
+    CountDownLatch finished = new CountDownLatch(maxActive + maxQueued);
+    for (int i = 0; i < maxActive + maxQueued; i++) {
+      executor.execute(new TaskThatWaitsForSignal(signal, finished));
+    }
+    assertEquals(maxActive + maxQueued,
+        executor.getActiveTaskCount() + executor.getQueuedTaskCount());
+
+    // One more task does not fit.
+    try {
+      executor.execute(new TaskThatWaitsForSignal(signal, finished));
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+    assertEquals(1, executor.getRejectedTaskCount());
+
+    // Let all of the tasks run, including the queued ones.
+    signal.countDown();
+    assertTrue(finished.await(10, TimeUnit.SECONDS));
+    waitUntilIdle(executor);
+    assertEquals(0, executor.getQueuedTaskCount());
+    assertEquals(maxActive + maxQueued, executor.getCompletedTaskCount());
+    assertEquals(0, executor.estimateWaitMillis());
+    assertTrue(executor.getWaitPercentileMillis(50) <= executor.getWaitPercentileMillis(99));
+  }
+
+  public void testWithoutQueueOnlyFreeWorkersAcceptTasks() throws Exception {
+    int maxActive = 10;
+    QueuingExecutor executor = new QueuingExecutor(maxActive, 0);
+
+    CountDownLatch signal = new CountDownLatch(1);
+    CountDownLatch finished = new CountDownLatch(maxActive);
+    for (int i = 0; i < maxActive; i++) {
+      executor.execute(new TaskThatWaitsForSignal(signal, finished));
+    }
+    try {
+      executor.execute(new TaskThatWaitsForSignal(signal, finished));
+      fail();
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+
+    // Once the tasks are done, every worker accepts a task again, even one that has
+    // not gone back to waiting for work yet.
+    signal.countDown();
+    assertTrue(finished.await(10, TimeUnit.SECONDS));
+    waitUntilIdle(executor);
+    CountDownLatch finishedAgain = new CountDownLatch(maxActive);
+    for (int i = 0; i < maxActive; i++) {
+      executor.execute(new TaskThatWaitsForSignal(signal, finishedAgain));
+    }
+    assertTrue(finishedAgain.await(10, TimeUnit.SECONDS));
+    assertEquals(1, executor.getRejectedTaskCount());
+  }
+
+  // The executor's bookkeeping for a task finishes after the task itself.
+  private static void waitUntilIdle(QueuingExecutor executor) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (executor.getActiveTaskCount() + executor.getQueuedTaskCount() > 0) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  private static class TaskThatWaitsForSignal implements Runnable {
+    private final CountDownLatch signal;
+    private final CountDownLatch finished;
+
+    private TaskThatWaitsForSignal(CountDownLatch signal, CountDownLatch finished) {
+      this.signal = signal;
+      this.finished = finished;
+    }
+
+    @Override
+    public void run() {
+      try {
+        signal.await();
+      } catch (InterruptedException e) {
+        // ignored
+      }
+      finished.countDown();
+    }
+  }
+}
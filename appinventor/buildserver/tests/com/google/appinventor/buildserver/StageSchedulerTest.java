@@ -0,0 +1,62 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2018 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests StageScheduler class.
+ */
+public class StageSchedulerTest extends TestCase {
+  @Override
+  protected void tearDown() throws Exception {
+    StageScheduler.reset();
+  }
+
+  public void testStagesAreLimitedIndependently() throws Exception {
+    StageScheduler.configure(2048, 2, 1, 0, 0);
+    assertEquals(2, StageScheduler.getLimit(StageScheduler.Stage.KAWA));
+    assertEquals(1, StageScheduler.getLimit(StageScheduler.Stage.DX));
+
+    StageScheduler.Permit kawa1 = StageScheduler.acquire(StageScheduler.Stage.KAWA);
+    StageScheduler.Permit kawa2 = StageScheduler.acquire(StageScheduler.Stage.KAWA);
+    // A full Kawa stage does not block DX.
+    StageScheduler.Permit dx = StageScheduler.acquire(StageScheduler.Stage.DX);
+
+    final CountDownLatch entered = new CountDownLatch(1);
+    Thread waiter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        StageScheduler.acquire(StageScheduler.Stage.KAWA).release();
+        entered.countDown();
+      }
+    });
+    waiter.start();
+    assertFalse(entered.await(200, TimeUnit.MILLISECONDS));
+
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    StageScheduler.addVariables(variables);
+    assertEquals("1", variables.get("stage-kawa-queue-depth"));
+    assertEquals("2", variables.get("stage-kawa-active"));
+
+    kawa1.release();
+    assertTrue(entered.await(5, TimeUnit.SECONDS));
+    kawa2.release();
+    dx.release();
+    dx.release();  // Releasing twice has no effect.
+
+    variables.clear();
+    StageScheduler.addVariables(variables);
+    assertEquals("0", variables.get("stage-kawa-active"));
+    assertEquals("3", variables.get("stage-kawa-count"));
+    assertEquals("0", variables.get("stage-dx-active"));
+  }
+}